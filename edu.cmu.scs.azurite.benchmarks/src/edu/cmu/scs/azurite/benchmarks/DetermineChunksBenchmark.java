@@ -0,0 +1,81 @@
+package edu.cmu.scs.azurite.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import edu.cmu.scs.azurite.commands.runtime.RuntimeDC;
+import edu.cmu.scs.azurite.commands.runtime.Segment;
+import edu.cmu.scs.azurite.model.undo.Chunk;
+import edu.cmu.scs.azurite.model.undo.SelectiveUndoEngine;
+import edu.cmu.scs.fluorite.commands.Insert;
+
+/**
+ * Measures determining the chunks of a large number of segments, as when
+ * undoing all the files to a point in time.
+ *
+ * Calculating the segments of that many document changes would take too
+ * long, so the segments are generated directly. Each runtime doc change has
+ * a few segments near each other, and the segments of the neighboring
+ * changes overlap depending on the spread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DetermineChunksBenchmark {
+
+	private static final int MAX_SEGMENTS_PER_DC = 4;
+	private static final int MAX_SEGMENT_LENGTH = 5;
+	private static final long SEED = 0;
+
+	@Param({ "10000", "100000", "1000000" })
+	public int size;
+
+	// The range of the offsets of the segments of a single runtime doc change.
+	@Param({ "4", "64" })
+	public int spread;
+
+	private List<Segment> mSegments;
+
+	@Setup(Level.Trial)
+	public void generateSegments() {
+		Random random = new Random(SEED);
+
+		mSegments = new ArrayList<Segment>(size + MAX_SEGMENTS_PER_DC);
+
+		// Ordered by the runtime doc changes, as getAllSegments returns them.
+		int offset = 0;
+		while (mSegments.size() < size) {
+			RuntimeDC owner = RuntimeDC.createRuntimeDocumentChange(new Insert(offset, "a", null));
+
+			int count = 1 + random.nextInt(MAX_SEGMENTS_PER_DC);
+			for (int i = 0; i < count; ++i) {
+				int segmentOffset = offset + random.nextInt(spread);
+				boolean deletion = random.nextInt(4) == 0;
+				int length = deletion ? 0 : 1 + random.nextInt(MAX_SEGMENT_LENGTH);
+				mSegments.add(new Segment(segmentOffset, length, null, null, owner, deletion));
+			}
+
+			offset += 1 + random.nextInt(spread);
+		}
+	}
+
+	@Benchmark
+	public List<Chunk> determineChunks() {
+		// determineChunks sorts the given list.
+		return SelectiveUndoEngine.getInstance().determineChunks(
+				new ArrayList<Segment>(mSegments));
+	}
+
+}
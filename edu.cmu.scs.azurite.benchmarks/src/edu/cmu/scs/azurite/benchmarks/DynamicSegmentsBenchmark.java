@@ -0,0 +1,99 @@
+package edu.cmu.scs.azurite.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import edu.cmu.scs.azurite.commands.runtime.RuntimeDC;
+import edu.cmu.scs.azurite.model.RuntimeHistoryManager;
+import edu.cmu.scs.fluorite.commands.BaseDocumentChangeEvent;
+
+/**
+ * Measures how long it takes to calculate the current segments of all the
+ * document changes of a file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DynamicSegmentsBenchmark {
+
+	private static final int INITIAL_LENGTH = 2000;
+	private static final long SEED = 0;
+
+	@State(Scope.Thread)
+	public static class TraceState {
+		@Param({ "1000", "4000" })
+		public int size;
+
+		@Param({ "0.5", "0.95" })
+		public double locality;
+
+		private KeystrokeTrace mTrace;
+
+		@Setup(Level.Trial)
+		public void generateTrace() {
+			mTrace = new KeystrokeTrace(size, locality, INITIAL_LENGTH, SEED);
+		}
+	}
+
+	/**
+	 * Fresh runtime DCs, because applying the changes modifies their segments.
+	 */
+	@State(Scope.Thread)
+	public static class ChainState {
+		private List<RuntimeDC> mRuntimeDCs;
+
+		@Setup(Level.Invocation)
+		public void createRuntimeDCs(TraceState traceState) {
+			mRuntimeDCs = new ArrayList<RuntimeDC>();
+			for (BaseDocumentChangeEvent docChange : traceState.mTrace.getDocChanges()) {
+				mRuntimeDCs.add(RuntimeDC.createRuntimeDocumentChange(docChange));
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class ManagerState {
+		private RuntimeHistoryManager mManager;
+
+		@Setup(Level.Invocation)
+		public void createManager(TraceState traceState) {
+			mManager = new RuntimeHistoryManager();
+			mManager.activeFileChanged("dummyProject", "dummyFile", null);
+			for (BaseDocumentChangeEvent docChange : traceState.mTrace.getDocChanges()) {
+				mManager.documentChangeFinalized(docChange);
+			}
+		}
+	}
+
+	/**
+	 * Applies each change to all the previous ones, without any index.
+	 */
+	@Benchmark
+	public List<RuntimeDC> applyToChain(ChainState state) {
+		List<RuntimeDC> list = state.mRuntimeDCs;
+		for (int i = 0; i < list.size(); ++i) {
+			for (int j = 0; j < i; ++j) {
+				list.get(i).applyTo(list.get(j));
+			}
+		}
+
+		return list;
+	}
+
+	@Benchmark
+	public List<RuntimeDC> calculateDynamicSegments(ManagerState state) {
+		RuntimeHistoryManager manager = state.mManager;
+		return manager.calculateDynamicSegments(manager.getCurrentFileKey());
+	}
+
+}
@@ -0,0 +1,66 @@
+package edu.cmu.scs.azurite.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.cmu.scs.azurite.model.FileKey;
+import edu.cmu.scs.azurite.model.IAddCommand;
+import edu.cmu.scs.azurite.model.PastHistoryManager;
+import edu.cmu.scs.fluorite.commands.ICommand;
+
+/**
+ * Measures how long it takes to turn the difference between two snapshots
+ * into document changes. The snapshots are the initial and the final content
+ * of a synthetic trace.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class InjectDiffDCsBenchmark {
+
+	private static final long SEED = 0;
+
+	@Param({ "100", "1000" })
+	public int size;
+
+	@Param({ "0.5", "0.95" })
+	public double locality;
+
+	@Param({ "2000", "20000" })
+	public int length;
+
+	private FileKey mKey;
+	private String mBefore;
+	private String mAfter;
+
+	@Setup(Level.Trial)
+	public void prepare() {
+		KeystrokeTrace trace = new KeystrokeTrace(size, locality, length, SEED);
+
+		mKey = new FileKey("dummyProject", "dummyFile");
+		mBefore = trace.getInitialContent();
+		mAfter = trace.getFinalContent();
+	}
+
+	@Benchmark
+	public void injectDiffDCs(final Blackhole blackhole) {
+		PastHistoryManager.getInstance().injectDiffDCs(mKey, mBefore, mAfter,
+				SEED, SEED, false, new IAddCommand() {
+					@Override
+					public void addCommand(ICommand command) {
+						blackhole.consume(command);
+					}
+				});
+	}
+
+}
@@ -0,0 +1,114 @@
+package edu.cmu.scs.azurite.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import edu.cmu.scs.fluorite.commands.BaseDocumentChangeEvent;
+import edu.cmu.scs.fluorite.commands.Delete;
+import edu.cmu.scs.fluorite.commands.Insert;
+import edu.cmu.scs.fluorite.commands.Replace;
+
+/**
+ * A synthetic sequence of document changes, which looks like someone typing
+ * code. Most of the changes are single character insertions and backspaces
+ * at the cursor, mixed with some pastes and replacements.
+ *
+ * The locality is the probability that a change is made at the cursor. With
+ * the remaining probability, the cursor jumps to a random place first. So a
+ * high locality gives long runs of changes to the same region, and a low
+ * locality spreads the changes across the whole file.
+ */
+public class KeystrokeTrace {
+
+	private static final String RANDOM_TEXT = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz \t\n0123456789(){};=.";
+
+	private static final double INSERT_RATIO = 0.7;
+	private static final double BACKSPACE_RATIO = 0.2;
+	private static final double PASTE_RATIO = 0.05;
+
+	private static final int MAX_PASTE_LENGTH = 40;
+	private static final int MAX_REPLACE_LENGTH = 10;
+
+	private String mInitialContent;
+	private String mFinalContent;
+	private List<BaseDocumentChangeEvent> mDocChanges;
+
+	/**
+	 * @param size the number of document changes.
+	 * @param locality the probability of making a change at the cursor.
+	 * @param initialLength the length of the initial content.
+	 * @param seed the random seed, so that the same trace can be generated again.
+	 */
+	public KeystrokeTrace(int size, double locality, int initialLength, long seed) {
+		Random random = new Random(seed);
+
+		mInitialContent = randomString(random, initialLength);
+		mDocChanges = new ArrayList<BaseDocumentChangeEvent>(size);
+
+		StringBuilder content = new StringBuilder(mInitialContent);
+		int cursor = random.nextInt(content.length() + 1);
+		for (int i = 0; i < size; ++i) {
+			if (random.nextDouble() >= locality) {
+				cursor = random.nextInt(content.length() + 1);
+			}
+
+			double kind = random.nextDouble();
+			if (content.length() == 0 || kind < INSERT_RATIO) {
+				String text = randomString(random, 1);
+				mDocChanges.add(new Insert(cursor, text, null));
+				content.insert(cursor, text);
+				cursor += text.length();
+			} else if (kind < INSERT_RATIO + BACKSPACE_RATIO) {
+				if (cursor == 0) {
+					cursor = 1;
+				}
+				mDocChanges.add(createDelete(content, cursor - 1, 1));
+				content.delete(cursor - 1, cursor);
+				--cursor;
+			} else if (kind < INSERT_RATIO + BACKSPACE_RATIO + PASTE_RATIO) {
+				String text = randomString(random, random.nextInt(MAX_PASTE_LENGTH) + 1);
+				mDocChanges.add(new Insert(cursor, text, null));
+				content.insert(cursor, text);
+				cursor += text.length();
+			} else {
+				int offset = Math.min(cursor, content.length() - 1);
+				int length = random.nextInt(Math.min(content.length() - offset, MAX_REPLACE_LENGTH)) + 1;
+				String text = randomString(random, random.nextInt(MAX_REPLACE_LENGTH) + 1);
+				mDocChanges.add(new Replace(offset, length, 0, 0, text.length(),
+						content.substring(offset, offset + length), text, null));
+				content.replace(offset, offset + length, text);
+				cursor = offset + text.length();
+			}
+		}
+
+		mFinalContent = content.toString();
+	}
+
+	public String getInitialContent() {
+		return mInitialContent;
+	}
+
+	public String getFinalContent() {
+		return mFinalContent;
+	}
+
+	public List<BaseDocumentChangeEvent> getDocChanges() {
+		return Collections.unmodifiableList(mDocChanges);
+	}
+
+	private static Delete createDelete(StringBuilder content, int offset, int length) {
+		return new Delete(offset, length, 0, 0, content.substring(offset, offset + length), null);
+	}
+
+	private static String randomString(Random random, int length) {
+		char[] charArray = new char[length];
+		for (int i = 0; i < length; ++i) {
+			charArray[i] = RANDOM_TEXT.charAt(random.nextInt(RANDOM_TEXT.length()));
+		}
+
+		return new String(charArray);
+	}
+
+}
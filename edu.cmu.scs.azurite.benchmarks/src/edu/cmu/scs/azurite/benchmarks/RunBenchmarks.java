@@ -0,0 +1,37 @@
+package edu.cmu.scs.azurite.benchmarks;
+
+import org.junit.Test;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks from the OSGi test runtime, where the plug-in and all
+ * of its dependencies are available.
+ *
+ * The JMH command line options are taken from the "jmh.args" system property,
+ * and the results are written to the file given by "jmh.result".
+ */
+public class RunBenchmarks {
+
+	@Test
+	public void runBenchmarks() throws Exception {
+		String args = System.getProperty("jmh.args", "").trim();
+		CommandLineOptions commandLineOptions = new CommandLineOptions(
+				args.isEmpty() ? new String[0] : args.split("\\s+"));
+
+		// A forked VM would not have the OSGi class loaders,
+		// so the benchmarks have to run in this VM.
+		Options options = new OptionsBuilder()
+				.parent(commandLineOptions)
+				.forks(0)
+				.resultFormat(ResultFormatType.JSON)
+				.result(System.getProperty("jmh.result", "jmh-result.json"))
+				.build();
+
+		new Runner(options).run();
+	}
+
+}
@@ -0,0 +1,130 @@
+package edu.cmu.scs.azurite.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.cmu.scs.azurite.commands.runtime.RuntimeDC;
+import edu.cmu.scs.azurite.commands.runtime.Segment;
+import edu.cmu.scs.azurite.model.RuntimeHistoryManager;
+import edu.cmu.scs.azurite.model.undo.Chunk;
+import edu.cmu.scs.azurite.model.undo.SelectiveUndoEngine;
+import edu.cmu.scs.fluorite.commands.BaseDocumentChangeEvent;
+
+/**
+ * Measures the selective undo of a random subset of the document changes,
+ * separately for determining the chunks and for undoing them.
+ * The chunks are undone in the same way as
+ * {@link SelectiveUndoEngine#doSelectiveUndoWithChunks(List, org.eclipse.jface.text.IDocument)},
+ * without applying the results to a document.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SelectiveUndoBenchmark {
+
+	private static final int INITIAL_LENGTH = 2000;
+	private static final long SEED = 0;
+
+	@Param({ "1000", "10000" })
+	public int size;
+
+	@Param({ "0.5", "0.95" })
+	public double locality;
+
+	// The ratio of the document changes selected for undo.
+	@Param({ "0.1", "0.5" })
+	public double selected;
+
+	private List<Segment> mSegments;
+
+	private List<Chunk> mChunksWithoutConflicts;
+	private List<String> mContentsWithoutConflicts;
+
+	private List<Chunk> mChunksWithConflicts;
+	private List<String> mContentsWithConflicts;
+
+	@Setup(Level.Trial)
+	public void prepare() {
+		KeystrokeTrace trace = new KeystrokeTrace(size, locality, INITIAL_LENGTH, SEED);
+
+		RuntimeHistoryManager manager = new RuntimeHistoryManager();
+		manager.activeFileChanged("dummyProject", "dummyFile", null);
+		for (BaseDocumentChangeEvent docChange : trace.getDocChanges()) {
+			manager.documentChangeFinalized(docChange);
+		}
+
+		List<RuntimeDC> selectedDCs = new ArrayList<RuntimeDC>();
+		Random random = new Random(SEED);
+		for (RuntimeDC dc : manager.calculateDynamicSegments(manager.getCurrentFileKey())) {
+			if (random.nextDouble() < selected) {
+				selectedDCs.add(dc);
+			}
+		}
+
+		mSegments = new ArrayList<Segment>();
+		for (RuntimeDC dc : selectedDCs) {
+			mSegments.addAll(dc.getAllSegments());
+		}
+
+		mChunksWithoutConflicts = new ArrayList<Chunk>();
+		mContentsWithoutConflicts = new ArrayList<String>();
+		mChunksWithConflicts = new ArrayList<Chunk>();
+		mContentsWithConflicts = new ArrayList<String>();
+
+		String content = trace.getFinalContent();
+		SelectiveUndoEngine engine = SelectiveUndoEngine.getInstance();
+		for (Chunk chunk : engine.determineChunksWithRuntimeDCs(selectedDCs)) {
+			Chunk expandedChunk = chunk.getExpandedChunkWithDepth(
+					SelectiveUndoEngine.MAX_EXPANSION_DEPTH);
+			String initialContent = content.substring(expandedChunk.getStartOffset(),
+					expandedChunk.getEndOffset());
+
+			if (chunk.hasConflictOutsideThisChunk()) {
+				mChunksWithConflicts.add(chunk);
+				mContentsWithConflicts.add(initialContent);
+			} else {
+				mChunksWithoutConflicts.add(chunk);
+				mContentsWithoutConflicts.add(initialContent);
+			}
+		}
+	}
+
+	@Benchmark
+	public List<Chunk> determineChunks() {
+		// determineChunks sorts the given list.
+		return SelectiveUndoEngine.getInstance().determineChunks(
+				new ArrayList<Segment>(mSegments));
+	}
+
+	@Benchmark
+	public void doSelectiveUndoChunkWithoutConflicts(Blackhole blackhole) {
+		SelectiveUndoEngine engine = SelectiveUndoEngine.getInstance();
+		for (int i = 0; i < mChunksWithoutConflicts.size(); ++i) {
+			blackhole.consume(engine.doSelectiveUndoChunkWithoutConflicts(
+					mChunksWithoutConflicts.get(i), mContentsWithoutConflicts.get(i)));
+		}
+	}
+
+	@Benchmark
+	public void doSelectiveUndoChunkWithConflicts(Blackhole blackhole) {
+		SelectiveUndoEngine engine = SelectiveUndoEngine.getInstance();
+		for (int i = 0; i < mChunksWithConflicts.size(); ++i) {
+			blackhole.consume(engine.doSelectiveUndoChunkWithConflicts(
+					mChunksWithConflicts.get(i), mContentsWithConflicts.get(i)));
+		}
+	}
+
+}
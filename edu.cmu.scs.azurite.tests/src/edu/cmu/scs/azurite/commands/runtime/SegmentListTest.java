@@ -0,0 +1,83 @@
+package edu.cmu.scs.azurite.commands.runtime;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SegmentListTest {
+
+	@Test
+	public void testShiftFrom() {
+		SegmentList list = new SegmentList();
+		for (int i = 0; i < 10; ++i) {
+			list.add(new Segment(i * 10, 5, "abcde", null, null, false));
+		}
+
+		list.shiftFrom(4, 3);
+		list.shiftFrom(8, -2);
+
+		for (int i = 0; i < 10; ++i) {
+			int expected = i * 10 + (i >= 4 ? 3 : 0) + (i >= 8 ? -2 : 0);
+			assertEquals(expected, list.get(i).getOffset());
+		}
+
+		// Changing the offset from outside should be consistent with the shifts.
+		list.get(9).setOffset(200);
+		list.shiftFrom(9, 1);
+		assertEquals(201, list.get(9).getOffset());
+	}
+
+	@Test
+	public void testIndexOfFirstAffected() {
+		SegmentList list = new SegmentList();
+		list.add(new Segment(0, 5, "abcde", null, null, false));
+		list.add(new Segment(5, 0, "", null, null, false));
+		list.add(new Segment(5, 5, "fghij", null, null, false));
+		list.add(new Segment(20, 5, "klmno", null, null, false));
+
+		assertEquals(0, list.indexOfFirstAffected(0, 3));
+		assertEquals(1, list.indexOfFirstAffected(0, 5));
+		assertEquals(2, list.indexOfFirstAffected(2, 5));
+		assertEquals(3, list.indexOfFirstAffected(0, 10));
+		assertEquals(4, list.indexOfFirstAffected(0, 25));
+
+		list.shiftFrom(3, -12);
+		assertEquals(3, list.indexOfFirstAffected(0, 10));
+	}
+
+	@Test
+	public void testRandomOperations() {
+		Random random = new Random(0);
+
+		SegmentList list = new SegmentList();
+		List<Segment> segments = new ArrayList<Segment>();
+		List<Integer> offsets = new ArrayList<Integer>();
+
+		for (int i = 0; i < 1000; ++i) {
+			int index = random.nextInt(segments.size() + 1);
+
+			if (random.nextBoolean()) {
+				Segment segment = new Segment(random.nextInt(1000), 1, "a", null, null, false);
+				list.add(index, segment);
+				segments.add(index, segment);
+				offsets.add(index, segment.getOffset());
+			} else {
+				int amount = random.nextInt(10);
+				list.shiftFrom(index, amount);
+				for (int j = index; j < offsets.size(); ++j) {
+					offsets.set(j, offsets.get(j) + amount);
+				}
+			}
+		}
+
+		assertEquals(segments, list);
+		for (int i = 0; i < segments.size(); ++i) {
+			assertEquals((int) offsets.get(i), segments.get(i).getOffset());
+		}
+	}
+
+}
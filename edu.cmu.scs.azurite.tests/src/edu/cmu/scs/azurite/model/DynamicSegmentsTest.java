@@ -0,0 +1,335 @@
+package edu.cmu.scs.azurite.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.Document;
+import org.eclipse.jface.text.IDocument;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.cmu.scs.azurite.commands.diff.DiffDelete;
+import edu.cmu.scs.azurite.commands.diff.DiffInsert;
+import edu.cmu.scs.azurite.commands.runtime.RuntimeDC;
+import edu.cmu.scs.azurite.commands.runtime.Segment;
+import edu.cmu.scs.fluorite.commands.AbstractCommand;
+import edu.cmu.scs.fluorite.commands.BaseDocumentChangeEvent;
+import edu.cmu.scs.fluorite.commands.Delete;
+import edu.cmu.scs.fluorite.commands.ICommand;
+import edu.cmu.scs.fluorite.commands.Insert;
+import edu.cmu.scs.fluorite.commands.Replace;
+import edu.cmu.scs.fluorite.model.Events;
+
+/**
+ * Compares the dynamic segments calculated by the RuntimeHistoryManager with
+ * the ones calculated by applying every change to all the previous changes.
+ */
+public class DynamicSegmentsTest {
+
+	private static final String RANDOM_TEXT = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz \t0123456789";
+
+	private static final int LOOP_COUNT = 100;
+	private static final int INITIAL_TEXT_LENGTH = 10;
+	private static final int RANDOM_TEXT_MAX_LENGTH = 5;
+
+	@Before
+	public void setUp() {
+		AbstractCommand.resetCommandID();
+	}
+
+	@Test
+	public void testRandom50OperationsAtOnce() {
+		testRandomOperations(50, false);
+	}
+
+	@Test
+	public void testRandom50OperationsIncrementally() {
+		testRandomOperations(50, true);
+	}
+
+	private void testRandomOperations(int numOperations, boolean incremental) {
+		for (int trial = 0; trial < LOOP_COUNT; ++trial) {
+			AbstractCommand.resetCommandID();
+
+			RuntimeHistoryManager manager = new RuntimeHistoryManager();
+			manager.activeFileChanged("dummyProject", "dummyFile", null);
+
+			Document doc = new Document(randomStringOfLength(INITIAL_TEXT_LENGTH));
+
+			List<BaseDocumentChangeEvent> docChanges = new ArrayList<BaseDocumentChangeEvent>();
+			for (int i = 0; i < numOperations; ++i) {
+				BaseDocumentChangeEvent operation = applyRandomOperation(doc);
+				docChanges.add(operation);
+				manager.documentChangeFinalized(operation);
+
+				if (incremental) {
+					manager.calculateDynamicSegments(manager.getCurrentFileKey());
+				}
+			}
+
+			List<RuntimeDC> actual = manager.calculateDynamicSegments(manager.getCurrentFileKey());
+			assertRuntimeDCsEqual(calculateExpected(docChanges), actual);
+		}
+	}
+
+	@Test
+	public void testRandomPastLogsMerged() {
+		for (int trial = 0; trial < LOOP_COUNT; ++trial) {
+			AbstractCommand.resetCommandID();
+
+			RuntimeHistoryManager manager = new RuntimeHistoryManager();
+			manager.activeFileChanged("dummyProject", "dummyFile", null);
+			FileKey key = manager.getCurrentFileKey();
+
+			Document doc = new Document(randomStringOfLength(INITIAL_TEXT_LENGTH));
+
+			// The past logs only contain the diffs in this test.
+			List<BaseDocumentChangeEvent> docChanges = new ArrayList<BaseDocumentChangeEvent>();
+			List<ICommand> pastCommands = new ArrayList<ICommand>();
+			for (int i = 0; i < 25; ++i) {
+				BaseDocumentChangeEvent operation = applyRandomDiffOperation(doc, key);
+				docChanges.add(operation);
+				pastCommands.add(operation);
+			}
+
+			// Some of the current changes are calculated before the merge.
+			for (int i = 0; i < 25; ++i) {
+				BaseDocumentChangeEvent operation = applyRandomOperation(doc);
+				docChanges.add(operation);
+				manager.documentChangeFinalized(operation);
+
+				if (i == 15) {
+					manager.calculateDynamicSegments(key);
+				}
+			}
+
+			Events pastEvents = new Events(pastCommands, "", "0", "", 0);
+			manager.mergePastEvents(Collections.singletonList(pastEvents));
+
+			List<RuntimeDC> actual = manager.calculateDynamicSegments(key);
+			assertRuntimeDCsEqual(calculateExpected(docChanges), actual);
+		}
+	}
+
+	@Test
+	public void testRandomRegionQueries() {
+		for (int trial = 0; trial < LOOP_COUNT; ++trial) {
+			AbstractCommand.resetCommandID();
+
+			RuntimeHistoryManager manager = new RuntimeHistoryManager();
+			manager.activeFileChanged("dummyProject", "dummyFile", null);
+			FileKey key = manager.getCurrentFileKey();
+
+			Document doc = new Document(randomStringOfLength(INITIAL_TEXT_LENGTH));
+
+			List<ICommand> pastCommands = new ArrayList<ICommand>();
+			for (int i = 0; i < 10; ++i) {
+				pastCommands.add(applyRandomDiffOperation(doc, key));
+			}
+
+			for (int i = 0; i < 40; ++i) {
+				manager.documentChangeFinalized(applyRandomOperation(doc));
+
+				if (i == 20) {
+					// The past logs are merged in the middle.
+					manager.calculateDynamicSegments(key);
+					manager.mergePastEvents(Collections.singletonList(
+							new Events(pastCommands, "", "0", "", 0)));
+				}
+
+				int startOffset = (int) (Math.random() * (doc.getLength() + 1));
+				int endOffset = startOffset + (int) (Math.random() * (doc.getLength() - startOffset + 1));
+
+				List<RuntimeDC> actual = manager.filterDocumentChangesByRegion(key, startOffset, endOffset);
+				assertEquals(filterByRegion(manager.calculateDynamicSegments(key), startOffset, endOffset), actual);
+			}
+		}
+	}
+
+	private List<RuntimeDC> filterByRegion(List<RuntimeDC> dcs, int startOffset, int endOffset) {
+		List<RuntimeDC> result = new ArrayList<RuntimeDC>();
+		for (RuntimeDC dc : dcs) {
+			for (Segment segment : dc.getAllSegments()) {
+				if (startOffset < segment.getEffectiveEndOffset() && segment.getOffset() < endOffset) {
+					result.add(dc);
+					break;
+				}
+			}
+		}
+
+		return result;
+	}
+
+	// Calculate the expected result in the quadratic way.
+	private List<RuntimeDC> calculateExpected(List<BaseDocumentChangeEvent> docChanges) {
+		List<RuntimeDC> expected = new ArrayList<RuntimeDC>();
+		for (BaseDocumentChangeEvent docChange : docChanges) {
+			expected.add(RuntimeDC.createRuntimeDocumentChange(docChange));
+		}
+
+		for (int i = 0; i < expected.size(); ++i) {
+			for (int j = 0; j < i; ++j) {
+				expected.get(i).applyTo(expected.get(j));
+			}
+		}
+
+		return expected;
+	}
+
+	private void assertRuntimeDCsEqual(List<RuntimeDC> expected, List<RuntimeDC> actual) {
+		assertEquals(expected.size(), actual.size());
+
+		for (int i = 0; i < expected.size(); ++i) {
+			List<Segment> expectedSegments = expected.get(i).getAllSegments();
+			List<Segment> actualSegments = actual.get(i).getAllSegments();
+			assertEquals(expectedSegments.size(), actualSegments.size());
+
+			for (int j = 0; j < expectedSegments.size(); ++j) {
+				Segment expectedSegment = expectedSegments.get(j);
+				Segment actualSegment = actualSegments.get(j);
+
+				assertEquals(expectedSegment.getOffset(), actualSegment.getOffset());
+				assertEquals(expectedSegment.getLength(), actualSegment.getLength());
+				assertEquals(expectedSegment.getText(), actualSegment.getText());
+				assertEquals(expectedSegment.getRelativeOffset(), actualSegment.getRelativeOffset());
+				assertEquals(expectedSegment.getOriginalLength(), actualSegment.getOriginalLength());
+
+				assertSegmentsCorrespond(expected, expectedSegment.getSegmentsClosedByMe(),
+						actual, actualSegment.getSegmentsClosedByMe());
+				assertSegmentsCorrespond(expected, expectedSegment.getRight(),
+						actual, actualSegment.getRight());
+			}
+
+			List<RuntimeDC> expectedConflicts = expected.get(i).getConflicts();
+			List<RuntimeDC> actualConflicts = actual.get(i).getConflicts();
+			assertEquals(expectedConflicts.size(), actualConflicts.size());
+
+			for (int j = 0; j < expectedConflicts.size(); ++j) {
+				assertEquals(expected.indexOf(expectedConflicts.get(j)),
+						actual.indexOf(actualConflicts.get(j)));
+			}
+		}
+	}
+
+	private void assertSegmentsCorrespond(List<RuntimeDC> expectedDCs,
+			List<Segment> expectedSegments, List<RuntimeDC> actualDCs,
+			List<Segment> actualSegments) {
+		assertEquals(expectedSegments.size(), actualSegments.size());
+
+		for (int i = 0; i < expectedSegments.size(); ++i) {
+			Segment expectedSegment = expectedSegments.get(i);
+			Segment actualSegment = actualSegments.get(i);
+
+			int ownerIndex = expectedDCs.indexOf(expectedSegment.getOwner());
+			assertEquals(ownerIndex, actualDCs.indexOf(actualSegment.getOwner()));
+
+			int segmentIndex = expectedSegment.getOwner().getAllSegments().indexOf(expectedSegment);
+			assertSame(actualSegment, actualDCs.get(ownerIndex).getAllSegments().get(segmentIndex));
+		}
+	}
+
+	private BaseDocumentChangeEvent applyRandomOperation(IDocument document) {
+		while (true) {
+			double randValue = Math.random() * 3.0;
+
+			try {
+				if (randValue < 1.0) {
+					Insert insert = new Insert(
+							(int) (Math.random() * (document.getLength() + 1)),
+							randomString(), null);
+					document.replace(insert.getOffset(), 0, insert.getText());
+					return insert;
+				}
+
+				if (document.getLength() == 0) {
+					continue;
+				}
+
+				int startOffset = (int) (Math.random() * document.getLength());
+				int length = (int) (Math.random() * Math.min(document.getLength() - startOffset, RANDOM_TEXT_MAX_LENGTH)) + 1;
+
+				if (randValue < 2.0) {
+					Delete delete = new Delete(startOffset, length, 0, 0,
+							document.get(startOffset, length), null);
+					document.replace(startOffset, length, "");
+					return delete;
+				} else {
+					String insertedText = randomString();
+					Replace replace = new Replace(startOffset, length, 0, 0,
+							insertedText.length(),
+							document.get(startOffset, length), insertedText,
+							null);
+					document.replace(startOffset, length, insertedText);
+					return replace;
+				}
+			} catch (BadLocationException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	@Test
+	public void testFileChangedOutsideEditor() {
+		RuntimeHistoryManager manager = new RuntimeHistoryManager();
+		manager.activeFileChanged("dummyProject", "activeFile", null);
+		FileKey activeKey = manager.getCurrentFileKey();
+
+		FileKey key = new FileKey("dummyProject", "otherFile");
+		String before = "int a = 1;\nint b = 2;\n";
+		String after = "int a = 10;\nint c = 3;\nint b = 2;\n";
+		manager.fileChangedOutsideEditor(key, before, after);
+
+		// The current file stays the same.
+		assertSame(activeKey, manager.getCurrentFileKey());
+		assertEquals(0, manager.getRuntimeDocumentChanges(activeKey).size());
+
+		// The recorded changes turn the old content into the new one.
+		String content = before;
+		for (RuntimeDC runtimeDC : manager.calculateDynamicSegments(key)) {
+			assertEquals(key, runtimeDC.getBelongsTo());
+			content = runtimeDC.getOriginal().applyToString(content);
+		}
+		assertEquals(after, content);
+	}
+
+	private BaseDocumentChangeEvent applyRandomDiffOperation(IDocument document, FileKey key) {
+		try {
+			if (document.getLength() == 0 || Math.random() < 0.5) {
+				DiffInsert insert = new DiffInsert(key,
+						(int) (Math.random() * (document.getLength() + 1)),
+						randomString(), null);
+				document.replace(insert.getOffset(), 0, insert.getText());
+				return insert;
+			}
+
+			int startOffset = (int) (Math.random() * document.getLength());
+			int length = (int) (Math.random() * Math.min(document.getLength() - startOffset, RANDOM_TEXT_MAX_LENGTH)) + 1;
+
+			DiffDelete delete = new DiffDelete(key, startOffset, length, 0, 0,
+					document.get(startOffset, length), null);
+			document.replace(startOffset, length, "");
+			return delete;
+		} catch (BadLocationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private String randomString() {
+		return randomStringOfLength((int) (Math.random() * RANDOM_TEXT_MAX_LENGTH) + 1);
+	}
+
+	private String randomStringOfLength(int length) {
+		char[] charArray = new char[length];
+		for (int i = 0; i < length; ++i) {
+			charArray[i] = RANDOM_TEXT.charAt((int)(Math.random() * RANDOM_TEXT.length()));
+		}
+
+		return new String(charArray);
+	}
+
+}
@@ -0,0 +1,178 @@
+package edu.cmu.scs.azurite.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.cmu.scs.azurite.commands.runtime.RuntimeDC;
+import edu.cmu.scs.fluorite.commands.AbstractCommand;
+import edu.cmu.scs.fluorite.commands.BaseDocumentChangeEvent;
+import edu.cmu.scs.fluorite.commands.Delete;
+import edu.cmu.scs.fluorite.commands.Insert;
+import edu.cmu.scs.fluorite.commands.Replace;
+
+public class HistorySearchIndexTest {
+
+	private static final String RANDOM_TEXT = "abAB";
+
+	private static final int LOOP_COUNT = 30;
+	private static final int NUM_OPERATIONS = 60;
+	private static final int NUM_QUERIES = 20;
+
+	private static final FileKey KEY = new FileKey("dummyProject", "dummyFile");
+
+	private Random mRandom;
+
+	@Before
+	public void setUp() {
+		AbstractCommand.resetCommandID();
+		mRandom = new Random(0);
+	}
+
+	@Test
+	public void testRandomHistory() {
+		for (int trial = 0; trial < LOOP_COUNT; ++trial) {
+			HistorySearchIndex index = new HistorySearchIndex();
+			String content = randomString(40);
+			index.fileOpened(KEY, content);
+
+			List<RuntimeDC> dcs = new ArrayList<RuntimeDC>();
+			List<String> versions = new ArrayList<String>();
+			for (int i = 0; i < NUM_OPERATIONS; ++i) {
+				BaseDocumentChangeEvent docChange = createRandomOperation(content);
+				content = apply(docChange, content);
+
+				index.documentChangeFinalized(KEY, docChange);
+				dcs.add(RuntimeDC.createRuntimeDocumentChange(docChange));
+				versions.add(content);
+			}
+
+			for (int i = 0; i < NUM_QUERIES; ++i) {
+				// Take the query from a random version, so that it is found.
+				String version = versions.get(mRandom.nextInt(versions.size()));
+				int length = Math.min(mRandom.nextInt(HistorySearchIndex.MAX_SEARCH_TEXT_LENGTH) + 1,
+						version.length());
+				int start = mRandom.nextInt(version.length() - length + 1);
+				String query = version.substring(start, start + length);
+
+				// Only a suffix of the operations, as in the current session search.
+				List<RuntimeDC> subList = dcs.subList(mRandom.nextInt(dcs.size()), dcs.size());
+				List<String> subVersions = versions.subList(versions.size() - subList.size(), versions.size());
+
+				assertEquals(searchDirectly(subList, subVersions, query, true),
+						index.search(KEY, query, true, subList));
+				assertEquals(searchDirectly(subList, subVersions, query, false),
+						index.search(KEY, query, false, subList));
+			}
+		}
+	}
+
+	@Test
+	public void testAmendedChange() {
+		HistorySearchIndex index = new HistorySearchIndex();
+		index.fileOpened(KEY, "abc");
+
+		Insert first = new Insert(3, "d", null);
+		index.documentChangeFinalized(KEY, first);
+
+		Insert second = new Insert(4, "x", null);
+		index.documentChangeFinalized(KEY, second);
+
+		Insert amended = new Insert(4, "e", null);
+		index.documentChangeAmended(KEY, second, amended);
+
+		List<RuntimeDC> dcs = new ArrayList<RuntimeDC>();
+		dcs.add(RuntimeDC.createRuntimeDocumentChange(first));
+		dcs.add(RuntimeDC.createRuntimeDocumentChange(amended));
+
+		Set<OperationId> expected = new HashSet<OperationId>();
+		expected.add(dcs.get(1).getOperationId());
+		assertEquals(expected, index.search(KEY, "cde", true, dcs));
+		assertEquals(new HashSet<OperationId>(), index.search(KEY, "dx", true, dcs));
+	}
+
+	@Test
+	public void testUnknownHistory() {
+		HistorySearchIndex index = new HistorySearchIndex();
+
+		// No snapshot was given.
+		Insert insert = new Insert(0, "abc", null);
+		index.documentChangeFinalized(KEY, insert);
+
+		List<RuntimeDC> dcs = new ArrayList<RuntimeDC>();
+		dcs.add(RuntimeDC.createRuntimeDocumentChange(insert));
+		assertNull(index.search(KEY, "abc", true, dcs));
+
+		// The deleted text does not match the content.
+		index.fileOpened(KEY, "abc");
+		assertNotNull(index.search(KEY, "abc", true, new ArrayList<RuntimeDC>()));
+
+		Delete delete = new Delete(0, 1, 0, 0, "x", null);
+		index.documentChangeFinalized(KEY, delete);
+		assertNull(index.search(KEY, "abc", true, new ArrayList<RuntimeDC>()));
+	}
+
+	// What the reconstructed versions would tell.
+	private Set<OperationId> searchDirectly(List<RuntimeDC> dcs, List<String> versions,
+			String query, boolean caseSensitive) {
+		Set<OperationId> result = new HashSet<OperationId>();
+		for (int i = 0; i < dcs.size(); ++i) {
+			String version = versions.get(i);
+			boolean contains = caseSensitive ? version.contains(query)
+					: version.toLowerCase().contains(query.toLowerCase());
+			if (contains) {
+				result.add(dcs.get(i).getOperationId());
+			}
+		}
+
+		return result;
+	}
+
+	private BaseDocumentChangeEvent createRandomOperation(String content) {
+		int kind = content.isEmpty() ? 0 : mRandom.nextInt(3);
+		if (kind == 0) {
+			return new Insert(mRandom.nextInt(content.length() + 1),
+					randomString(mRandom.nextInt(5) + 1), null);
+		}
+
+		int offset = mRandom.nextInt(content.length());
+		int length = mRandom.nextInt(Math.min(content.length() - offset, 5)) + 1;
+		String deletedText = content.substring(offset, offset + length);
+		if (kind == 1) {
+			return new Delete(offset, length, 0, 0, deletedText, null);
+		}
+
+		String insertedText = randomString(mRandom.nextInt(5) + 1);
+		return new Replace(offset, length, 0, 0, insertedText.length(),
+				deletedText, insertedText, null);
+	}
+
+	private String apply(BaseDocumentChangeEvent docChange, String content) {
+		if (docChange instanceof Insert) {
+			return ((Insert) docChange).applyToString(content);
+		} else if (docChange instanceof Delete) {
+			return ((Delete) docChange).applyToString(content);
+		} else {
+			return ((Replace) docChange).applyToString(content);
+		}
+	}
+
+	private String randomString(int length) {
+		char[] charArray = new char[length];
+		for (int i = 0; i < length; ++i) {
+			charArray[i] = RANDOM_TEXT.charAt(mRandom.nextInt(RANDOM_TEXT.length()));
+		}
+
+		return new String(charArray);
+	}
+
+}
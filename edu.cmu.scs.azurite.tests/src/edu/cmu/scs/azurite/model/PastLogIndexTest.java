@@ -0,0 +1,171 @@
+package edu.cmu.scs.azurite.model;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.cmu.scs.azurite.commands.diff.DiffInsert;
+import edu.cmu.scs.azurite.model.PastHistoryManager.ProcessedLog;
+import edu.cmu.scs.azurite.model.PastHistoryManager.SnapshotElement;
+import edu.cmu.scs.fluorite.commands.Delete;
+import edu.cmu.scs.fluorite.commands.ICommand;
+import edu.cmu.scs.fluorite.commands.Insert;
+import edu.cmu.scs.fluorite.commands.Replace;
+import edu.cmu.scs.fluorite.model.Events;
+
+public class PastLogIndexTest {
+
+	private File mLogFile;
+	private File mIndexFile;
+
+	@Before
+	public void setUp() throws IOException {
+		mLogFile = File.createTempFile("Log", ".xml");
+		mIndexFile = new File(mLogFile.getPath() + ".azidx");
+
+		writeToFile(mLogFile, "<Events></Events>");
+	}
+
+	@After
+	public void tearDown() {
+		mLogFile.delete();
+		mIndexFile.delete();
+	}
+
+	@Test
+	public void testSnapshotsRoundTrip() {
+		FileKey key1 = new FileKey("project", "/project/src/A.java");
+		FileKey key2 = new FileKey("project", "/project/src/B.java");
+
+		Map<FileKey, SnapshotElement> initialSnapshots = new HashMap<FileKey, SnapshotElement>();
+		initialSnapshots.put(key1, new SnapshotElement(100, 110, "class A {}"));
+		initialSnapshots.put(key2, new SnapshotElement(100, 120, null));
+
+		Map<FileKey, String> finalSnapshots = new HashMap<FileKey, String>();
+		finalSnapshots.put(key1, "class A { \u00e9 }");
+		finalSnapshots.put(key2, null);
+
+		PastLogIndex.write(mLogFile, mIndexFile, createProcessedLog(100, initialSnapshots, finalSnapshots));
+		ProcessedLog processedLog = PastLogIndex.read(mLogFile, mIndexFile);
+
+		assertNotNull(processedLog);
+		assertEquals(100, processedLog.getEvents().getStartTimestamp());
+		assertEquals(0, processedLog.getProcessedEvents().getCommands().size());
+
+		assertEquals(2, processedLog.getInitialSnapshots().size());
+		SnapshotElement elem = processedLog.getInitialSnapshots().get(key1);
+		assertEquals(100, elem.getSessionId());
+		assertEquals(110, elem.getTimestamp());
+		assertEquals("class A {}", elem.getSnapshot());
+		assertNull(processedLog.getInitialSnapshots().get(key2).getSnapshot());
+
+		assertEquals(finalSnapshots, processedLog.getFinalSnapshots());
+	}
+
+	@Test
+	public void testDocumentChangesRoundTrip() {
+		FileKey key = new FileKey("project", "/project/src/A.java");
+
+		Insert insert = new Insert(3, "abc", null);
+		insert.setTimestamp(10);
+		insert.setTimestamp2(20);
+		Map<String, Integer> numericalValues = new HashMap<String, Integer>();
+		numericalValues.put("docLength", 42);
+		insert.setNumericalValues(numericalValues);
+
+		Delete delete = new Delete(5, 2, 1, 2, null, null);
+		Replace replace = new Replace(1, 3, 0, 1, 2, "xyz", "uv", null);
+		DiffInsert diffInsert = new DiffInsert(key, 7, "\u00e9", null);
+
+		List<ICommand> commands = new ArrayList<ICommand>();
+		commands.add(insert);
+		commands.add(delete);
+		commands.add(replace);
+		commands.add(diffInsert);
+
+		PastLogIndex.write(mLogFile, mIndexFile, createProcessedLog(100, commands.subList(0, 3), commands));
+		ProcessedLog processedLog = PastLogIndex.read(mLogFile, mIndexFile);
+
+		assertNotNull(processedLog);
+		assertEquals(3, processedLog.getEvents().getCommands().size());
+		List<ICommand> readCommands = processedLog.getProcessedEvents().getCommands();
+		assertEquals(4, readCommands.size());
+
+		Insert readInsert = (Insert) readCommands.get(0);
+		assertEquals(Insert.class, readInsert.getClass());
+		assertEquals(3, readInsert.getOffset());
+		assertEquals("abc", readInsert.getText());
+		assertEquals(10, readInsert.getTimestamp());
+		assertEquals(20, readInsert.getTimestamp2());
+		assertEquals(numericalValues, readInsert.getNumericalValues());
+
+		Delete readDelete = (Delete) readCommands.get(1);
+		assertEquals(5, readDelete.getOffset());
+		assertEquals(2, readDelete.getLength());
+		assertEquals(1, readDelete.getStartLine());
+		assertEquals(2, readDelete.getEndLine());
+		assertNull(readDelete.getText());
+		assertNull(readDelete.getNumericalValues());
+
+		Replace readReplace = (Replace) readCommands.get(2);
+		assertEquals(1, readReplace.getOffset());
+		assertEquals(3, readReplace.getLength());
+		assertEquals(2, readReplace.getInsertionLength());
+		assertEquals("xyz", readReplace.getDeletedText());
+		assertEquals("uv", readReplace.getInsertedText());
+
+		DiffInsert readDiffInsert = (DiffInsert) readCommands.get(3);
+		assertEquals(key, readDiffInsert.getFileKey());
+		assertEquals(7, readDiffInsert.getOffset());
+		assertEquals("\u00e9", readDiffInsert.getText());
+	}
+
+	@Test
+	public void testOutdatedIndexIsIgnored() throws IOException {
+		PastLogIndex.write(mLogFile, mIndexFile, createProcessedLog(100,
+				new HashMap<FileKey, SnapshotElement>(), new HashMap<FileKey, String>()));
+		assertNotNull(PastLogIndex.read(mLogFile, mIndexFile));
+
+		writeToFile(mLogFile, "<Events><Command/></Events>");
+		assertNull(PastLogIndex.read(mLogFile, mIndexFile));
+	}
+
+	private ProcessedLog createProcessedLog(long startTimestamp,
+			Map<FileKey, SnapshotElement> initialSnapshots,
+			Map<FileKey, String> finalSnapshots) {
+		Events events = new Events(Collections.<ICommand> emptyList(), "",
+				Long.toString(startTimestamp), "", startTimestamp);
+		return new ProcessedLog(events, events, initialSnapshots, finalSnapshots);
+	}
+
+	private ProcessedLog createProcessedLog(long startTimestamp,
+			List<ICommand> commands, List<ICommand> processedCommands) {
+		Events events = new Events(commands, "",
+				Long.toString(startTimestamp), "", startTimestamp);
+		Events processedEvents = new Events(processedCommands, "",
+				Long.toString(startTimestamp), "", startTimestamp);
+		return new ProcessedLog(events, processedEvents,
+				new HashMap<FileKey, SnapshotElement>(), new HashMap<FileKey, String>());
+	}
+
+	private void writeToFile(File file, String content) throws IOException {
+		FileWriter writer = new FileWriter(file);
+		try {
+			writer.write(content);
+		} finally {
+			writer.close();
+		}
+	}
+
+}
@@ -0,0 +1,78 @@
+package edu.cmu.scs.azurite.model;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.cmu.scs.fluorite.commands.AbstractCommand;
+import edu.cmu.scs.fluorite.commands.HistorySearchCommand;
+import edu.cmu.scs.fluorite.commands.ICommand;
+import edu.cmu.scs.fluorite.model.Events;
+
+public class PastLogReaderTest {
+
+	private File mLogFile;
+
+	@Before
+	public void setUp() throws IOException {
+		mLogFile = File.createTempFile("Log", ".xml");
+	}
+
+	@After
+	public void tearDown() {
+		mLogFile.delete();
+	}
+
+	@Test
+	public void testReadAll() throws IOException {
+		writeToFile(mLogFile,
+				"<Events startTimestamp=\"100\" logVersion=\"0.8.3\">\n"
+				+ "  <Command _type=\"HistorySearchCommand\" caseSensitive=\"true\">\n"
+				+ "    <searchText><![CDATA[foo]]></searchText>\n"
+				+ "  </Command>\n"
+				+ "  <Command _type=\"NoSuchCommand\" />\n"
+				+ "  <Command _type=\"HistorySearchCommand\">\n"
+				+ "    <searchText><![CDATA[bar]]></searchText>\n"
+				+ "  </Command>\n"
+				+ "</Events>\n");
+
+		Events events = PastLogReader.readAll(mLogFile);
+
+		assertNotNull(events);
+		assertEquals(100, events.getStartTimestamp());
+		assertEquals("0.8.3", events.getLogVersion());
+
+		// The unknown command is skipped.
+		assertEquals(2, events.getCommands().size());
+		ICommand first = events.getCommands().get(0);
+		ICommand second = events.getCommands().get(1);
+		assertTrue(first instanceof HistorySearchCommand);
+		assertEquals("foo", first.getDataMap().get("searchText"));
+		assertEquals("true", first.getAttributesMap().get("caseSensitive"));
+		assertEquals("bar", second.getDataMap().get("searchText"));
+
+		assertEquals(100, first.getSessionId());
+		assertEquals(100, second.getSessionId());
+
+		// The flag is restored after creating the commands.
+		assertTrue(AbstractCommand.getIncrementCommandID());
+	}
+
+	@Test
+	public void testReadAllBrokenLog() throws IOException {
+		writeToFile(mLogFile, "<Events startTimestamp=\"100\">");
+		assertNull(PastLogReader.readAll(mLogFile));
+	}
+
+	private static void writeToFile(File file, String content) throws IOException {
+		try (FileWriter writer = new FileWriter(file)) {
+			writer.write(content);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package edu.cmu.scs.azurite.model;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.cmu.scs.fluorite.commands.AbstractCommand;
+import edu.cmu.scs.fluorite.commands.Insert;
+
+public class RuntimeDCEventQueueTest {
+
+	private static class TestQueue extends RuntimeDCEventQueue {
+
+		private int mScheduled;
+
+		public TestQueue(BatchedRuntimeDCListener listener) {
+			super(listener);
+		}
+
+		@Override
+		protected void scheduleFlush() {
+			++mScheduled;
+		}
+
+	}
+
+	private static class TestListener implements BatchedRuntimeDCListener {
+
+		private List<List<RuntimeDCEvent>> mBatches = new ArrayList<List<RuntimeDCEvent>>();
+
+		@Override
+		public void runtimeDCEventsFired(List<RuntimeDCEvent> events) {
+			mBatches.add(events);
+		}
+
+	}
+
+	private TestListener mListener;
+	private TestQueue mQueue;
+
+	@Before
+	public void setUp() {
+		AbstractCommand.resetCommandID();
+
+		mListener = new TestListener();
+		mQueue = new TestQueue(mListener);
+	}
+
+	@Test
+	public void testUpdatesMerged() {
+		Insert first = new Insert(0, "a", null);
+		Insert second = new Insert(1, "b", null);
+
+		mQueue.add(RuntimeDCEvent.activeFileChanged("dummyProject", "dummyFile"));
+		mQueue.add(RuntimeDCEvent.documentChangeAdded(first));
+		mQueue.add(RuntimeDCEvent.documentChangeUpdated(first));
+		mQueue.add(RuntimeDCEvent.documentChangeUpdated(first));
+		mQueue.add(RuntimeDCEvent.documentChangeAdded(second));
+		mQueue.add(RuntimeDCEvent.documentChangeUpdated(first));
+		mQueue.add(RuntimeDCEvent.documentChangeUpdated(first));
+
+		assertEquals(1, mQueue.mScheduled);
+		assertEquals(4, mQueue.size());
+		assertTrue(mListener.mBatches.isEmpty());
+
+		mQueue.flush();
+		assertEquals(1, mListener.mBatches.size());
+
+		List<RuntimeDCEvent> events = mListener.mBatches.get(0);
+		assertEquals(RuntimeDCEvent.KIND_ACTIVE_FILE_CHANGED, events.get(0).getKind());
+		assertEquals(RuntimeDCEvent.KIND_DOCUMENT_CHANGE_ADDED, events.get(1).getKind());
+		assertSame(first, events.get(1).getDocChange());
+		assertEquals(RuntimeDCEvent.KIND_DOCUMENT_CHANGE_ADDED, events.get(2).getKind());
+		assertSame(second, events.get(2).getDocChange());
+		assertEquals(RuntimeDCEvent.KIND_DOCUMENT_CHANGE_UPDATED, events.get(3).getKind());
+		assertSame(first, events.get(3).getDocChange());
+
+		// Nothing is delivered when there are no events.
+		mQueue.flush();
+		assertEquals(1, mListener.mBatches.size());
+
+		// A new flush is scheduled for the next event.
+		mQueue.add(RuntimeDCEvent.documentChangeUpdated(second));
+		assertEquals(2, mQueue.mScheduled);
+	}
+
+	@Test
+	public void testAmendReplacesUpdate() {
+		Insert oldInsert = new Insert(0, "a", null);
+		Insert otherInsert = new Insert(5, "c", null);
+		Insert newInsert = new Insert(0, "ab", null);
+
+		mQueue.add(RuntimeDCEvent.documentChangeAdded(oldInsert));
+		mQueue.add(RuntimeDCEvent.documentChangeAdded(otherInsert));
+		mQueue.add(RuntimeDCEvent.documentChangeUpdated(oldInsert));
+		mQueue.add(RuntimeDCEvent.documentChangeAmended(oldInsert, newInsert));
+		mQueue.flush();
+
+		List<RuntimeDCEvent> events = mListener.mBatches.get(0);
+		assertEquals(3, events.size());
+		assertSame(oldInsert, events.get(0).getDocChange());
+		assertSame(otherInsert, events.get(1).getDocChange());
+		assertEquals(RuntimeDCEvent.KIND_DOCUMENT_CHANGE_AMENDED, events.get(2).getKind());
+		assertSame(oldInsert, events.get(2).getDocChange());
+		assertSame(newInsert, events.get(2).getNewDocChange());
+	}
+
+	@Test
+	public void testDisposed() {
+		mQueue.add(RuntimeDCEvent.activeFileChanged("dummyProject", "dummyFile"));
+		mQueue.dispose();
+		mQueue.flush();
+		mQueue.add(RuntimeDCEvent.activeFileChanged("dummyProject", "dummyFile"));
+
+		assertTrue(mListener.mBatches.isEmpty());
+		assertEquals(0, mQueue.size());
+	}
+
+}
@@ -0,0 +1,143 @@
+package edu.cmu.scs.azurite.model;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.cmu.scs.azurite.commands.runtime.RuntimeDC;
+import edu.cmu.scs.fluorite.commands.AbstractCommand;
+import edu.cmu.scs.fluorite.commands.Insert;
+import edu.cmu.scs.fluorite.model.EventRecorder;
+
+public class RuntimeDCIndexTest {
+
+	private RuntimeHistoryManager mManager;
+	private Random mRandom;
+
+	@Before
+	public void setUp() {
+		AbstractCommand.resetCommandID();
+
+		mManager = new RuntimeHistoryManager();
+		mManager.activeFileChanged("dummyProject", "dummyFile", null);
+		mRandom = new Random(0);
+	}
+
+	@Test
+	public void testSortedTimestamps() {
+		long timestamp = 0;
+		for (int i = 0; i < 200; ++i) {
+			// Some of the timestamps are the same.
+			timestamp += mRandom.nextInt(3);
+			addInsert(timestamp);
+		}
+
+		assertFiltersEqual(timestamp);
+	}
+
+	@Test
+	public void testUnsortedTimestamps() {
+		for (int i = 0; i < 200; ++i) {
+			addInsert(mRandom.nextInt(100));
+		}
+
+		assertFiltersEqual(100);
+	}
+
+	@Test
+	public void testAmendedAndSnapshot() {
+		for (int i = 0; i < 50; ++i) {
+			addInsert(i);
+		}
+
+		// Replace the last one with an older one, out of order.
+		Insert oldInsert = (Insert) mManager.getRuntimeDocumentChanges().get(49).getOriginal();
+		Insert newInsert = createInsert(10);
+		mManager.documentChangeAmended(oldInsert, newInsert);
+		assertFiltersEqual(50);
+
+		RuntimeDC amended = mManager.getRuntimeDocumentChanges().get(49);
+		assertSame(amended, mManager.filterDocumentChangeById(
+				mManager.getCurrentFileKey(), amended.getOperationId()));
+		assertNull(mManager.filterDocumentChangeByIdWithoutCalculating(mManager.getCurrentFileKey(),
+				new OperationId(oldInsert.getSessionId(), oldInsert.getCommandIndex())));
+
+		mManager.handleSnapshot("");
+		assertTrue(mManager.filterDocumentChangesLaterThanOrEqualToTimestamp(0).isEmpty());
+
+		for (int i = 0; i < 20; ++i) {
+			addInsert(i);
+		}
+		assertFiltersEqual(20);
+	}
+
+	private Insert createInsert(long timestamp) {
+		Insert insert = new Insert(0, "a", null);
+		insert.setTimestamp(timestamp);
+		return insert;
+	}
+
+	private void addInsert(long timestamp) {
+		Insert insert = createInsert(timestamp);
+		mManager.documentChanged(insert);
+		mManager.documentChangeFinalized(insert);
+	}
+
+	private void assertFiltersEqual(long maxTimestamp) {
+		FileKey key = mManager.getCurrentFileKey();
+		List<RuntimeDC> all = mManager.calculateDynamicSegments(key);
+
+		// The timestamps are relative to the session id.
+		long sessionId = EventRecorder.getInstance().getStartTimestamp();
+		for (long t = sessionId - 1; t <= sessionId + maxTimestamp + 1; ++t) {
+			assertEquals(filter(all, t + 1, Long.MAX_VALUE), mManager.filterDocumentChangesLaterThanTimestamp(t));
+			assertEquals(filter(all, t, Long.MAX_VALUE), mManager.filterDocumentChangesLaterThanOrEqualToTimestamp(t));
+			assertEquals(filter(all, Long.MIN_VALUE, t), mManager.filterDocumentChangesEarlierThanTimestamp(t));
+			assertEquals(filter(all, Long.MIN_VALUE, t + 1), mManager.filterDocumentChangesEarlierThanOrEqualToTimestamp(t));
+			assertEquals(filter(all, t, t + 5), mManager.filterDocumentChangesLaterThanOrEqualToAndEarlierThanTimestamps(t, t + 5));
+			assertEquals(!filter(all, t + 1, Long.MAX_VALUE).isEmpty(), mManager.hasDocumentChangesLaterThanTimestamp(t));
+		}
+
+		for (int i = 0; i < all.size(); ++i) {
+			OperationId id = all.get(i).getOperationId();
+			assertSame(all.get(i), mManager.filterDocumentChangeById(key, id));
+			assertEquals(all.subList(i + 1, all.size()), mManager.filterDocumentChangesGreaterThanId(id));
+		}
+
+		// The result keeps the original order.
+		List<OperationId> ids = new ArrayList<OperationId>();
+		for (int i = all.size() - 1; i >= 0; i -= 3) {
+			ids.add(all.get(i).getOperationId());
+		}
+		ids.add(new OperationId(-1, -1));
+
+		List<RuntimeDC> expected = new ArrayList<RuntimeDC>();
+		for (RuntimeDC dc : all) {
+			if (ids.contains(dc.getOperationId())) {
+				expected.add(dc);
+			}
+		}
+		assertEquals(expected, mManager.filterDocumentChangesByIds(ids));
+		assertEquals(Arrays.asList(all.get(0)),
+				mManager.filterDocumentChangesByIds(Arrays.asList(all.get(0).getOperationId())));
+	}
+
+	private List<RuntimeDC> filter(List<RuntimeDC> dcs, long startTimestamp, long endTimestamp) {
+		List<RuntimeDC> result = new ArrayList<RuntimeDC>();
+		for (RuntimeDC dc : dcs) {
+			long timestamp = dc.getOriginal().getSessionId() + dc.getOriginal().getTimestamp();
+			if (startTimestamp <= timestamp && timestamp < endTimestamp) {
+				result.add(dc);
+			}
+		}
+
+		return result;
+	}
+
+}
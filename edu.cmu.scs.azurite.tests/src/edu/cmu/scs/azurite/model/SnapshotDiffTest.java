@@ -0,0 +1,127 @@
+package edu.cmu.scs.azurite.model;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Random;
+
+import name.fraser.neil.plaintext.diff_match_patch.Diff;
+import name.fraser.neil.plaintext.diff_match_patch.Operation;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.cmu.scs.azurite.commands.diff.DiffDelete;
+import edu.cmu.scs.azurite.commands.diff.DiffInsert;
+import edu.cmu.scs.fluorite.commands.AbstractCommand;
+import edu.cmu.scs.fluorite.commands.ICommand;
+
+public class SnapshotDiffTest {
+
+	private Random mRandom;
+
+	@Before
+	public void setUp() {
+		AbstractCommand.resetCommandID();
+		SnapshotDiff.clearCache();
+
+		mRandom = new Random(0);
+	}
+
+	@Test
+	public void testRandomEditsReplayed() {
+		for (int i = 0; i < 20; ++i) {
+			String before = randomText(200 + mRandom.nextInt(300));
+			String after = randomEdits(before, 1 + mRandom.nextInt(30));
+
+			assertEquals(after, replay(before, after));
+		}
+
+		assertEquals("", replay("", ""));
+		assertEquals("abc\n", replay("", "abc\n"));
+		assertEquals("", replay("abc\ndef", ""));
+		assertEquals("abc\nxyz", replay("abc\ndef", "abc\nxyz"));
+	}
+
+	@Test
+	public void testSmallChangeInLargeSnapshot() {
+		String before = randomText(10000) + "\tabcdefghijklmnop\n" + randomText(10000);
+		String after = before.replace("\tabcdefghijklmnop\n", "\tabcdeXghijkYmnop\n");
+
+		List<Diff> diffs = SnapshotDiff.compute(before, after);
+		int changed = 0;
+		for (Diff diff : diffs) {
+			if (diff.operation != Operation.EQUAL) {
+				changed += diff.text.length();
+			}
+		}
+
+		// Refined down to the characters, not the whole lines.
+		assertEquals(4, changed);
+		assertEquals(after, replay(before, after));
+	}
+
+	@Test
+	public void testCached() {
+		String before = randomText(100);
+		String after = randomEdits(before, 5);
+
+		List<Diff> diffs = SnapshotDiff.compute(before, after);
+		assertSame(diffs, SnapshotDiff.compute(new String(before), new String(after)));
+		assertNotSame(diffs, SnapshotDiff.compute(after, before));
+	}
+
+	private String replay(String before, String after) {
+		final StringBuilder builder = new StringBuilder(before);
+		PastHistoryManager.getInstance().injectDiffDCs(new FileKey("dummyProject", "dummyFile"),
+				before, after, 0, 0, true, new IAddCommand() {
+					@Override
+					public void addCommand(ICommand command) {
+						if (command instanceof DiffInsert) {
+							DiffInsert insert = (DiffInsert) command;
+							builder.insert(insert.getOffset(), insert.getText());
+						} else {
+							DiffDelete delete = (DiffDelete) command;
+							assertEquals(delete.getText(), builder.substring(
+									delete.getOffset(), delete.getOffset() + delete.getLength()));
+							builder.delete(delete.getOffset(), delete.getOffset() + delete.getLength());
+						}
+					}
+				});
+
+		return builder.toString();
+	}
+
+	private String randomText(int lineCount) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < lineCount; ++i) {
+			builder.append(randomLine());
+		}
+		return builder.toString();
+	}
+
+	private String randomLine() {
+		// A few repeated lines, as in the source code.
+		if (mRandom.nextInt(5) == 0) {
+			return mRandom.nextBoolean() ? "\n" : "\t}\n";
+		}
+
+		StringBuilder builder = new StringBuilder("\t");
+		int length = 5 + mRandom.nextInt(40);
+		for (int i = 0; i < length; ++i) {
+			builder.append((char) ('a' + mRandom.nextInt(26)));
+		}
+		return builder.append('\n').toString();
+	}
+
+	private String randomEdits(String text, int count) {
+		for (int i = 0; i < count; ++i) {
+			int offset = mRandom.nextInt(text.length() + 1);
+			int length = Math.min(mRandom.nextInt(60), text.length() - offset);
+			String replacement = mRandom.nextBoolean() ? randomLine() : "";
+			text = text.substring(0, offset) + replacement + text.substring(offset + length);
+		}
+		return text;
+	}
+
+}
@@ -0,0 +1,63 @@
+package edu.cmu.scs.azurite.model.undo;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.cmu.scs.azurite.commands.runtime.RuntimeDC;
+import edu.cmu.scs.azurite.model.RuntimeHistoryManager;
+import edu.cmu.scs.fluorite.commands.AbstractCommand;
+import edu.cmu.scs.fluorite.commands.BaseDocumentChangeEvent;
+import edu.cmu.scs.fluorite.commands.Delete;
+import edu.cmu.scs.fluorite.commands.Insert;
+
+public class ChunkTest {
+	
+	private RuntimeHistoryManager manager;
+	private SelectiveUndoEngine engine;
+	
+	@Before
+	public void setUp() {
+		manager = new RuntimeHistoryManager();
+		manager.activeFileChanged("dummyProject", "dummyFile", null);
+		
+		engine = SelectiveUndoEngine.getInstance();
+		
+		AbstractCommand.resetCommandID();
+	}
+	
+	@Test
+	public void testExpandedChunkUpdatedWithHistory() {
+		addOperation(new Insert(0, "abc", null));
+		addOperation(new Insert(10, "xyz", null));
+		
+		List<RuntimeDC> dcs = manager.calculateDynamicSegments(manager.getCurrentFileKey());
+		Chunk chunk = engine.determineChunksWithRuntimeDCs(dcs.subList(0, 1)).get(0);
+		
+		assertFalse(chunk.hasConflictOutsideThisChunk());
+		assertEquals(chunk, chunk.getExpandedChunkWithDepth(1));
+		
+		// Modifying the returned chunk should not affect the next results.
+		chunk.getExpandedChunkWithDepth(1).clear();
+		assertEquals(chunk, chunk.getExpandedChunkWithDepth(1));
+		
+		// Delete "b", which conflicts with the first insertion.
+		addOperation(new Delete(1, 1, 0, 0, "b", null));
+		dcs = manager.calculateDynamicSegments(manager.getCurrentFileKey());
+		
+		assertTrue(chunk.hasConflictOutsideThisChunk());
+		Chunk expandedChunk = chunk.getExpandedChunkWithDepth(1);
+		assertEquals(dcs.get(0).getAllSegments().size() + dcs.get(2).getAllSegments().size(),
+				expandedChunk.size());
+		assertTrue(expandedChunk.containsAll(dcs.get(0).getAllSegments()));
+		assertTrue(expandedChunk.containsAll(dcs.get(2).getAllSegments()));
+	}
+	
+	private void addOperation(BaseDocumentChangeEvent operation) {
+		manager.documentChangeFinalized(operation);
+	}
+	
+}
@@ -2,6 +2,8 @@ package edu.cmu.scs.azurite.model.undo;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.eclipse.jface.text.Document;
@@ -12,6 +14,7 @@ import org.junit.Test;
 import edu.cmu.scs.azurite.commands.runtime.RuntimeDC;
 import edu.cmu.scs.azurite.commands.runtime.RuntimeDelete;
 import edu.cmu.scs.azurite.commands.runtime.RuntimeInsert;
+import edu.cmu.scs.azurite.commands.runtime.Segment;
 import edu.cmu.scs.azurite.model.RuntimeHistoryManager;
 import edu.cmu.scs.fluorite.commands.AbstractCommand;
 import edu.cmu.scs.fluorite.commands.BaseDocumentChangeEvent;
@@ -73,6 +76,27 @@ public class DetermineChunkTest {
 		assertEquals(1, chunks.size());
 	}
 
+	@Test
+	public void testSegmentsOfSameOperationInOneChunk() {
+		RuntimeInsert a = new RuntimeInsert(new Insert(0, "aa", null));
+		RuntimeInsert b = new RuntimeInsert(new Insert(5, "b", null));
+		RuntimeInsert c = new RuntimeInsert(new Insert(20, "c", null));
+		
+		// The segments of a are apart, but b and everything in between
+		// should be in the same chunk.
+		Segment a1 = new Segment(0, 1, "a", null, a, false);
+		Segment a2 = new Segment(10, 1, "a", null, a, false);
+		Segment b1 = new Segment(5, 1, "b", null, b, false);
+		Segment c1 = new Segment(20, 1, "c", null, c, false);
+		
+		List<Chunk> chunks = engine.determineChunks(
+				new ArrayList<Segment>(Arrays.asList(c1, a2, b1, a1)));
+		
+		assertEquals(2, chunks.size());
+		assertEquals(Arrays.asList(a1, b1, a2), chunks.get(0));
+		assertEquals(Arrays.asList(c1), chunks.get(1));
+	}
+
 	private void applyOperations(BaseDocumentChangeEvent[] operations) {
 		for (BaseDocumentChangeEvent operation : operations) {
 			operation.applyToDocument(document);
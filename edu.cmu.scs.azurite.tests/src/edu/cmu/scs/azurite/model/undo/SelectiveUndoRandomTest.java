@@ -1,8 +1,11 @@
 package edu.cmu.scs.azurite.model.undo;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import org.eclipse.jface.text.BadLocationException;
@@ -162,6 +165,102 @@ public class SelectiveUndoRandomTest {
 		}
 	}
 	
+	@Test
+	public void testSharedUndoOfExpandedChunks() {
+		SelectiveUndoEngine engine = SelectiveUndoEngine.getInstance();
+		
+		for (int trial = 0; trial < LOOP_COUNT; ++trial) {
+			AbstractCommand.resetCommandID();
+
+			RuntimeHistoryManager manager = new RuntimeHistoryManager();
+			manager.activeFileChanged("dummyProject", "dummyFile", null);
+			
+			Document doc = new Document(
+					randomStringOfLength(INITIAL_TEXT_LENGTH));
+			for (int i = 0; i < 30; ++i) {
+				manager.documentChangeFinalized(applyRandomOperation(doc));
+			}
+			
+			List<RuntimeDC> selected = new ArrayList<RuntimeDC>();
+			for (RuntimeDC dc : manager.calculateDynamicSegments(manager.getCurrentFileKey())) {
+				if (Math.random() < 0.3) {
+					selected.add(dc);
+				}
+			}
+			
+			for (Chunk chunk : engine.determineChunksWithRuntimeDCs(selected)) {
+				Chunk expandedChunk = chunk.getExpandedChunkWithDepth(SelectiveUndoEngine.MAX_EXPANSION_DEPTH);
+				int initialOffset = expandedChunk.getStartOffset();
+				String initialContent = doc.get().substring(initialOffset, expandedChunk.getEndOffset());
+				
+				List<Chunk> chunks = Arrays.asList(
+						chunk.getExpandedChunkInRange(),
+						chunk.getExpandedChunkWithDepth(1),
+						expandedChunk,
+						chunk);
+				List<String> results = new SharedChunkUndo(chunks, initialOffset, initialContent).undo();
+				
+				// Each result should be the same as undoing the chunk by itself.
+				for (int i = 0; i < chunks.size(); ++i) {
+					ChunkUndoState state = new ChunkUndoState(chunks.get(i).copyChunk(),
+							initialOffset, initialContent);
+					List<RuntimeDC> involvedDCs = new ArrayList<RuntimeDC>(chunks.get(i).getInvolvedChanges());
+					Collections.reverse(involvedDCs);
+					for (RuntimeDC dc : involvedDCs) {
+						state.undoChange(dc);
+					}
+					
+					assertEquals(state.getText(), results.get(i));
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testStepwiseUndo() throws BadLocationException {
+		SelectiveUndoEngine engine = SelectiveUndoEngine.getInstance();
+		
+		for (int trial = 0; trial < LOOP_COUNT; ++trial) {
+			AbstractCommand.resetCommandID();
+
+			RuntimeHistoryManager manager = new RuntimeHistoryManager();
+			manager.activeFileChanged("dummyProject", "dummyFile", null);
+			
+			Document doc = new Document(randomStringOfLength(100));
+			for (int i = 0; i < 30; ++i) {
+				manager.documentChangeFinalized(applyRandomOperation(doc));
+			}
+			
+			List<RuntimeDC> selected = new ArrayList<RuntimeDC>();
+			for (RuntimeDC dc : manager.calculateDynamicSegments(manager.getCurrentFileKey())) {
+				if (Math.random() < 0.5) {
+					selected.add(dc);
+				}
+			}
+			
+			// Each step should be the same as undoing the last operations all at once.
+			StepwiseUndo stepwiseUndo = new StepwiseUndo(selected, doc.get());
+			String text = doc.get();
+			for (int i = 1; i <= selected.size(); ++i) {
+				Document docCopy = new Document(doc.get());
+				List<Chunk> chunks = engine.determineChunksWithRuntimeDCs(
+						selected.subList(selected.size() - i, selected.size()));
+				boolean done = engine.doSelectiveUndoWithChunks(chunks, docCopy, null, false);
+				
+				StepwiseUndo.Step step = stepwiseUndo.getStep(i, false);
+				if (!done) {
+					assertNull(step);
+					break;
+				}
+				
+				String nextText = step.applyTo(text);
+				assertEquals(docCopy.get(), nextText);
+				assertEquals(text, step.revert(nextText));
+				text = nextText;
+			}
+		}
+	}
+	
 	private void printTrace(String initialContent,
 			List<BaseDocumentChangeEvent> docChanges, int i, int j) {
 		System.out.println("i = " + i + "\tj = " + j);
@@ -0,0 +1,98 @@
+package edu.cmu.scs.azurite.model.undo;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TextBufferTest {
+
+	@Test
+	public void testReplace() {
+		TextBuffer buffer = new TextBuffer("Hello, world!");
+		buffer.replace(7, 12, "there");
+		buffer.replace(0, 0, ">> ");
+		buffer.replace(buffer.length(), buffer.length(), "!!");
+		buffer.replace(3, 8, "Hi");
+
+		assertEquals(">> Hi, there!!!", buffer.toString());
+		assertEquals(">> Hi, there!!!".length(), buffer.length());
+	}
+
+	@Test
+	public void testRandomReplace() {
+		Random random = new Random(0);
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 3000; ++i) {
+			expected.append((char) ('a' + random.nextInt(26)));
+		}
+
+		TextBuffer buffer = new TextBuffer(expected.toString());
+		for (int i = 0; i < 2000; ++i) {
+			int start = random.nextInt(expected.length() + 1);
+			int end = start + random.nextInt(Math.min(expected.length() - start, 1200) + 1);
+
+			StringBuilder text = new StringBuilder();
+			int length = random.nextInt(4) == 0 ? random.nextInt(1500) : random.nextInt(10);
+			for (int j = 0; j < length; ++j) {
+				text.append((char) ('a' + random.nextInt(26)));
+			}
+
+			expected.replace(start, end, text.toString());
+			buffer.replace(start, end, text.toString());
+			assertEquals(expected.length(), buffer.length());
+		}
+
+		assertEquals(expected.toString(), buffer.toString());
+	}
+
+	@Test
+	public void testDeleteAll() {
+		TextBuffer buffer = new TextBuffer(repeat('a', 2000));
+		buffer.replace(0, 2000, "");
+		assertEquals(0, buffer.length());
+		assertEquals("", buffer.toString());
+
+		buffer.replace(0, 0, repeat('b', 1500));
+		buffer.replace(700, 700, "c");
+		assertEquals(repeat('b', 700) + "c" + repeat('b', 800), buffer.toString());
+	}
+
+	@Test
+	public void testRandomSmallDeletes() {
+		// Mostly deletions, so that the small blocks are merged and the
+		// empty ones are dropped.
+		Random random = new Random(1);
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 20000; ++i) {
+			expected.append((char) ('a' + random.nextInt(26)));
+		}
+
+		TextBuffer buffer = new TextBuffer(expected.toString());
+		while (expected.length() > 0) {
+			int start = random.nextInt(expected.length());
+			int end = Math.min(expected.length(), start + random.nextInt(300));
+			String text = random.nextInt(3) == 0 ? "xy" : "";
+
+			expected.replace(start, end, text);
+			buffer.replace(start, end, text);
+			assertEquals(expected.length(), buffer.length());
+			if (random.nextInt(20) == 0) {
+				assertEquals(expected.toString(), buffer.toString());
+			}
+		}
+
+		assertEquals("", buffer.toString());
+	}
+
+	private static String repeat(char ch, int count) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < count; ++i) {
+			builder.append(ch);
+		}
+
+		return builder.toString();
+	}
+
+}
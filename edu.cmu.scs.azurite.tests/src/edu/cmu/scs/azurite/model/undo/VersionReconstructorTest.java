@@ -0,0 +1,155 @@
+package edu.cmu.scs.azurite.model.undo;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.Document;
+import org.eclipse.jface.text.IDocument;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.cmu.scs.azurite.commands.runtime.RuntimeDC;
+import edu.cmu.scs.azurite.commands.runtime.Segment;
+import edu.cmu.scs.azurite.model.RuntimeHistoryManager;
+import edu.cmu.scs.fluorite.commands.AbstractCommand;
+import edu.cmu.scs.fluorite.commands.BaseDocumentChangeEvent;
+import edu.cmu.scs.fluorite.commands.Delete;
+import edu.cmu.scs.fluorite.commands.Insert;
+
+public class VersionReconstructorTest {
+
+	private static final String RANDOM_TEXT = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+	private static final int LOOP_COUNT = 30;
+	private static final int NUM_OPERATIONS = 40;
+
+	private Random mRandom;
+
+	@Before
+	public void setUp() {
+		AbstractCommand.resetCommandID();
+		mRandom = new Random(0);
+	}
+
+	@Test
+	public void testVersionsInOrder() {
+		for (int trial = 0; trial < LOOP_COUNT; ++trial) {
+			testRandomHistory(3, Integer.MAX_VALUE, false);
+		}
+	}
+
+	@Test
+	public void testEvictedCheckpoints() {
+		// Use a small budget, so that some of the checkpoints are evicted
+		// and restored while accessing the versions randomly.
+		for (int trial = 0; trial < LOOP_COUNT; ++trial) {
+			testRandomHistory(4, 60, true);
+		}
+	}
+
+	private void testRandomHistory(int checkpointInterval, int cacheBudget, boolean randomOrder) {
+		AbstractCommand.resetCommandID();
+
+		RuntimeHistoryManager manager = new RuntimeHistoryManager();
+		manager.activeFileChanged("dummyProject", "dummyFile", null);
+
+		Document doc = new Document(randomString(20));
+		for (int i = 0; i < NUM_OPERATIONS; ++i) {
+			manager.documentChangeFinalized(applyRandomOperation(doc));
+		}
+
+		String content = doc.get();
+		int selectionStart = mRandom.nextInt(content.length() + 1);
+		int selectionEnd = selectionStart + mRandom.nextInt(content.length() - selectionStart + 1);
+
+		// Only the changes within the selection, as in the code history diff view.
+		List<RuntimeDC> dcs = new ArrayList<RuntimeDC>();
+		for (RuntimeDC dc : manager.calculateDynamicSegments(manager.getCurrentFileKey())) {
+			for (Segment segment : dc.getAllSegments()) {
+				if (segment.inSelectionRange(selectionStart, selectionEnd)) {
+					dcs.add(dc);
+					break;
+				}
+			}
+		}
+
+		VersionReconstructor reconstructor = new VersionReconstructor(dcs,
+				content, selectionStart, selectionEnd, checkpointInterval, cacheBudget);
+		assertEquals(dcs.size(), reconstructor.getVersionCount());
+
+		for (int i = dcs.size(); i >= 0; --i) {
+			int version = randomOrder ? mRandom.nextInt(dcs.size() + 1) : i;
+			assertEquals(undoDirectly(dcs, version, content, selectionStart, selectionEnd),
+					reconstructor.getVersion(version));
+		}
+	}
+
+	// The way each version was calculated before.
+	private String undoDirectly(List<RuntimeDC> dcs, int version, String content,
+			int selectionStart, int selectionEnd) {
+		String selectedCode = content.substring(selectionStart, selectionEnd);
+		if (version == dcs.size()) {
+			return selectedCode;
+		}
+
+		Chunk chunk = new Chunk();
+		for (RuntimeDC dc : dcs.subList(version, dcs.size())) {
+			for (Segment segment : dc.getAllSegments()) {
+				if (segment.inSelectionRange(selectionStart, selectionEnd)) {
+					chunk.add(segment);
+				}
+			}
+		}
+		Collections.sort(chunk, Segment.getLocationComparator());
+
+		int startOffset = chunk.getStartOffset();
+		int endOffset = chunk.getEndOffset();
+		String undoResult = SelectiveUndoEngine.getInstance()
+				.doSelectiveUndoChunkWithoutConflicts(chunk, content.substring(startOffset, endOffset));
+
+		StringBuilder historyContent = new StringBuilder(selectedCode);
+		historyContent.replace(
+				Math.max(startOffset - selectionStart, 0),
+				Math.min(endOffset - selectionStart, selectedCode.length()),
+				undoResult);
+		return historyContent.toString();
+	}
+
+	private BaseDocumentChangeEvent applyRandomOperation(IDocument document) {
+		try {
+			if (document.getLength() == 0 || mRandom.nextBoolean()) {
+				Insert insert = new Insert(mRandom.nextInt(document.getLength() + 1),
+						randomString(mRandom.nextInt(5) + 1), null);
+				document.replace(insert.getOffset(), 0, insert.getText());
+				return insert;
+			}
+
+			int startOffset = mRandom.nextInt(document.getLength());
+			int length = mRandom.nextInt(Math.min(document.getLength() - startOffset, 5)) + 1;
+			Delete delete = new Delete(startOffset, length,
+					document.getLineOfOffset(startOffset),
+					document.getLineOfOffset(startOffset + length),
+					document.get(startOffset, length),
+					null);
+			document.replace(startOffset, length, "");
+			return delete;
+		} catch (BadLocationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private String randomString(int length) {
+		char[] charArray = new char[length];
+		for (int i = 0; i < length; ++i) {
+			charArray[i] = RANDOM_TEXT.charAt(mRandom.nextInt(RANDOM_TEXT.length()));
+		}
+
+		return new String(charArray);
+	}
+
+}
@@ -0,0 +1,96 @@
+package edu.cmu.scs.azurite.views;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TimelineUpdateQueueTest {
+
+	@Test
+	public void testEncoding() {
+		TimelineUpdateQueue queue = new TimelineUpdateQueue();
+		queue.pushCurrentFile();
+		queue.addFile("project", "C:/path/\"quoted\"\\File.java");
+		queue.addOperation(100, 1, 10, 20, 0.5, 1.5, 0,
+				TimelineUpdateQueue.FLAG_SCROLL | TimelineUpdateQueue.FLAG_CURRENT);
+		queue.addEvent(100, 2, 30, 130, "RunCommand", "line1\nline2");
+		queue.popCurrentFile();
+
+		assertEquals(5, queue.size());
+		assertEquals("[4,"
+				+ "0,\"project\",\"C:/path/\\\"quoted\\\"\\\\File.java\","
+				+ "1,100,1,10,20,0.5,1.5,0,5,"
+				+ "3,100,2,30,130,\"RunCommand\",\"line1\\nline2\","
+				+ "5]", queue.poll(10));
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void testNonFinitePositionsAreClamped() {
+		TimelineUpdateQueue queue = new TimelineUpdateQueue();
+		queue.addOperation(100, 1, 10, 20, Double.NaN, Double.POSITIVE_INFINITY, 0, 0);
+		queue.updateOperation(100, 2, 30, Double.NEGATIVE_INFINITY, Double.NaN, 1, 0);
+
+		assertEquals("[1,100,1,10,20,0.0,100.0,0,0,2,100,2,30,0.0,0.0,1,0]", queue.poll(10));
+	}
+
+	@Test
+	public void testPollInChunks() {
+		TimelineUpdateQueue queue = new TimelineUpdateQueue();
+		queue.layout();
+		queue.scrollToEnd();
+		queue.layout();
+
+		assertEquals("[6,7]", queue.poll(2));
+		assertEquals("[6]", queue.poll(2));
+		assertEquals("[]", queue.poll(2));
+	}
+
+	@Test
+	public void testUpdatesAreCoalesced() {
+		TimelineUpdateQueue queue = new TimelineUpdateQueue();
+		queue.addOperation(100, 1, 10, 20, 0.5, 1.5, 0, 0);
+		queue.updateOperation(100, 1, 25, 0.5, 2.0, 0, TimelineUpdateQueue.FLAG_SCROLL);
+		queue.updateOperation(100, 1, 30, 0.5, 2.5, 2, TimelineUpdateQueue.FLAG_SCROLL);
+
+		assertEquals(1, queue.size());
+		assertEquals("[1,100,1,10,30,0.5,2.5,2,1]", queue.poll(10));
+
+		queue.updateOperation(100, 1, 35, 0.5, 3.0, 2, TimelineUpdateQueue.FLAG_SCROLL);
+		queue.updateOperation(100, 1, 40, 0.5, 3.5, 2, TimelineUpdateQueue.FLAG_SCROLL);
+		assertEquals("[2,100,1,40,0.5,3.5,2,1]", queue.poll(10));
+	}
+
+	@Test
+	public void testRequestPull() {
+		TimelineUpdateQueue queue = new TimelineUpdateQueue();
+		assertFalse(queue.requestPull());
+
+		queue.layout();
+		assertTrue(queue.requestPull());
+
+		queue.scrollToEnd();
+		assertFalse(queue.requestPull());
+
+		queue.poll(1);
+		assertFalse(queue.requestPull());
+
+		// Once everything is pulled, the next update should be requested again.
+		queue.poll(1);
+		queue.layout();
+		assertTrue(queue.requestPull());
+	}
+
+	@Test
+	public void testCancelPullRequest() {
+		TimelineUpdateQueue queue = new TimelineUpdateQueue();
+		queue.layout();
+		assertTrue(queue.requestPull());
+
+		// The updates are kept, and the timeline is asked again.
+		queue.cancelPullRequest();
+		assertEquals(1, queue.size());
+		assertTrue(queue.requestPull());
+	}
+
+}
@@ -1,4 +1,4 @@
-/*global __AZURITE__initialize, __AZURITE__selectiveUndo, __AZURITE__undoEverythingAfterSelection, __AZURITE__jump, __AZURITE__getInfo, __AZURITE__markerMove, __AZURITE__eclipseCommand, __AZURITE__log, __AZURITE__notifySelectionChanged */
+/*global __AZURITE__initialize, __AZURITE__pullUpdates, __AZURITE__selectiveUndo, __AZURITE__undoEverythingAfterSelection, __AZURITE__jump, __AZURITE__getInfo, __AZURITE__markerMove, __AZURITE__eclipseCommand, __AZURITE__log, __AZURITE__notifySelectionChanged */
 
 // Workaround for console.log problem.
 if (!window.console) { window.console = {}; }
@@ -10,6 +10,7 @@ var azurite = { };
 try {
     // Being run in an IDE
 	azurite.initialize = __AZURITE__initialize;
+	azurite.pullUpdates = __AZURITE__pullUpdates;
 	azurite.selectiveUndo = __AZURITE__selectiveUndo;
 	azurite.jump = __AZURITE__jump;
 	azurite.getInfo = __AZURITE__getInfo;
@@ -39,6 +40,11 @@ try {
 		alertFn('azurite.initialize() call');
 	};
 	
+	azurite.pullUpdates = function (maxCount) {
+		// Nothing is queued outside the editor.
+		return "[]";
+	};
+	
 	azurite.selectiveUndo = function (arrayOfIds) {
 		alertFn('azurite.selectiveUndo() call');
 		alertFn(arrayOfIds);
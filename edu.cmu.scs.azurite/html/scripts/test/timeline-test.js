@@ -50,3 +50,16 @@ buster.testCase("rectDraw.yFunc Test", {
     assert.near(rectDraw.yFunc({ y1: 10, y2: 100}), 3, 0.01);
   }
 });
+
+buster.testCase("findFirstOperationAt Test", {
+  "should return the first operation at or after the given position": function() {
+    var ops = [ { x: 0 }, { x: 1 }, { x: 2 }, { x: 2 }, { x: 5 } ];
+
+    assert.same(findFirstOperationAt(ops, -1), 0);
+    assert.same(findFirstOperationAt(ops, 2), 2);
+    assert.same(findFirstOperationAt(ops, 2, true), 4);
+    assert.same(findFirstOperationAt(ops, 3), 4);
+    assert.same(findFirstOperationAt(ops, 6), 5);
+    assert.same(findFirstOperationAt([], 0), 0);
+  }
+});
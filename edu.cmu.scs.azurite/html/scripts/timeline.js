@@ -2,7 +2,7 @@
 /*global d3, azurite */
 
 /* Things to be called from Azurite */
-/*exported updateOperation, getRightmostTimestamp, addSelectionsByIds, removeSelectionsByIds, showBefore, showAfter, undo, undoEverythingAfterSelection, showAllFiles, showSelectedFile, showAllFilesInProject, jumpToLocation, showAllFilesEditedTogether, showMarkerAtTimestamp, hideMarker, hideFirebugUI, pushCurrentFile, popCurrentFile, addEvent, activateFirebugLite, showAllFilesEditedInRange, openAllFilesEditedInRange, removeAllSelections, showUp, showDown */
+/*exported requestUpdates, pullAllUpdates, updateOperation, getRightmostTimestamp, addSelectionsByIds, removeSelectionsByIds, showBefore, showAfter, undo, undoEverythingAfterSelection, showAllFiles, showSelectedFile, showAllFilesInProject, jumpToLocation, showAllFilesEditedTogether, showMarkerAtTimestamp, hideMarker, hideFirebugUI, pushCurrentFile, popCurrentFile, addEvent, activateFirebugLite, showAllFilesEditedInRange, openAllFilesEditedInRange, removeAllSelections, showUp, showDown */
 
 /* Things to be called manually when debugging */
 /*exported test, testMarker, showEvents */
@@ -66,6 +66,33 @@ var RANGE_START_LINE_COLOR = 'white';
 var RANGE_START_LINE_WIDTH = MARKER_WIDTH;
 var RANGE_START_LINE_DASH_ARRAY = '5,5';
 
+// Kinds of the updates pulled from Azurite. (see TimelineUpdateQueue.java)
+var UPDATE_ADD_FILE = 0;
+var UPDATE_ADD_OPERATION = 1;
+var UPDATE_UPDATE_OPERATION = 2;
+var UPDATE_ADD_EVENT = 3;
+var UPDATE_PUSH_CURRENT_FILE = 4;
+var UPDATE_POP_CURRENT_FILE = 5;
+var UPDATE_LAYOUT = 6;
+var UPDATE_SCROLL_TO_END = 7;
+
+var UPDATE_FLAG_SCROLL = 1;
+var UPDATE_FLAG_LAYOUT = 2;
+var UPDATE_FLAG_CURRENT = 4;
+
+// Number of updates pulled from Azurite at each animation frame.
+var UPDATES_CHUNK_SIZE = 5000;
+
+// When a row has more operations in the visible area than this many pixels
+// per operation could afford, the row is drawn as density bins instead.
+var DENSITY_MIN_PIXELS_PER_OP = MIN_WIDTH;
+var DENSITY_BIN_PIXELS = 3;
+var DENSITY_MIN_OPACITY = 0.3;
+
+// The operations are laid out again this many milliseconds after the last
+// zoom step. In between, the existing positions are rescaled.
+var ZOOM_LAYOUT_DELAY = 300;
+
 var EVENT_WIDTH = 1;
 var EVENT_ICON_WIDTH = 16;
 var EVENT_ICON_HEIGHT = 16;
@@ -242,16 +269,16 @@ timeTickDraw.textXFunc = function(d) {
 var global = {};
 
 global.operationCompareFunc = function (lhs, rhs) {
-	if (lhs.__data__.t1 < rhs.__data__.t1) {
+	if (lhs.t1 < rhs.t1) {
 		return -1;
 	}
-	if (lhs.__data__.t1 > rhs.__data__.t1) {
+	if (lhs.t1 > rhs.t1) {
 		return 1;
 	}
-	if (lhs.__data__.id < rhs.__data__.id) {
+	if (lhs.id < rhs.id) {
 		return -1;
 	}
-	if (lhs.__data__.id > rhs.__data__.id) {
+	if (lhs.id > rhs.id) {
 		return 1;
 	}
 	return 0;
@@ -273,17 +300,6 @@ global.oidCompareFunc = function (lhs, rhs) {
 	return 0;
 };
 
-global.rectDistCompareFunc = function (rect) {
-	var bounds = rect.getBBox();
-	if (bounds.x <= global.targetDist && global.targetDist <= bounds.x + bounds.width) {
-		return 0;
-	}
-	if (global.targetDist < bounds.x) {
-		return -1;
-	}
-	return 1;
-};
-
 global.filterVisibleFunc = function (d) {
 	return d.isVisible();
 };
@@ -297,6 +313,8 @@ global.lastWindowHeight = null;
 global.files = [];
 global.fileStack = [];
 global.sessions = [];
+// sid_id -> EditOperation
+global.operationMap = {};
 global.selectedRects = [];
 
 // should either be null (no selection) or [startPixel, endPixel)
@@ -325,6 +343,14 @@ var LayoutEnum = {
 // TODO Save this to somewhere in the preferences store.
 global.layout = LayoutEnum.COMPACT;
 
+// incremented whenever the operations are laid out again
+global.layoutVersion = 0;
+// pending layout after zooming. See scheduleLayout().
+global.layoutTimer = null;
+// incremented whenever the drawn operations should be updated
+global.renderVersion = 0;
+global.renderScheduled = false;
+
 // transforms
 global.translateX = 0;
 global.translateY = 0;
@@ -601,6 +627,8 @@ function File(project, path, fileName) {
 	this.fileName = fileName;
 	
 	this.visible = true;
+	// index among the visible files, or -1 if hidden. Set by layoutFiles().
+	this.row = -1;
 	
 	this.isVisible = function () {
 		return this.visible;
@@ -634,6 +662,13 @@ function Session(sid, current) {
 	this.startAbsTimestamp = -1;
 	this.endAbsTimestamp = -1;
 	
+	// All the operations in this session, sorted by t1 and id.
+	this.operations = [];
+	
+	// Horizontal position and width of this session, determined by layout().
+	this.tx = 0;
+	this.width = 0;
+	
 	this.findFileGroup = function (file) {
 		var i;
 		for (i = 0; i < this.fileGroups.length; ++i) {
@@ -656,6 +691,13 @@ function FileGroup(session, file) {
 	this.file = file;
 	this.operations = [];
 	
+	// The widest operation in this group, used for finding the visible ones.
+	this.maxWidth = 0;
+	// Cached density bins. See getDensityBins().
+	this.bins = null;
+	// Whether this group currently has any svg elements for its operations.
+	this.rendered = false;
+	
 	this.g = this.session.g.append('g');
 	this.g.attr('class', 'file_group')
 		.attr('id', 'fg_' + this.session.sid + '_' + this.file.path);
@@ -680,15 +722,12 @@ function EditOperation(sid, id, t1, t2, y1, y2, type, fileGroup) {
 	this.y2 = y2;
 	this.type = type;
 	this.color = function() {
-		if (this.type === TYPE_INSERT) {
-			return "#0a760a";
-		} else if (this.type === TYPE_DELETE) {
-			return "#ec1313";
-		} else if (this.type === TYPE_REPLACE) {
-			return "#1313ec";
-		}
+		return getTypeColor(this.type);
 	};
 	
+	// Horizontal position within the session, determined by layout().
+	this.x = 0;
+	
 	this.fileGroup = fileGroup;
 	this.session = fileGroup.session;
 	
@@ -698,6 +737,10 @@ function EditOperation(sid, id, t1, t2, y1, y2, type, fileGroup) {
 		return this.fileGroup.isVisible() && this.visible;
 	};
 	
+	this.getKey = function() {
+		return this.sid + '_' + this.id;
+	};
+	
 	this.getAbsT1 = function() {
 		return this.sid + this.t1;
 	};
@@ -716,6 +759,16 @@ function EditOperation(sid, id, t1, t2, y1, y2, type, fileGroup) {
 	};
 }
 
+function getTypeColor(type) {
+	if (type === TYPE_INSERT) {
+		return "#0a760a";
+	} else if (type === TYPE_DELETE) {
+		return "#ec1313";
+	} else if (type === TYPE_REPLACE) {
+		return "#1313ec";
+	}
+}
+
 /**
  * A unique identifier for each operation
  */
@@ -822,68 +875,56 @@ function addOperation(sid, id, t1, t2, y1, y2, type, scroll, autolayout, current
 		filesLayoutDirty = true;
 	}
 
-	fileGroup.operations.push(newOp);
+	insertOperation(fileGroup.operations, newOp);
+	var sessionIndex = insertOperation(session.operations, newOp);
+	global.operationMap[newOp.getKey()] = newOp;
+	fileGroup.bins = null;
 	global.lastOperation = newOp;
 	
 	session.startAbsTimestamp = Math.min(session.startAbsTimestamp, sid + newOp.t1);
 	session.endAbsTimestamp = Math.max(session.endAbsTimestamp, sid + newOp.t2);
 
-	var rectToAppend = fileGroup.g.append('rect');
-	rectToAppend.datum(newOp);
-	rectToAppend
-		.attr('id', function(d) {
-			return d.sid + '_' + d.id;
-		})
-		.attr('class', 'op_rect')
-		.attr('y', rectDraw.yFunc)
-		.attr('width', rectDraw.wFunc)
-		.attr('height', rectDraw.hFunc)
-		.attr('rx', RECT_RADIUS)
-		.attr('ry', RECT_RADIUS)
-		.attr('fill', rectDraw.fillFunc)
-		.attr('vector-effect', 'non-scaling-stroke');
-	
 	if (autolayout === true) {
 		var sessionTx = session.tx;
-		if (sessionTx === undefined) {
-			sessionTx = 0;
+		var w = rectDraw.wFunc(newOp);
+		
+		// Inserted in the middle of the session. Everything after it moves.
+		if (sessionIndex !== session.operations.length - 1) {
+			layoutDirty = true;
 		}
 
 		if (global.layout === LayoutEnum.COMPACT) {
-			// Find the last visible rect in this session.
-			var rectsInSession = session.g.selectAll('rect.op_rect').filter(function (d) {
-				return d.isVisible() && d !== newOp;
-			})[0].slice();
-			rectsInSession.sort(global.operationCompareFunc);
-			
-			var x = 0;
-			if (rectsInSession.length > 0) {
-				var bounds = rectsInSession[rectsInSession.length - 1].getBBox();
-				x = bounds.x + bounds.width;
+			// Put it right after the last visible operation in this session.
+			newOp.x = session.width;
+			if (newOp.isVisible()) {
+				session.width += w;
 			}
-			
-			rectToAppend.attr('x', x);
 
 			global.domainArray.push(new Date(sid + newOp.t1));
 			global.domainArray.push(new Date(sid + newOp.t2));
-			global.rangeArray.push(sessionTx + x);
-			global.rangeArray.push(sessionTx + x + rectDraw.wFunc(newOp));
+			global.rangeArray.push(sessionTx + newOp.x);
+			global.rangeArray.push(sessionTx + newOp.x + w);
 		}
 		else if (global.layout === LayoutEnum.REALTIME) {
-			rectToAppend.attr('x', rectDraw.xFunc);
+			newOp.x = rectDraw.xFunc(newOp);
+			if (newOp.isVisible()) {
+				session.width = Math.max(session.width, newOp.x + w);
+			}
 
 			// Assuming this session is the last one...
 			if (global.domainArray.length === 0) {
 				global.domainArray.push(new Date(session.startAbsTimestamp));
 				global.domainArray.push(new Date(session.endAbsTimestamp));
-				global.rangeArray.push(sessionTx + rectDraw.xFunc(newOp));
-				global.rangeArray.push(sessionTx + rectDraw.xFunc(newOp) + rectDraw.wFunc(newOp));
+				global.rangeArray.push(sessionTx + newOp.x);
+				global.rangeArray.push(sessionTx + newOp.x + w);
 			}
 			else {
 				global.domainArray[global.domainArray.length - 1] = new Date(session.endAbsTimestamp);
-				global.rangeArray[global.rangeArray.length - 1] = sessionTx + rectDraw.xFunc(newOp) + rectDraw.wFunc(newOp);
+				global.rangeArray[global.rangeArray.length - 1] = sessionTx + newOp.x + w;
 			}
 		}
+		
+		fileGroup.maxWidth = Math.max(fileGroup.maxWidth, w);
 
 		global.timeScale.domain(global.domainArray).range(global.rangeArray);
 
@@ -901,31 +942,16 @@ function addOperation(sid, id, t1, t2, y1, y2, type, scroll, autolayout, current
 		}
 	}
 	
-	// Add tipsy.
-	$(rectToAppend.node()).tipsy({
-		gravity: $.fn.tipsy.autoNS,
-		html: true,
-		checkFn: function() {
-			return !global.dragging;
-		},
-		title: function() {
-			var d = this.__data__;
-			return d.getInfo();
-		}
-	});
-	
-	global.lastRect = rectToAppend;
-	
 	// Move the indicator.
 	var indicatorX;
 	if (global.layout === LayoutEnum.COMPACT) {
-		var rectBounds = rectToAppend.node().getBBox();
-		indicatorX = rectBounds.x + rectBounds.width;
+		indicatorX = newOp.x + rectDraw.wFunc(newOp);
 		session.indicator.attr('x1', indicatorX).attr('x2', indicatorX);
 	}
 	else {
 		indicatorX = (session.endAbsTimestamp - session.startAbsTimestamp) / DEFAULT_RATIO;
 		session.indicator.attr('x1', indicatorX).attr('x2', indicatorX);
+		session.width = Math.max(session.width, indicatorX);
 	}
 	
 	if (filesLayoutDirty === true) {
@@ -943,6 +969,8 @@ function addOperation(sid, id, t1, t2, y1, y2, type, scroll, autolayout, current
 		showUntil(global.lastOperation.getAbsT2());
 	}
 	
+	scheduleRender();
+	
 	// profiling
 	var _endTick = new Date().valueOf();
 	if (global.profile) {
@@ -951,6 +979,20 @@ function addOperation(sid, id, t1, t2, y1, y2, type, scroll, autolayout, current
 	}
 }
 
+/**
+ * Inserts the operation into the given array sorted by t1 and id, and returns
+ * the inserted index. Operations usually come in order, so search from the end.
+ */
+function insertOperation(operations, op) {
+	var index = operations.length;
+	while (index > 0 && global.operationCompareFunc(operations[index - 1], op) > 0) {
+		--index;
+	}
+	
+	operations.splice(index, 0, op);
+	return index;
+}
+
 /**
  * Called by Azurite.
  * Update the timestamp2 value for an existing operation, in case multiple
@@ -972,37 +1014,33 @@ function updateOperation(sid, id, t2, y1, y2, type, scroll) {
 	lastOp.y2 = y2;
 
 	lastOp.type = type;
-
-	if (global.lastRect !== null) {
-		global.lastRect
-			.attr('width', rectDraw.wFunc)
-			.attr('y', rectDraw.yFunc)
-			.attr('height', rectDraw.hFunc)
-			.attr('fill', rectDraw.fillFunc);
-	}
 	
 	var session = lastOp.session;
 	var sessionTx = session.tx;
-	if (sessionTx === undefined) {
-		sessionTx = 0;
-	}
+	var w = rectDraw.wFunc(lastOp);
+	
+	lastOp.fileGroup.maxWidth = Math.max(lastOp.fileGroup.maxWidth, w);
+	lastOp.fileGroup.bins = null;
 	
 	// Move the indicator / adjust time scale
 	var indicatorX;
 	if (global.layout === LayoutEnum.COMPACT) {
-		var rectBounds = global.lastRect.node().getBBox();
-		indicatorX = rectBounds.x + rectBounds.width;
+		indicatorX = lastOp.x + w;
 		session.indicator.attr('x1', indicatorX).attr('x2', indicatorX);
+		if (lastOp.isVisible()) {
+			session.width = Math.max(session.width, indicatorX);
+		}
 
 		global.domainArray[global.domainArray.length - 1] = new Date(lastOp.sid + t2);
-		global.rangeArray[global.rangeArray.length - 1] = sessionTx + rectBounds.x + rectBounds.width;
+		global.rangeArray[global.rangeArray.length - 1] = sessionTx + lastOp.x + w;
 	}
 	else {
 		indicatorX = (session.endAbsTimestamp - session.startAbsTimestamp) / DEFAULT_RATIO;
 		session.indicator.attr('x1', indicatorX).attr('x2', indicatorX);
+		session.width = Math.max(session.width, lastOp.x + w, indicatorX);
 
 		global.domainArray[global.domainArray.length - 1] = new Date(session.endAbsTimestamp);
-		global.rangeArray[global.rangeArray.length - 1] = sessionTx + rectDraw.xFunc(lastOp) + rectDraw.wFunc(lastOp);
+		global.rangeArray[global.rangeArray.length - 1] = sessionTx + lastOp.x + w;
 	}
 	global.timeScale.domain(global.domainArray).range(global.rangeArray);
 
@@ -1018,6 +1056,8 @@ function updateOperation(sid, id, t2, y1, y2, type, scroll) {
 	if (scroll === true) {
 		showUntil(lastOp.getAbsT2());
 	}
+	
+	invalidateRender();
 }
 
 /**
@@ -1061,6 +1101,107 @@ function addEvent(sid, id, t, dt, type, desc) {
 }
 
 
+/**
+ * Called by Azurite.
+ * Pulls the queued updates from Azurite at the next animation frame.
+ * Multiple requests made before that frame are coalesced.
+ */
+function requestUpdates() {
+	if (global.updatesRequested === true) {
+		return;
+	}
+	
+	global.updatesRequested = true;
+	
+	requestFrame(function () {
+		global.updatesRequested = false;
+		
+		// Leave the rest to the next frames, so that the view stays responsive.
+		if (processUpdates(UPDATES_CHUNK_SIZE) === UPDATES_CHUNK_SIZE) {
+			requestUpdates();
+		}
+	});
+}
+
+/**
+ * Called by Azurite.
+ * Pulls and processes all the queued updates immediately.
+ */
+function pullAllUpdates() {
+	while (processUpdates(UPDATES_CHUNK_SIZE) === UPDATES_CHUNK_SIZE) {
+		// Keep pulling.
+	}
+}
+
+/**
+ * Pulls at most maxCount updates from Azurite, and processes them.
+ * Returns the number of the processed updates.
+ */
+function processUpdates(maxCount) {
+	var data = $.parseJSON(azurite.pullUpdates(maxCount));
+	var count = 0;
+	var i = 0;
+	
+	while (i < data.length) {
+		switch (data[i]) {
+		case UPDATE_ADD_FILE:
+			addFile(data[i + 1], data[i + 2]);
+			i += 3;
+			break;
+			
+		case UPDATE_ADD_OPERATION:
+			addOperation(data[i + 1], data[i + 2], data[i + 3], data[i + 4],
+				data[i + 5], data[i + 6], data[i + 7],
+				(data[i + 8] & UPDATE_FLAG_SCROLL) !== 0,
+				(data[i + 8] & UPDATE_FLAG_LAYOUT) !== 0,
+				(data[i + 8] & UPDATE_FLAG_CURRENT) !== 0);
+			i += 9;
+			break;
+			
+		case UPDATE_UPDATE_OPERATION:
+			updateOperation(data[i + 1], data[i + 2], data[i + 3], data[i + 4],
+				data[i + 5], data[i + 6],
+				(data[i + 7] & UPDATE_FLAG_SCROLL) !== 0);
+			i += 8;
+			break;
+			
+		case UPDATE_ADD_EVENT:
+			addEvent(data[i + 1], data[i + 2], data[i + 3], data[i + 4],
+				data[i + 5], data[i + 6]);
+			i += 7;
+			break;
+			
+		case UPDATE_PUSH_CURRENT_FILE:
+			pushCurrentFile();
+			i += 1;
+			break;
+			
+		case UPDATE_POP_CURRENT_FILE:
+			popCurrentFile();
+			i += 1;
+			break;
+			
+		case UPDATE_LAYOUT:
+			layout();
+			i += 1;
+			break;
+			
+		case UPDATE_SCROLL_TO_END:
+			scrollToEnd();
+			i += 1;
+			break;
+			
+		default:
+			azurite.log("Unknown update kind: " + data[i]);
+			return count;
+		}
+		
+		++count;
+	}
+	
+	return count;
+}
+
 function findSession(sid) {
 	var i;
 	for (i = 0; i < global.sessions.length; ++i) {
@@ -1072,6 +1213,403 @@ function findSession(sid) {
 	return null;
 }
 
+/**
+ * Calls the given function at the next animation frame.
+ */
+function requestFrame(callback) {
+	if (window.requestAnimationFrame) {
+		window.requestAnimationFrame(callback);
+	}
+	else {
+		setTimeout(callback, 16);
+	}
+}
+
+/**
+ * Redraws the visible operations at the next animation frame.
+ * Multiple requests made before that frame are coalesced.
+ */
+function scheduleRender() {
+	if (global.renderScheduled === true) {
+		return;
+	}
+	
+	global.renderScheduled = true;
+	
+	requestFrame(function () {
+		global.renderScheduled = false;
+		renderOperations();
+	});
+}
+
+/**
+ * Same as scheduleRender(), but also updates the sizes and the colors of
+ * the operations which are already drawn.
+ */
+function invalidateRender() {
+	++global.renderVersion;
+	scheduleRender();
+}
+
+/**
+ * Draws the operations in the visible area only, so that the number of svg
+ * elements does not grow with the length of the history. Rows with too many
+ * operations to be distinguished at the current zoom level are drawn as
+ * density bins.
+ */
+function renderOperations() {
+	// profiling
+	var _startTick = new Date().valueOf();
+	if (global.profile) {
+		console.log("renderOperations() start: " + _startTick);
+	}
+	
+	var viewWidth = getSvgWidth() * (1.0 - FILES_PORTION);
+	var viewHeight = getSvgHeight() - TICKS_HEIGHT - EVENTS_HEIGHT;
+	
+	// Visible area in the coordinates of svg.subRects
+	var left = -global.translateX / global.scaleX;
+	var right = (viewWidth - global.translateX) / global.scaleX;
+	var firstRow = Math.floor(-global.translateY / ROW_HEIGHT);
+	var lastRow = Math.floor((viewHeight / global.scaleY - global.translateY) / ROW_HEIGHT);
+	
+	var maxOperations = viewWidth / DENSITY_MIN_PIXELS_PER_OP;
+	
+	var i, j, k;
+	for (i = 0; i < global.sessions.length; ++i) {
+		var session = global.sessions[i];
+		var sessionLeft = left - session.tx;
+		var sessionRight = right - session.tx;
+		var sessionVisible = sessionRight >= 0 && sessionLeft <= session.width;
+		
+		for (j = 0; j < session.fileGroups.length; ++j) {
+			var fileGroup = session.fileGroups[j];
+			var row = fileGroup.file.row;
+			var ops = [];
+			var bins = [];
+			
+			if (sessionVisible && fileGroup.isVisible() && firstRow <= row && row <= lastRow) {
+				var operations = fileGroup.operations;
+				var start = findFirstOperationAt(operations, sessionLeft - fileGroup.maxWidth);
+				var end = findFirstOperationAt(operations, sessionRight, true);
+				
+				if (end - start > maxOperations) {
+					bins = getVisibleDensityBins(fileGroup, sessionLeft, sessionRight);
+				}
+				else {
+					for (k = start; k < end; ++k) {
+						var op = operations[k];
+						if (op.visible && op.x + rectDraw.wFunc(op) >= sessionLeft) {
+							ops.push(op);
+						}
+					}
+				}
+			}
+			
+			renderFileGroup(fileGroup, ops, bins);
+		}
+	}
+	
+	updateHighlight();
+	
+	// profiling
+	var _endTick = new Date().valueOf();
+	if (global.profile) {
+		console.log("renderOperations() end: " + _endTick);
+		console.log("renderOperations() took: " + (_endTick - _startTick));
+	}
+}
+
+function renderFileGroup(fileGroup, ops, bins) {
+	if (!fileGroup.rendered && ops.length === 0 && bins.length === 0) {
+		return;
+	}
+	
+	var upToDate = fileGroup.renderVersion === global.renderVersion;
+	fileGroup.rendered = ops.length > 0 || bins.length > 0;
+	fileGroup.renderVersion = global.renderVersion;
+	
+	// Operations
+	var rects = fileGroup.g.selectAll('rect.op_rect').data(ops, function (d) {
+		return d.getKey();
+	});
+	
+	rects.exit().each(removeTooltip).remove();
+	
+	var newRects = rects.enter().append('rect');
+	newRects
+		.attr('id', function (d) {
+			return d.getKey();
+		})
+		.attr('class', 'op_rect')
+		.attr('rx', RECT_RADIUS)
+		.attr('ry', RECT_RADIUS)
+		.attr('vector-effect', 'non-scaling-stroke')
+		.each(addTooltip);
+	
+	// The entered ones are merged into rects. Update all of them only when
+	// something other than the visible area has been changed.
+	(upToDate ? newRects : rects)
+		.attr('x', function (d) {
+			return d.x;
+		})
+		.attr('y', rectDraw.yFunc)
+		.attr('width', rectDraw.wFunc)
+		.attr('height', rectDraw.hFunc)
+		.attr('fill', rectDraw.fillFunc);
+	
+	// Density bins
+	var binRects = fileGroup.g.selectAll('rect.density_rect').data(bins);
+	
+	binRects.exit().remove();
+	
+	binRects.enter().insert('rect', ':first-child')
+		.attr('class', 'density_rect');
+	
+	binRects
+		.attr('x', function (d) {
+			return d.x;
+		})
+		.attr('y', rectDraw.yFunc)
+		.attr('width', function (d) {
+			return d.width;
+		})
+		.attr('height', rectDraw.hFunc)
+		.attr('fill', function (d) {
+			return getTypeColor(d.type);
+		})
+		.attr('fill-opacity', function (d) {
+			return d.opacity;
+		});
+}
+
+function addTooltip() {
+	$(this).tipsy({
+		gravity: $.fn.tipsy.autoNS,
+		html: true,
+		checkFn: function() {
+			return !global.dragging;
+		},
+		title: function() {
+			var d = this.__data__;
+			return d.getInfo();
+		}
+	});
+}
+
+function removeTooltip() {
+	var tip = $(this).data('tipsy');
+	if (tip) {
+		tip.hide();
+	}
+}
+
+/**
+ * Returns the index of the first operation whose x is no less than the given
+ * value, or greater than the given value if exclusive is true.
+ * The operations must be sorted by x, which is true within a file group.
+ */
+function findFirstOperationAt(operations, x, exclusive) {
+	var low = 0;
+	var high = operations.length;
+	
+	while (low < high) {
+		var mid = (low + high) >> 1;
+		var midX = operations[mid].x;
+		if (midX < x || (exclusive === true && midX === x)) {
+			low = mid + 1;
+		}
+		else {
+			high = mid;
+		}
+	}
+	
+	return low;
+}
+
+/**
+ * Returns the density bins of the given file group which overlap with the
+ * given horizontal range.
+ */
+function getVisibleDensityBins(fileGroup, left, right) {
+	var bins = getDensityBins(fileGroup);
+	
+	var low = 0;
+	var high = bins.length;
+	while (low < high) {
+		var mid = (low + high) >> 1;
+		if (bins[mid].x + bins[mid].width < left) {
+			low = mid + 1;
+		}
+		else {
+			high = mid;
+		}
+	}
+	
+	var result = [];
+	for (var i = low; i < bins.length && bins[i].x <= right; ++i) {
+		result.push(bins[i]);
+	}
+	
+	return result;
+}
+
+/**
+ * Groups the operations of the given file group into bins of
+ * DENSITY_BIN_PIXELS screen pixels. Each bin covers the vertical range of
+ * its operations, and is filled with the color of the most frequent type.
+ * The result is cached until the layout or the zoom level changes.
+ */
+function getDensityBins(fileGroup) {
+	var binWidth = DENSITY_BIN_PIXELS / global.scaleX;
+	var cache = fileGroup.bins;
+	if (cache !== null && cache.binWidth === binWidth && cache.layoutVersion === global.layoutVersion) {
+		return cache.list;
+	}
+	
+	var list = [];
+	var bin = null;
+	var maxCount = 0;
+	var i;
+	
+	for (i = 0; i < fileGroup.operations.length; ++i) {
+		var op = fileGroup.operations[i];
+		if (!op.visible) {
+			continue;
+		}
+		
+		var index = Math.floor(op.x / binWidth);
+		if (bin === null || bin.index !== index) {
+			bin = {
+				index: index,
+				x: index * binWidth,
+				width: binWidth,
+				y1: op.y1,
+				y2: op.y2,
+				count: 0,
+				typeCounts: [0, 0, 0]
+			};
+			list.push(bin);
+		}
+		
+		bin.y1 = Math.min(bin.y1, op.y1);
+		bin.y2 = Math.max(bin.y2, op.y2);
+		++bin.count;
+		if (bin.typeCounts[op.type] !== undefined) {
+			++bin.typeCounts[op.type];
+		}
+		
+		maxCount = Math.max(maxCount, bin.count);
+	}
+	
+	for (i = 0; i < list.length; ++i) {
+		bin = list[i];
+		bin.type = bin.typeCounts.indexOf(Math.max.apply(null, bin.typeCounts));
+		bin.opacity = DENSITY_MIN_OPACITY + (1.0 - DENSITY_MIN_OPACITY) * bin.count / maxCount;
+	}
+	
+	fileGroup.bins = {
+		binWidth: binWidth,
+		layoutVersion: global.layoutVersion,
+		list: list
+	};
+	
+	return list;
+}
+
+/**
+ * Returns the cached density bin containing the given operation, or null if
+ * the bins of its file group have not been built.
+ */
+function findDensityBin(op) {
+	var cache = op.fileGroup.bins;
+	if (cache === null) {
+		return null;
+	}
+	
+	var index = Math.floor(op.x / cache.binWidth);
+	var list = cache.list;
+	var low = 0;
+	var high = list.length;
+	while (low < high) {
+		var mid = (low + high) >> 1;
+		if (list[mid].index < index) {
+			low = mid + 1;
+		}
+		else {
+			high = mid;
+		}
+	}
+	
+	return low < list.length && list[low].index === index ? list[low] : null;
+}
+
+/**
+ * Returns the visible operations overlapping with the given rectangle in the
+ * svg.main coordinates. The positions are calculated from the layout, so the
+ * operations do not have to be drawn at the moment.
+ */
+function findOperationsInRect(x1, y1, x2, y2) {
+	var result = [];
+	
+	// Convert into the coordinates of svg.subRects.
+	var left = (x1 - global.draggableArea.left - global.translateX) / global.scaleX;
+	var right = (x2 - global.draggableArea.left - global.translateX) / global.scaleX;
+	var top = (y1 - global.draggableArea.top) / global.scaleY - global.translateY;
+	var bottom = (y2 - global.draggableArea.top) / global.scaleY - global.translateY;
+	
+	var i, j, k;
+	for (i = 0; i < global.sessions.length; ++i) {
+		var session = global.sessions[i];
+		var sessionLeft = left - session.tx;
+		var sessionRight = right - session.tx;
+		if (sessionRight < 0 || sessionLeft > session.width) {
+			continue;
+		}
+		
+		for (j = 0; j < session.fileGroups.length; ++j) {
+			var fileGroup = session.fileGroups[j];
+			if (!fileGroup.isVisible()) {
+				continue;
+			}
+			
+			var rowTop = fileGroup.file.row * ROW_HEIGHT;
+			if (rowTop + ROW_HEIGHT < top || rowTop > bottom) {
+				continue;
+			}
+			
+			var operations = fileGroup.operations;
+			var start = findFirstOperationAt(operations, sessionLeft - fileGroup.maxWidth);
+			var end = findFirstOperationAt(operations, sessionRight, true);
+			
+			for (k = start; k < end; ++k) {
+				var op = operations[k];
+				var opTop = rowTop + rectDraw.yFunc(op);
+				
+				if (op.visible &&
+					op.x + rectDraw.wFunc(op) >= sessionLeft &&
+					opTop <= bottom && opTop + rectDraw.hFunc(op) >= top) {
+					result.push(op);
+				}
+			}
+		}
+	}
+	
+	return result;
+}
+
+/**
+ * Returns all the operations, ordered by session and then by t1 and id.
+ */
+function getAllOperations() {
+	var result = [];
+	for (var i = 0; i < global.sessions.length; ++i) {
+		result = result.concat(global.sessions[i].operations);
+	}
+	
+	return result;
+}
+
 function layout(newLayout) {
 	// profiling
 	var _startTick = new Date().valueOf();
@@ -1079,6 +1617,12 @@ function layout(newLayout) {
 		console.log("layout() start: " + _startTick);
 	}
 	
+	// A pending layout after zooming is no longer needed.
+	if (global.layoutTimer !== null) {
+		clearTimeout(global.layoutTimer);
+		global.layoutTimer = null;
+	}
+	
 	// Remember the current horizontal scroll position.
 	var leftmostTimestamp = getLeftmostTimestamp();
 	
@@ -1087,73 +1631,78 @@ function layout(newLayout) {
 		global.layout = newLayout;
 	}
 	
-	global.tempSessionTx = 0;
+	var sessionTx = 0;
 	
-	var i, session;
-	var compactXFunc = function (d) {
-		if (!d.isVisible()) {
-			return 0;
-		}
-		
-		var temp = global.tempX;
-		global.tempX += this.getBBox().width;
-		return temp;
-	};
+	var i, j, session, op, w;
 
 	// Domain values / range values for time scale
 	global.domainArray = [];
 	global.rangeArray = [];
-	var addScaleFunc = function (d, i) {
-		if (d.isVisible()) {
-			global.domainArray.push(new Date(d.sid + d.t1));
-			global.domainArray.push(new Date(d.sid + d.t2));
-			global.rangeArray.push(global.tempSessionTx + this.getBBox().x);
-			global.rangeArray.push(global.tempSessionTx + this.getBBox().x + this.getBBox().width);
-		}
-	};
 	
+	// The positions are calculated from the model, and only the visible
+	// operations are drawn afterwards by renderOperations().
 	for (i = 0; i < global.sessions.length; ++i) {
 		session = global.sessions[i];
 		
-		session.g.attr('transform', 'translate(' + global.tempSessionTx + ' 0)');
-		session.tx = global.tempSessionTx;
-		
-		// Iterate through all the rects.
-		var rects = session.g.selectAll('rect.op_rect')[0].slice();
-		rects.sort(global.operationCompareFunc);
-		
-		// Apply different layout function, depending on the mode.
-		global.tempX = 0;
+		session.g.attr('transform', 'translate(' + sessionTx + ' 0)');
+		session.tx = sessionTx;
 		
-		if (global.layout === LayoutEnum.COMPACT) {
-			d3.selectAll(rects).attr('x', compactXFunc);
-		}
-		else if (global.layout === LayoutEnum.REALTIME) {
-			d3.selectAll(rects).attr('x', rectDraw.xFunc);
+		for (j = 0; j < session.fileGroups.length; ++j) {
+			session.fileGroups[j].maxWidth = 0;
+			session.fileGroups[j].bins = null;
 		}
 		
-		// TODO if there is no rectangle at all, don't draw the entire session.
+		var x = 0;
+		var width = 0;
+		for (j = 0; j < session.operations.length; ++j) {
+			op = session.operations[j];
+			if (!op.isVisible()) {
+				op.x = 0;
+				continue;
+			}
+			
+			w = rectDraw.wFunc(op);
+			
+			// Apply different layout function, depending on the mode.
+			if (global.layout === LayoutEnum.COMPACT) {
+				op.x = x;
+				x += w;
+				
+				global.domainArray.push(new Date(op.sid + op.t1));
+				global.domainArray.push(new Date(op.sid + op.t2));
+				global.rangeArray.push(sessionTx + op.x);
+				global.rangeArray.push(sessionTx + op.x + w);
+			}
+			else if (global.layout === LayoutEnum.REALTIME) {
+				op.x = rectDraw.xFunc(op);
+			}
+			
+			width = Math.max(width, op.x + w);
+			op.fileGroup.maxWidth = Math.max(op.fileGroup.maxWidth, w);
+		}
 		
 		// Move the indicator.
 		if (global.layout === LayoutEnum.COMPACT) {
-			session.indicator.attr('x1', global.tempX);
-			session.indicator.attr('x2', global.tempX);
-
-			// recalculate the time scales here.
-			d3.selectAll(rects).each(addScaleFunc);
+			session.indicator.attr('x1', x);
+			session.indicator.attr('x2', x);
+			session.width = x;
 		}
 		else if (global.layout === LayoutEnum.REALTIME) {
-			session.indicator.attr('x1', (session.endAbsTimestamp - session.startAbsTimestamp) / DEFAULT_RATIO);
-			session.indicator.attr('x2', (session.endAbsTimestamp - session.startAbsTimestamp) / DEFAULT_RATIO);
+			var indicatorX = (session.endAbsTimestamp - session.startAbsTimestamp) / DEFAULT_RATIO;
+			session.indicator.attr('x1', indicatorX);
+			session.indicator.attr('x2', indicatorX);
+			session.width = Math.max(width, indicatorX);
 
 			global.domainArray.push(new Date(session.startAbsTimestamp));
 			global.domainArray.push(new Date(session.endAbsTimestamp));
 			global.rangeArray.push(session.tx);
-			global.rangeArray.push(session.tx + (session.endAbsTimestamp - session.startAbsTimestamp) / DEFAULT_RATIO);
+			global.rangeArray.push(session.tx + indicatorX);
 		}
 		
-		global.tempSessionTx += session.g.node().getBBox().width;
+		sessionTx += session.width;
 	}
+	
+	++global.layoutVersion;
 
 	if (global.domainArray.length === 0) {
 		global.timeScale.domain([new Date(0), new Date()]).range([0, 0]);
@@ -1162,7 +1711,7 @@ function layout(newLayout) {
 		global.timeScale.domain(global.domainArray).range(global.rangeArray);
 	}
 	
-	updateHighlight();
+	invalidateRender();
 	updateHScroll();
 	updateEvents();
 	updateTicks();
@@ -1170,16 +1719,7 @@ function layout(newLayout) {
 	// Restore the scroll position.
 	showFrom(leftmostTimestamp);
 
-	// Marker / range selection box
-	global.markerPos = timestampToPixel(global.markerTimestamp);
-	if (global.selectedTimestampRange !== null) {
-		global.selectedPixelRange = [
-			timestampToPixel(global.selectedTimestampRange[0]),
-			timestampToPixel(global.selectedTimestampRange[1])
-		];
-	}
-	updateMarkerPosition(false, true);
-	updateRangeSelectionBox();
+	updateMarkerAndRangeSelection();
 
 	// profiling
 	var _endTick = new Date().valueOf();
@@ -1189,14 +1729,76 @@ function layout(newLayout) {
 	}
 }
 
-function make_filter(file) {
-	return function (d) {
-		return d.file === file;
-	};
+/**
+ * Lays out the operations again when the zoom level stops changing.
+ * See scaleX().
+ */
+function scheduleLayout() {
+	if (global.layoutTimer !== null) {
+		clearTimeout(global.layoutTimer);
+	}
+	
+	global.layoutTimer = setTimeout(function () {
+		global.layoutTimer = null;
+		layout();
+	}, ZOOM_LAYOUT_DELAY);
+}
+
+/**
+ * Multiplies all the horizontal positions of the compact layout by the given
+ * ratio, without laying out the operations again.
+ */
+function rescaleLayout(ratio) {
+	var i, j, session;
+	for (i = 0; i < global.sessions.length; ++i) {
+		session = global.sessions[i];
+		session.tx *= ratio;
+		session.width *= ratio;
+		session.g.attr('transform', 'translate(' + session.tx + ' 0)');
+		session.indicator.attr('x1', session.width);
+		session.indicator.attr('x2', session.width);
+		
+		for (j = 0; j < session.operations.length; ++j) {
+			session.operations[j].x *= ratio;
+		}
+		
+		// The widths of the longer operations do not change, so keep the
+		// larger one.
+		for (j = 0; j < session.fileGroups.length; ++j) {
+			session.fileGroups[j].maxWidth *= Math.max(ratio, 1);
+		}
+	}
+	
+	for (i = 0; i < global.rangeArray.length; ++i) {
+		global.rangeArray[i] *= ratio;
+	}
+	
+	if (global.domainArray.length > 0) {
+		global.timeScale.range(global.rangeArray);
+	}
+	
+	// The density bins are built again when they are drawn.
+	++global.layoutVersion;
+}
+
+/**
+ * Moves the marker and the range selection box to their timestamps,
+ * after the operations have been moved.
+ */
+function updateMarkerAndRangeSelection() {
+	global.markerPos = timestampToPixel(global.markerTimestamp);
+	if (global.selectedTimestampRange !== null) {
+		global.selectedPixelRange = [
+			timestampToPixel(global.selectedTimestampRange[0]),
+			timestampToPixel(global.selectedTimestampRange[1])
+		];
+	}
+	updateMarkerPosition(false, true);
+	updateRangeSelectionBox();
 }
 
 function layoutFiles() {
-	var i;
+	var i, j;
 	var visibleFiles = [];
 
 	var hiddenFileExists = false;
@@ -1204,21 +1806,28 @@ function layoutFiles() {
 	for (i = 0; i < global.files.length; ++i) {
 		var file = global.files[i];
 		
-		// Use a function maker.. http://stackoverflow.com/questions/3037598/how-to-get-around-the-jslint-error-dont-make-functions-within-a-loop
-		var fileGroups = svg.subRects.selectAll('g.file_group').filter(make_filter(file));
-		
 		if (file.visible) {
-			fileGroups.style('display', '');
+			file.row = visibleFiles.length;
+			visibleFiles.push(file);
 		}
 		else {
-			fileGroups.style('display', 'none');
+			file.row = -1;
 			hiddenFileExists = true;
-			continue;
 		}
-		
-		fileGroups.attr('transform', 'translate(0 ' + (visibleFiles.length * ROW_HEIGHT) + ')');
-		
-		visibleFiles.push(file);
+	}
+	
+	for (i = 0; i < global.sessions.length; ++i) {
+		var fileGroups = global.sessions[i].fileGroups;
+		for (j = 0; j < fileGroups.length; ++j) {
+			var fileGroup = fileGroups[j];
+			if (fileGroup.isVisible()) {
+				fileGroup.g.style('display', '')
+					.attr('transform', 'translate(0 ' + (fileGroup.file.row * ROW_HEIGHT) + ')');
+			}
+			else {
+				fileGroup.g.style('display', 'none');
+			}
+		}
 	}
 	
 	// Rects surrounding the file names.
@@ -1272,6 +1881,8 @@ function layoutFiles() {
 
 	// VScroll
 	updateVScroll();
+	
+	invalidateRender();
 
 	// Show or Hide the unhide all button.
 	d3.selectAll('#unhide_button').style('display', hiddenFileExists ? 'inline-block' : 'none');
@@ -1322,6 +1933,8 @@ window.onresize = function(e) {
 		updateVScroll();
 		
 		svg.subFiles.selectAll('rect.file_rect').attr('width', fileRectDraw.wFunc);
+		
+		scheduleRender();
 	}
 };
 
@@ -1773,21 +2386,15 @@ function initDblClickHandler() {
 		var mouseX = e.clientX - SVG_WRAPPER_PADDING;
 		var mouseY = e.clientY - MENU_PANEL_HEIGHT - SVG_WRAPPER_PADDING;
 		
-		var rect = svg.main.node().createSVGRect();
-		rect.x = mouseX;
-		rect.y = mouseY;
-		rect.width = 1;
-		rect.height = 1;
-
-		// Get all the intersecting objects in the SVG.
-		var list = svg.main.node().getIntersectionList(rect, null);
-		var oprect = d3.selectAll(list).filter('.op_rect');
-		if (oprect.length > 0 && oprect[0].length > 0) {
-			var datum = oprect[0][0].__data__;
-			if (datum !== undefined && datum !== null) {
-				var file = datum.fileGroup.file;
-				azurite.jump(file.project, file.path, datum.sid, datum.id);
-			}
+		if (!cursorInArea(mouseX, mouseY, global.draggableArea)) {
+			return;
+		}
+		
+		var ops = findOperationsInRect(mouseX, mouseY, mouseX + 1, mouseY + 1);
+		if (ops.length > 0) {
+			var datum = ops[0];
+			var file = datum.fileGroup.file;
+			azurite.jump(file.project, file.path, datum.sid, datum.id);
 		}
 	};
 }
@@ -1937,25 +2544,15 @@ function removeAllSelections() {
 function addSelections(x1, y1, x2, y2, toggle, clearPrevSelections) {
 	global.prevSelectedRects = global.selectedRects.slice(0);
 
-	var rect = svg.main.node().createSVGRect();
-	rect.x = x1;
-	rect.y = y1;
-	rect.width = Math.max(x2 - x1, 1);
-	rect.height = Math.max(y2 - y1, 1);
-
-	// Get all the intersecting objects in the SVG.
-	var list = svg.main.node().getIntersectionList(rect, null);
-
-	// Filter only the operation rects.
-	var opRects = d3.selectAll(list).filter('.op_rect');
-	if (clearPrevSelections === true && opRects.empty() === false) {
+	var ops = findOperationsInRect(x1, y1, Math.max(x2, x1 + 1), Math.max(y2, y1 + 1));
+	if (clearPrevSelections === true && ops.length > 0) {
 		global.prevSelectedRects = global.selectedRects.slice(0);
 		global.selectedRects = [];
 	}
 
-	opRects.each(function(d, i) {
-		var sid = d.sid;
-		var id = d.id;
+	for (var i = 0; i < ops.length; ++i) {
+		var sid = ops[i].sid;
+		var id = ops[i].id;
 		
 		var index = indexOfSelected(sid, id);
 
@@ -1970,7 +2567,7 @@ function addSelections(x1, y1, x2, y2, toggle, clearPrevSelections) {
 		else if (!isSelected(sid, id)) {
 			global.selectedRects.push(new OperationId(sid, id));
 		}
-	});
+	}
 
 	updateHighlight();
 	checkAndNotifySelectionChanged();
@@ -2019,35 +2616,68 @@ function indexOfSelected(sid, id) {
 
 function updateHighlight() {
 	svg.subRects.selectAll('rect.highlight_rect').remove();
+	
+	if (global.selectedRects.length === 0) {
+		return;
+	}
 
-	var i, idString;
-
+	var i;
+	var selected = {};
 	for (i = 0; i < global.selectedRects.length; ++i) {
-		idString = '#' + global.selectedRects[i].sid + '_' + global.selectedRects[i].id;
-
-		var $ref = $(idString);
-		if ($ref.length === 0) {
-			continue;
-		}
-		var refBBox = $ref.get(0).getBBox();
+		selected[global.selectedRects[i].sid + '_' + global.selectedRects[i].id] = true;
+	}
+	
+	// Only the drawn operations need to be highlighted.
+	var selectedRects = svg.subRects.selectAll('rect.op_rect').filter(function (d) {
+		return selected[d.getKey()] === true;
+	});
 
-		d3.select($(idString)[0].parentNode)
+	selectedRects.each(function (d) {
+		d3.select(this.parentNode)
 			.insert('rect', ':first-child')
 			.attr('class', 'highlight_rect')
 			.attr('fill', 'yellow')
-			.attr('x', refBBox.x - (HIGHLIGHT_WIDTH / global.scaleX))
-			.attr('y', refBBox.y - (HIGHLIGHT_WIDTH / global.scaleY))
+			.attr('x', d.x - (HIGHLIGHT_WIDTH / global.scaleX))
+			.attr('y', rectDraw.yFunc(d) - (HIGHLIGHT_WIDTH / global.scaleY))
 			.attr('rx', RECT_RADIUS)
 			.attr('ry', RECT_RADIUS)
-			.attr('width', refBBox.width + HIGHLIGHT_WIDTH * 2 / global.scaleX)
-			.attr('height', refBBox.height + HIGHLIGHT_WIDTH * 2 / global.scaleY);
-	}
+			.attr('width', rectDraw.wFunc(d) + HIGHLIGHT_WIDTH * 2 / global.scaleX)
+			.attr('height', rectDraw.hFunc(d) + HIGHLIGHT_WIDTH * 2 / global.scaleY);
+	});
 
-	svg.subRects.selectAll('rect.highlight_rect').moveToFront();
+	// A density bin is highlighted when any of its operations is selected.
+	var selectedBins = [];
 	for (i = 0; i < global.selectedRects.length; ++i) {
-		idString = '#' + global.selectedRects[i].sid + '_' + global.selectedRects[i].id;
-		d3.select($(idString)[0]).moveToFront();
+		var op = global.operationMap[global.selectedRects[i].sid + '_' + global.selectedRects[i].id];
+		var bin = op !== undefined && op.isVisible() ? findDensityBin(op) : null;
+		if (bin !== null && bin.selected !== true) {
+			bin.selected = true;
+			selectedBins.push(bin);
+		}
+	}
+	
+	var selectedBinRects = svg.subRects.selectAll('rect.density_rect').filter(function (d) {
+		return d.selected === true;
+	});
+	
+	for (i = 0; i < selectedBins.length; ++i) {
+		selectedBins[i].selected = false;
 	}
+	
+	selectedBinRects.each(function (d) {
+		d3.select(this.parentNode)
+			.insert('rect', ':first-child')
+			.attr('class', 'highlight_rect')
+			.attr('fill', 'yellow')
+			.attr('x', d.x - (HIGHLIGHT_WIDTH / global.scaleX))
+			.attr('y', rectDraw.yFunc(d) - (HIGHLIGHT_WIDTH / global.scaleY))
+			.attr('width', d.width + HIGHLIGHT_WIDTH * 2 / global.scaleX)
+			.attr('height', rectDraw.hFunc(d) + HIGHLIGHT_WIDTH * 2 / global.scaleY);
+	});
+
+	svg.subRects.selectAll('rect.highlight_rect').moveToFront();
+	selectedRects.moveToFront();
+	selectedBinRects.moveToFront();
 }
 
 /******************************************************************
@@ -2159,24 +2789,41 @@ function range(begin, end) {
 
 function scaleX(sx) {
 	sx = clamp(sx, 0.1, 50);
-	global.translateX = global.translateX / global.scaleX * sx;
+	
+	if (global.layout === LayoutEnum.COMPACT) {
+		// Most operations take the minimum width, which is inversely
+		// proportional to the scale. So the positions are rescaled, and the
+		// operations stay where they are on the screen.
+		rescaleLayout(global.scaleX / sx);
+	}
+	else {
+		global.translateX = global.translateX / global.scaleX * sx;
+		
+		// The positions do not depend on the scale, but the minimum width does.
+		var minWidth = MIN_WIDTH / sx;
+		var i, j;
+		for (i = 0; i < global.sessions.length; ++i) {
+			for (j = 0; j < global.sessions[i].fileGroups.length; ++j) {
+				var fileGroup = global.sessions[i].fileGroups[j];
+				fileGroup.maxWidth = Math.max(fileGroup.maxWidth, minWidth);
+			}
+		}
+	}
 	global.scaleX = sx;
 
 	updateSubRectsTransform();
 
-	svg.subRects.selectAll('rect.op_rect').attr('width', rectDraw.wFunc);
-
-	updateHighlight();
-
 	d3.selectAll('.indicator').attr('stroke-width', indicatorDraw.wFunc);
 
+	invalidateRender();
 	updateHScroll();
+	updateEvents();
+	updateTicks();
+	updateMarkerAndRangeSelection();
 	
-	if (global.layout === LayoutEnum.COMPACT) {
-		layout();
-	}
-	
-	updateMarkerPosition();
+	// The minimum widths of the operations depend on the scale, so lay them
+	// out exactly once the zooming is over.
+	scheduleLayout();
 }
 
 function scaleY(sy) {
@@ -2185,7 +2832,7 @@ function scaleY(sy) {
 
 	updateSubRectsTransform();
 
-	svg.subRects.selectAll('rect.op_rect').attr('height', rectDraw.hFunc);
+	invalidateRender();
 
 	svg.subFiles.selectAll('text').attr('y', fileDraw.yFunc);
 	svg.subFiles.selectAll('rect.file_rect')
@@ -2195,8 +2842,6 @@ function scaleY(sy) {
 	updateSeparatingLines();
 
 	updateVScroll();
-
-	updateHighlight();
 }
 
 function translateX(tx) {
@@ -2212,6 +2857,7 @@ function translateX(tx) {
 	global.translateX = tx;
 
 	updateSubRectsTransform();
+	scheduleRender();
 
 	updateHScroll();
 	
@@ -2255,8 +2901,7 @@ function translateX(tx) {
 function getMinTranslateX() {
 	var result = 0, i;
 	for (i = 0; i < global.sessions.length; ++i) {
-		var session = global.sessions[i];
-		result += session.g.node().getBBox().width;
+		result += global.sessions[i].width;
 	}
 
 	var scaled = result * global.scaleX;
@@ -2278,6 +2923,7 @@ function translateY(ty) {
 	global.translateY = ty;
 
 	updateSubRectsTransform();
+	scheduleRender();
 
 	svg.subFiles.selectAll('text').attr('y', fileDraw.yFunc);
 	svg.subFiles.selectAll('rect.file_rect').attr('y', fileRectDraw.yFunc);
@@ -2616,14 +3262,11 @@ function jumpToLocation() {
 	}
 	
 	var selection = global.selectedRects[0];
-	var rect = $('rect#' + selection.sid + '_' + selection.id).get(0);
+	var datum = global.operationMap[selection.sid + '_' + selection.id];
 	
-	if (rect !== null) {
-		var datum = rect.__data__;
-		if (datum !== undefined && datum !== null) {
-			var file = datum.fileGroup.file;
-			azurite.jump(file.project, file.path, datum.sid, datum.id);
-		}
+	if (datum !== undefined) {
+		var file = datum.fileGroup.file;
+		azurite.jump(file.project, file.path, datum.sid, datum.id);
 	}
 }
 
@@ -2652,14 +3295,13 @@ function showAllFilesEditedTogether() {
 	var start = global.selectedRects[0];
 	var end = global.selectedRects[global.selectedRects.length - 1];
 	
-	var startRect = $('rect#' + start.sid + '_' + start.id).get(0);
-	var endRect = $('rect#' + end.sid + '_' + end.id).get(0);
+	var startOp = global.operationMap[start.sid + '_' + start.id];
+	var endOp = global.operationMap[end.sid + '_' + end.id];
 	
-	var sortedRects = svg.subRects.selectAll('rect.op_rect')[0].slice(0);
-	sortedRects.sort(global.operationCompareFunc);
+	var sortedOps = getAllOperations();
 	
-	var startIndex = sortedRects.indexOf(startRect);
-	var endIndex = sortedRects.indexOf(endRect);
+	var startIndex = sortedOps.indexOf(startOp);
+	var endIndex = sortedOps.indexOf(endOp);
 	
 	if (startIndex === -1 || endIndex === -1) {
 		return;
@@ -2672,7 +3314,7 @@ function showAllFilesEditedTogether() {
 	}
 	
 	for (i = startIndex; i <= endIndex; ++i) {
-		sortedRects[i].__data__.fileGroup.file.visible = true;
+		sortedOps[i].fileGroup.file.visible = true;
 	}
 	
 	layoutFiles();
@@ -2684,14 +3326,7 @@ function showAllFilesEditedInRange() {
 		return;
 	}
 
-	var start = global.selectedTimestampRange[0];
-	var end = global.selectedTimestampRange[1];
-
-	var rects = svg.subRects.selectAll('rect.op_rect')[0].slice(0);
-	var filteredRects = rects.filter(function (element) {
-		var absTimestamp = element.__data__.sid + element.__data__.t1;
-		return start <= absTimestamp && absTimestamp < end;
-	});
+	var filteredOps = getAllOperationsInRange(global.selectedTimestampRange[0], global.selectedTimestampRange[1]);
 	
 	// Make all files invisible for the moment.
 	var i;
@@ -2699,8 +3334,8 @@ function showAllFilesEditedInRange() {
 		global.files[i].visible = false;
 	}
 
-	for (i = 0; i < filteredRects.length; ++i) {
-		filteredRects[i].__data__.fileGroup.file.visible = true;
+	for (i = 0; i < filteredOps.length; ++i) {
+		filteredOps[i].fileGroup.file.visible = true;
 	}
 
 	layoutFiles();
@@ -2716,23 +3351,23 @@ function getAllFilesEditedInRange() {
 		return [];
 	}
 
-	var start = global.selectedTimestampRange[0];
-	var end = global.selectedTimestampRange[1];
-
-	var rects = svg.subRects.selectAll('rect.op_rect')[0].slice(0);
-	var filteredRects = rects.filter(function (element) {
-		var absTimestamp = element.__data__.sid + element.__data__.t1;
-		return start <= absTimestamp && absTimestamp < end;
-	});
+	var filteredOps = getAllOperationsInRange(global.selectedTimestampRange[0], global.selectedTimestampRange[1]);
 
 	var filePaths = [];
-	for (var i = 0; i < filteredRects.length; ++i) {
-		filePaths.push(filteredRects[i].__data__.fileGroup.file.path);
+	for (var i = 0; i < filteredOps.length; ++i) {
+		filePaths.push(filteredOps[i].fileGroup.file.path);
 	}
 
 	return filePaths;
 }
 
+function getAllOperationsInRange(start, end) {
+	return getAllOperations().filter(function (op) {
+		var absTimestamp = op.getAbsT1();
+		return start <= absTimestamp && absTimestamp < end;
+	});
+}
+
 function updateEvents() {
 	svg.subEvents.selectAll('.event_line')
 		.attr('x1', eventDraw.xFunc)
@@ -1,8 +1,6 @@
 package edu.cmu.scs.azurite.commands.runtime;
 
-import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 
 /**
  * @author YoungSeok Yoon
@@ -10,11 +8,11 @@ import java.util.ListIterator;
  */
 public class InsertComponent implements EditComponent {
 	
-	private LinkedList<Segment> mInsertSegments;
+	private SegmentList mInsertSegments;
 	
 	public void initialize(Segment initialSegment) {
-		mInsertSegments = new LinkedList<Segment>();
-		mInsertSegments.addLast(initialSegment);
+		mInsertSegments = new SegmentList();
+		mInsertSegments.add(initialSegment);
 	}
 	
 	public boolean applyInsert(RuntimeInsert insert) {
@@ -48,24 +46,22 @@ public class InsertComponent implements EditComponent {
 	private boolean applyHelper(Segment deleteSegment, Segment insertSegment, RuntimeDC docChange) {
 		int lengthDiff = insertSegment.getLength() - deleteSegment.getLength();
 		
-		ListIterator<Segment> it = mInsertSegments.listIterator();
-		
 		boolean conflict = false;
 		boolean dummyDelete = deleteSegment.getLength() == 0;
+		
+		// Skip all the segments located before the replacement at once.
+		int index = mInsertSegments.indexOfFirstAffected(0, deleteSegment.getOffset());
 
-		while (it.hasNext()) {
-			Segment segment = it.next();
+		while (index < mInsertSegments.size()) {
+			Segment segment = mInsertSegments.get(index);
 			
 			if (deleteSegment.getEndOffset() <= segment.getOffset()) {
 			//                                         | existing segment |
 			// |---------- replacement ----------|
 				
 				// adjust all the subsequent segments' offsets.
-				segment.incrementOffset(lengthDiff);
-				
-				while (it.hasNext()) {
-					it.next().incrementOffset(lengthDiff);
-				}
+				mInsertSegments.shiftFrom(index, lengthDiff);
+				break;
 			} else if (deleteSegment.getOffset() <= segment.getOffset()
 					&& segment.getOffset() < deleteSegment.getEndOffset()
 					&& deleteSegment.getEndOffset() < segment.getEndOffset()) {
@@ -77,17 +73,16 @@ public class InsertComponent implements EditComponent {
 						deleteSegment.getEndOffset(), segment.getEndOffset()
 								- deleteSegment.getEndOffset());
 				segmentToBeAdded.incrementOffset(lengthDiff);
-				it.add(segmentToBeAdded);
+				mInsertSegments.add(++index, segmentToBeAdded);
 				
 				// cut down the current segment, and adjust all the subsequent segments.
 				segment.cutDown(deleteSegment.getEndOffset());
 				deleteSegment.closeSegment(segment);
 				
-				while (it.hasNext()) {
-					it.next().incrementOffset(lengthDiff);
-				}
+				mInsertSegments.shiftFrom(index + 1, lengthDiff);
 				
 				conflict = true;
+				break;
 			} else if (deleteSegment.getOffset() <= segment.getOffset()
 					&& segment.getEndOffset() <= deleteSegment.getEndOffset()) {
 			//        | existing segment |
@@ -106,21 +101,20 @@ public class InsertComponent implements EditComponent {
 					Segment segmentInTheMiddle = segment.subSegment(
 							deleteSegment.getOffset(), deleteSegment.getLength());
 					deleteSegment.closeSegment(segmentInTheMiddle);
-					it.add(segmentInTheMiddle);
+					mInsertSegments.add(++index, segmentInTheMiddle);
 				}
 				
 				Segment segmentAtTheEnd = segment.subSegment(deleteSegment.getEndOffset());
 				segmentAtTheEnd.incrementOffset(lengthDiff);
-				it.add(segmentAtTheEnd);
+				mInsertSegments.add(++index, segmentAtTheEnd);
 				
 				// Cut down the current segment.
 				segment.cutDown(deleteSegment.getOffset());
 				
-				while (it.hasNext()) {
-					it.next().incrementOffset(lengthDiff);
-				}
+				mInsertSegments.shiftFrom(index + 1, lengthDiff);
 				
 				conflict = true;
+				break;
 			} else if (segment.getOffset() < deleteSegment.getOffset()
 					&& deleteSegment.getOffset() < segment.getEndOffset()
 					&& segment.getEndOffset() <= deleteSegment.getEndOffset()) {
@@ -129,7 +123,7 @@ public class InsertComponent implements EditComponent {
 				
 				Segment segmentToBeAdded = segment.subSegment(deleteSegment.getOffset());
 				deleteSegment.closeSegment(segmentToBeAdded);
-				it.add(segmentToBeAdded);
+				mInsertSegments.add(++index, segmentToBeAdded);
 				
 				// cut down the current segment, and continue to loop.
 				segment.cutDown(deleteSegment.getOffset());
@@ -144,7 +138,9 @@ public class InsertComponent implements EditComponent {
 			// Should not fall to this else clause
 				throw new IllegalStateException();
 			}
-		}// while (it.hasNext())
+			
+			index = mInsertSegments.indexOfFirstAffected(index + 1, deleteSegment.getOffset());
+		}// while (index < mInsertSegments.size())
 		
 		return conflict;
 	}
@@ -3,6 +3,7 @@ package edu.cmu.scs.azurite.commands.runtime;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import edu.cmu.scs.azurite.model.FileKey;
 import edu.cmu.scs.azurite.model.OperationId;
@@ -17,6 +18,10 @@ import edu.cmu.scs.fluorite.commands.Replace;
  */
 public abstract class RuntimeDC {
 
+	// Incremented whenever the segments or the conflicts of any runtime DC
+	// may have changed, so that the results calculated from them can be cached.
+	private static final AtomicInteger historyVersion = new AtomicInteger();
+	
 	private BaseDocumentChangeEvent mOriginal;
 	
 	private List<RuntimeDC> mConflicts;
@@ -53,6 +58,14 @@ public abstract class RuntimeDC {
 	
 	public abstract void applyTo(RuntimeDC docChange);
 	
+	public static int getHistoryVersion() {
+		return historyVersion.get();
+	}
+	
+	public static void historyChanged() {
+		historyVersion.incrementAndGet();
+	}
+	
 	public List<RuntimeDC> getConflicts() {
 		return mConflicts;
 	}
@@ -61,6 +74,57 @@ public abstract class RuntimeDC {
 		mConflicts.add(docChange);
 	}
 	
+	/**
+	 * Replaces a runtime DC in the conflicts list with another one.
+	 * @param oldDocChange the runtime DC to be replaced.
+	 * @param newDocChange the new runtime DC.
+	 */
+	public void replaceConflict(RuntimeDC oldDocChange, RuntimeDC newDocChange) {
+		int index = mConflicts.indexOf(oldDocChange);
+		if (index != -1) {
+			mConflicts.set(index, newDocChange);
+			historyChanged();
+		}
+	}
+	
+	/**
+	 * Creates a new runtime DC from the original event of this one.
+	 * The returned object has the segments as they were first recorded,
+	 * so it can be applied to older runtime DCs added afterwards.
+	 * Call {@link #takeOverRelationsFrom(RuntimeDC)} once it is done.
+	 * @return a new runtime DC object.
+	 */
+	public RuntimeDC createOriginalCopy() {
+		RuntimeDC copy = createRuntimeDocumentChange(getOriginal());
+		copy.setBelongsTo(getBelongsTo());
+		return copy;
+	}
+	
+	/**
+	 * Takes over the segment relationships made while applying the given copy
+	 * (see {@link #createOriginalCopy()}) to older runtime DCs. As the older
+	 * ones come first, the relationships are put in front of the existing ones.
+	 * @param copy the copy of this runtime DC.
+	 */
+	public void takeOverRelationsFrom(RuntimeDC copy) {
+		Segment deleteSegment = findDeleteSegment(this);
+		Segment copyDeleteSegment = findDeleteSegment(copy);
+		if (deleteSegment != null && copyDeleteSegment != null) {
+			deleteSegment.prependRelationsOf(copyDeleteSegment);
+			historyChanged();
+		}
+	}
+	
+	private static Segment findDeleteSegment(RuntimeDC docChange) {
+		for (Segment segment : docChange.getAllSegments()) {
+			if (segment.isDeletion()) {
+				return segment;
+			}
+		}
+		
+		return null;
+	}
+	
 	public void setBelongsTo(FileKey belongsTo) {
 		mBelongsTo = belongsTo;
 	}
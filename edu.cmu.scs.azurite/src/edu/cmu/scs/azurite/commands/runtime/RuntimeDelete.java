@@ -63,6 +63,7 @@ public class RuntimeDelete extends RuntimeDC {
 
 	@Override
 	public void applyTo(RuntimeDC docChange) {
+		historyChanged();
 		docChange.applyDelete(this);
 	}
 
@@ -62,6 +62,7 @@ public class RuntimeInsert extends RuntimeDC {
 
 	@Override
 	public void applyTo(RuntimeDC docChange) {
+		historyChanged();
 		docChange.applyInsert(this);
 	}
 	
@@ -70,6 +70,7 @@ public class RuntimeReplace extends RuntimeDC {
 
 	@Override
 	public void applyTo(RuntimeDC docChange) {
+		historyChanged();
 		docChange.applyReplace(this);
 	}
 	
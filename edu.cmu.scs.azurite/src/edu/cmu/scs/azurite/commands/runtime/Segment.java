@@ -18,7 +18,13 @@ public class Segment {
 
 	private int mOffset;
 	private int mLength;
+	
+	// The text of this segment is the range [mTextStart, mTextStart + mTextLength)
+	// of mText, so that the sub segments can share the text of the original
+	// segment instead of copying it.
 	private String mText;
+	private int mTextStart;
+	private int mTextLength;
 	
 	private boolean mDeletion;
 
@@ -28,8 +34,13 @@ public class Segment {
 	// Related to D->D & I->D conflict.
 	private int mRelativeOffset;
 	private int mOriginalLength;
+	// Created lazily, as most of the segments never have these relations.
 	private List<Segment> mSegmentsClosedByMe;
 	private List<Segment> mRight;
+	
+	// The node holding this segment, when this segment is in a segment list.
+	// In that case, mOffset is relative to the shifts stored in the list.
+	private SegmentList.Node mNode;
 
 	/**
 	 * Create a new segment.
@@ -50,6 +61,8 @@ public class Segment {
 	public Segment(int offset, int length, String text, String belongsTo, RuntimeDC owner, boolean deletion) {
 		mOffset = offset;
 		mLength = length;
+		mTextStart = 0;
+		mTextLength = text != null ? text.length() : 0;
 		mText = text;
 
 		mBelongsTo = belongsTo;
@@ -59,8 +72,6 @@ public class Segment {
 		
 		mRelativeOffset = -1;
 		mOriginalLength = -1;
-		mSegmentsClosedByMe = new ArrayList<Segment>();
-		mRight = new ArrayList<Segment>();
 	}
 
 	/**
@@ -121,6 +132,9 @@ public class Segment {
 	 * @return The offset value.
 	 */
 	public int getOffset() {
+		if (mNode != null) {
+			return mOffset + SegmentList.getShift(mNode);
+		}
 		return mOffset;
 	}
 
@@ -131,10 +145,11 @@ public class Segment {
 	 *            The amount used when incrementing the offset.
 	 */
 	public void incrementOffset(int amount) {
-		if (mOffset + amount < 0) {
+		if (getOffset() + amount < 0) {
 			throw new IllegalArgumentException();
 		}
 		mOffset += amount;
+		notifyChanged();
 	}
 
 	/**
@@ -144,10 +159,11 @@ public class Segment {
 	 *            The amount used when decrementing the offset.
 	 */
 	public void decrementOffset(int amount) {
-		if (mOffset - amount < 0) {
+		if (getOffset() - amount < 0) {
 			throw new IllegalArgumentException();
 		}
 		mOffset -= amount;
+		notifyChanged();
 	}
 
 	/**
@@ -160,7 +176,30 @@ public class Segment {
 		if (offset < 0) {
 			throw new IllegalArgumentException();
 		}
-		mOffset = offset;
+		mOffset = offset - (mNode != null ? SegmentList.getShift(mNode) : 0);
+		notifyChanged();
+	}
+	
+	int getRawOffset() {
+		return mOffset;
+	}
+	
+	void setRawOffset(int rawOffset) {
+		mOffset = rawOffset;
+	}
+	
+	SegmentList.Node getNode() {
+		return mNode;
+	}
+	
+	void setNode(SegmentList.Node node) {
+		mNode = node;
+	}
+	
+	private void notifyChanged() {
+		if (mNode != null) {
+			SegmentList.segmentChanged(mNode);
+		}
 	}
 
 	/**
@@ -174,6 +213,7 @@ public class Segment {
 
 	private void setLength(int length) {
 		mLength = length;
+		notifyChanged();
 	}
 
 	/**
@@ -199,7 +239,11 @@ public class Segment {
 	 * @return The corresponding text represented by this segment.
 	 */
 	public String getText() {
-		return mText;
+		if (mText == null || mTextStart == 0 && mTextLength == mText.length()) {
+			return mText;
+		}
+		
+		return mText.substring(mTextStart, mTextStart + mTextLength);
 	}
 
 	private void setText(String text) {
@@ -207,9 +251,20 @@ public class Segment {
 			throw new IllegalArgumentException();
 		}
 
+		mTextStart = 0;
+		mTextLength = text.length();
 		mText = text;
 	}
-
+	
+	/**
+	 * Makes the text of this segment a range of the current text.
+	 * The text is shared instead of being copied.
+	 */
+	private void setTextRange(int start, int length) {
+		mTextStart += start;
+		mTextLength = length;
+	}
+	
 	/**
 	 * Getter for the belongsTo field.
 	 * 
@@ -255,9 +310,12 @@ public class Segment {
 			throw new IllegalArgumentException();
 		}
 
-		return new Segment(offset, length, getText().substring(
-				offset - getOffset(), offset - getOffset() + length),
+		Segment subSegment = new Segment(offset, length, mText,
 				getBelongsTo(), getOwner(), isDeletion());
+		subSegment.mTextStart = mTextStart;
+		subSegment.mTextLength = mTextLength;
+		subSegment.setTextRange(offset - getOffset(), length);
+		return subSegment;
 	}
 
 	/**
@@ -291,9 +349,16 @@ public class Segment {
 			throw new IllegalArgumentException();
 		}
 
+		int start = offset - getOffset();
+		if (start + length == mTextLength) {
+			setTextRange(0, start);
+		} else if (start == 0) {
+			setTextRange(length, mTextLength - length);
+		} else {
+			setText(getText().substring(0, start)
+					+ getText().substring(start + length));
+		}
 		setLength(getLength() - length);
-		setText(getText().substring(0, offset - getOffset())
-				+ getText().substring(offset - getOffset() + length));
 
 		return true;
 	}
@@ -421,6 +486,9 @@ public class Segment {
 		if (!isDeletion()) {
 			throw new RuntimeException("addSegmentClosedByMe method should only be called on a DELETE segment.");
 		}
+		if (mSegmentsClosedByMe == null) {
+			mSegmentsClosedByMe = new ArrayList<Segment>();
+		}
 		mSegmentsClosedByMe.add(closedSegment);
 	}
 	
@@ -428,14 +496,43 @@ public class Segment {
 	 * @return read-only list of segments.
 	 */
 	public List<Segment> getSegmentsClosedByMe() {
+		if (mSegmentsClosedByMe == null) {
+			return Collections.emptyList();
+		}
 		return Collections.unmodifiableList(mSegmentsClosedByMe);
 	}
 	
 	public void addRight(Segment right) {
+		if (mRight == null) {
+			mRight = new ArrayList<Segment>();
+		}
 		mRight.add(right);
 	}
 	
+	/**
+	 * Puts the closed segments and the right segments of another segment in
+	 * front of the ones of this segment.
+	 * @param segment another segment representing the same deletion.
+	 */
+	public void prependRelationsOf(Segment segment) {
+		if (segment.mSegmentsClosedByMe != null) {
+			if (mSegmentsClosedByMe == null) {
+				mSegmentsClosedByMe = new ArrayList<Segment>();
+			}
+			mSegmentsClosedByMe.addAll(0, segment.mSegmentsClosedByMe);
+		}
+		if (segment.mRight != null) {
+			if (mRight == null) {
+				mRight = new ArrayList<Segment>();
+			}
+			mRight.addAll(0, segment.mRight);
+		}
+	}
+	
 	public List<Segment> getRight() {
+		if (mRight == null) {
+			return Collections.emptyList();
+		}
 		return Collections.unmodifiableList(mRight);
 	}
 	
@@ -446,12 +543,13 @@ public class Segment {
 	 * @return copy of this segment.
 	 */
 	public Segment copySegment() {
-		Segment copy = new Segment(mOffset, mLength, mText, mBelongsTo, mOwner, mDeletion);
+		Segment copy = new Segment(getOffset(), mLength, mText, mBelongsTo, mOwner, mDeletion);
+		copy.mTextStart = mTextStart;
+		copy.mTextLength = mTextLength;
 		copy.mRelativeOffset = mRelativeOffset;
 		copy.mOriginalLength = mOriginalLength;
 		
-		// Don't fill this out just yet...
-		copy.mSegmentsClosedByMe = new ArrayList<Segment>();
+		// Don't fill out mSegmentsClosedByMe just yet...
 		
 		return copy;
 	}
@@ -0,0 +1,408 @@
+package edu.cmu.scs.azurite.commands.runtime;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Keeps all the live segments of a single file ordered by their current
+ * offsets, so that a new document change only needs to visit the segments
+ * around the edited region.
+ *
+ * Internally, this is a treap augmented with the maximum end offset of each
+ * subtree. Offset shifts of the segments following an edit are recorded as
+ * pending shifts on the subtrees, and are written back to the actual segment
+ * objects lazily. Call {@link #flush()} before reading the segment offsets
+ * from outside.
+ */
+public class SegmentIntervalTree {
+
+	private static class Node {
+		private Segment mSegment;
+		private int mOwnerIndex;
+
+		private int mOffset;
+		private int mEnd;
+		private int mMaxEnd;
+
+		// Shift amount which should be applied to both the children.
+		private int mPendingShift;
+		private boolean mHasPending;
+
+		private int mPriority;
+
+		private Node mLeft;
+		private Node mRight;
+		private Node mParent;
+	}
+
+	private Node mRoot;
+
+	private Map<Segment, Node> mNodes;
+
+	private Random mRandom;
+
+	// Added to all the owner indices stored in the nodes.
+	private int mOwnerIndexBase;
+
+	public SegmentIntervalTree() {
+		mRoot = null;
+		mNodes = new IdentityHashMap<Segment, Node>();
+		mOwnerIndexBase = 0;
+
+		// Use a fixed seed, so that the tree shape is reproducible.
+		mRandom = new Random(0);
+	}
+
+	/**
+	 * @return the number of segments stored in this tree.
+	 */
+	public int size() {
+		return mNodes.size();
+	}
+
+	/**
+	 * Tells if the given segment is stored in this tree.
+	 * @param segment the segment object.
+	 * @return true if the segment is in this tree, false otherwise.
+	 */
+	public boolean contains(Segment segment) {
+		return mNodes.containsKey(segment);
+	}
+
+	/**
+	 * Removes all the segments from this tree.
+	 */
+	public void clear() {
+		mRoot = null;
+		mNodes.clear();
+		mOwnerIndexBase = 0;
+	}
+
+	/**
+	 * Adds the given amount to the owner indices of all the segments in this
+	 * tree. This should be called when some runtime document changes are
+	 * inserted in front of the existing ones.
+	 * @param amount the amount to be added.
+	 */
+	public void shiftOwnerIndices(int amount) {
+		mOwnerIndexBase += amount;
+	}
+
+	/**
+	 * Adds a segment to this tree, using its current offset as the key.
+	 * @param segment the segment to be added.
+	 * @param ownerIndex index of the owner runtime document change within its file.
+	 */
+	public void insert(Segment segment, int ownerIndex) {
+		if (segment == null) {
+			throw new IllegalArgumentException();
+		}
+
+		if (mNodes.containsKey(segment)) {
+			throw new IllegalStateException("The segment is already in the tree.");
+		}
+
+		Node node = new Node();
+		node.mSegment = segment;
+		node.mOwnerIndex = ownerIndex - mOwnerIndexBase;
+		node.mOffset = segment.getOffset();
+		node.mEnd = segment.isDeletion() ? segment.getOffset() : segment.getEndOffset();
+		node.mMaxEnd = node.mEnd;
+		node.mPriority = mRandom.nextInt();
+
+		mNodes.put(segment, node);
+
+		if (mRoot == null) {
+			mRoot = node;
+			return;
+		}
+
+		// Find the place as a leaf.
+		Node cur = mRoot;
+		while (true) {
+			pushDown(cur);
+			if (node.mOffset < cur.mOffset) {
+				if (cur.mLeft == null) {
+					cur.mLeft = node;
+					break;
+				}
+				cur = cur.mLeft;
+			} else {
+				if (cur.mRight == null) {
+					cur.mRight = node;
+					break;
+				}
+				cur = cur.mRight;
+			}
+		}
+		node.mParent = cur;
+
+		// Restore the heap property.
+		while (node.mParent != null && node.mParent.mPriority < node.mPriority) {
+			rotateUp(node);
+		}
+
+		updateToRoot(node);
+	}
+
+	/**
+	 * Removes a segment from this tree. The offset of the given segment is
+	 * brought up-to-date before it is removed.
+	 * @param segment the segment to be removed.
+	 * @return true if the segment was in this tree, false otherwise.
+	 */
+	public boolean remove(Segment segment) {
+		Node node = mNodes.remove(segment);
+		if (node == null) {
+			return false;
+		}
+
+		pushDownPath(node);
+		segment.setOffset(node.mOffset);
+
+		// Rotate the node down until it becomes a leaf.
+		while (node.mLeft != null || node.mRight != null) {
+			Node child;
+			if (node.mLeft == null) {
+				child = node.mRight;
+			} else if (node.mRight == null) {
+				child = node.mLeft;
+			} else {
+				child = node.mLeft.mPriority > node.mRight.mPriority ? node.mLeft : node.mRight;
+			}
+
+			pushDown(child);
+			rotateUp(child);
+		}
+
+		// Detach the leaf.
+		Node parent = node.mParent;
+		if (parent == null) {
+			mRoot = null;
+		} else {
+			if (parent.mLeft == node) {
+				parent.mLeft = null;
+			} else {
+				parent.mRight = null;
+			}
+			node.mParent = null;
+			updateToRoot(parent);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Shifts all the segments whose offsets are no less than the given offset.
+	 * The caller must make sure that the relative order of the segments is not
+	 * changed by this shift, i.e., there must not be any segment whose offset
+	 * falls between <code>offset + amount</code> and <code>offset</code>.
+	 * @param offset the offset from which the segments should be shifted.
+	 * @param amount the shift amount, which can be negative.
+	 */
+	public void shift(int offset, int amount) {
+		if (amount == 0) {
+			return;
+		}
+
+		shiftHelper(mRoot, offset, amount);
+	}
+
+	private void shiftHelper(Node node, int offset, int amount) {
+		if (node == null) {
+			return;
+		}
+
+		pushDown(node);
+		if (node.mOffset >= offset) {
+			node.mOffset += amount;
+			node.mEnd += amount;
+			node.mSegment.setOffset(node.mOffset);
+
+			applyShift(node.mRight, amount);
+			shiftHelper(node.mLeft, offset, amount);
+		} else {
+			shiftHelper(node.mRight, offset, amount);
+		}
+		update(node);
+	}
+
+	/**
+	 * Collects the owner indices of the segments which could possibly be
+	 * affected by replacing the [startOffset, endOffset) region. These include
+	 * all the segments located within [startOffset, endOffset] and the
+	 * insertion segments spanning over startOffset.
+	 * @param startOffset the start offset of the region.
+	 * @param endOffset the end offset of the region.
+	 * @return sorted set of the owner indices.
+	 */
+	public SortedSet<Integer> collectOwnersAround(int startOffset, int endOffset) {
+		SortedSet<Integer> result = new TreeSet<Integer>();
+		collectOwnersAroundHelper(mRoot, startOffset, endOffset, result);
+		return result;
+	}
+
+	private void collectOwnersAroundHelper(Node node, int startOffset,
+			int endOffset, SortedSet<Integer> result) {
+		if (node == null || node.mMaxEnd < startOffset) {
+			return;
+		}
+
+		pushDown(node);
+
+		if (startOffset <= node.mOffset && node.mOffset <= endOffset) {
+			result.add(node.mOwnerIndex + mOwnerIndexBase);
+		} else if (node.mOffset < startOffset && startOffset < node.mEnd) {
+			result.add(node.mOwnerIndex + mOwnerIndexBase);
+		}
+
+		collectOwnersAroundHelper(node.mLeft, startOffset, endOffset, result);
+		if (node.mOffset <= endOffset) {
+			collectOwnersAroundHelper(node.mRight, startOffset, endOffset, result);
+		}
+	}
+
+	/**
+	 * Collects the owner indices of the segments overlapping with the
+	 * (startOffset, endOffset) region, i.e., the segments starting before
+	 * endOffset and effectively ending after startOffset.
+	 * @param startOffset the start offset of the region.
+	 * @param endOffset the end offset of the region.
+	 * @return sorted set of the owner indices.
+	 */
+	public SortedSet<Integer> collectOwnersOverlapping(int startOffset, int endOffset) {
+		SortedSet<Integer> result = new TreeSet<Integer>();
+		collectOwnersOverlappingHelper(mRoot, startOffset, endOffset, result);
+		return result;
+	}
+
+	private void collectOwnersOverlappingHelper(Node node, int startOffset,
+			int endOffset, SortedSet<Integer> result) {
+		if (node == null || node.mMaxEnd <= startOffset) {
+			return;
+		}
+
+		pushDown(node);
+
+		if (node.mOffset < endOffset && startOffset < node.mEnd) {
+			result.add(node.mOwnerIndex + mOwnerIndexBase);
+		}
+
+		collectOwnersOverlappingHelper(node.mLeft, startOffset, endOffset, result);
+		if (node.mOffset < endOffset) {
+			collectOwnersOverlappingHelper(node.mRight, startOffset, endOffset, result);
+		}
+	}
+
+	/**
+	 * Writes all the pending offset shifts back to the segment objects.
+	 */
+	public void flush() {
+		flushHelper(mRoot);
+	}
+
+	private void flushHelper(Node node) {
+		if (node == null || !node.mHasPending) {
+			return;
+		}
+
+		pushDown(node);
+		flushHelper(node.mLeft);
+		flushHelper(node.mRight);
+		update(node);
+	}
+
+	private void applyShift(Node node, int amount) {
+		if (node == null || amount == 0) {
+			return;
+		}
+
+		node.mOffset += amount;
+		node.mEnd += amount;
+		node.mMaxEnd += amount;
+		node.mSegment.setOffset(node.mOffset);
+
+		if (node.mLeft != null || node.mRight != null) {
+			node.mPendingShift += amount;
+			node.mHasPending = true;
+		}
+	}
+
+	private void pushDown(Node node) {
+		if (node.mPendingShift != 0) {
+			applyShift(node.mLeft, node.mPendingShift);
+			applyShift(node.mRight, node.mPendingShift);
+			node.mPendingShift = 0;
+		}
+	}
+
+	private void pushDownPath(Node node) {
+		if (node.mParent != null) {
+			pushDownPath(node.mParent);
+		}
+
+		pushDown(node);
+	}
+
+	private void update(Node node) {
+		int maxEnd = node.mEnd;
+		boolean hasPending = node.mPendingShift != 0;
+
+		if (node.mLeft != null) {
+			maxEnd = Math.max(maxEnd, node.mLeft.mMaxEnd);
+			hasPending |= node.mLeft.mHasPending;
+		}
+
+		if (node.mRight != null) {
+			maxEnd = Math.max(maxEnd, node.mRight.mMaxEnd);
+			hasPending |= node.mRight.mHasPending;
+		}
+
+		node.mMaxEnd = maxEnd;
+		node.mHasPending = hasPending;
+	}
+
+	private void updateToRoot(Node node) {
+		for (Node cur = node; cur != null; cur = cur.mParent) {
+			update(cur);
+		}
+	}
+
+	// Both the node and its parent must not have any pending shifts.
+	private void rotateUp(Node node) {
+		Node parent = node.mParent;
+		Node grandParent = parent.mParent;
+
+		if (parent.mLeft == node) {
+			parent.mLeft = node.mRight;
+			if (node.mRight != null) {
+				node.mRight.mParent = parent;
+			}
+			node.mRight = parent;
+		} else {
+			parent.mRight = node.mLeft;
+			if (node.mLeft != null) {
+				node.mLeft.mParent = parent;
+			}
+			node.mLeft = parent;
+		}
+
+		parent.mParent = node;
+		node.mParent = grandParent;
+
+		if (grandParent == null) {
+			mRoot = node;
+		} else if (grandParent.mLeft == parent) {
+			grandParent.mLeft = node;
+		} else {
+			grandParent.mRight = node;
+		}
+
+		update(parent);
+		update(node);
+	}
+
+}
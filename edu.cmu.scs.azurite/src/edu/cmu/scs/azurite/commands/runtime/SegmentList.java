@@ -0,0 +1,390 @@
+package edu.cmu.scs.azurite.commands.runtime;
+
+import java.util.AbstractList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * An ordered list of segments, which can shift the offsets of all the segments
+ * after a given position in O(log n) time.
+ *
+ * Internally, this is a treap keyed by the position within the list. A shift
+ * is recorded as a tag on the subtrees, and the actual offset of a segment is
+ * obtained by adding up the tags on the path to the root. The segments stored
+ * in this list notify any offset / length changes, so that the subtree
+ * maximums used by {@link #indexOfFirstAffected(int, int)} are kept
+ * up-to-date.
+ */
+class SegmentList extends AbstractList<Segment> {
+
+	static class Node {
+		private Segment mSegment;
+		private SegmentList mList;
+
+		private int mPriority;
+		private int mSize;
+
+		// Shift amount applied to this whole subtree, including this node.
+		private int mShift;
+
+		// Maximum offset / end offset within this subtree,
+		// including the shift of this node but not the shifts of the ancestors.
+		private int mMaxOffset;
+		private int mMaxEndOffset;
+
+		private Node mLeft;
+		private Node mRight;
+		private Node mParent;
+	}
+
+	private Node mRoot;
+
+	private Random mRandom;
+
+	public SegmentList() {
+		mRoot = null;
+
+		// Use a fixed seed, so that the tree shape is reproducible.
+		mRandom = new Random(0);
+	}
+
+	@Override
+	public int size() {
+		return size(mRoot);
+	}
+
+	@Override
+	public Segment get(int index) {
+		return getNode(index).mSegment;
+	}
+
+	@Override
+	public void add(int index, Segment segment) {
+		if (index < 0 || index > size()) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		if (segment == null) {
+			throw new IllegalArgumentException();
+		}
+
+		if (segment.getNode() != null) {
+			throw new IllegalStateException("The segment is already in a segment list.");
+		}
+
+		// Take the absolute offset before attaching the segment.
+		int offset = segment.getOffset();
+
+		Node node = new Node();
+		node.mSegment = segment;
+		node.mList = this;
+		node.mPriority = mRandom.nextInt();
+		node.mSize = 1;
+
+		if (mRoot == null) {
+			mRoot = node;
+		} else {
+			// Find the place as a leaf, clearing all the shifts along the path.
+			Node cur = mRoot;
+			int remaining = index;
+			while (true) {
+				pushDown(cur);
+				if (remaining <= size(cur.mLeft)) {
+					if (cur.mLeft == null) {
+						cur.mLeft = node;
+						break;
+					}
+					cur = cur.mLeft;
+				} else {
+					remaining -= size(cur.mLeft) + 1;
+					if (cur.mRight == null) {
+						cur.mRight = node;
+						break;
+					}
+					cur = cur.mRight;
+				}
+			}
+			node.mParent = cur;
+		}
+
+		segment.setNode(node);
+		segment.setRawOffset(offset);
+		update(node);
+
+		// Restore the heap property.
+		while (node.mParent != null && node.mParent.mPriority < node.mPriority) {
+			rotateUp(node);
+		}
+
+		updateToRoot(node);
+		++modCount;
+	}
+
+	@Override
+	public Iterator<Segment> iterator() {
+		return new Iterator<Segment>() {
+
+			private Node mNext = leftMost(mRoot);
+			private int mExpectedModCount = modCount;
+
+			@Override
+			public boolean hasNext() {
+				return mNext != null;
+			}
+
+			@Override
+			public Segment next() {
+				if (mExpectedModCount != modCount) {
+					throw new ConcurrentModificationException();
+				}
+
+				if (mNext == null) {
+					throw new NoSuchElementException();
+				}
+
+				Segment result = mNext.mSegment;
+				mNext = successor(mNext);
+				return result;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+		};
+	}
+
+	/**
+	 * Shifts the offsets of all the segments located at or after the given index.
+	 * @param fromIndex index of the first segment to be shifted.
+	 * @param amount the shift amount, which can be negative.
+	 */
+	public void shiftFrom(int fromIndex, int amount) {
+		if (amount == 0 || fromIndex >= size()) {
+			return;
+		}
+
+		Node cur = mRoot;
+		Node last = null;
+		int remaining = fromIndex;
+		while (cur != null) {
+			last = cur;
+			if (remaining <= size(cur.mLeft)) {
+				// This node and the whole right subtree are shifted.
+				cur.mSegment.setRawOffset(cur.mSegment.getRawOffset() + amount);
+				addShift(cur.mRight, amount);
+				cur = cur.mLeft;
+			} else {
+				remaining -= size(cur.mLeft) + 1;
+				cur = cur.mRight;
+			}
+		}
+
+		updateToRoot(last);
+	}
+
+	/**
+	 * Finds the first segment at or after the given index, which could be
+	 * affected by a replacement starting at the given offset. That is, a
+	 * segment which ends after the startOffset, or starts at or after the
+	 * startOffset.
+	 * @param fromIndex index from which the search starts.
+	 * @param startOffset the start offset of the replaced region.
+	 * @return index of the found segment, or the size of this list if there is no such segment.
+	 */
+	public int indexOfFirstAffected(int fromIndex, int startOffset) {
+		return indexOfFirstAffected(mRoot, 0, fromIndex, startOffset);
+	}
+
+	private int indexOfFirstAffected(Node node, int ancestorShift,
+			int fromIndex, int startOffset) {
+		if (node == null || fromIndex >= node.mSize) {
+			return node == null ? 0 : node.mSize;
+		}
+
+		if (node.mMaxEndOffset + ancestorShift <= startOffset
+				&& node.mMaxOffset + ancestorShift < startOffset) {
+			return node.mSize;
+		}
+
+		int shift = ancestorShift + node.mShift;
+		int leftSize = size(node.mLeft);
+
+		if (fromIndex < leftSize) {
+			int result = indexOfFirstAffected(node.mLeft, shift, fromIndex, startOffset);
+			if (result < leftSize) {
+				return result;
+			}
+		}
+
+		if (fromIndex <= leftSize) {
+			int offset = node.mSegment.getRawOffset() + shift;
+			int end = offset + node.mSegment.getLength();
+			if (end > startOffset || offset >= startOffset) {
+				return leftSize;
+			}
+		}
+
+		return leftSize + 1 + indexOfFirstAffected(node.mRight, shift,
+				Math.max(0, fromIndex - leftSize - 1), startOffset);
+	}
+
+	/**
+	 * @return the sum of the shifts applied to the given node.
+	 */
+	static int getShift(Node node) {
+		int shift = 0;
+		for (Node cur = node; cur != null; cur = cur.mParent) {
+			shift += cur.mShift;
+		}
+
+		return shift;
+	}
+
+	/**
+	 * Should be called whenever the offset or the length of the segment
+	 * stored in the given node is changed.
+	 */
+	static void segmentChanged(Node node) {
+		node.mList.updateToRoot(node);
+	}
+
+	private Node getNode(int index) {
+		if (index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		Node cur = mRoot;
+		int remaining = index;
+		while (true) {
+			int leftSize = size(cur.mLeft);
+			if (remaining < leftSize) {
+				cur = cur.mLeft;
+			} else if (remaining == leftSize) {
+				return cur;
+			} else {
+				remaining -= leftSize + 1;
+				cur = cur.mRight;
+			}
+		}
+	}
+
+	private static int size(Node node) {
+		return node == null ? 0 : node.mSize;
+	}
+
+	private static Node leftMost(Node node) {
+		if (node == null) {
+			return null;
+		}
+
+		Node cur = node;
+		while (cur.mLeft != null) {
+			cur = cur.mLeft;
+		}
+
+		return cur;
+	}
+
+	private static Node successor(Node node) {
+		if (node.mRight != null) {
+			return leftMost(node.mRight);
+		}
+
+		Node cur = node;
+		while (cur.mParent != null && cur.mParent.mRight == cur) {
+			cur = cur.mParent;
+		}
+
+		return cur.mParent;
+	}
+
+	private static void addShift(Node node, int amount) {
+		if (node == null) {
+			return;
+		}
+
+		node.mShift += amount;
+		node.mMaxOffset += amount;
+		node.mMaxEndOffset += amount;
+	}
+
+	private static void pushDown(Node node) {
+		if (node.mShift != 0) {
+			node.mSegment.setRawOffset(node.mSegment.getRawOffset() + node.mShift);
+			addShift(node.mLeft, node.mShift);
+			addShift(node.mRight, node.mShift);
+			node.mShift = 0;
+		}
+	}
+
+	private static void update(Node node) {
+		int offset = node.mSegment.getRawOffset();
+		int maxOffset = offset;
+		int maxEndOffset = offset + node.mSegment.getLength();
+		int size = 1;
+
+		if (node.mLeft != null) {
+			maxOffset = Math.max(maxOffset, node.mLeft.mMaxOffset);
+			maxEndOffset = Math.max(maxEndOffset, node.mLeft.mMaxEndOffset);
+			size += node.mLeft.mSize;
+		}
+
+		if (node.mRight != null) {
+			maxOffset = Math.max(maxOffset, node.mRight.mMaxOffset);
+			maxEndOffset = Math.max(maxEndOffset, node.mRight.mMaxEndOffset);
+			size += node.mRight.mSize;
+		}
+
+		node.mMaxOffset = maxOffset + node.mShift;
+		node.mMaxEndOffset = maxEndOffset + node.mShift;
+		node.mSize = size;
+	}
+
+	private void updateToRoot(Node node) {
+		for (Node cur = node; cur != null; cur = cur.mParent) {
+			update(cur);
+		}
+	}
+
+	private void rotateUp(Node node) {
+		Node parent = node.mParent;
+		Node grandParent = parent.mParent;
+
+		// Both the node and its parent must not have any shifts.
+		pushDown(parent);
+		pushDown(node);
+
+		if (parent.mLeft == node) {
+			parent.mLeft = node.mRight;
+			if (node.mRight != null) {
+				node.mRight.mParent = parent;
+			}
+			node.mRight = parent;
+		} else {
+			parent.mRight = node.mLeft;
+			if (node.mLeft != null) {
+				node.mLeft.mParent = parent;
+			}
+			node.mLeft = parent;
+		}
+
+		parent.mParent = node;
+		node.mParent = grandParent;
+
+		if (grandParent == null) {
+			mRoot = node;
+		} else if (grandParent.mLeft == parent) {
+			grandParent.mLeft = node;
+		} else {
+			grandParent.mRight = node;
+		}
+
+		update(parent);
+		update(node);
+	}
+
+}
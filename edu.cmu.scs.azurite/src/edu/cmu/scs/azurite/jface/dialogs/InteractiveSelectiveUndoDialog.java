@@ -13,6 +13,10 @@ import org.eclipse.compare.CompareConfiguration;
 import org.eclipse.compare.CompareUI;
 import org.eclipse.compare.CompareViewerSwitchingPane;
 import org.eclipse.compare.contentmergeviewer.TextMergeViewer;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.jdt.ui.text.IJavaPartitions;
 import org.eclipse.jface.action.Action;
 import org.eclipse.jface.action.IMenuListener;
@@ -105,6 +109,11 @@ public class InteractiveSelectiveUndoDialog extends TitleAreaDialog implements R
 	private static final String INFORMATION_SELECT_CHUNK = "Select a chunk from the list on the top to see the preview.";
 	
 	private static final String GENERATING_PREVIEW_ERROR_MSG = "Error occurred while generating the preview.";
+	private static final String GENERATING_PREVIEW_MSG = "Generating the preview...";
+	private static final String ANALYZING_CHUNK_MSG = "Calculating the alternatives to resolve the conflict...";
+	
+	private static final String ANALYSIS_JOB_NAME = "Analyzing Selective Undo Chunks";
+	private static final String PREVIEW_JOB_NAME = "Generating Selective Undo Preview";
 	
 	private static InteractiveSelectiveUndoDialog instance = null;
 	public static InteractiveSelectiveUndoDialog getInstance() {
@@ -400,7 +409,7 @@ public class InteractiveSelectiveUndoDialog extends TitleAreaDialog implements R
 			for (ChunkLevelElement chunkElem : chunkElems) {
 				Chunk chunk = chunkElem.getChunk();
 				
-				if (chunk.hasConflictOutsideThisChunk()) {
+				if (chunkElem.hasConflict()) {
 					chosenAlternatives.put(chunk, chunkElem.getChosenAlternative());
 				}
 			}
@@ -424,7 +433,9 @@ public class InteractiveSelectiveUndoDialog extends TitleAreaDialog implements R
 	
 	private class ChunkLevelElement {
 		private Chunk mChunk;
+		private boolean mConflict;
 		
+		// Calculated later by the analysis job, when there is a conflict.
 		private List<UndoAlternative> mAlternatives;
 		private UndoAlternative mChosenAlternative;
 		
@@ -436,29 +447,25 @@ public class InteractiveSelectiveUndoDialog extends TitleAreaDialog implements R
 			}
 			
 			mChunk = chunk;
+			mConflict = chunk.hasConflictOutsideThisChunk();
 			
 			mParent = parent;
-			
-			calculateUndoAlternatives();
 		}
 		
-		private void calculateUndoAlternatives() {
-			if (getChunk().hasConflictOutsideThisChunk()) {
-				try {
-					IDocument doc = findDocumentForChunk(getChunk());
-					Chunk expandedChunk = getChunk().getExpandedChunkWithDepth(SelectiveUndoEngine.MAX_EXPANSION_DEPTH);
-					int initialOffset = expandedChunk.getStartOffset();
-					String initialContent = doc.get(initialOffset, expandedChunk.getChunkLength());
-					
-					mAlternatives = SelectiveUndoEngine.getInstance().doSelectiveUndoChunkWithConflicts(getChunk(), initialContent);
-					if (mAlternatives.size() == 1) {
-						mChosenAlternative = mAlternatives.get(0);
-					} else {
-						mChosenAlternative = null;
-					}
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
+		/**
+		 * Calculates the undo alternatives from the given snapshot of the document.
+		 * This does not change this element, so it can be called from a job.
+		 */
+		private List<UndoAlternative> calculateUndoAlternatives(String documentContent) {
+			try {
+				Chunk expandedChunk = getChunk().getExpandedChunkWithDepth(SelectiveUndoEngine.MAX_EXPANSION_DEPTH);
+				String initialContent = documentContent.substring(
+						expandedChunk.getStartOffset(), expandedChunk.getEndOffset());
+				
+				return SelectiveUndoEngine.getInstance().doSelectiveUndoChunkWithConflicts(getChunk(), initialContent);
+			} catch (Exception e) {
+				e.printStackTrace();
+				return Collections.emptyList();
 			}
 		}
 
@@ -470,14 +477,35 @@ public class InteractiveSelectiveUndoDialog extends TitleAreaDialog implements R
 			return mParent;
 		}
 		
+		public boolean hasConflict() {
+			return mConflict;
+		}
+		
+		public boolean isAnalyzed() {
+			return !mConflict || mAlternatives != null;
+		}
+		
 		public boolean hasUnresolvedConflict() {
-			return mChunk.hasConflictOutsideThisChunk() && mChosenAlternative == null;
+			return mConflict && mChosenAlternative == null;
+		}
+		
+		public boolean hasMultipleAlternatives() {
+			return mAlternatives != null && mAlternatives.size() > 1;
 		}
 		
 		public List<UndoAlternative> getUndoAlternatives() {
 			return mAlternatives;
 		}
 		
+		public void setUndoAlternatives(List<UndoAlternative> alternatives) {
+			mAlternatives = alternatives;
+			if (mAlternatives.size() == 1) {
+				mChosenAlternative = mAlternatives.get(0);
+			} else {
+				mChosenAlternative = null;
+			}
+		}
+		
 		public UndoAlternative getChosenAlternative() {
 			return mChosenAlternative;
 		}
@@ -572,7 +600,7 @@ public class InteractiveSelectiveUndoDialog extends TitleAreaDialog implements R
 				ImageDescriptor errorImage = PlatformUI.getWorkbench().getSharedImages().getImageDescriptor(ISharedImages.IMG_OBJS_ERROR_TSK);
 				ImageDescriptor resolvedImage = Activator.getImageDescriptor("icons/tick.png");
 				return chunkElem.hasUnresolvedConflict() ? getImage(errorImage)
-						: chunkElem.getChunk().hasConflictOutsideThisChunk() && chunkElem.getUndoAlternatives().size() > 1 ? getImage(resolvedImage)
+						: chunkElem.hasConflict() && chunkElem.hasMultipleAlternatives() ? getImage(resolvedImage)
 						: null;
 			} else {
 				return null;
@@ -591,7 +619,9 @@ public class InteractiveSelectiveUndoDialog extends TitleAreaDialog implements R
 				
 				String label = getLabelForChunk(chunk, doc);
 				
-				if (chunkElem.getChunk().hasConflictOutsideThisChunk() && chunkElem.getUndoAlternatives().size() == 1) {
+				if (!chunkElem.isAnalyzed()) {
+					label += " [analyzing...]";
+				} else if (chunkElem.hasConflict() && chunkElem.getUndoAlternatives().size() == 1) {
 					label += " [no effect]";
 				}
 				
@@ -621,6 +651,224 @@ public class InteractiveSelectiveUndoDialog extends TitleAreaDialog implements R
 		
 	}
 	
+	/**
+	 * Determines the chunks of the selected operations, and then calculates
+	 * the undo alternatives of the conflicting chunks one by one, away from
+	 * the UI thread. The chunks are shown first, and the alternatives are
+	 * filled in as they are calculated, starting from the focused element.
+	 * 
+	 * The segments are only read while holding the segment lock, one file or
+	 * one chunk at a time, and the analysis starts over when the history has
+	 * changed in the meantime.
+	 */
+	private class ChunkAnalysisJob extends Job {
+		
+		private Map<FileKey, List<RuntimeDC>> mFileDCMap;
+		private Map<FileKey, String> mContents;
+		private int mHistoryVersion;
+		
+		private List<ChunkLevelElement> mPendingChunkElems;
+		
+		public ChunkAnalysisJob(Map<FileKey, List<RuntimeDC>> fileDCMap, Map<FileKey, String> contents,
+				int historyVersion) {
+			super(ANALYSIS_JOB_NAME);
+			
+			mFileDCMap = fileDCMap;
+			mContents = contents;
+			mHistoryVersion = historyVersion;
+			
+			mPendingChunkElems = new ArrayList<ChunkLevelElement>();
+			
+			setSystem(true);
+			setPriority(Job.LONG);
+		}
+
+		@Override
+		protected IStatus run(IProgressMonitor monitor) {
+			Object segmentLock = RuntimeHistoryManager.getInstance().getSegmentLock();
+			List<TopLevelElement> topList = new ArrayList<TopLevelElement>();
+			
+			for (FileKey fileKey : mFileDCMap.keySet()) {
+				if (monitor.isCanceled()) {
+					return Status.CANCEL_STATUS;
+				}
+				
+				synchronized (segmentLock) {
+					if (RuntimeDC.getHistoryVersion() != mHistoryVersion) {
+						return restartAnalysis(this);
+					}
+					
+					List<Chunk> chunksForThisFile = SelectiveUndoEngine.getInstance()
+							.determineChunksWithRuntimeDCs(mFileDCMap.get(fileKey));
+					
+					TopLevelElement topElem = new TopLevelElement(fileKey, chunksForThisFile);
+					topList.add(topElem);
+					
+					for (ChunkLevelElement chunkElem : topElem.getChunkElements()) {
+						if (!chunkElem.isAnalyzed()) {
+							mPendingChunkElems.add(chunkElem);
+						}
+					}
+				}
+			}
+			
+			final TopLevelElement[] newInput = topList.toArray(new TopLevelElement[topList.size()]);
+			Display.getDefault().asyncExec(new Runnable() {
+				@Override
+				public void run() {
+					if (isCurrent()) {
+						setChunksTreeViewerInput(newInput);
+					}
+				}
+			});
+			
+			while (true) {
+				if (monitor.isCanceled()) {
+					return Status.CANCEL_STATUS;
+				}
+				
+				final ChunkLevelElement chunkElem = takeNextPendingChunkElem();
+				if (chunkElem == null) {
+					break;
+				}
+				
+				String content = mContents.get(chunkElem.getParent().getFileKey());
+				final List<UndoAlternative> alternatives;
+				synchronized (segmentLock) {
+					if (RuntimeDC.getHistoryVersion() != mHistoryVersion) {
+						return restartAnalysis(this);
+					}
+					
+					alternatives = chunkElem.calculateUndoAlternatives(content);
+				}
+				
+				Display.getDefault().asyncExec(new Runnable() {
+					@Override
+					public void run() {
+						if (isCurrent()) {
+							chunkAnalyzed(chunkElem, alternatives);
+						}
+					}
+				});
+			}
+			
+			return Status.OK_STATUS;
+		}
+		
+		private boolean isCurrent() {
+			return mAnalysisJob == this && !mChunksTreeViewer.getControl().isDisposed();
+		}
+		
+		// The focused chunk, or the first chunk of the focused file goes first.
+		private ChunkLevelElement takeNextPendingChunkElem() {
+			if (mPendingChunkElems.isEmpty()) {
+				return null;
+			}
+			
+			Object focused = mFocusedElement;
+			for (int i = 0; i < mPendingChunkElems.size(); ++i) {
+				ChunkLevelElement chunkElem = mPendingChunkElems.get(i);
+				if (chunkElem == focused || chunkElem.getParent() == focused) {
+					return mPendingChunkElems.remove(i);
+				}
+			}
+			
+			return mPendingChunkElems.remove(0);
+		}
+		
+	}
+	
+	/**
+	 * Calculates the preview of the focused element away from the UI thread.
+	 * This job has a higher priority than the analysis job.
+	 * 
+	 * Like the analysis job, the segments are only read while holding the
+	 * segment lock, and the analysis starts over when the history has changed.
+	 */
+	private class PreviewJob extends Job {
+		
+		private List<Chunk> mChunks;
+		private Map<Chunk, UndoAlternative> mAlternativeChoices;
+		private IDocument mDocument;
+		private String mContent;
+		private String mTitle;
+		private int mHistoryVersion;
+		
+		/**
+		 * @param alternativeChoices
+		 *            the chosen alternatives when previewing a whole file, or
+		 *            null when previewing a single chunk.
+		 */
+		public PreviewJob(List<Chunk> chunks, Map<Chunk, UndoAlternative> alternativeChoices,
+				IDocument document, String title, int historyVersion) {
+			super(PREVIEW_JOB_NAME);
+			
+			mChunks = chunks;
+			mAlternativeChoices = alternativeChoices;
+			mDocument = document;
+			mContent = document.get();
+			mTitle = title;
+			mHistoryVersion = historyVersion;
+			
+			setSystem(true);
+			setPriority(Job.INTERACTIVE);
+		}
+
+		@Override
+		protected IStatus run(IProgressMonitor monitor) {
+			String undoResult = null;
+			int start = 0;
+			int length = mContent.length();
+			
+			synchronized (RuntimeHistoryManager.getInstance().getSegmentLock()) {
+				if (RuntimeDC.getHistoryVersion() != mHistoryVersion) {
+					return restartAnalysis(this);
+				}
+				
+				try {
+					if (mAlternativeChoices == null) {
+						Chunk chunk = mChunks.get(0);
+						start = chunk.getStartOffset();
+						length = chunk.getChunkLength();
+						
+						// Calculate the preview using selective undo engine
+						undoResult = SelectiveUndoEngine.getInstance()
+								.doSelectiveUndoChunkWithoutConflicts(chunk, mContent.substring(start, start + length));
+					} else {
+						// Copy of the source.
+						IDocument docResult = new Document(mContent);
+						SelectiveUndoEngine.getInstance()
+								.doSelectiveUndoWithChunks(mChunks, docResult, mAlternativeChoices);
+						undoResult = docResult.get();
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+			
+			if (monitor.isCanceled()) {
+				return Status.CANCEL_STATUS;
+			}
+			
+			final String finalUndoResult = undoResult;
+			final int finalStart = start;
+			final int finalLength = length;
+			Display.getDefault().asyncExec(new Runnable() {
+				@Override
+				public void run() {
+					if (mPreviewJob != PreviewJob.this || mPreviewPane.isDisposed()) {
+						return;
+					}
+					
+					previewCalculated(mDocument, mTitle, finalUndoResult, finalStart, finalLength);
+				}
+			});
+			
+			return Status.OK_STATUS;
+		}
+		
+	}
+	
 	// Menu
 	private MenuManager mLeftSourceViewerMenuMgr;
 	// ----------------------------------------
@@ -654,6 +902,21 @@ public class InteractiveSelectiveUndoDialog extends TitleAreaDialog implements R
 	// For Information Panel ------------------
 	private Label mInformationLabel;
 	// ----------------------------------------
+	
+	// Background jobs ------------------------
+	private ChunkAnalysisJob mAnalysisJob;
+	private PreviewJob mPreviewJob;
+	
+	// The element selected in the tree, whose alternatives are calculated first.
+	private volatile Object mFocusedElement;
+	
+	// The previous input of the tree, used for restoring the chosen alternatives.
+	private TopLevelElement[] mPreviousInput;
+	// False while the chunks of a new selection are being determined.
+	private boolean mInputUpToDate;
+	// The history version with which the chunks are being determined.
+	private int mInputHistoryVersion;
+	// ----------------------------------------
 
 	public InteractiveSelectiveUndoDialog(Shell parent) {
 		super(parent);
@@ -727,6 +990,17 @@ public class InteractiveSelectiveUndoDialog extends TitleAreaDialog implements R
 		// Deregister myself from the timeline.
 		TimelineViewPart.getInstance().removeRectSelectionListener(this);
 		
+		// Stop the background jobs.
+		if (mAnalysisJob != null) {
+			mAnalysisJob.cancel();
+			mAnalysisJob = null;
+		}
+		
+		if (mPreviewJob != null) {
+			mPreviewJob.cancel();
+			mPreviewJob = null;
+		}
+		
 		instance = null;
 	}
 
@@ -833,7 +1107,8 @@ public class InteractiveSelectiveUndoDialog extends TitleAreaDialog implements R
 		// This means that the top-level elements will automatically be expanded.
 		mChunksTreeViewer.setAutoExpandLevel(2);
 		
-		// Set the initial input
+		// Set the initial input, and start analyzing the selection.
+		mChunksTreeViewer.setInput(new TopLevelElement[0]);
 		setChunksTreeViewerInput();
 		
 		// Set the content of the ViewerPane to the tree-control.
@@ -886,6 +1161,7 @@ public class InteractiveSelectiveUndoDialog extends TitleAreaDialog implements R
 			@Override
 			public void selectionChanged(SelectionChangedEvent event) {
 				IStructuredSelection sel = (IStructuredSelection) event.getSelection();
+				mFocusedElement = sel.getFirstElement();
 				updateBottomPanel(sel);
 			}
 		};
@@ -905,37 +1181,85 @@ public class InteractiveSelectiveUndoDialog extends TitleAreaDialog implements R
 		
 		List<OperationId> ids = timeline.getRectSelection();
 		
+		// Cancel the previous analysis, and start over. The segments are
+		// recalculated below after the job lets go of the segment lock.
+		if (mAnalysisJob != null) {
+			mAnalysisJob.cancel();
+		}
+		
 		Map<FileKey, List<RuntimeDC>> fileDCMap = RuntimeHistoryManager
 				.getInstance().extractFileDCMapFromOperationIds(ids);
+		mInputHistoryVersion = RuntimeDC.getHistoryVersion();
 		
-		List<TopLevelElement> topList = new ArrayList<TopLevelElement>();
-		
+		// Take the snapshots of the documents for the analysis job.
+		Map<FileKey, String> contents = new HashMap<FileKey, String>();
 		for (FileKey fileKey : fileDCMap.keySet()) {
-			List<Chunk> chunksForThisFile = SelectiveUndoEngine.getInstance()
-					.determineChunksWithRuntimeDCs(fileDCMap.get(fileKey));
-			
-			TopLevelElement topElem = new TopLevelElement(fileKey, chunksForThisFile);
-			topList.add(topElem);
+			IDocument doc = edu.cmu.scs.azurite.util.Utilities.findDocumentForKey(fileKey);
+			if (doc != null) {
+				contents.put(fileKey, doc.get());
+			}
 		}
 		
+		mAnalysisJob = new ChunkAnalysisJob(fileDCMap, contents, mInputHistoryVersion);
+		mAnalysisJob.schedule();
+		
+		mInputUpToDate = false;
+		updateOKButtonEnabled();
+	}
+	
+	/**
+	 * Called from a background job which found out that the history has
+	 * changed since the chunks were determined. The chunks are determined
+	 * again, unless the job has already been replaced.
+	 */
+	private IStatus restartAnalysis(final Job job) {
+		Display.getDefault().asyncExec(new Runnable() {
+			@Override
+			public void run() {
+				if ((job == mAnalysisJob || job == mPreviewJob)
+						&& !mChunksTreeViewer.getControl().isDisposed()) {
+					setChunksTreeViewerInput();
+				}
+			}
+		});
+		
+		return Status.CANCEL_STATUS;
+	}
+	
+	private void setChunksTreeViewerInput(TopLevelElement[] newInput) {
 		// Remember the old input / selection before setting a new one.
 		TopLevelElement[] oldInput = (TopLevelElement[]) mChunksTreeViewer.getInput();
 		Object oldSelection = ((IStructuredSelection) mChunksTreeViewer.getSelection()).getFirstElement();
-
-		TopLevelElement[] newInput = topList.toArray(new TopLevelElement[topList.size()]);
 		
-		// Restore the chosen alternatives.
-		if (oldInput != null) {
-			restoreChosenAlternatives(oldInput, newInput);
-		}
+		// The chosen alternatives are restored as the alternatives are calculated.
+		mPreviousInput = oldInput;
 		
 		mChunksTreeViewer.setInput(newInput);
+		mInputUpToDate = true;
 		
 		restoreSelections(oldSelection, newInput);
 		
 		updateOKButtonEnabled();
+		updateBottomPanel();
 	}
-
+	
+	private void chunkAnalyzed(ChunkLevelElement chunkElem, List<UndoAlternative> alternatives) {
+		chunkElem.setUndoAlternatives(alternatives);
+		restoreChosenAlternative(chunkElem);
+		
+		mChunksTreeViewer.update(chunkElem, null);
+		mChunksTreeViewer.update(chunkElem.getParent(), null);
+		
+		updateOKButtonEnabled();
+		
+		// Update the bottom panel, if it is showing this chunk.
+		IStructuredSelection sel = (IStructuredSelection) mChunksTreeViewer.getSelection();
+		if (sel.size() == 1 && (sel.getFirstElement() == chunkElem
+				|| sel.getFirstElement() == chunkElem.getParent())) {
+			updateBottomPanel(sel);
+		}
+	}
+	
 	private void restoreSelections(Object oldSelection, TopLevelElement[] newInput) {
 		if (oldSelection instanceof TopLevelElement) {
 			TopLevelElement oldTopElem = (TopLevelElement) oldSelection;
@@ -974,55 +1298,34 @@ public class InteractiveSelectiveUndoDialog extends TitleAreaDialog implements R
 		return false;
 	}
 
-	private void restoreChosenAlternatives(TopLevelElement[] oldInput,
-			TopLevelElement[] newInput) {
-		for (TopLevelElement oldTopElem : oldInput) {
-			TopLevelElement matchingTopElem = null;
-			for (TopLevelElement newTopElem : newInput) {
-				if (oldTopElem.getFileKey().equals(newTopElem.getFileKey())) {
-					matchingTopElem = newTopElem;
-					break;
-				}
-			}
-			
-			if (matchingTopElem == null) {
-				continue;
-			}
-			
-			restoreChosenAlternatives(oldTopElem, matchingTopElem);
+	private void restoreChosenAlternative(ChunkLevelElement newChunkElem) {
+		if (mPreviousInput == null) {
+			return;
 		}
-	}
-
-	private void restoreChosenAlternatives(TopLevelElement oldTopElem,
-			TopLevelElement matchingTopElem) {
-		for (ChunkLevelElement oldChunkElem : oldTopElem.getChunkElements()) {
-			if (oldChunkElem.getChosenAlternative() == null) {
+		
+		for (TopLevelElement oldTopElem : mPreviousInput) {
+			if (!oldTopElem.getFileKey().equals(newChunkElem.getParent().getFileKey())) {
 				continue;
 			}
 			
-			boolean found = false;
-			
-			for (ChunkLevelElement newChunkElem : matchingTopElem.getChunkElements()) {
+			for (ChunkLevelElement oldChunkElem : oldTopElem.getChunkElements()) {
+				if (oldChunkElem.getChosenAlternative() == null || !oldChunkElem.isAnalyzed()) {
+					continue;
+				}
+				
 				if (areSameChunks(oldChunkElem.getChunk(), newChunkElem.getChunk()) &&
 						oldChunkElem.getUndoAlternatives().size() == newChunkElem.getUndoAlternatives().size()) {
 					int oldAlternativeIndex = oldChunkElem.getUndoAlternatives().indexOf(oldChunkElem.getChosenAlternative());
 					newChunkElem.setChosenAlternative(newChunkElem.getUndoAlternatives().get(oldAlternativeIndex));
-					
-					found = true;
-					break;
+					return;
 				}
 			}
-			
-			if (found) {
-				continue;
-			}
 		}
 	}
 
 	@Override
 	public void rectSelectionChanged() {
 		setChunksTreeViewerInput();
-		updateBottomPanel();
 	}
 	
 	private void createBottomArea(Composite parent) {
@@ -1152,19 +1455,39 @@ public class InteractiveSelectiveUndoDialog extends TitleAreaDialog implements R
 			throw new IllegalArgumentException();
 		}
 		
+		IDocument doc = findDocumentForChunk(chunk);
+		schedulePreview(Collections.singletonList(chunk), null, doc, getLabelForChunk(chunk, doc));
+	}
+	
+	private void schedulePreview(List<Chunk> chunks, Map<Chunk, UndoAlternative> alternativeChoices,
+			IDocument doc, String title) {
+		if (mPreviewJob != null) {
+			mPreviewJob.cancel();
+			mPreviewJob = null;
+		}
+		
+		if (doc == null) {
+			showBottomPanel(false, GENERATING_PREVIEW_ERROR_MSG);
+			return;
+		}
+		
+		showBottomPanel(false, GENERATING_PREVIEW_MSG);
+		
+		mPreviewJob = new PreviewJob(chunks, alternativeChoices, doc, title, mInputHistoryVersion);
+		mPreviewJob.schedule();
+	}
+	
+	private void previewCalculated(IDocument doc, String title, String undoResult, int start, int length) {
+		if (undoResult == null) {
+			// Display an error message on the screen.
+			showBottomPanel(false, GENERATING_PREVIEW_ERROR_MSG);
+			return;
+		}
+		
 		try {
-			IDocument doc = findDocumentForChunk(chunk);
-			
-			// Original source
-			String originalContents = doc.get(chunk.getStartOffset(), chunk.getChunkLength());
-			
-			// Calculate the preview using selective undo engine
-			String undoResult = SelectiveUndoEngine.getInstance()
-					.doSelectiveUndoChunkWithoutConflicts(chunk, originalContents);
-			
-			mCompareTitle = getLabelForChunk(chunk, doc);
+			mCompareTitle = title;
 			
-			setPreviewInput(doc, undoResult, chunk.getStartOffset(), chunk.getChunkLength());
+			setPreviewInput(doc, undoResult, start, length);
 			
 			// Bring the preview panel to top.
 			showBottomPanel(false, null);
@@ -1235,32 +1558,10 @@ public class InteractiveSelectiveUndoDialog extends TitleAreaDialog implements R
 			throw new IllegalArgumentException();
 		}
 		
-		try {
-			FileKey fileKey = topElem.getFileKey();
-			IDocument doc = edu.cmu.scs.azurite.util.Utilities.findDocumentForKey(fileKey);
-			
-			// Original source
-			String originalContents = doc.get();
-			
-			// Copy of the source.
-			IDocument docResult = new Document(originalContents);
-			SelectiveUndoEngine.getInstance()
-					.doSelectiveUndoWithChunks(topElem.getChunks(), docResult, topElem.getAlternativeChoiceMap());
-			String undoResult = docResult.get();
-			
-			mCompareTitle = fileKey.getFileNameOnly();
-			
-			setPreviewInput(doc, undoResult, 0, doc.get().length());
-			
-			// Bring the preview panel to top.
-			showBottomPanel(false, null);
-		} catch (Exception e) {
-			e.printStackTrace();
-			
-			// Display an error message on the screen.
-			String msg = GENERATING_PREVIEW_ERROR_MSG;
-			showBottomPanel(false, msg);
-		}
+		FileKey fileKey = topElem.getFileKey();
+		IDocument doc = edu.cmu.scs.azurite.util.Utilities.findDocumentForKey(fileKey);
+		schedulePreview(topElem.getChunks(), topElem.getAlternativeChoiceMap(),
+				doc, fileKey.getFileNameOnly());
 	}
 	
 	public String getLabelForChunk(Chunk chunk, IDocument doc) {
@@ -1331,7 +1632,7 @@ public class InteractiveSelectiveUndoDialog extends TitleAreaDialog implements R
 		try {
 			okButton = getButton(OK);
 			
-			boolean enabled = true;
+			boolean enabled = mInputUpToDate;
 			for (TopLevelElement topElem : (TopLevelElement[]) mChunksTreeViewer.getInput()) {
 				if (topElem.hasUnresolvedConflict()) {
 					enabled = false;
@@ -1391,7 +1692,10 @@ public class InteractiveSelectiveUndoDialog extends TitleAreaDialog implements R
 				ChunkLevelElement chunkElem = (ChunkLevelElement) firstElement;
 				Chunk chunk = chunkElem.getChunk();
 				
-				if (chunk.hasConflictOutsideThisChunk() && chunkElem.getUndoAlternatives().size() > 1) {
+				if (!chunkElem.isAnalyzed()) {
+					// The alternatives will be shown when they are calculated.
+					showBottomPanel(false, ANALYZING_CHUNK_MSG);
+				} else if (chunkElem.hasConflict() && chunkElem.hasMultipleAlternatives()) {
 					// Show the conflict resolution panel.
 					showConflictResolutionPanel(chunkElem);
 				} else {
@@ -5,9 +5,7 @@ import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import org.eclipse.compare.CompareConfiguration;
 import org.eclipse.compare.CompareUI;
@@ -35,14 +33,12 @@ import org.eclipse.ui.PlatformUI;
 import org.eclipse.ui.ide.IDE;
 
 import edu.cmu.scs.azurite.commands.runtime.RuntimeDC;
-import edu.cmu.scs.azurite.commands.runtime.Segment;
 import edu.cmu.scs.azurite.compare.AzuriteCompareInput;
 import edu.cmu.scs.azurite.compare.SimpleCompareItem;
 import edu.cmu.scs.azurite.jface.dialogs.InteractiveSelectiveUndoDialog;
 import edu.cmu.scs.azurite.model.FileKey;
 import edu.cmu.scs.azurite.model.OperationId;
-import edu.cmu.scs.azurite.model.undo.Chunk;
-import edu.cmu.scs.azurite.model.undo.SelectiveUndoEngine;
+import edu.cmu.scs.azurite.model.undo.VersionReconstructor;
 import edu.cmu.scs.azurite.plugin.Activator;
 import edu.cmu.scs.azurite.views.TimelineViewPart;
 import edu.cmu.scs.fluorite.commands.ICommand;
@@ -56,10 +52,9 @@ public class CodeHistoryDiffViewer extends Composite {
 	private List<RuntimeDC> mInvolvedDCs;
 	
 	private SimpleCompareItem mCurrentItem;
-	private Map<Integer, SimpleCompareItem> mHistoryItems;
+	private VersionReconstructor mVersionReconstructor;
 	
 	private String mTitle;
-	private String mFileContent;
 	private String mSelectionText;
 	private int mSelectionStart;
 	private int mSelectionEnd;
@@ -101,7 +96,6 @@ public class CodeHistoryDiffViewer extends Composite {
 		
 		mTitle = title;
 		
-		mFileContent = fileContent;
 		mSelectionStart = selectionStart;
 		mSelectionEnd = selectionEnd;
 		mSelectionLength = mSelectionEnd - mSelectionStart;
@@ -110,7 +104,8 @@ public class CodeHistoryDiffViewer extends Composite {
 		
 		mCurrentItem = new SimpleCompareItem("[" + mInvolvedDCs.size()
 				+ "] Current Version", mSelectionText, false);
-		mHistoryItems = new HashMap<Integer, SimpleCompareItem>();
+		mVersionReconstructor = new VersionReconstructor(mInvolvedDCs,
+				fileContent, selectionStart, selectionEnd);
 		
 		mFileKey = key;
 	}
@@ -330,34 +325,10 @@ public class CodeHistoryDiffViewer extends Composite {
 		
 		if (version == mInvolvedDCs.size()) {
 			return mCurrentItem;
-		} else if (mHistoryItems.containsKey(version)) {
-			return mHistoryItems.get(version);
 		}
 		
-		// Get the previous versions by performing undo.
-		List<RuntimeDC> subList = mInvolvedDCs.subList(version, mInvolvedDCs.size());
-		Chunk chunk = new Chunk();
-		for (RuntimeDC dc : subList) {
-			for (Segment segment : dc.getAllSegments()) {
-				if (segment.inSelectionRange(mSelectionStart, mSelectionEnd)) {
-					chunk.add(segment);
-				}
-			}
-		}
-		Collections.sort(chunk, Segment.getLocationComparator());
-		
-		int startOffset = chunk.getStartOffset();
-		int endOffset = chunk.getEndOffset();
-		String initialContent = mFileContent.substring(startOffset, endOffset);
-		
-		String undoResult = SelectiveUndoEngine.getInstance()
-				.doSelectiveUndoChunkWithoutConflicts(chunk, initialContent);
-		
-		StringBuilder historyContent = new StringBuilder(mSelectionText);
-		historyContent.replace(
-				Math.max(startOffset - mSelectionStart, 0),
-				Math.min(endOffset - mSelectionStart, mSelectionLength),
-				undoResult);
+		// Get the previous versions from the reconstructor.
+		String historyContent = mVersionReconstructor.getVersion(version);
 		
 		ICommand originalDC = mInvolvedDCs.get(version).getOriginal();
 		Date date = new Date(originalDC.getSessionId() + originalDC.getTimestamp());
@@ -365,10 +336,7 @@ public class CodeHistoryDiffViewer extends Composite {
 		SimpleCompareItem historyItem = new SimpleCompareItem("[" + version
 				+ "/" + mInvolvedDCs.size() + "] " + dateString + " (id:"
 				+ originalDC.getCommandIndex() + ")",
-				historyContent.toString(), false);
-		
-		// Add to the cache.
-		mHistoryItems.put(version, historyItem);
+				historyContent, false);
 		
 		return historyItem;
 	}
@@ -0,0 +1,18 @@
+package edu.cmu.scs.azurite.model;
+
+import java.util.List;
+
+/**
+ * Receives the events of the {@link RuntimeHistoryManager} in batches, at
+ * most once per frame, instead of receiving each event right away.
+ * The consecutive updates to the same operation are merged into one.
+ * The events are always delivered on the SWT UI thread.
+ */
+public interface BatchedRuntimeDCListener {
+
+	/**
+	 * Fired with the events which happened since the last time, in order.
+	 */
+	void runtimeDCEventsFired(List<RuntimeDCEvent> events);
+
+}
@@ -0,0 +1,438 @@
+package edu.cmu.scs.azurite.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.cmu.scs.azurite.commands.runtime.RuntimeDC;
+import edu.cmu.scs.fluorite.commands.BaseDocumentChangeEvent;
+import edu.cmu.scs.fluorite.commands.Delete;
+import edu.cmu.scs.fluorite.commands.Insert;
+import edu.cmu.scs.fluorite.commands.Replace;
+
+/**
+ * Finds the past versions of a file containing a given text, without
+ * performing selective undo for each version.
+ *
+ * For each file, the index keeps its own copy of the current content, and for
+ * each document change, the text around the change at the time it was made.
+ * The trigrams of those texts are indexed, so that a query only looks at the
+ * changes which could have created or destroyed an occurrence of the text.
+ * The number of occurrences in each version is then obtained by walking back
+ * from the current content, subtracting what each change has created and
+ * adding back what it has destroyed.
+ *
+ * Only the changes made while the index is following the file are indexed.
+ * When the index cannot follow a file (e.g., no snapshot is available, or a
+ * deleted text does not match its copy), the queries for that file are not
+ * answered and the caller should reconstruct the versions instead.
+ *
+ * This class is not thread-safe. Use it only from the SWT UI thread.
+ */
+public class HistorySearchIndex {
+
+	// The number of characters kept on each side of a change.
+	public static final int CONTEXT_LENGTH = 32;
+
+	// Longer texts may span a change and its context on both sides.
+	public static final int MAX_SEARCH_TEXT_LENGTH = CONTEXT_LENGTH + 1;
+
+	private static final int TRIGRAM_LENGTH = 3;
+
+	private static class Entry {
+		private OperationId mId;
+		private int mOffset;
+		private String mLeft;
+		private String mDeletedText;
+		private String mInsertedText;
+		private String mRight;
+
+		public String getTextBefore() {
+			return mLeft + mDeletedText + mRight;
+		}
+
+		public String getTextAfter() {
+			return mLeft + mInsertedText + mRight;
+		}
+	}
+
+	/**
+	 * Sorted list of the entry indices containing a trigram.
+	 */
+	private static class Postings {
+		private int[] mItems = new int[4];
+		private int mSize = 0;
+
+		public void add(int index) {
+			if (mSize > 0 && mItems[mSize - 1] == index) {
+				return;
+			}
+
+			if (mSize == mItems.length) {
+				int[] newItems = new int[mSize * 2];
+				System.arraycopy(mItems, 0, newItems, 0, mSize);
+				mItems = newItems;
+			}
+
+			mItems[mSize++] = index;
+		}
+
+		public void removeLast(int index) {
+			if (mSize > 0 && mItems[mSize - 1] == index) {
+				--mSize;
+			}
+		}
+	}
+
+	private static class FileIndex {
+		private StringBuilder mContent;
+		private boolean mValid;
+
+		private List<Entry> mEntries;
+		private Map<OperationId, Integer> mEntryIndices;
+		private Map<Long, Postings> mPostings;
+
+		public FileIndex(String content) {
+			mContent = new StringBuilder(content);
+			mValid = true;
+
+			mEntries = new ArrayList<Entry>();
+			mEntryIndices = new HashMap<OperationId, Integer>();
+			mPostings = new HashMap<Long, Postings>();
+		}
+
+		public void invalidate() {
+			// Nothing can be answered from now on, so release the memory.
+			mContent = null;
+			mValid = false;
+
+			mEntries = null;
+			mEntryIndices = null;
+			mPostings = null;
+		}
+	}
+
+	private Map<FileKey, FileIndex> mFiles;
+
+	public HistorySearchIndex() {
+		mFiles = new HashMap<FileKey, FileIndex>();
+	}
+
+	/**
+	 * Called when a file is opened in an editor.
+	 * @param key the file.
+	 * @param content the content of the file before any following changes,
+	 *        or null if it is unknown.
+	 */
+	public void fileOpened(FileKey key, String content) {
+		if (content == null) {
+			return;
+		}
+
+		FileIndex fileIndex = mFiles.get(key);
+		if (fileIndex != null && fileIndex.mValid
+				&& fileIndex.mContent.toString().equals(content)) {
+			return;
+		}
+
+		// The file was changed while nobody was watching. Start over.
+		mFiles.put(key, new FileIndex(content));
+	}
+
+	/**
+	 * Forgets all the changes of the file, and starts over from the content.
+	 */
+	public void reset(FileKey key, String content) {
+		if (content == null) {
+			mFiles.remove(key);
+		} else {
+			mFiles.put(key, new FileIndex(content));
+		}
+	}
+
+	public void documentChangeFinalized(FileKey key, BaseDocumentChangeEvent docChange) {
+		FileIndex fileIndex = mFiles.get(key);
+		if (fileIndex == null || !fileIndex.mValid) {
+			return;
+		}
+
+		Entry entry = createEntry(docChange);
+		StringBuilder content = fileIndex.mContent;
+		if (entry == null || entry.mOffset < 0
+				|| entry.mOffset + entry.mDeletedText.length() > content.length()
+				|| !content.substring(entry.mOffset, entry.mOffset + entry.mDeletedText.length())
+						.equals(entry.mDeletedText)) {
+			fileIndex.invalidate();
+			return;
+		}
+
+		int start = Math.max(entry.mOffset - CONTEXT_LENGTH, 0);
+		int end = entry.mOffset + entry.mDeletedText.length();
+		entry.mLeft = content.substring(start, entry.mOffset);
+		entry.mRight = content.substring(end, Math.min(end + CONTEXT_LENGTH, content.length()));
+
+		content.replace(entry.mOffset, end, entry.mInsertedText);
+
+		int index = fileIndex.mEntries.size();
+		fileIndex.mEntries.add(entry);
+		fileIndex.mEntryIndices.put(entry.mId, index);
+
+		addTrigrams(fileIndex, entry.getTextBefore(), index);
+		addTrigrams(fileIndex, entry.getTextAfter(), index);
+	}
+
+	/**
+	 * Replaces the last change of the file with the amended one.
+	 */
+	public void documentChangeAmended(FileKey key, BaseDocumentChangeEvent oldDocChange,
+			BaseDocumentChangeEvent newDocChange) {
+		FileIndex fileIndex = mFiles.get(key);
+		if (fileIndex == null || !fileIndex.mValid) {
+			return;
+		}
+
+		List<Entry> entries = fileIndex.mEntries;
+		OperationId oldId = new OperationId(oldDocChange.getSessionId(), oldDocChange.getCommandIndex());
+		if (entries.isEmpty() || !entries.get(entries.size() - 1).mId.equals(oldId)) {
+			fileIndex.invalidate();
+			return;
+		}
+
+		int index = entries.size() - 1;
+		Entry entry = entries.remove(index);
+		fileIndex.mEntryIndices.remove(entry.mId);
+		removeTrigrams(fileIndex, entry.getTextBefore(), index);
+		removeTrigrams(fileIndex, entry.getTextAfter(), index);
+
+		fileIndex.mContent.replace(entry.mOffset,
+				entry.mOffset + entry.mInsertedText.length(), entry.mDeletedText);
+
+		documentChangeFinalized(key, newDocChange);
+	}
+
+	/**
+	 * Finds the document changes whose resulting versions of the file
+	 * contain the given text.
+	 * @param key the file.
+	 * @param text the text to search for.
+	 * @param caseSensitive if false, the case is ignored character by character.
+	 * @param dcs the document changes of the file to look at.
+	 * @return the ids of the matching document changes among the given ones,
+	 *         or null if the index cannot answer this query.
+	 */
+	public Set<OperationId> search(FileKey key, String text, boolean caseSensitive,
+			List<RuntimeDC> dcs) {
+		FileIndex fileIndex = mFiles.get(key);
+		if (fileIndex == null || !fileIndex.mValid || text == null
+				|| text.length() > MAX_SEARCH_TEXT_LENGTH) {
+			return null;
+		}
+
+		for (RuntimeDC dc : dcs) {
+			if (!fileIndex.mEntryIndices.containsKey(dc.getOperationId())) {
+				return null;
+			}
+		}
+
+		Set<OperationId> result = new HashSet<OperationId>();
+		if (text.isEmpty()) {
+			result.addAll(OperationId.getOperationIdsFromRuntimeDCs(dcs));
+			return result;
+		}
+
+		boolean[] contains = findVersionsContaining(fileIndex, text, caseSensitive);
+		for (RuntimeDC dc : dcs) {
+			OperationId id = dc.getOperationId();
+			if (contains[fileIndex.mEntryIndices.get(id)]) {
+				result.add(id);
+			}
+		}
+
+		return result;
+	}
+
+	private boolean[] findVersionsContaining(FileIndex fileIndex, String text, boolean caseSensitive) {
+		String query = caseSensitive ? text : fold(text);
+		String content = fileIndex.mContent.toString();
+		int count = countOccurrences(caseSensitive ? content : fold(content), query);
+
+		int[] candidates = findCandidates(fileIndex, text);
+
+		// Walk back from the current content.
+		int size = fileIndex.mEntries.size();
+		boolean[] contains = new boolean[size];
+		int candidateIndex = candidates == null ? size - 1 : candidates.length - 1;
+		for (int i = size - 1; i >= 0; --i) {
+			contains[i] = count > 0;
+
+			if (candidateIndex >= 0
+					&& (candidates == null || candidates[candidateIndex] == i)) {
+				Entry entry = fileIndex.mEntries.get(i);
+				count -= countOverlapping(entry.mLeft, entry.mInsertedText, entry.mRight, query, caseSensitive);
+				count += countOverlapping(entry.mLeft, entry.mDeletedText, entry.mRight, query, caseSensitive);
+				--candidateIndex;
+			}
+		}
+
+		return contains;
+	}
+
+	/**
+	 * @return the sorted entry indices which contain all the trigrams of the
+	 *         text, or null if every entry should be considered.
+	 */
+	private int[] findCandidates(FileIndex fileIndex, String text) {
+		if (text.length() < TRIGRAM_LENGTH) {
+			return null;
+		}
+
+		String folded = fold(text);
+		int[] candidates = null;
+		int candidateCount = 0;
+		for (int i = 0; i + TRIGRAM_LENGTH <= folded.length(); ++i) {
+			Postings postings = fileIndex.mPostings.get(getTrigram(folded, i));
+			if (postings == null) {
+				return new int[0];
+			}
+
+			if (candidates == null) {
+				candidates = new int[postings.mSize];
+				System.arraycopy(postings.mItems, 0, candidates, 0, postings.mSize);
+				candidateCount = postings.mSize;
+				continue;
+			}
+
+			// Intersect the two sorted lists.
+			int newCount = 0;
+			int j = 0;
+			for (int k = 0; k < candidateCount && j < postings.mSize; ) {
+				if (candidates[k] < postings.mItems[j]) {
+					++k;
+				} else if (candidates[k] > postings.mItems[j]) {
+					++j;
+				} else {
+					candidates[newCount++] = candidates[k];
+					++k;
+					++j;
+				}
+			}
+			candidateCount = newCount;
+		}
+
+		int[] result = new int[candidateCount];
+		System.arraycopy(candidates, 0, result, 0, candidateCount);
+		return result;
+	}
+
+	/**
+	 * Counts the occurrences of the query in left + middle + right,
+	 * which overlap with the middle part.
+	 */
+	private static int countOverlapping(String left, String middle, String right,
+			String query, boolean caseSensitive) {
+		String window = left + middle + right;
+		if (!caseSensitive) {
+			window = fold(window);
+		}
+
+		int middleStart = left.length();
+		int middleEnd = middleStart + middle.length();
+
+		int count = 0;
+		int index = window.indexOf(query, Math.max(middleStart - query.length() + 1, 0));
+		while (index >= 0 && index < middleEnd) {
+			++count;
+			index = window.indexOf(query, index + 1);
+		}
+
+		return count;
+	}
+
+	private static int countOccurrences(String str, String query) {
+		int count = 0;
+		int index = str.indexOf(query);
+		while (index >= 0) {
+			++count;
+			index = str.indexOf(query, index + 1);
+		}
+
+		return count;
+	}
+
+	private static Entry createEntry(BaseDocumentChangeEvent docChange) {
+		Entry entry = new Entry();
+		entry.mId = new OperationId(docChange.getSessionId(), docChange.getCommandIndex());
+
+		if (docChange instanceof Insert) {
+			Insert insert = (Insert) docChange;
+			entry.mOffset = insert.getOffset();
+			entry.mDeletedText = "";
+			entry.mInsertedText = insert.getText();
+		} else if (docChange instanceof Delete) {
+			Delete delete = (Delete) docChange;
+			entry.mOffset = delete.getOffset();
+			entry.mDeletedText = delete.getText();
+			entry.mInsertedText = "";
+		} else if (docChange instanceof Replace) {
+			Replace replace = (Replace) docChange;
+			entry.mOffset = replace.getOffset();
+			entry.mDeletedText = replace.getDeletedText();
+			entry.mInsertedText = replace.getInsertedText();
+		} else {
+			return null;
+		}
+
+		if (entry.mDeletedText == null || entry.mInsertedText == null) {
+			return null;
+		}
+
+		return entry;
+	}
+
+	private static void addTrigrams(FileIndex fileIndex, String text, int index) {
+		String folded = fold(text);
+		for (int i = 0; i + TRIGRAM_LENGTH <= folded.length(); ++i) {
+			Long trigram = getTrigram(folded, i);
+			Postings postings = fileIndex.mPostings.get(trigram);
+			if (postings == null) {
+				postings = new Postings();
+				fileIndex.mPostings.put(trigram, postings);
+			}
+
+			postings.add(index);
+		}
+	}
+
+	private static void removeTrigrams(FileIndex fileIndex, String text, int index) {
+		String folded = fold(text);
+		for (int i = 0; i + TRIGRAM_LENGTH <= folded.length(); ++i) {
+			Long trigram = getTrigram(folded, i);
+			Postings postings = fileIndex.mPostings.get(trigram);
+			if (postings != null) {
+				postings.removeLast(index);
+				if (postings.mSize == 0) {
+					fileIndex.mPostings.remove(trigram);
+				}
+			}
+		}
+	}
+
+	private static Long getTrigram(String folded, int index) {
+		return ((long) folded.charAt(index) << 32)
+				| ((long) folded.charAt(index + 1) << 16)
+				| folded.charAt(index + 2);
+	}
+
+	private static String fold(String str) {
+		char[] chars = str.toCharArray();
+		for (int i = 0; i < chars.length; ++i) {
+			chars[i] = Character.toLowerCase(chars[i]);
+		}
+
+		return new String(chars);
+	}
+
+}
@@ -11,11 +11,20 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
-import name.fraser.neil.plaintext.diff_match_patch;
 import name.fraser.neil.plaintext.diff_match_patch.Diff;
+import name.fraser.neil.plaintext.diff_match_patch.Operation;
+
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+
 import edu.cmu.scs.azurite.commands.diff.DiffDelete;
 import edu.cmu.scs.azurite.commands.diff.DiffInsert;
+import edu.cmu.scs.azurite.plugin.Activator;
 import edu.cmu.scs.fluorite.commands.AbstractCommand;
 import edu.cmu.scs.fluorite.commands.BaseDocumentChangeEvent;
 import edu.cmu.scs.fluorite.commands.FileOpenCommand;
@@ -23,7 +32,6 @@ import edu.cmu.scs.fluorite.commands.ICommand;
 import edu.cmu.scs.fluorite.model.DocumentChangeListener;
 import edu.cmu.scs.fluorite.model.EventRecorder;
 import edu.cmu.scs.fluorite.model.Events;
-import edu.cmu.scs.fluorite.util.LogReader;
 import edu.cmu.scs.fluorite.util.Utilities;
 
 /**
@@ -35,7 +43,7 @@ public class PastHistoryManager implements DocumentChangeListener {
 	// Should always contain events 
 	private Deque<Events> mPastEvents;
 	
-	/* package */ class SnapshotElement {
+	/* package */ static class SnapshotElement {
 		private long mSessionId;
 		private long mTimestamp;
 		private String mSnapshot;
@@ -75,6 +83,46 @@ public class PastHistoryManager implements DocumentChangeListener {
 		public int value;
 	}
 	
+	/**
+	 * The result of processing a single log file, which does not depend on
+	 * any other log files. This is what gets stored in the log index.
+	 */
+	/* package */ static class ProcessedLog {
+		// The events as read from the log file.
+		private Events mEvents;
+		
+		// The events with the adjusted command indices and the injected diffs.
+		private Events mProcessedEvents;
+		
+		private Map<FileKey, SnapshotElement> mInitialSnapshots;
+		private Map<FileKey, String> mFinalSnapshots;
+		
+		public ProcessedLog(Events events, Events processedEvents,
+				Map<FileKey, SnapshotElement> initialSnapshots,
+				Map<FileKey, String> finalSnapshots) {
+			mEvents = events;
+			mProcessedEvents = processedEvents;
+			mInitialSnapshots = initialSnapshots;
+			mFinalSnapshots = finalSnapshots;
+		}
+		
+		public Events getEvents() {
+			return mEvents;
+		}
+		
+		public Events getProcessedEvents() {
+			return mProcessedEvents;
+		}
+		
+		public Map<FileKey, SnapshotElement> getInitialSnapshots() {
+			return mInitialSnapshots;
+		}
+		
+		public Map<FileKey, String> getFinalSnapshots() {
+			return mFinalSnapshots;
+		}
+	}
+	
 	/* package */ Map<FileKey, SnapshotElement> mInitialSnapshots;
 	
 	private PastHistoryManager() {
@@ -154,30 +202,112 @@ public class PastHistoryManager implements DocumentChangeListener {
 	}
 
 	public void readPastLogs(File[] logFilesToRead) {
-		// Read the logs.
-		List<Events> tempEvents = new ArrayList<Events>();
-		
-		LogReader reader = new LogReader();
-		for (File logFile : logFilesToRead) {
-			Events events = reader.readAll(logFile.getAbsolutePath());
-			if (events != null) {
-				tempEvents.add(events);
-			}
-		}
+		long start = System.nanoTime();
+		
+		// Read the logs. Each log file is processed independently.
+		List<ProcessedLog> processedLogs = readProcessedLogs(logFilesToRead);
 		
-		if (!tempEvents.isEmpty()) {
-			// Add in reverse order.
-			Collections.reverse(tempEvents);
-			for (Events events : tempEvents) {
-				processEvents(events);
+		if (!processedLogs.isEmpty()) {
+			// Merge in reverse order, on this thread.
+			Collections.reverse(processedLogs);
+			List<Events> tempEvents = new ArrayList<Events>();
+			int eventCount = 0;
+			for (ProcessedLog processedLog : processedLogs) {
+				mergeProcessedLog(processedLog);
+				tempEvents.add(processedLog.getEvents());
+				eventCount += processedLog.getProcessedEvents().getCommands().size();
 			}
 			
+			logThroughput(processedLogs.size(), eventCount, System.nanoTime() - start);
+			
 			// Notify the RuntimeHistoryManager.
 			RuntimeHistoryManager.getInstance().pastLogsRead(tempEvents);
 		}
 	}
+	
+	private static void logThroughput(int fileCount, int eventCount, long elapsedNanos) {
+		Activator plugin = Activator.getDefault();
+		if (plugin == null) {
+			return;
+		}
+		
+		double seconds = Math.max(elapsedNanos, 1L) / 1e9;
+		String message = String.format(
+				"Read past logs: %d files (%.1f files/sec), %d events (%.1f events/sec)",
+				fileCount, fileCount / seconds, eventCount, eventCount / seconds);
+		plugin.getLog().log(new Status(IStatus.INFO, Activator.PLUGIN_ID, message));
+	}
+	
+	/**
+	 * Reads and processes the given log files in parallel.
+	 * @return the processed logs in the same order as the given files,
+	 * excluding the ones which could not be read.
+	 */
+	private List<ProcessedLog> readProcessedLogs(File[] logFiles) {
+		List<ProcessedLog> result = new ArrayList<ProcessedLog>();
+		if (logFiles.length == 0) {
+			return result;
+		}
+		
+		List<Callable<ProcessedLog>> tasks = new ArrayList<Callable<ProcessedLog>>();
+		for (final File logFile : logFiles) {
+			tasks.add(new Callable<ProcessedLog>() {
+				@Override
+				public ProcessedLog call() throws Exception {
+					return readProcessedLog(logFile);
+				}
+			});
+		}
+		
+		ForkJoinPool pool = new ForkJoinPool(Math.min(logFiles.length,
+				Runtime.getRuntime().availableProcessors()));
+		try {
+			for (Future<ProcessedLog> future : pool.invokeAll(tasks)) {
+				ProcessedLog processedLog = future.get();
+				if (processedLog != null) {
+					result.add(processedLog);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Reads and processes the given log file, using the log index if there is
+	 * a valid one. Otherwise, the log file is parsed and a new index is written.
+	 */
+	private ProcessedLog readProcessedLog(File logFile) {
+		File indexFile = PastLogIndex.getIndexFile(logFile);
+		if (indexFile != null) {
+			ProcessedLog processedLog = PastLogIndex.read(logFile, indexFile);
+			if (processedLog != null) {
+				return processedLog;
+			}
+		}
+		
+		// Parsed in parallel, too. Only the command creation holds the lock.
+		Events events = PastLogReader.readAll(logFile);
+		if (events == null) {
+			return null;
+		}
+		
+		ProcessedLog processedLog = processEvents(events);
+		if (indexFile != null) {
+			PastLogIndex.write(logFile, indexFile, processedLog);
+		}
+		
+		return processedLog;
+	}
 
-	private void processEvents(Events events) {
+	private ProcessedLog processEvents(Events events) {
 		Map<FileKey, SnapshotElement> localInitialSnapshots =
 				new HashMap<FileKey, SnapshotElement>();
 		Map<FileKey, String> localFinalSnapshots = new HashMap<FileKey, String>();
@@ -244,6 +374,14 @@ public class PastHistoryManager implements DocumentChangeListener {
 			}
 		}
 		
+		return new ProcessedLog(events, copyEvents, localInitialSnapshots, localFinalSnapshots);
+	}
+	
+	private void mergeProcessedLog(ProcessedLog processedLog) {
+		Events copyEvents = processedLog.getProcessedEvents();
+		Map<FileKey, SnapshotElement> localInitialSnapshots = processedLog.getInitialSnapshots();
+		Map<FileKey, String> localFinalSnapshots = processedLog.getFinalSnapshots();
+		
 		// Inject intermediate diffs.
 		injectDiffDCsWhileReadingPreviousLog(copyEvents, localInitialSnapshots, localFinalSnapshots);
 		
@@ -272,57 +410,67 @@ public class PastHistoryManager implements DocumentChangeListener {
 			throw new IllegalArgumentException("Cannot process null strings.");
 		}
 		
-		diff_match_patch dmp = new diff_match_patch();
-		LinkedList<Diff> diffs = dmp.diff_main(before, after);
+		List<Diff> diffs = SnapshotDiff.compute(before, after);
 		int curOffset = 0;
 		int curLength = before.length();
 		
-		boolean incrementCommandID = AbstractCommand.getIncrementCommandID();
-		try {
-			if (autoAssignId == false) {
-				AbstractCommand.setIncrementCommandID(false);
-			}
-			
-			for (Diff diff : diffs) {
-				switch (diff.operation) {
-					case INSERT: {
-						DiffInsert di = new DiffInsert(key, curOffset, diff.text, null);
-						di.setSessionId(sessionId);
-						di.setTimestamp(timestamp);
-						di.setTimestamp2(timestamp);
-						
-						curOffset += diff.text.length();
-						curLength += diff.text.length();
-						
-						di.setDocLength(curLength);
-						
-						addCommand.addCommand(di);
-						break;
-					}
+		for (Diff diff : diffs) {
+			switch (diff.operation) {
+				case INSERT: {
+					DiffInsert di = (DiffInsert) createDiffDC(key, curOffset, diff, autoAssignId);
+					di.setSessionId(sessionId);
+					di.setTimestamp(timestamp);
+					di.setTimestamp2(timestamp);
+					
+					curOffset += diff.text.length();
+					curLength += diff.text.length();
 					
-					case DELETE: {
-						DiffDelete dd = new DiffDelete(key, curOffset,
-								diff.text.length(), -1, -1, diff.text, null);
-						dd.setSessionId(sessionId);
-						dd.setTimestamp(timestamp);
-						dd.setTimestamp2(timestamp);
-						
-						curLength -= diff.text.length();
-						
-						dd.setDocLength(curLength);
-						
-						addCommand.addCommand(dd);
-						break;
-					}
+					di.setDocLength(curLength);
 					
-					case EQUAL: {
-						curOffset += diff.text.length();
-						break;
-					}
+					addCommand.addCommand(di);
+					break;
+				}
+				
+				case DELETE: {
+					DiffDelete dd = (DiffDelete) createDiffDC(key, curOffset, diff, autoAssignId);
+					dd.setSessionId(sessionId);
+					dd.setTimestamp(timestamp);
+					dd.setTimestamp2(timestamp);
+					
+					curLength -= diff.text.length();
+					
+					dd.setDocLength(curLength);
+					
+					addCommand.addCommand(dd);
+					break;
+				}
+				
+				case EQUAL: {
+					curOffset += diff.text.length();
+					break;
 				}
 			}
-		} finally {
-			AbstractCommand.setIncrementCommandID(incrementCommandID);
+		}
+	}
+	
+	private static ICommand createDiffDC(FileKey key, int offset, Diff diff, boolean autoAssignId) {
+		// The constructor takes the command ID from the static counter, which
+		// is shared with the other threads reading the logs. So is the flag.
+		synchronized (AbstractCommand.class) {
+			boolean incrementCommandID = AbstractCommand.getIncrementCommandID();
+			try {
+				if (autoAssignId == false) {
+					AbstractCommand.setIncrementCommandID(false);
+				}
+				
+				if (diff.operation == Operation.INSERT) {
+					return new DiffInsert(key, offset, diff.text, null);
+				} else {
+					return new DiffDelete(key, offset, diff.text.length(), -1, -1, diff.text, null);
+				}
+			} finally {
+				AbstractCommand.setIncrementCommandID(incrementCommandID);
+			}
 		}
 	}
 
@@ -0,0 +1,513 @@
+package edu.cmu.scs.azurite.model;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import edu.cmu.scs.azurite.commands.diff.DiffDelete;
+import edu.cmu.scs.azurite.commands.diff.DiffInsert;
+import edu.cmu.scs.azurite.commands.diff.IDiffDC;
+import edu.cmu.scs.azurite.model.PastHistoryManager.ProcessedLog;
+import edu.cmu.scs.azurite.model.PastHistoryManager.SnapshotElement;
+import edu.cmu.scs.azurite.plugin.Activator;
+import edu.cmu.scs.fluorite.commands.AbstractCommand;
+import edu.cmu.scs.fluorite.commands.Delete;
+import edu.cmu.scs.fluorite.commands.ICommand;
+import edu.cmu.scs.fluorite.commands.Insert;
+import edu.cmu.scs.fluorite.commands.Replace;
+import edu.cmu.scs.fluorite.model.Events;
+
+/**
+ * Binary index of a single Fluorite log file, which stores the result of
+ * processing the log file (see {@link PastHistoryManager}), so that the log
+ * does not have to be parsed and replayed again next time.
+ *
+ * The index is only used when the size and the last modified time of the log
+ * file are the same as when the index was written.
+ */
+public class PastLogIndex {
+
+	private static final int MAGIC = 0x415A4958;	// "AZIX"
+	private static final int VERSION = 2;
+
+	private static final String INDEX_DIRECTORY = "logIndex";
+	private static final String INDEX_EXTENSION = ".azidx";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte KIND_COMMAND = 0;
+	private static final byte KIND_DIFF_INSERT = 1;
+	private static final byte KIND_DIFF_DELETE = 2;
+	private static final byte KIND_INSERT = 3;
+	private static final byte KIND_DELETE = 4;
+	private static final byte KIND_REPLACE = 5;
+
+	// Written instead of the length of a null string or map.
+	private static final int NULL_LENGTH = -1;
+
+	private PastLogIndex() {
+	}
+
+	/**
+	 * Returns the index file to be used for the given log file.
+	 * @param logFile the log file.
+	 * @return the index file, or null if the index location is not available.
+	 */
+	public static File getIndexFile(File logFile) {
+		Activator plugin = Activator.getDefault();
+		if (plugin == null) {
+			return null;
+		}
+
+		File indexDir = plugin.getStateLocation().append(INDEX_DIRECTORY).toFile();
+		if (!indexDir.isDirectory() && !indexDir.mkdirs()) {
+			return null;
+		}
+
+		return new File(indexDir, logFile.getName() + INDEX_EXTENSION);
+	}
+
+	/**
+	 * Reads the processed log from the index file.
+	 * @param logFile the original log file, used to validate the index.
+	 * @param indexFile the index file.
+	 * @return the processed log, or null if the index is missing or out of date.
+	 */
+	/* package */ static ProcessedLog read(File logFile, File indexFile) {
+		if (!indexFile.isFile()) {
+			return null;
+		}
+
+		try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+					|| buffer.getLong() != logFile.length()
+					|| buffer.getLong() != logFile.lastModified()) {
+				return null;
+			}
+
+			return readProcessedLog(buffer);
+		} catch (Exception e) {
+			// The index is broken. Just parse the log file again.
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the processed log to the index file.
+	 * @param logFile the original log file.
+	 * @param indexFile the index file.
+	 * @param processedLog the processed log to be written.
+	 */
+	/* package */ static void write(File logFile, File indexFile, ProcessedLog processedLog) {
+		File tempFile = new File(indexFile.getPath() + ".tmp");
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tempFile)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(logFile.length());
+			out.writeLong(logFile.lastModified());
+
+			writeProcessedLog(out, processedLog);
+		} catch (IOException e) {
+			e.printStackTrace();
+			tempFile.delete();
+			return;
+		}
+
+		if (indexFile.exists() && !indexFile.delete() || !tempFile.renameTo(indexFile)) {
+			tempFile.delete();
+		}
+	}
+
+	private static void writeProcessedLog(DataOutputStream out,
+			ProcessedLog processedLog) throws IOException {
+		out.writeLong(processedLog.getEvents().getStartTimestamp());
+
+		// Initial snapshots
+		Map<FileKey, SnapshotElement> initialSnapshots = processedLog.getInitialSnapshots();
+		out.writeInt(initialSnapshots.size());
+		for (Map.Entry<FileKey, SnapshotElement> entry : initialSnapshots.entrySet()) {
+			writeFileKey(out, entry.getKey());
+			out.writeLong(entry.getValue().getSessionId());
+			out.writeLong(entry.getValue().getTimestamp());
+			writeString(out, entry.getValue().getSnapshot());
+		}
+
+		// Final snapshots
+		Map<FileKey, String> finalSnapshots = processedLog.getFinalSnapshots();
+		out.writeInt(finalSnapshots.size());
+		for (Map.Entry<FileKey, String> entry : finalSnapshots.entrySet()) {
+			writeFileKey(out, entry.getKey());
+			writeString(out, entry.getValue());
+		}
+
+		// Commands, marking the ones injected while processing the log.
+		Map<ICommand, Boolean> originalCommands = new IdentityHashMap<ICommand, Boolean>();
+		for (ICommand command : processedLog.getEvents().getCommands()) {
+			originalCommands.put(command, Boolean.TRUE);
+		}
+
+		List<ICommand> commands = processedLog.getProcessedEvents().getCommands();
+		out.writeInt(commands.size());
+		for (ICommand command : commands) {
+			out.writeBoolean(!originalCommands.containsKey(command));
+			writeCommand(out, command);
+		}
+	}
+
+	private static ProcessedLog readProcessedLog(ByteBuffer buffer) throws Exception {
+		long startTimestamp = buffer.getLong();
+
+		// Initial snapshots
+		Map<FileKey, SnapshotElement> initialSnapshots = new HashMap<FileKey, SnapshotElement>();
+		int numInitialSnapshots = buffer.getInt();
+		for (int i = 0; i < numInitialSnapshots; ++i) {
+			FileKey key = readFileKey(buffer);
+			long sessionId = buffer.getLong();
+			long timestamp = buffer.getLong();
+			String snapshot = readString(buffer);
+			initialSnapshots.put(key, new SnapshotElement(sessionId, timestamp, snapshot));
+		}
+
+		// Final snapshots
+		Map<FileKey, String> finalSnapshots = new HashMap<FileKey, String>();
+		int numFinalSnapshots = buffer.getInt();
+		for (int i = 0; i < numFinalSnapshots; ++i) {
+			FileKey key = readFileKey(buffer);
+			finalSnapshots.put(key, readString(buffer));
+		}
+
+		// Commands
+		Events events = new Events(Collections.<ICommand> emptyList(), "",
+				Long.toString(startTimestamp), "", startTimestamp);
+		Events processedEvents = new Events(Collections.<ICommand> emptyList(),
+				"", Long.toString(startTimestamp), "", startTimestamp);
+
+		Document document = DocumentBuilderFactory.newInstance()
+				.newDocumentBuilder().newDocument();
+
+		int numCommands = buffer.getInt();
+		for (int i = 0; i < numCommands; ++i) {
+			boolean injected = buffer.get() != 0;
+			ICommand command = readCommand(buffer, document);
+
+			if (!injected) {
+				events.addCommand(command);
+			}
+			processedEvents.addCommand(command);
+		}
+
+		return new ProcessedLog(events, processedEvents, initialSnapshots, finalSnapshots);
+	}
+
+	private static void writeCommand(DataOutputStream out, ICommand command) throws IOException {
+		byte kind;
+		if (command instanceof DiffInsert) {
+			kind = KIND_DIFF_INSERT;
+		} else if (command instanceof DiffDelete) {
+			kind = KIND_DIFF_DELETE;
+		} else if (command.getClass() == Insert.class) {
+			kind = KIND_INSERT;
+		} else if (command.getClass() == Delete.class) {
+			kind = KIND_DELETE;
+		} else if (command.getClass() == Replace.class) {
+			kind = KIND_REPLACE;
+		} else {
+			kind = KIND_COMMAND;
+		}
+
+		out.writeByte(kind);
+		if (kind == KIND_DIFF_INSERT || kind == KIND_DIFF_DELETE) {
+			writeFileKey(out, ((IDiffDC) command).getFileKey());
+		} else if (kind == KIND_COMMAND) {
+			writeString(out, command.getClass().getName());
+		}
+
+		out.writeInt(command.getCommandIndex());
+		out.writeLong(command.getSessionId());
+		out.writeLong(command.getTimestamp());
+		out.writeLong(command.getTimestamp2());
+
+		// The document changes are stored field by field, so that they can be
+		// constructed directly when reading.
+		if (command instanceof Insert) {
+			Insert insert = (Insert) command;
+			out.writeInt(insert.getOffset());
+			writeString(out, insert.getText());
+			writeNumericalValues(out, insert.getNumericalValues());
+		} else if (command instanceof Delete) {
+			Delete delete = (Delete) command;
+			out.writeInt(delete.getOffset());
+			out.writeInt(delete.getLength());
+			out.writeInt(delete.getStartLine());
+			out.writeInt(delete.getEndLine());
+			writeString(out, delete.getText());
+			writeNumericalValues(out, delete.getNumericalValues());
+		} else if (command instanceof Replace) {
+			Replace replace = (Replace) command;
+			out.writeInt(replace.getOffset());
+			out.writeInt(replace.getLength());
+			out.writeInt(replace.getStartLine());
+			out.writeInt(replace.getEndLine());
+			out.writeInt(replace.getInsertionLength());
+			writeString(out, replace.getDeletedText());
+			writeString(out, replace.getInsertedText());
+			writeNumericalValues(out, replace.getNumericalValues());
+		} else {
+			writeMap(out, command.getAttributesMap());
+			writeMap(out, command.getDataMap());
+		}
+	}
+
+	private static ICommand readCommand(ByteBuffer buffer, Document document) throws Exception {
+		byte kind = buffer.get();
+		FileKey fileKey = null;
+		Class<?> commandClass = null;
+		switch (kind) {
+			case KIND_DIFF_INSERT:
+			case KIND_DIFF_DELETE:
+				fileKey = readFileKey(buffer);
+				break;
+
+			case KIND_INSERT:
+			case KIND_DELETE:
+			case KIND_REPLACE:
+				break;
+
+			case KIND_COMMAND:
+				commandClass = Class.forName(readString(buffer));
+				break;
+
+			default:
+				throw new IllegalStateException("Unknown command kind: " + kind);
+		}
+
+		int commandIndex = buffer.getInt();
+		long sessionId = buffer.getLong();
+		long timestamp = buffer.getLong();
+		long timestamp2 = buffer.getLong();
+
+		int offset = 0;
+		int length = 0;
+		int startLine = 0;
+		int endLine = 0;
+		int insertionLength = 0;
+		String text = null;
+		String insertedText = null;
+		Map<String, Integer> numericalValues = null;
+		Map<String, String> attributes = null;
+		Map<String, String> data = null;
+		switch (kind) {
+			case KIND_INSERT:
+			case KIND_DIFF_INSERT:
+				offset = buffer.getInt();
+				text = readString(buffer);
+				numericalValues = readNumericalValues(buffer);
+				break;
+
+			case KIND_DELETE:
+			case KIND_DIFF_DELETE:
+				offset = buffer.getInt();
+				length = buffer.getInt();
+				startLine = buffer.getInt();
+				endLine = buffer.getInt();
+				text = readString(buffer);
+				numericalValues = readNumericalValues(buffer);
+				break;
+
+			case KIND_REPLACE:
+				offset = buffer.getInt();
+				length = buffer.getInt();
+				startLine = buffer.getInt();
+				endLine = buffer.getInt();
+				insertionLength = buffer.getInt();
+				text = readString(buffer);
+				insertedText = readString(buffer);
+				numericalValues = readNumericalValues(buffer);
+				break;
+
+			default:
+				attributes = readMap(buffer);
+				data = readMap(buffer);
+				break;
+		}
+
+		// Creating the commands should not consume the command IDs. The
+		// constructor uses the static counter and flag shared with the other
+		// threads, so only the construction is done while holding the lock.
+		AbstractCommand command;
+		synchronized (AbstractCommand.class) {
+			boolean incrementCommandID = AbstractCommand.getIncrementCommandID();
+			try {
+				AbstractCommand.setIncrementCommandID(false);
+
+				switch (kind) {
+					case KIND_DIFF_INSERT:
+						command = new DiffInsert(fileKey, offset, text, null);
+						break;
+
+					case KIND_DIFF_DELETE:
+						command = new DiffDelete(fileKey, offset, length, startLine, endLine, text, null);
+						break;
+
+					case KIND_INSERT:
+						command = new Insert(offset, text, null);
+						break;
+
+					case KIND_DELETE:
+						command = new Delete(offset, length, startLine, endLine, text, null);
+						break;
+
+					case KIND_REPLACE:
+						command = new Replace(offset, length, startLine, endLine,
+								insertionLength, text, insertedText, null);
+						break;
+
+					default:
+						command = (AbstractCommand) commandClass.newInstance();
+						break;
+				}
+			} finally {
+				AbstractCommand.setIncrementCommandID(incrementCommandID);
+			}
+		}
+
+		if (kind == KIND_COMMAND) {
+			// Fluorite has no other way of restoring the fields of an arbitrary
+			// command, so let the command read them as it does from the log.
+			// The missing values are left out, as they are in the log.
+			Element element = document.createElement("Command");
+			for (Map.Entry<String, String> entry : attributes.entrySet()) {
+				if (entry.getValue() != null) {
+					element.setAttribute(entry.getKey(), entry.getValue());
+				}
+			}
+			for (Map.Entry<String, String> entry : data.entrySet()) {
+				if (entry.getValue() != null) {
+					Element dataElement = document.createElement(entry.getKey());
+					dataElement.appendChild(document.createCDATASection(entry.getValue()));
+					element.appendChild(dataElement);
+				}
+			}
+			command.createFrom(element);
+		} else {
+			command.setNumericalValues(numericalValues);
+		}
+
+		command.setCommandIndex(commandIndex);
+		command.setSessionId(sessionId);
+		command.setTimestamp(timestamp);
+		command.setTimestamp2(timestamp2);
+
+		return command;
+	}
+
+	private static void writeFileKey(DataOutputStream out, FileKey key) throws IOException {
+		writeString(out, key == null ? null : key.getProjectName());
+		writeString(out, key == null ? null : key.getFilePath());
+	}
+
+	private static FileKey readFileKey(ByteBuffer buffer) {
+		String projectName = readString(buffer);
+		String filePath = readString(buffer);
+		return new FileKey(projectName, filePath);
+	}
+
+	private static void writeMap(DataOutputStream out, Map<String, String> map) throws IOException {
+		if (map == null) {
+			out.writeInt(NULL_LENGTH);
+			return;
+		}
+
+		out.writeInt(map.size());
+		for (Map.Entry<String, String> entry : map.entrySet()) {
+			writeString(out, entry.getKey());
+			writeString(out, entry.getValue());
+		}
+	}
+
+	private static Map<String, String> readMap(ByteBuffer buffer) {
+		int size = buffer.getInt();
+		Map<String, String> map = new LinkedHashMap<String, String>();
+		for (int i = 0; i < size; ++i) {
+			String key = readString(buffer);
+			map.put(key, readString(buffer));
+		}
+
+		return map;
+	}
+
+	private static void writeNumericalValues(DataOutputStream out,
+			Map<String, Integer> numericalValues) throws IOException {
+		if (numericalValues == null) {
+			out.writeInt(NULL_LENGTH);
+			return;
+		}
+
+		out.writeInt(numericalValues.size());
+		for (Map.Entry<String, Integer> entry : numericalValues.entrySet()) {
+			writeString(out, entry.getKey());
+			out.writeInt(entry.getValue());
+		}
+	}
+
+	private static Map<String, Integer> readNumericalValues(ByteBuffer buffer) {
+		int size = buffer.getInt();
+		if (size == NULL_LENGTH) {
+			return null;
+		}
+
+		Map<String, Integer> numericalValues = new HashMap<String, Integer>();
+		for (int i = 0; i < size; ++i) {
+			String key = readString(buffer);
+			numericalValues.put(key, buffer.getInt());
+		}
+
+		return numericalValues;
+	}
+
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		if (str == null) {
+			out.writeInt(NULL_LENGTH);
+			return;
+		}
+
+		byte[] bytes = str.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length == NULL_LENGTH) {
+			return null;
+		}
+
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+}
@@ -0,0 +1,104 @@
+package edu.cmu.scs.azurite.model;
+
+import java.io.File;
+import java.util.Collections;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import edu.cmu.scs.fluorite.commands.AbstractCommand;
+import edu.cmu.scs.fluorite.commands.ICommand;
+import edu.cmu.scs.fluorite.model.Events;
+
+/**
+ * Reads a Fluorite log file so that it can be done on several threads at once.
+ *
+ * The log is parsed without any lock. Only the construction of each command,
+ * which uses the static command ID counter and flag, holds the
+ * AbstractCommand.class lock.
+ */
+public class PastLogReader {
+
+	private static final String COMMANDS_PACKAGE = "edu.cmu.scs.fluorite.commands.";
+
+	private static final String START_TIMESTAMP_ATTR = "startTimestamp";
+	private static final String DESCRIPTION_ATTR = "description";
+	private static final String LOG_VERSION_ATTR = "logVersion";
+	private static final String TYPE_ATTR = "_type";
+
+	private PastLogReader() {
+	}
+
+	/**
+	 * Reads all the commands in the given log file.
+	 * @param logFile the log file.
+	 * @return the events, or null if the log file could not be read.
+	 */
+	/* package */ static Events readAll(File logFile) {
+		Element root;
+		long startTimestamp;
+		try {
+			Document document = DocumentBuilderFactory.newInstance()
+					.newDocumentBuilder().parse(logFile);
+			root = document.getDocumentElement();
+			startTimestamp = Long.parseLong(root.getAttribute(START_TIMESTAMP_ATTR));
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+
+		Events events = new Events(Collections.<ICommand> emptyList(),
+				root.getAttribute(DESCRIPTION_ATTR), Long.toString(startTimestamp),
+				root.getAttribute(LOG_VERSION_ATTR), startTimestamp);
+
+		NodeList nodes = root.getChildNodes();
+		for (int i = 0; i < nodes.getLength(); ++i) {
+			Node node = nodes.item(i);
+			if (node.getNodeType() != Node.ELEMENT_NODE) {
+				continue;
+			}
+
+			ICommand command = createCommand((Element) node, startTimestamp);
+			if (command != null) {
+				events.addCommand(command);
+			}
+		}
+
+		return events;
+	}
+
+	private static ICommand createCommand(Element element, long sessionId) {
+		Class<?> commandClass;
+		try {
+			commandClass = Class.forName(COMMANDS_PACKAGE + element.getAttribute(TYPE_ATTR));
+		} catch (ClassNotFoundException e) {
+			// Unknown command type. Skip it.
+			e.printStackTrace();
+			return null;
+		}
+
+		// The command index is read from the log, so creating the command
+		// should not consume a command ID.
+		AbstractCommand command;
+		synchronized (AbstractCommand.class) {
+			boolean incrementCommandID = AbstractCommand.getIncrementCommandID();
+			try {
+				AbstractCommand.setIncrementCommandID(false);
+				command = (AbstractCommand) commandClass.newInstance();
+			} catch (Exception e) {
+				e.printStackTrace();
+				return null;
+			} finally {
+				AbstractCommand.setIncrementCommandID(incrementCommandID);
+			}
+		}
+
+		command.createFrom(element);
+		command.setSessionId(sessionId);
+		return command;
+	}
+}
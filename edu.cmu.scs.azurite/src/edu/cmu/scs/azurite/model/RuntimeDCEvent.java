@@ -0,0 +1,157 @@
+package edu.cmu.scs.azurite.model;
+
+import java.util.List;
+
+import edu.cmu.scs.azurite.commands.runtime.RuntimeDC;
+import edu.cmu.scs.fluorite.commands.BaseDocumentChangeEvent;
+import edu.cmu.scs.fluorite.model.Events;
+
+/**
+ * An event fired by the {@link RuntimeHistoryManager}, which is delivered to
+ * the {@link BatchedRuntimeDCListener}s later, together with the other events.
+ * Each kind corresponds to a method of {@link RuntimeDCListener}.
+ */
+public class RuntimeDCEvent {
+
+	public static final int KIND_ACTIVE_FILE_CHANGED = 0;
+	public static final int KIND_RUNTIME_DC_ADDED = 1;
+	public static final int KIND_DOCUMENT_CHANGE_ADDED = 2;
+	public static final int KIND_DOCUMENT_CHANGE_UPDATED = 3;
+	public static final int KIND_DOCUMENT_CHANGE_AMENDED = 4;
+	public static final int KIND_PAST_LOGS_READ = 5;
+
+	private int mKind;
+
+	private String mProjectName;
+	private String mFilePath;
+
+	private RuntimeDC mRuntimeDC;
+
+	private BaseDocumentChangeEvent mDocChange;
+	private BaseDocumentChangeEvent mNewDocChange;
+
+	private List<Events> mListEvents;
+
+	private RuntimeDCEvent(int kind) {
+		mKind = kind;
+	}
+
+	public static RuntimeDCEvent activeFileChanged(String projectName, String filePath) {
+		RuntimeDCEvent event = new RuntimeDCEvent(KIND_ACTIVE_FILE_CHANGED);
+		event.mProjectName = projectName;
+		event.mFilePath = filePath;
+		return event;
+	}
+
+	public static RuntimeDCEvent runtimeDCAdded(RuntimeDC docChange) {
+		RuntimeDCEvent event = new RuntimeDCEvent(KIND_RUNTIME_DC_ADDED);
+		event.mRuntimeDC = docChange;
+		return event;
+	}
+
+	public static RuntimeDCEvent documentChangeAdded(BaseDocumentChangeEvent docChange) {
+		RuntimeDCEvent event = new RuntimeDCEvent(KIND_DOCUMENT_CHANGE_ADDED);
+		event.mDocChange = docChange;
+		return event;
+	}
+
+	public static RuntimeDCEvent documentChangeUpdated(BaseDocumentChangeEvent docChange) {
+		RuntimeDCEvent event = new RuntimeDCEvent(KIND_DOCUMENT_CHANGE_UPDATED);
+		event.mDocChange = docChange;
+		return event;
+	}
+
+	public static RuntimeDCEvent documentChangeAmended(BaseDocumentChangeEvent oldDocChange,
+			BaseDocumentChangeEvent newDocChange) {
+		RuntimeDCEvent event = new RuntimeDCEvent(KIND_DOCUMENT_CHANGE_AMENDED);
+		event.mDocChange = oldDocChange;
+		event.mNewDocChange = newDocChange;
+		return event;
+	}
+
+	public static RuntimeDCEvent pastLogsRead(List<Events> listEvents) {
+		RuntimeDCEvent event = new RuntimeDCEvent(KIND_PAST_LOGS_READ);
+		event.mListEvents = listEvents;
+		return event;
+	}
+
+	public int getKind() {
+		return mKind;
+	}
+
+	public String getProjectName() {
+		return mProjectName;
+	}
+
+	public String getFilePath() {
+		return mFilePath;
+	}
+
+	public RuntimeDC getRuntimeDC() {
+		return mRuntimeDC;
+	}
+
+	/**
+	 * @return the document change of this event. For an amended event, this
+	 *         is the old document change.
+	 */
+	public BaseDocumentChangeEvent getDocChange() {
+		return mDocChange;
+	}
+
+	public BaseDocumentChangeEvent getNewDocChange() {
+		return mNewDocChange;
+	}
+
+	public List<Events> getListEvents() {
+		return mListEvents;
+	}
+
+	/**
+	 * @return the operation id of the document change of this event, or null
+	 *         if this event is not about a single document change.
+	 */
+	public OperationId getOperationId() {
+		if (mDocChange == null) {
+			return null;
+		}
+
+		return new OperationId(mDocChange.getSessionId(), mDocChange.getCommandIndex());
+	}
+
+	/**
+	 * Calls the corresponding method of the given listener.
+	 * @param listener the listener.
+	 */
+	public void dispatchTo(RuntimeDCListener listener) {
+		switch (mKind) {
+			case KIND_ACTIVE_FILE_CHANGED:
+				listener.activeFileChanged(mProjectName, mFilePath);
+				break;
+
+			case KIND_RUNTIME_DC_ADDED:
+				listener.runtimeDCAdded(mRuntimeDC);
+				break;
+
+			case KIND_DOCUMENT_CHANGE_ADDED:
+				listener.documentChangeAdded(mDocChange);
+				break;
+
+			case KIND_DOCUMENT_CHANGE_UPDATED:
+				listener.documentChangeUpdated(mDocChange);
+				break;
+
+			case KIND_DOCUMENT_CHANGE_AMENDED:
+				listener.documentChangeAmended(mDocChange, mNewDocChange);
+				break;
+
+			case KIND_PAST_LOGS_READ:
+				listener.pastLogsRead(mListEvents);
+				break;
+
+			default:
+				break;
+		}
+	}
+
+}
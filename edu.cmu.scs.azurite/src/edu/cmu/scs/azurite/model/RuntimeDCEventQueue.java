@@ -0,0 +1,136 @@
+package edu.cmu.scs.azurite.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.swt.widgets.Display;
+
+/**
+ * Keeps the events to be delivered to a single {@link BatchedRuntimeDCListener}.
+ *
+ * The first event added to an empty queue schedules a flush after a frame
+ * interval on the UI thread, and all the events added until then are
+ * delivered together. An update to a document change is merged into the
+ * event right before it, if that event is about the same operation, because
+ * the listeners read the latest values from the document change object.
+ */
+class RuntimeDCEventQueue {
+
+	// About 60 frames per second.
+	/* package */ static final int FRAME_INTERVAL = 16;
+
+	private BatchedRuntimeDCListener mListener;
+
+	private List<RuntimeDCEvent> mEvents;
+
+	private boolean mFlushScheduled;
+	private boolean mDisposed;
+
+	public RuntimeDCEventQueue(BatchedRuntimeDCListener listener) {
+		mListener = listener;
+		mEvents = new ArrayList<RuntimeDCEvent>();
+		mFlushScheduled = false;
+		mDisposed = false;
+	}
+
+	public BatchedRuntimeDCListener getListener() {
+		return mListener;
+	}
+
+	public synchronized void add(RuntimeDCEvent event) {
+		if (mDisposed) {
+			return;
+		}
+
+		if (!mEvents.isEmpty()) {
+			int lastIndex = mEvents.size() - 1;
+			RuntimeDCEvent last = mEvents.get(lastIndex);
+			if (isSameOperation(last, event)) {
+				int lastKind = last.getKind();
+				switch (event.getKind()) {
+					case RuntimeDCEvent.KIND_DOCUMENT_CHANGE_UPDATED:
+						if (lastKind == RuntimeDCEvent.KIND_DOCUMENT_CHANGE_ADDED
+								|| lastKind == RuntimeDCEvent.KIND_DOCUMENT_CHANGE_UPDATED) {
+							return;
+						}
+						break;
+
+					case RuntimeDCEvent.KIND_DOCUMENT_CHANGE_AMENDED:
+						if (lastKind == RuntimeDCEvent.KIND_DOCUMENT_CHANGE_UPDATED) {
+							mEvents.set(lastIndex, event);
+							return;
+						}
+						break;
+
+					default:
+						break;
+				}
+			}
+		}
+
+		mEvents.add(event);
+
+		if (!mFlushScheduled) {
+			mFlushScheduled = true;
+			scheduleFlush();
+		}
+	}
+
+	private static boolean isSameOperation(RuntimeDCEvent lhs, RuntimeDCEvent rhs) {
+		OperationId lhsId = lhs.getOperationId();
+		return lhsId != null && lhsId.equals(rhs.getOperationId());
+	}
+
+	/**
+	 * Delivers all the events in the queue to the listener right now.
+	 * Must be called from the SWT UI thread.
+	 */
+	public void flush() {
+		List<RuntimeDCEvent> events;
+		synchronized (this) {
+			events = mEvents;
+			mEvents = new ArrayList<RuntimeDCEvent>();
+			mFlushScheduled = false;
+
+			if (mDisposed) {
+				return;
+			}
+		}
+
+		if (!events.isEmpty()) {
+			mListener.runtimeDCEventsFired(Collections.unmodifiableList(events));
+		}
+	}
+
+	public synchronized void dispose() {
+		mDisposed = true;
+		mEvents.clear();
+	}
+
+	/* package */ synchronized int size() {
+		return mEvents.size();
+	}
+
+	protected void scheduleFlush() {
+		final Display display = Display.getDefault();
+		Runnable timer = new Runnable() {
+			@Override
+			public void run() {
+				display.timerExec(FRAME_INTERVAL, new Runnable() {
+					@Override
+					public void run() {
+						flush();
+					}
+				});
+			}
+		};
+
+		if (display.getThread() == Thread.currentThread()) {
+			timer.run();
+		} else {
+			display.asyncExec(timer);
+		}
+	}
+
+}
@@ -0,0 +1,175 @@
+package edu.cmu.scs.azurite.model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.cmu.scs.azurite.commands.runtime.RuntimeDC;
+
+/**
+ * Indexes the runtime DCs of a single file by their operation ids and their
+ * timestamps, so that they can be looked up without scanning the whole list.
+ *
+ * The index follows the list lazily. The runtime DCs added at the end of the
+ * list are indexed when the index is used next time. When the list is
+ * changed in any other way, {@link #truncate(int)} must be called.
+ *
+ * The range lookups by the timestamps or by the operation ids are only
+ * available while the list is sorted by them, which is usually the case.
+ * Otherwise, the callers should scan the list.
+ */
+class RuntimeDCIndex {
+
+	private List<RuntimeDC> mList;
+
+	private int mSize;
+	private long[] mTimestamps;
+	private OperationId[] mIds;
+	private Map<OperationId, Integer> mPositions;
+
+	// The first position which is out of order, or Integer.MAX_VALUE if none.
+	private int mFirstUnsortedTimestamp;
+	private int mFirstUnsortedId;
+
+	public RuntimeDCIndex(List<RuntimeDC> list) {
+		mList = list;
+
+		mTimestamps = new long[16];
+		mIds = new OperationId[16];
+		mPositions = new HashMap<OperationId, Integer>();
+		truncate(0);
+	}
+
+	public static long getAbsTimestamp(RuntimeDC runtimeDC) {
+		return runtimeDC.getOriginal().getSessionId() + runtimeDC.getOriginal().getTimestamp();
+	}
+
+	/**
+	 * Drops the runtime DCs from the given position from the index, because
+	 * they are removed from the list or replaced. They are indexed again from
+	 * the list as needed.
+	 * @param size the number of the runtime DCs which are still valid.
+	 */
+	public void truncate(int size) {
+		if (size == 0) {
+			mPositions.clear();
+		} else {
+			for (int i = size; i < mSize; ++i) {
+				Integer position = mPositions.get(mIds[i]);
+				if (position != null && position >= size) {
+					mPositions.remove(mIds[i]);
+				}
+			}
+		}
+
+		mSize = Math.min(mSize, size);
+		mFirstUnsortedTimestamp = Math.min(mFirstUnsortedTimestamp, mSize);
+		mFirstUnsortedId = Math.min(mFirstUnsortedId, mSize);
+
+		// Nothing is out of order among the remaining ones.
+		if (mFirstUnsortedTimestamp == mSize) {
+			mFirstUnsortedTimestamp = Integer.MAX_VALUE;
+		}
+		if (mFirstUnsortedId == mSize) {
+			mFirstUnsortedId = Integer.MAX_VALUE;
+		}
+	}
+
+	private void sync() {
+		if (mSize > mList.size()) {
+			throw new IllegalStateException("The list has been changed without truncating the index.");
+		}
+
+		if (mList.size() > mTimestamps.length) {
+			int capacity = Math.max(mList.size(), mTimestamps.length * 2);
+			mTimestamps = Arrays.copyOf(mTimestamps, capacity);
+			mIds = Arrays.copyOf(mIds, capacity);
+		}
+
+		for (int i = mSize; i < mList.size(); ++i) {
+			RuntimeDC runtimeDC = mList.get(i);
+			mTimestamps[i] = getAbsTimestamp(runtimeDC);
+			mIds[i] = runtimeDC.getOperationId();
+			// Keep the first one, if the same id appears more than once.
+			if (!mPositions.containsKey(mIds[i])) {
+				mPositions.put(mIds[i], i);
+			}
+
+			if (i > 0 && mTimestamps[i] < mTimestamps[i - 1] && mFirstUnsortedTimestamp > i) {
+				mFirstUnsortedTimestamp = i;
+			}
+			if (i > 0 && mIds[i].compareTo(mIds[i - 1]) < 0 && mFirstUnsortedId > i) {
+				mFirstUnsortedId = i;
+			}
+		}
+
+		mSize = mList.size();
+	}
+
+	/**
+	 * @param id the operation id.
+	 * @return the position of the runtime DC with the given id, or -1 if there is none.
+	 */
+	public int indexOf(OperationId id) {
+		sync();
+
+		Integer position = mPositions.get(id);
+		return position != null ? position : -1;
+	}
+
+	public boolean isSortedByTimestamp() {
+		sync();
+		return mFirstUnsortedTimestamp > mSize;
+	}
+
+	public boolean isSortedById() {
+		sync();
+		return mFirstUnsortedId > mSize;
+	}
+
+	/**
+	 * Only valid when the list is sorted by the timestamps.
+	 * @param absTimestamp the absolute timestamp.
+	 * @return the first position whose timestamp is no less than the given one.
+	 */
+	public int lowerBoundOfTimestamp(long absTimestamp) {
+		sync();
+
+		int low = 0;
+		int high = mSize;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (mTimestamps[mid] < absTimestamp) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+
+		return low;
+	}
+
+	/**
+	 * Only valid when the list is sorted by the operation ids.
+	 * @param id the operation id.
+	 * @return the first position whose operation id is greater than the given one.
+	 */
+	public int upperBoundOfId(OperationId id) {
+		sync();
+
+		int low = 0;
+		int high = mSize;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (mIds[mid].compareTo(id) <= 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+
+		return low;
+	}
+
+}
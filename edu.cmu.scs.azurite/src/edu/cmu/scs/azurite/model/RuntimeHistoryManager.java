@@ -3,15 +3,20 @@ package edu.cmu.scs.azurite.model;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
 
 import org.eclipse.core.runtime.ListenerList;
 
 import edu.cmu.scs.azurite.commands.diff.IDiffDC;
 import edu.cmu.scs.azurite.commands.runtime.RuntimeDC;
 import edu.cmu.scs.azurite.commands.runtime.Segment;
+import edu.cmu.scs.azurite.commands.runtime.SegmentIntervalTree;
 import edu.cmu.scs.fluorite.commands.AnnotateCommand;
 import edu.cmu.scs.fluorite.commands.BaseDocumentChangeEvent;
 import edu.cmu.scs.fluorite.commands.EclipseCommand;
@@ -30,11 +35,22 @@ public class RuntimeHistoryManager implements DocumentChangeListener, CommandExe
 	private Map<FileKey, Integer> mNextIndexToApply;
 	
 	private Map<FileKey, List<RuntimeDC>> mDocumentChanges;
+	
+	// operation id and timestamp index of the runtime DCs of each file.
+	private Map<FileKey, RuntimeDCIndex> mIndices;
+	
+	// live segments of each file, ordered by their current offsets.
+	private Map<FileKey, SegmentIntervalTree> mSegmentTrees;
 	private FileKey mCurrentFileKey;
 	
+	private HistorySearchIndex mHistorySearchIndex;
+	
 	private List<ICommand> mEventsToBeDisplayed;
 	
 	private ListenerList mRuntimeDocumentChangeListeners;
+	
+	// Event queues of the batched listeners.
+	private ListenerList mBatchedListenerQueues;
 
 	private List<Runnable> mScheduledTasks;
 	
@@ -43,6 +59,12 @@ public class RuntimeHistoryManager implements DocumentChangeListener, CommandExe
 	// Keep the document changes made in the current session separately.
 	private Events mCurrentSessionEvents;
 	
+	// Held while the segments are being changed.
+	private Object mSegmentLock;
+	
+	// Contents of the files changed outside of the editors, as recorded.
+	private Map<FileKey, String> mRecordedSnapshots;
+	
 	/**
 	 * Basic constructor. Only use this public constructor for testing purposes!
 	 * Otherwise, use <code>getInstance</code> static method instead.
@@ -51,11 +73,14 @@ public class RuntimeHistoryManager implements DocumentChangeListener, CommandExe
 		clearData();
 		
 		mRuntimeDocumentChangeListeners = new ListenerList();
+		mBatchedListenerQueues = new ListenerList();
 		
 		mScheduledTasks = new ArrayList<Runnable>();
 		
 		mStarted = false;
 		
+		mSegmentLock = new Object();
+		
 		long startTimestamp = EventRecorder.getInstance().getStartTimestamp();
 		mCurrentSessionEvents = new Events(Collections.<ICommand> emptyList(),
 				"Current Session", Long.toString(startTimestamp), "",
@@ -64,8 +89,12 @@ public class RuntimeHistoryManager implements DocumentChangeListener, CommandExe
 
 	private void clearData() {
 		mDocumentChanges = new HashMap<FileKey, List<RuntimeDC>>();
+		mIndices = new HashMap<FileKey, RuntimeDCIndex>();
 		mNextIndexToApply = new HashMap<FileKey, Integer>();
+		mSegmentTrees = new HashMap<FileKey, SegmentIntervalTree>();
+		mRecordedSnapshots = new HashMap<FileKey, String>();
 		mCurrentFileKey = null;
+		mHistorySearchIndex = new HistorySearchIndex();
 		mEventsToBeDisplayed = new ArrayList<ICommand>();
 	}
 
@@ -129,40 +158,90 @@ public class RuntimeHistoryManager implements DocumentChangeListener, CommandExe
 		mRuntimeDocumentChangeListeners.remove(listener);
 	}
 	
+	/**
+	 * Add batched runtime document change listener, which receives the events
+	 * in batches at most once per frame, on the UI thread.
+	 * @param listener
+	 */
+	public void addBatchedRuntimeDocumentChangeListener(BatchedRuntimeDCListener listener) {
+		mBatchedListenerQueues.add(new RuntimeDCEventQueue(listener));
+	}
+	
+	/**
+	 * Remove batched runtime document change listener. The events not
+	 * delivered yet are discarded.
+	 * @param listener
+	 */
+	public void removeBatchedRuntimeDocumentChangeListener(BatchedRuntimeDCListener listener) {
+		for (Object queueObj : mBatchedListenerQueues.getListeners()) {
+			RuntimeDCEventQueue queue = (RuntimeDCEventQueue) queueObj;
+			if (queue.getListener() == listener) {
+				queue.dispose();
+				mBatchedListenerQueues.remove(queue);
+			}
+		}
+	}
+	
+	/**
+	 * Delivers the pending events to the given batched listener right now.
+	 * Must be called from the SWT UI thread.
+	 * @param listener
+	 */
+	public void flushBatchedEvents(BatchedRuntimeDCListener listener) {
+		for (Object queueObj : mBatchedListenerQueues.getListeners()) {
+			RuntimeDCEventQueue queue = (RuntimeDCEventQueue) queueObj;
+			if (queue.getListener() == listener) {
+				queue.flush();
+			}
+		}
+	}
+	
+	private void fireBatchedEvent(RuntimeDCEvent event) {
+		for (Object queueObj : mBatchedListenerQueues.getListeners()) {
+			((RuntimeDCEventQueue) queueObj).add(event);
+		}
+	}
+	
 	private void fireActiveFileChangedEvent(String projectName, String filePath) {
 		for (Object listenerObj : mRuntimeDocumentChangeListeners.getListeners()) {
 			((RuntimeDCListener)listenerObj).activeFileChanged(projectName, filePath);
 		}
+		fireBatchedEvent(RuntimeDCEvent.activeFileChanged(projectName, filePath));
 	}
 	
 	private void fireRuntimeDCAddedEvent(RuntimeDC docChange) {
 		for (Object listenerObj : mRuntimeDocumentChangeListeners.getListeners()) {
 			((RuntimeDCListener)listenerObj).runtimeDCAdded(docChange);
 		}
+		fireBatchedEvent(RuntimeDCEvent.runtimeDCAdded(docChange));
 	}
 	
 	private void fireDocumentChangeAddedEvent(BaseDocumentChangeEvent docChange) {
 		for (Object listenerObj : mRuntimeDocumentChangeListeners.getListeners()) {
 			((RuntimeDCListener)listenerObj).documentChangeAdded(docChange);
 		}
+		fireBatchedEvent(RuntimeDCEvent.documentChangeAdded(docChange));
 	}
 	
 	private void fireDocumentChangeUpdatedEvent(BaseDocumentChangeEvent docChange) {
 		for (Object listenerObj : mRuntimeDocumentChangeListeners.getListeners()) {
 			((RuntimeDCListener)listenerObj).documentChangeUpdated(docChange);
 		}
+		fireBatchedEvent(RuntimeDCEvent.documentChangeUpdated(docChange));
 	}
 	
 	private void firePastLogsReadEvent(List<Events> events) {
 		for (Object listenerObj : mRuntimeDocumentChangeListeners.getListeners()) {
 			((RuntimeDCListener)listenerObj).pastLogsRead(events);
 		}
+		fireBatchedEvent(RuntimeDCEvent.pastLogsRead(events));
 	}
 	
 	private void fireDocumentChangeAmendedEvent(BaseDocumentChangeEvent oldDocChange, BaseDocumentChangeEvent newDocChange) {
 		for (Object listenerObj : mRuntimeDocumentChangeListeners.getListeners()) {
 			((RuntimeDCListener)listenerObj).documentChangeAmended(oldDocChange, newDocChange);
 		}
+		fireBatchedEvent(RuntimeDCEvent.documentChangeAmended(oldDocChange, newDocChange));
 	}
 	
 	public Set<FileKey> getFileKeys() {
@@ -222,6 +301,10 @@ public class RuntimeHistoryManager implements DocumentChangeListener, CommandExe
 		mCurrentFileKey = newFileKey;
 	}
 	
+	public HistorySearchIndex getHistorySearchIndex() {
+		return mHistorySearchIndex;
+	}
+	
 	public List<ICommand> getEventsToBeDisplayed() {
 		return Collections.unmodifiableList(mEventsToBeDisplayed);
 	}
@@ -237,12 +320,24 @@ public class RuntimeHistoryManager implements DocumentChangeListener, CommandExe
 		activeFileChanged(foc.getProjectName(), foc.getFilePath(),
 				foc.getSnapshot());
 		
+		// The changes made outside of the editors are already in the history.
+		String prevSnapshot = foc.getPrevSnapshot();
+		String recordedSnapshot = mRecordedSnapshots.remove(getCurrentFileKey());
+		if (recordedSnapshot != null) {
+			prevSnapshot = recordedSnapshot;
+		}
+		
+		// The diffs between the two snapshots are indexed as well, if any.
+		mHistorySearchIndex.fileOpened(getCurrentFileKey(),
+				foc.getSnapshot() != null && prevSnapshot != null
+						? prevSnapshot : foc.getSnapshot());
+		
 		// If there was a change between the two snapshots..
 		// This can only happen for the current session, because the past log
 		// files don't have the prevSnapshot value.
-		if (foc.getSnapshot() != null && foc.getPrevSnapshot() != null) {
+		if (foc.getSnapshot() != null && prevSnapshot != null) {
 			PastHistoryManager.getInstance().injectDiffDCs(getCurrentFileKey(),
-					foc.getPrevSnapshot(), foc.getSnapshot(),	// before and after.
+					prevSnapshot, foc.getSnapshot(),			// before and after.
 					foc.getSessionId(), foc.getTimestamp(),		// sessionid, timestamp.
 					true,										// auto assign command id in this case.
 					new IAddCommand() {							// what to do with the created diffs.
@@ -259,6 +354,50 @@ public class RuntimeHistoryManager implements DocumentChangeListener, CommandExe
 		}
 	}
 
+	/**
+	 * Records the changes made to the given file outside of the editors, e.g.,
+	 * through its file buffer, as the diffs between the two contents.
+	 * The diffs are not recorded again when the file is opened later.
+	 */
+	public void fileChangedOutsideEditor(final FileKey key, String before, String after) {
+		if (before.equals(after)) {
+			return;
+		}
+		
+		if (!mDocumentChanges.containsKey(key)) {
+			addFile(key, new ArrayList<RuntimeDC>());
+		}
+		
+		// Show the diffs under the changed file, and then switch back.
+		fireActiveFileChangedEvent(key.getProjectName(), key.getFilePath());
+		
+		long sessionId = EventRecorder.getInstance().getStartTimestamp();
+		PastHistoryManager.getInstance().injectDiffDCs(key, before, after,
+				sessionId, System.currentTimeMillis() - sessionId, true,
+				new IAddCommand() {
+					@Override
+					public void addCommand(ICommand command) {
+						if (command instanceof BaseDocumentChangeEvent) {
+							BaseDocumentChangeEvent docChange =
+									(BaseDocumentChangeEvent) command;
+							fireDocumentChangeAddedEvent(docChange);
+							mCurrentSessionEvents.addCommand(docChange);
+							
+							mHistorySearchIndex.documentChangeFinalized(key, docChange);
+							addRuntimeDCFromOriginalDC(docChange, key);
+						}
+					}
+				});
+		
+		FileKey currentFileKey = getCurrentFileKey();
+		if (currentFileKey != null) {
+			fireActiveFileChangedEvent(currentFileKey.getProjectName(),
+					currentFileKey.getFilePath());
+		}
+		
+		mRecordedSnapshots.put(key, after);
+	}
+
 	/**
 	 * Simply updates the current file path.
 	 */
@@ -268,8 +407,7 @@ public class RuntimeHistoryManager implements DocumentChangeListener, CommandExe
 		setCurrentFileKey(key);
 		
 		if (!mDocumentChanges.containsKey(key)) {
-			mDocumentChanges.put(key, new ArrayList<RuntimeDC>());
-			mNextIndexToApply.put(key, 0);
+			addFile(key, new ArrayList<RuntimeDC>());
 		}
 		
 		fireActiveFileChangedEvent(key.getProjectName(), key.getFilePath());
@@ -280,7 +418,10 @@ public class RuntimeHistoryManager implements DocumentChangeListener, CommandExe
 		// Apply to the current file.
 		if (snapshot != null) {
 			getRuntimeDocumentChanges().clear();
+			mIndices.get(getCurrentFileKey()).truncate(0);
 			mNextIndexToApply.put(getCurrentFileKey(), 0);
+			mSegmentTrees.get(getCurrentFileKey()).clear();
+			mHistorySearchIndex.reset(getCurrentFileKey(), snapshot);
 		}
 	}
 
@@ -298,6 +439,7 @@ public class RuntimeHistoryManager implements DocumentChangeListener, CommandExe
 	
 	@Override
 	public void documentChangeFinalized(BaseDocumentChangeEvent docChange) {
+		mHistorySearchIndex.documentChangeFinalized(getCurrentFileKey(), docChange);
 		addRuntimeDCFromOriginalDC(docChange);
 	}
 	
@@ -330,12 +472,24 @@ public class RuntimeHistoryManager implements DocumentChangeListener, CommandExe
 			throw new IllegalArgumentException();
 		}
 		
-		return filterDocumentChanges(key, new IRuntimeDCFilter() {
-			@Override
-			public boolean filter(RuntimeDC runtimeDC) {
-				return ids.contains(runtimeDC.getOperationId());
+		List<RuntimeDC> list = getDocumentChangesToBeFiltered(key, true);
+		RuntimeDCIndex index = mIndices.get(key);
+		
+		// Keep the original order of the runtime DCs.
+		SortedSet<Integer> positions = new TreeSet<Integer>();
+		for (OperationId id : ids) {
+			int position = index.indexOf(id);
+			if (position != -1) {
+				positions.add(position);
 			}
-		});
+		}
+		
+		List<RuntimeDC> result = new ArrayList<RuntimeDC>();
+		for (int position : positions) {
+			result.add(list.get(position));
+		}
+		
+		return result;
 	}
 	
 	public List<RuntimeDC> filterDocumentChangesByIds(final List<OperationId> ids) {
@@ -343,23 +497,17 @@ public class RuntimeHistoryManager implements DocumentChangeListener, CommandExe
 	}
 	
 	public RuntimeDC filterDocumentChangeById(FileKey key, final OperationId id) {
+		return filterDocumentChangeById(key, id, true);
+	}
+	
+	private RuntimeDC filterDocumentChangeById(FileKey key, OperationId id, boolean calculate) {
 		if (key == null || id == null) {
 			throw new IllegalArgumentException();
 		}
 		
-		List<RuntimeDC> intermediateResult = filterDocumentChanges(key,
-				new IRuntimeDCFilter() {
-			@Override
-			public boolean filter(RuntimeDC runtimeDC) {
-				return id.equals(runtimeDC.getOperationId());
-			}
-		});
-		
-		if (intermediateResult == null || intermediateResult.isEmpty()) {
-			return null;
-		} else {
-			return intermediateResult.get(0);
-		}
+		List<RuntimeDC> list = getDocumentChangesToBeFiltered(key, calculate);
+		int position = mIndices.get(key).indexOf(id);
+		return position != -1 ? list.get(position) : null;
 	}
 
 	public List<RuntimeDC> filterDocumentChangesGreaterThanId(final OperationId id) {
@@ -371,12 +519,18 @@ public class RuntimeHistoryManager implements DocumentChangeListener, CommandExe
 			throw new IllegalArgumentException();
 		}
 		
+		List<RuntimeDC> list = getDocumentChangesToBeFiltered(key, true);
+		RuntimeDCIndex index = mIndices.get(key);
+		if (index.isSortedById()) {
+			return new ArrayList<RuntimeDC>(list.subList(index.upperBoundOfId(id), list.size()));
+		}
+		
 		return filterDocumentChanges(key, new IRuntimeDCFilter() {
 			@Override
 			public boolean filter(RuntimeDC runtimeDC) {
 				return id.compareTo(runtimeDC.getOperationId()) < 0;
 			}
-		});
+		}, false);
 	}
 	
 	public List<RuntimeDC> filterDocumentChangesLaterThanTimestamp(final long absTimestamp) {
@@ -384,18 +538,7 @@ public class RuntimeHistoryManager implements DocumentChangeListener, CommandExe
 	}
 	
 	public List<RuntimeDC> filterDocumentChangesLaterThanTimestamp(FileKey key, final long absTimestamp) {
-		if (key == null) {
-			throw new IllegalArgumentException();
-		}
-		
-		return filterDocumentChanges(key, new IRuntimeDCFilter() {
-			@Override
-			public boolean filter(RuntimeDC runtimeDC) {
-				long timestamp = runtimeDC.getOriginal().getSessionId() + runtimeDC.getOriginal().getTimestamp();
-				
-				return absTimestamp < timestamp;
-			}
-		});
+		return filterDocumentChangesByTimestamps(key, absTimestamp + 1, Long.MAX_VALUE, true);
 	}
 	
 	public List<RuntimeDC> filterDocumentChangesLaterThanOrEqualToTimestamp(final long absTimestamp) {
@@ -403,18 +546,11 @@ public class RuntimeHistoryManager implements DocumentChangeListener, CommandExe
 	}
 	
 	public List<RuntimeDC> filterDocumentChangesLaterThanOrEqualToTimestamp(FileKey key, final long absTimestamp) {
-		if (key == null) {
-			throw new IllegalArgumentException();
-		}
-		
-		return filterDocumentChanges(key, new IRuntimeDCFilter() {
-			@Override
-			public boolean filter(RuntimeDC runtimeDC) {
-				long timestamp = runtimeDC.getOriginal().getSessionId() + runtimeDC.getOriginal().getTimestamp();
-				
-				return absTimestamp <= timestamp;
-			}
-		});
+		return filterDocumentChangesLaterThanOrEqualToTimestamp(key, absTimestamp, true);
+	}
+	
+	public List<RuntimeDC> filterDocumentChangesLaterThanOrEqualToTimestamp(FileKey key, final long absTimestamp, boolean calculate) {
+		return filterDocumentChangesByTimestamps(key, absTimestamp, Long.MAX_VALUE, calculate);
 	}
 	
 	public List<RuntimeDC> filterDocumentChangesEarlierThanTimestamp(final long absTimestamp) {
@@ -422,18 +558,11 @@ public class RuntimeHistoryManager implements DocumentChangeListener, CommandExe
 	}
 	
 	public List<RuntimeDC> filterDocumentChangesEarlierThanTimestamp(FileKey key, final long absTimestamp) {
-		if (key == null) {
-			throw new IllegalArgumentException();
-		}
-		
-		return filterDocumentChanges(key, new IRuntimeDCFilter() {
-			@Override
-			public boolean filter(RuntimeDC runtimeDC) {
-				long timestamp = runtimeDC.getOriginal().getSessionId() + runtimeDC.getOriginal().getTimestamp();
-				
-				return absTimestamp > timestamp;
-			}
-		});
+		return filterDocumentChangesEarlierThanTimestamp(key, absTimestamp, true);
+	}
+	
+	public List<RuntimeDC> filterDocumentChangesEarlierThanTimestamp(FileKey key, final long absTimestamp, boolean calculate) {
+		return filterDocumentChangesByTimestamps(key, Long.MIN_VALUE, absTimestamp, calculate);
 	}
 	
 	public List<RuntimeDC> filterDocumentChangesEarlierThanOrEqualToTimestamp(final long absTimestamp) {
@@ -441,18 +570,7 @@ public class RuntimeHistoryManager implements DocumentChangeListener, CommandExe
 	}
 	
 	public List<RuntimeDC> filterDocumentChangesEarlierThanOrEqualToTimestamp(FileKey key, final long absTimestamp) {
-		if (key == null) {
-			throw new IllegalArgumentException();
-		}
-		
-		return filterDocumentChanges(key, new IRuntimeDCFilter() {
-			@Override
-			public boolean filter(RuntimeDC runtimeDC) {
-				long timestamp = runtimeDC.getOriginal().getSessionId() + runtimeDC.getOriginal().getTimestamp();
-				
-				return absTimestamp >= timestamp;
-			}
-		});
+		return filterDocumentChangesByTimestamps(key, Long.MIN_VALUE, absTimestamp + 1, true);
 	}
 	
 	public List<RuntimeDC> filterDocumentChangesLaterThanOrEqualToAndEarlierThanTimestamps(final long absTimestampStart, final long absTimestampEnd) {
@@ -460,60 +578,74 @@ public class RuntimeHistoryManager implements DocumentChangeListener, CommandExe
 	}
 	
 	public List<RuntimeDC> filterDocumentChangesLaterThanOrEqualToAndEarlierThanTimestamps(FileKey key, final long absTimestampStart, final long absTimestampEnd) {
+		return filterDocumentChangesLaterThanOrEqualToAndEarlierThanTimestamps(key, absTimestampStart, absTimestampEnd, true);
+	}
+	
+	public List<RuntimeDC> filterDocumentChangesLaterThanOrEqualToAndEarlierThanTimestamps(FileKey key, final long absTimestampStart, final long absTimestampEnd, boolean calculate) {
+		return filterDocumentChangesByTimestamps(key, absTimestampStart, absTimestampEnd, calculate);
+	}
+	
+	/**
+	 * Returns the runtime DCs whose timestamps are within the
+	 * [absTimestampStart, absTimestampEnd) range. The runtime DCs are found
+	 * by binary search when the file's list is sorted by the timestamps.
+	 */
+	private List<RuntimeDC> filterDocumentChangesByTimestamps(FileKey key,
+			final long absTimestampStart, final long absTimestampEnd, boolean calculate) {
 		if (key == null) {
 			throw new IllegalArgumentException();
 		}
 		
+		List<RuntimeDC> list = getDocumentChangesToBeFiltered(key, calculate);
+		RuntimeDCIndex index = mIndices.get(key);
+		if (index.isSortedByTimestamp()) {
+			if (absTimestampStart >= absTimestampEnd) {
+				return new ArrayList<RuntimeDC>();
+			}
+			
+			return new ArrayList<RuntimeDC>(list.subList(
+					index.lowerBoundOfTimestamp(absTimestampStart),
+					index.lowerBoundOfTimestamp(absTimestampEnd)));
+		}
+		
 		return filterDocumentChanges(key, new IRuntimeDCFilter() {
 			@Override
 			public boolean filter(RuntimeDC runtimeDC) {
-				long timestamp = runtimeDC.getOriginal().getSessionId() + runtimeDC.getOriginal().getTimestamp();
+				long timestamp = RuntimeDCIndex.getAbsTimestamp(runtimeDC);
 				
 				return absTimestampStart <= timestamp && timestamp < absTimestampEnd;
 			}
-		});
+		}, false);
 	}
 	
 	public RuntimeDC filterDocumentChangeByIdWithoutCalculating(FileKey key, final OperationId id) {
-		if (key == null || id == null) {
-			throw new IllegalArgumentException();
-		}
-		
-		List<RuntimeDC> intermediateResult = filterDocumentChanges(key,
-				new IRuntimeDCFilter() {
-			@Override
-			public boolean filter(RuntimeDC runtimeDC) {
-				return id.equals(runtimeDC.getOperationId());
-			}
-		}, false);
-		
-		if (intermediateResult == null || intermediateResult.isEmpty()) {
-			return null;
-		} else {
-			return intermediateResult.get(0);
-		}
+		return filterDocumentChangeById(key, id, false);
 	}
 	
 	public List<RuntimeDC> filterDocumentChangesByRegion(final int startOffset, final int endOffset) {
 		return filterDocumentChangesByRegion(getCurrentFileKey(), startOffset, endOffset);
 	}
 	
+	/**
+	 * Returns the runtime DCs having a segment which overlaps with the given
+	 * region, i.e., starts before endOffset and effectively ends after
+	 * startOffset. The segment tree of the file is used to find them, so only
+	 * the segments around the region are visited.
+	 */
 	public List<RuntimeDC> filterDocumentChangesByRegion(FileKey key, final int startOffset, final int endOffset) {
-		return filterDocumentChanges(key, new IRuntimeDCFilter() {
-			@Override
-			public boolean filter(RuntimeDC runtimeDC) {
-				List<Segment> segments = runtimeDC.getAllSegments();
-				
-				for (Segment segment : segments) {
-					if (startOffset < segment.getEffectiveEndOffset() &&
-						segment.getOffset() < endOffset) {
-						return true;
-					}
-				}
-				
-				return false;
-			}
-		});
+		if (key == null) {
+			throw new IllegalArgumentException();
+		}
+		
+		// The segment tree is up-to-date only after the calculation.
+		List<RuntimeDC> list = getDocumentChangesToBeFiltered(key, true);
+		
+		List<RuntimeDC> result = new ArrayList<RuntimeDC>();
+		for (int index : mSegmentTrees.get(key).collectOwnersOverlapping(startOffset, endOffset)) {
+			result.add(list.get(index));
+		}
+		
+		return result;
 	}
 	
 	public List<RuntimeDC> filterDocumentChanges(IRuntimeDCFilter filter) {
@@ -529,13 +661,7 @@ public class RuntimeHistoryManager implements DocumentChangeListener, CommandExe
 			throw new IllegalArgumentException();
 		}
 		
-		// It's a little bit odd, but make sure that there's no pending document changes
-		// in the EventRecorder side
-		EventRecorder.getInstance().fireLastDocumentChangeFinalizedEvent();
-		
-		// Lazy-evaluation of the dynamic segments!
-		List<RuntimeDC> list = calculate ? calculateDynamicSegments(key) :
-			getRuntimeDocumentChanges(key);
+		List<RuntimeDC> list = getDocumentChangesToBeFiltered(key, calculate);
 		
 		// Then filter the results.
 		List<RuntimeDC> result = new ArrayList<RuntimeDC>();
@@ -557,14 +683,19 @@ public class RuntimeHistoryManager implements DocumentChangeListener, CommandExe
 			throw new IllegalArgumentException();
 		}
 		
+		// Only the timestamps are needed, so the segments are not calculated.
+		List<RuntimeDC> list = getDocumentChangesToBeFiltered(key, false);
+		RuntimeDCIndex index = mIndices.get(key);
+		if (index.isSortedByTimestamp()) {
+			return index.lowerBoundOfTimestamp(absTimestamp + 1) < list.size();
+		}
+		
 		return hasDocumentChanges(key, new IRuntimeDCFilter() {
 			@Override
 			public boolean filter(RuntimeDC runtimeDC) {
-				long timestamp = runtimeDC.getOriginal().getSessionId() + runtimeDC.getOriginal().getTimestamp();
-				
-				return absTimestamp < timestamp;
+				return absTimestamp < RuntimeDCIndex.getAbsTimestamp(runtimeDC);
 			}
-		});
+		}, false);
 	}
 	
 	public boolean hasDocumentChanges(IRuntimeDCFilter filter) {
@@ -580,13 +711,7 @@ public class RuntimeHistoryManager implements DocumentChangeListener, CommandExe
 			throw new IllegalArgumentException();
 		}
 		
-		// It's a little bit odd, but make sure that there's no pending document changes
-		// in the EventRecorder side
-		EventRecorder.getInstance().fireLastDocumentChangeFinalizedEvent();
-		
-		// Lazy-evaluation of the dynamic segments!
-		List<RuntimeDC> list = calculate ? calculateDynamicSegments(key) :
-			getRuntimeDocumentChanges(key);
+		List<RuntimeDC> list = getDocumentChangesToBeFiltered(key, calculate);
 		
 		// Then filter the results.
 		for (RuntimeDC dc : list) {
@@ -598,38 +723,151 @@ public class RuntimeHistoryManager implements DocumentChangeListener, CommandExe
 		return false;
 	}
 
+	private List<RuntimeDC> getDocumentChangesToBeFiltered(FileKey key, boolean calculate) {
+		// It's a little bit odd, but make sure that there's no pending document changes
+		// in the EventRecorder side
+		EventRecorder.getInstance().fireLastDocumentChangeFinalizedEvent();
+		
+		// Lazy-evaluation of the dynamic segments!
+		List<RuntimeDC> list = calculate ? calculateDynamicSegments(key) :
+			getRuntimeDocumentChanges(key);
+		if (list == null) {
+			throw new IllegalStateException();
+		}
+		
+		return list;
+	}
+	
+	/**
+	 * Returns the lock which is held while the segments of the runtime DCs are
+	 * being changed. Background jobs reading the segments should hold this
+	 * lock, and check {@link RuntimeDC#getHistoryVersion()} once they have it.
+	 */
+	public Object getSegmentLock() {
+		return mSegmentLock;
+	}
+	
 	public List<RuntimeDC> calculateDynamicSegments(FileKey fileKey) {
 		List<RuntimeDC> list = getRuntimeDocumentChanges(fileKey);
 		if (list == null) {
 			throw new IllegalStateException();
 		}
 		
-		for (int i = mNextIndexToApply.get(fileKey); i < list.size(); ++i) {
-			for (int j = 0; j < i; ++j) {
-				list.get(i).applyTo(list.get(j));
+		int nextIndex = mNextIndexToApply.get(fileKey);
+		if (nextIndex == list.size()) {
+			return list;
+		}
+		
+		synchronized (mSegmentLock) {
+			SegmentIntervalTree tree = mSegmentTrees.get(fileKey);
+			for (int i = nextIndex; i < list.size(); ++i) {
+				applyToPreviousDocumentChanges(list, i, tree);
 			}
+			
+			// Write back all the pending offset shifts to the segments.
+			tree.flush();
+			RuntimeDC.historyChanged();
 		}
+		
 		mNextIndexToApply.put(fileKey, list.size());
 		return list;
 	}
 	
-	public void pastLogsRead(List<Events> listEvents) {
-		// TODO implement history merging.
+	/**
+	 * Applies the index-th runtime DC to all the previous runtime DCs.
+	 * Only the runtime DCs having a segment around the replaced region are
+	 * actually visited, and all the other segments located after the region
+	 * are shifted at once by the segment tree.
+	 */
+	private void applyToPreviousDocumentChanges(List<RuntimeDC> list, int index,
+			SegmentIntervalTree tree) {
+		RuntimeDC docChange = list.get(index);
+		applyToDocumentChanges(docChange, list, tree);
 		
-		// Clear the entire history.
-		clearData();
+		for (Segment segment : docChange.getAllSegments()) {
+			tree.insert(segment, index);
+		}
+	}
+	
+	/**
+	 * Applies the given runtime DC to the runtime DCs in the list, whose
+	 * segments are all stored in the given tree.
+	 * @return the indices of the runtime DCs actually visited.
+	 */
+	private SortedSet<Integer> applyToDocumentChanges(RuntimeDC docChange,
+			List<RuntimeDC> list, SegmentIntervalTree tree) {
+		List<Segment> newSegments = docChange.getAllSegments();
 		
-		// Current session data should also be included.
-		List<Events> listAllEvents = new ArrayList<Events>();
-		listAllEvents.addAll(PastHistoryManager.getInstance().getPastEvents());
-		listAllEvents.add(mCurrentSessionEvents);
+		// Determine the region replaced by this change.
+		int startOffset = 0;
+		int deletedLength = 0;
+		int insertedLength = 0;
+		for (Segment segment : newSegments) {
+			startOffset = segment.getOffset();
+			if (segment.isDeletion()) {
+				deletedLength = segment.getLength();
+			} else {
+				insertedLength = segment.getLength();
+			}
+		}
+		int endOffset = startOffset + deletedLength;
+		
+		// Take out the segments of the affected DCs from the tree,
+		// so that they are not shifted twice.
+		SortedSet<Integer> affectedIndices = tree.collectOwnersAround(startOffset, endOffset);
+		for (int affectedIndex : affectedIndices) {
+			for (Segment segment : list.get(affectedIndex).getAllSegments()) {
+				tree.remove(segment);
+			}
+		}
 		
-		// Add document changes from the history.
-		for (Events events : listAllEvents) {
-			List<ICommand> commands = events.getCommands();
-			for (ICommand command : commands) {
+		// All the other segments located after the region are simply shifted.
+		tree.shift(endOffset, insertedLength - deletedLength);
+		
+		// Apply the change to the affected DCs, in the original order.
+		for (int affectedIndex : affectedIndices) {
+			RuntimeDC affectedDC = list.get(affectedIndex);
+			docChange.applyTo(affectedDC);
+			
+			for (Segment segment : affectedDC.getAllSegments()) {
+				tree.insert(segment, affectedIndex);
+			}
+		}
+		
+		return affectedIndices;
+	}
+	
+	public void pastLogsRead(List<Events> listEvents) {
+		// The newly read logs are older than everything already in the history,
+		// and they come first in the past events in chronological order.
+		List<Events> newPastEvents = new ArrayList<Events>();
+		Iterator<Events> it = PastHistoryManager.getInstance().getPastEvents().iterator();
+		for (int i = 0; i < listEvents.size() && it.hasNext(); ++i) {
+			newPastEvents.add(it.next());
+		}
+		
+		mergePastEvents(newPastEvents);
+
+		// Notify the listeners (mainly, Timeline View)
+		// Timeline view only needs the events newly added.
+		firePastLogsReadEvent(listEvents);
+	}
+	
+	/**
+	 * Merges the given past events, which are older than all the events
+	 * currently kept in the history, instead of rebuilding the entire history.
+	 * The current file is not changed.
+	 * @param pastEvents the past events in chronological order.
+	 */
+	/* package */ void mergePastEvents(List<Events> pastEvents) {
+		Map<FileKey, List<RuntimeDC>> pastDocumentChanges = new LinkedHashMap<FileKey, List<RuntimeDC>>();
+		List<ICommand> pastEventsToBeDisplayed = new ArrayList<ICommand>();
+		
+		FileKey currentKey = null;
+		for (Events events : pastEvents) {
+			for (ICommand command : events.getCommands()) {
 				if (shouldCommandBeDisplayed(command)) {
-					mEventsToBeDisplayed.add(command);
+					pastEventsToBeDisplayed.add(command);
 					continue;
 				}
 				
@@ -637,29 +875,111 @@ public class RuntimeHistoryManager implements DocumentChangeListener, CommandExe
 					continue;
 				}
 				
-				BaseDocumentChangeEvent docChange = (BaseDocumentChangeEvent)command;
-				if (docChange instanceof FileOpenCommand) {
-					processFileOpenCommand((FileOpenCommand)docChange);
-				} else {
-					processDocumentChange(docChange);
+				if (command instanceof FileOpenCommand) {
+					FileOpenCommand foc = (FileOpenCommand) command;
+					currentKey = new FileKey(foc.getProjectName(), foc.getFilePath());
+					if (!pastDocumentChanges.containsKey(currentKey)) {
+						pastDocumentChanges.put(currentKey, new ArrayList<RuntimeDC>());
+					}
+					continue;
+				}
+				
+				// Doc Change generated by Diff. (see PastHistoryManager)
+				FileKey key = command instanceof IDiffDC ? ((IDiffDC) command).getFileKey() : currentKey;
+				if (key == null) {
+					continue;
+				}
+				
+				if (!pastDocumentChanges.containsKey(key)) {
+					pastDocumentChanges.put(key, new ArrayList<RuntimeDC>());
 				}
+				
+				RuntimeDC runtimeDocChange = RuntimeDC.createRuntimeDocumentChange(
+						(BaseDocumentChangeEvent) command);
+				runtimeDocChange.setBelongsTo(key);
+				pastDocumentChanges.get(key).add(runtimeDocChange);
+			}
+		}
+		
+		for (Map.Entry<FileKey, List<RuntimeDC>> entry : pastDocumentChanges.entrySet()) {
+			prependDocumentChanges(entry.getKey(), entry.getValue());
+		}
+		
+		mEventsToBeDisplayed.addAll(0, pastEventsToBeDisplayed);
+		
+		for (List<RuntimeDC> list : pastDocumentChanges.values()) {
+			for (RuntimeDC runtimeDocChange : list) {
+				fireRuntimeDCAddedEvent(runtimeDocChange);
 			}
 		}
-
-		// Notify the listeners (mainly, Timeline View)
-		// Timeline view only needs the events newly added.
-		firePastLogsReadEvent(listEvents);
 	}
-
-	private void processDocumentChange(BaseDocumentChangeEvent docChange) {
-		// Doc Change generated by Diff. (see PastHistoryManager)
-		if (docChange instanceof IDiffDC) {
-			addRuntimeDCFromOriginalDC(docChange,
-					((IDiffDC) docChange).getFileKey());
-		} else {
-		// Normal Doc Changes.
-			addRuntimeDCFromOriginalDC(docChange);
+	
+	/**
+	 * Puts the older runtime DCs in front of the existing ones of the given file.
+	 * 
+	 * The existing runtime DCs are not affected by the older ones, because a
+	 * runtime DC is only applied to the previous ones. So, only the older
+	 * runtime DCs need to be calculated here: first among themselves, and then
+	 * by the existing runtime DCs which were already applied. The latter use
+	 * fresh copies created from their original events, and the conflicts and
+	 * the segment relationships made by the copies are taken over by the
+	 * existing runtime DCs.
+	 */
+	private void prependDocumentChanges(FileKey key, List<RuntimeDC> pastList) {
+		if (!mDocumentChanges.containsKey(key)) {
+			// Nothing has been calculated for this file yet.
+			addFile(key, new ArrayList<RuntimeDC>(pastList));
+			return;
+		}
+		
+		if (pastList.isEmpty()) {
+			return;
 		}
+		
+		List<RuntimeDC> list = mDocumentChanges.get(key);
+		int nextIndex = mNextIndexToApply.get(key);
+		
+		synchronized (mSegmentLock) {
+			// Calculate the older runtime DCs among themselves.
+			SegmentIntervalTree pastTree = new SegmentIntervalTree();
+			for (int i = 0; i < pastList.size(); ++i) {
+				applyToPreviousDocumentChanges(pastList, i, pastTree);
+			}
+			
+			// Apply the existing runtime DCs which were already applied.
+			for (int i = 0; i < nextIndex; ++i) {
+				RuntimeDC docChange = list.get(i);
+				RuntimeDC copy = docChange.createOriginalCopy();
+				
+				for (int affectedIndex : applyToDocumentChanges(copy, pastList, pastTree)) {
+					pastList.get(affectedIndex).replaceConflict(copy, docChange);
+				}
+				
+				docChange.takeOverRelationsFrom(copy);
+			}
+			
+			pastTree.flush();
+		}
+		
+		// Now, the older runtime DCs can simply be put in front.
+		SegmentIntervalTree tree = mSegmentTrees.get(key);
+		tree.shiftOwnerIndices(pastList.size());
+		for (int i = 0; i < pastList.size(); ++i) {
+			for (Segment segment : pastList.get(i).getAllSegments()) {
+				tree.insert(segment, i);
+			}
+		}
+		
+		list.addAll(0, pastList);
+		mIndices.get(key).truncate(0);
+		mNextIndexToApply.put(key, nextIndex + pastList.size());
+	}
+	
+	private void addFile(FileKey key, List<RuntimeDC> list) {
+		mDocumentChanges.put(key, list);
+		mIndices.put(key, new RuntimeDCIndex(list));
+		mNextIndexToApply.put(key, 0);
+		mSegmentTrees.put(key, new SegmentIntervalTree());
 	}
 
 	public Map<FileKey, List<RuntimeDC>> extractFileDCMapFromOperationIds(
@@ -738,7 +1058,9 @@ public class RuntimeHistoryManager implements DocumentChangeListener, CommandExe
 		
 		// Delete the last one from dcs, and add a new one.
 		dcs.remove(dcs.size() - 1);
+		mIndices.get(getCurrentFileKey()).truncate(dcs.size());
 		addRuntimeDCFromOriginalDC(newDocChange, getCurrentFileKey(), false);
+		mHistorySearchIndex.documentChangeAmended(getCurrentFileKey(), oldDocChange, newDocChange);
 		
 		// Also, amend the current session events.
 		int oldIndex = mCurrentSessionEvents.getCommands().indexOf(oldDocChange);
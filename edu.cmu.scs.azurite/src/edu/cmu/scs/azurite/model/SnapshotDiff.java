@@ -0,0 +1,342 @@
+package edu.cmu.scs.azurite.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import name.fraser.neil.plaintext.diff_match_patch;
+import name.fraser.neil.plaintext.diff_match_patch.Diff;
+import name.fraser.neil.plaintext.diff_match_patch.Operation;
+
+/**
+ * Computes the differences between two snapshots of a file.
+ *
+ * The snapshots are compared line by line first, by giving each distinct line
+ * an id. The lines which appear exactly once in both snapshots are matched
+ * first, and only the gaps between them are diffed by the line ids.
+ * Then only the changed hunks are compared character by character.
+ * Each step has a time limit. A part which could not be diffed in time is
+ * kept as a whole deletion and insertion, so the result is always valid.
+ *
+ * The recent results are cached by the pair of the snapshots, because the
+ * same pair of snapshots is often compared again when the logs are read.
+ */
+class SnapshotDiff {
+
+	private static final int CACHE_SIZE = 32;
+
+	// Time limit in seconds for each of the line diff and the refinement.
+	private static final float TIMEOUT = 1.0f;
+
+	// diff_match_patch does not limit the time at all when the timeout is not
+	// positive, so the remaining time is never less than this.
+	private static final float MIN_TIMEOUT = 0.001f;
+
+	private static class CacheEntry {
+		private String mBefore;
+		private String mAfter;
+		private List<Diff> mDiffs;
+
+		public CacheEntry(String before, String after, List<Diff> diffs) {
+			mBefore = before;
+			mAfter = after;
+			mDiffs = diffs;
+		}
+	}
+
+	private static Map<Long, CacheEntry> cache = new LinkedHashMap<Long, CacheEntry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, CacheEntry> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private SnapshotDiff() {
+	}
+
+	/**
+	 * @param before the old snapshot.
+	 * @param after the new snapshot.
+	 * @return the diffs which turn the old snapshot into the new one.
+	 *         The returned list must not be modified.
+	 */
+	public static List<Diff> compute(String before, String after) {
+		Long key = ((long) before.hashCode() << 32) | (after.hashCode() & 0xFFFFFFFFL);
+
+		synchronized (cache) {
+			CacheEntry entry = cache.get(key);
+			if (entry != null && entry.mBefore.equals(before) && entry.mAfter.equals(after)) {
+				return entry.mDiffs;
+			}
+		}
+
+		List<Diff> diffs = Collections.unmodifiableList(computeWithoutCache(before, after));
+
+		synchronized (cache) {
+			cache.put(key, new CacheEntry(before, after, diffs));
+		}
+
+		return diffs;
+	}
+
+	/* package */ static void clearCache() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	/* package */ static LinkedList<Diff> computeWithoutCache(String before, String after) {
+		diff_match_patch dmp = new diff_match_patch();
+
+		List<String> lines = new ArrayList<String>();
+		Map<String, Integer> lineIds = new HashMap<String, Integer>();
+		int[] beforeIds = splitLines(before, lines, lineIds);
+		int[] afterIds = splitLines(after, lines, lineIds);
+
+		long deadline = System.currentTimeMillis() + (long) (TIMEOUT * 1000);
+		LinkedList<Diff> lineDiffs = diffLines(dmp, beforeIds, afterIds, lines, deadline);
+
+		// Refine the hunks, which are the deletions and insertions between two equalities.
+		deadline = System.currentTimeMillis() + (long) (TIMEOUT * 1000);
+		LinkedList<Diff> result = new LinkedList<Diff>();
+		StringBuilder deleted = new StringBuilder();
+		StringBuilder inserted = new StringBuilder();
+		for (Diff diff : lineDiffs) {
+			switch (diff.operation) {
+				case DELETE:
+					deleted.append(diff.text);
+					break;
+
+				case INSERT:
+					inserted.append(diff.text);
+					break;
+
+				case EQUAL:
+					addHunk(dmp, deleted, inserted, deadline, result);
+					result.add(diff);
+					break;
+			}
+		}
+		addHunk(dmp, deleted, inserted, deadline, result);
+
+		dmp.diff_cleanupMerge(result);
+		return result;
+	}
+
+	private static LinkedList<Diff> diffLines(diff_match_patch dmp, int[] before,
+			int[] after, List<String> lines, long deadline) {
+		int[] beforeCounts = new int[lines.size()];
+		int[] afterCounts = new int[lines.size()];
+		int[] afterPositions = new int[lines.size()];
+		for (int i = 0; i < before.length; ++i) {
+			++beforeCounts[before[i]];
+		}
+		for (int i = 0; i < after.length; ++i) {
+			++afterCounts[after[i]];
+			afterPositions[after[i]] = i;
+		}
+
+		// The lines which appear exactly once in both snapshots are the anchors.
+		int anchorCount = 0;
+		int[] anchorsBefore = new int[before.length];
+		int[] anchorsAfter = new int[before.length];
+		for (int i = 0; i < before.length; ++i) {
+			if (beforeCounts[before[i]] == 1 && afterCounts[before[i]] == 1) {
+				anchorsBefore[anchorCount] = i;
+				anchorsAfter[anchorCount] = afterPositions[before[i]];
+				++anchorCount;
+			}
+		}
+
+		// Only the longest sequence of the anchors which are in the same order is used.
+		LinkedList<Diff> diffs = new LinkedList<Diff>();
+		StringBuilder equal = new StringBuilder();
+		int beforeStart = 0;
+		int afterStart = 0;
+		for (int anchor : longestIncreasingSubsequence(anchorsAfter, anchorCount)) {
+			int beforeEnd = anchorsBefore[anchor];
+			int afterEnd = anchorsAfter[anchor];
+			if (beforeStart < beforeEnd || afterStart < afterEnd) {
+				addEqual(equal, diffs);
+				addLineDiffs(dmp, before, beforeStart, beforeEnd, after, afterStart, afterEnd,
+						lines, deadline, diffs);
+			}
+
+			// The consecutive anchors are added as a single equality.
+			equal.append(lines.get(before[beforeEnd]));
+			beforeStart = beforeEnd + 1;
+			afterStart = afterEnd + 1;
+		}
+		addEqual(equal, diffs);
+		addLineDiffs(dmp, before, beforeStart, before.length, after, afterStart, after.length,
+				lines, deadline, diffs);
+
+		return diffs;
+	}
+
+	private static void addEqual(StringBuilder equal, LinkedList<Diff> result) {
+		if (equal.length() > 0) {
+			result.add(new Diff(Operation.EQUAL, equal.toString()));
+			equal.setLength(0);
+		}
+	}
+
+	/**
+	 * @return the indices of the longest increasing subsequence of the given values.
+	 */
+	private static List<Integer> longestIncreasingSubsequence(int[] values, int count) {
+		// tails[k] is the index of the smallest value which ends a subsequence of length k + 1.
+		int[] tails = new int[count];
+		int[] previous = new int[count];
+		int length = 0;
+		for (int i = 0; i < count; ++i) {
+			int low = 0;
+			int high = length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (values[tails[mid]] < values[i]) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+
+			previous[i] = low > 0 ? tails[low - 1] : -1;
+			tails[low] = i;
+			if (low == length) {
+				++length;
+			}
+		}
+
+		LinkedList<Integer> result = new LinkedList<Integer>();
+		for (int i = length > 0 ? tails[length - 1] : -1; i != -1; i = previous[i]) {
+			result.addFirst(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Diffs the given ranges of the lines, by replacing each distinct line in
+	 * the ranges with a single character.
+	 */
+	private static void addLineDiffs(diff_match_patch dmp,
+			int[] before, int beforeStart, int beforeEnd,
+			int[] after, int afterStart, int afterEnd,
+			List<String> lines, long deadline, LinkedList<Diff> result) {
+		if (beforeStart == beforeEnd && afterStart == afterEnd) {
+			return;
+		}
+
+		if (beforeStart == beforeEnd || afterStart == afterEnd
+				|| System.currentTimeMillis() >= deadline
+				|| beforeEnd - beforeStart + afterEnd - afterStart > Character.MAX_VALUE) {
+			if (beforeStart < beforeEnd) {
+				result.add(new Diff(Operation.DELETE, joinLines(before, beforeStart, beforeEnd, lines)));
+			}
+			if (afterStart < afterEnd) {
+				result.add(new Diff(Operation.INSERT, joinLines(after, afterStart, afterEnd, lines)));
+			}
+			return;
+		}
+
+		List<Integer> localLines = new ArrayList<Integer>();
+		Map<Integer, Character> localIds = new HashMap<Integer, Character>();
+		String beforeChars = linesToChars(before, beforeStart, beforeEnd, localLines, localIds);
+		String afterChars = linesToChars(after, afterStart, afterEnd, localLines, localIds);
+
+		// The deadline may have passed while converting the lines.
+		dmp.Diff_Timeout = Math.max(MIN_TIMEOUT,
+				(deadline - System.currentTimeMillis()) / 1000.0f);
+		for (Diff diff : dmp.diff_main(beforeChars, afterChars, false)) {
+			StringBuilder builder = new StringBuilder();
+			for (int i = 0; i < diff.text.length(); ++i) {
+				builder.append(lines.get(localLines.get(diff.text.charAt(i))));
+			}
+			diff.text = builder.toString();
+			result.add(diff);
+		}
+	}
+
+	private static void addHunk(diff_match_patch dmp, StringBuilder deleted,
+			StringBuilder inserted, long deadline, LinkedList<Diff> result) {
+		long remaining = deadline - System.currentTimeMillis();
+		if (deleted.length() > 0 && inserted.length() > 0 && remaining > 0) {
+			dmp.Diff_Timeout = remaining / 1000.0f;
+			result.addAll(dmp.diff_main(deleted.toString(), inserted.toString(), false));
+		} else {
+			if (deleted.length() > 0) {
+				result.add(new Diff(Operation.DELETE, deleted.toString()));
+			}
+			if (inserted.length() > 0) {
+				result.add(new Diff(Operation.INSERT, inserted.toString()));
+			}
+		}
+
+		deleted.setLength(0);
+		inserted.setLength(0);
+	}
+
+	/**
+	 * @return the ids of the lines of the given text. A line includes its line break.
+	 */
+	private static int[] splitLines(String text, List<String> lines, Map<String, Integer> lineIds) {
+		int lineCount = 0;
+		for (int lineStart = 0; lineStart < text.length(); ++lineCount) {
+			int lineEnd = text.indexOf('\n', lineStart);
+			lineStart = lineEnd == -1 ? text.length() : lineEnd + 1;
+		}
+
+		int[] ids = new int[lineCount];
+		int lineStart = 0;
+		for (int i = 0; i < lineCount; ++i) {
+			int lineEnd = text.indexOf('\n', lineStart);
+			lineEnd = lineEnd == -1 ? text.length() : lineEnd + 1;
+
+			String line = text.substring(lineStart, lineEnd);
+			Integer id = lineIds.get(line);
+			if (id == null) {
+				id = lines.size();
+				lines.add(line);
+				lineIds.put(line, id);
+			}
+
+			ids[i] = id;
+			lineStart = lineEnd;
+		}
+
+		return ids;
+	}
+
+	private static String linesToChars(int[] ids, int start, int end,
+			List<Integer> localLines, Map<Integer, Character> localIds) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = start; i < end; ++i) {
+			Character localId = localIds.get(ids[i]);
+			if (localId == null) {
+				localId = (char) localLines.size();
+				localLines.add(ids[i]);
+				localIds.put(ids[i], localId);
+			}
+
+			builder.append(localId.charValue());
+		}
+
+		return builder.toString();
+	}
+
+	private static String joinLines(int[] ids, int start, int end, List<String> lines) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = start; i < end; ++i) {
+			builder.append(lines.get(ids[i]));
+		}
+
+		return builder.toString();
+	}
+
+}
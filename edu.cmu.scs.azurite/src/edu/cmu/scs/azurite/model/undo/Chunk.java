@@ -4,9 +4,12 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.TreeSet;
@@ -22,6 +25,21 @@ import edu.cmu.scs.azurite.model.FileKey;
 @SuppressWarnings("serial")
 public class Chunk extends ArrayList<Segment> {
 	
+	// The results calculated from the conflicts are cached, and are valid
+	// while neither this chunk nor any runtime DC is modified.
+	private int mCacheModCount = -1;
+	private int mCacheHistoryVersion = -1;
+	
+	private List<RuntimeDC> mInvolvedChanges;
+	
+	// The runtime DCs first reached at each depth, when following the conflicts
+	// from the involved changes. The involved changes are at depth 0.
+	private List<List<RuntimeDC>> mExpansionLevels;
+	private Set<RuntimeDC> mExpansionVisited;
+	
+	private Map<Integer, Chunk> mExpandedChunksByDepth;
+	private Chunk mExpandedChunkInRange;
+	
 	public Chunk() {
 		super();
 	}
@@ -51,25 +69,10 @@ public class Chunk extends ArrayList<Segment> {
 		return getEndOffset() - getStartOffset();
 	}
 	
-	public boolean hasConflictOutsideThisChunk() {
-		// Determine all the runtime docChanges.
-		List<RuntimeDC> involvedDCs = getInvolvedChanges();
-		
-		// Iterate through the docChanges,
-		// and see if there are any conflicts outside of this chunk.
-		for (RuntimeDC dc : involvedDCs) {
-			List<RuntimeDC> conflicts =
-					dc.getConflicts();
-			
-			for (RuntimeDC conflict : conflicts) {
-				if (!involvedDCs.contains(conflict)) {
-					return true;
-				}
-			}
-		}
-		
-		// If nothing is found.
-		return false;
+	public synchronized boolean hasConflictOutsideThisChunk() {
+		// Any conflicts outside of this chunk are at depth 1.
+		List<List<RuntimeDC>> levels = getExpansionLevels(1);
+		return levels.size() > 1 && !levels.get(1).isEmpty();
 	}
 	
 	/**
@@ -77,7 +80,16 @@ public class Chunk extends ArrayList<Segment> {
 	 * the same region.
 	 * @return the expanded chunk object.
 	 */
-	public Chunk getExpandedChunkInRange() {
+	public synchronized Chunk getExpandedChunkInRange() {
+		validateCache();
+		if (mExpandedChunkInRange == null) {
+			mExpandedChunkInRange = calculateExpandedChunkInRange();
+		}
+		
+		return new Chunk(mExpandedChunkInRange);
+	}
+	
+	private Chunk calculateExpandedChunkInRange() {
 		Chunk result = new Chunk();
 		
 		// Flood fill.
@@ -118,41 +130,76 @@ public class Chunk extends ArrayList<Segment> {
 	 *            -1 if unlimited.
 	 * @return the expanded chunk object.
 	 */
-	public Chunk getExpandedChunkWithDepth(int depth) {
-		Chunk result = new Chunk();
+	public synchronized Chunk getExpandedChunkWithDepth(int depth) {
+		validateCache();
+		Chunk expandedChunk = mExpandedChunksByDepth.get(depth);
+		if (expandedChunk == null) {
+			expandedChunk = new Chunk();
+			for (List<RuntimeDC> level : getExpansionLevels(depth)) {
+				for (RuntimeDC dc : level) {
+					expandedChunk.addAll(dc.getAllSegments());
+				}
+			}
+			
+			Collections.sort(expandedChunk, Segment.getLocationComparator());
+			mExpandedChunksByDepth.put(depth, expandedChunk);
+		}
 		
-		// Flood fill.
-		Queue<Pair<RuntimeDC, Integer>> queue = new LinkedList<Pair<RuntimeDC, Integer>>();
-		for (RuntimeDC dc : getInvolvedChanges()) {
-			queue.add(new Pair<RuntimeDC, Integer>(dc, 0));
+		return new Chunk(expandedChunk);
+	}
+	
+	/**
+	 * Follows the conflicts breadth first, continuing from the levels found
+	 * by the previous calls.
+	 * @param depth maximum depth. -1 if unlimited.
+	 * @return the levels up to the given depth.
+	 */
+	private List<List<RuntimeDC>> getExpansionLevels(int depth) {
+		validateCache();
+		if (mExpansionLevels.isEmpty()) {
+			mExpansionLevels.add(getInvolvedChanges());
+			mExpansionVisited.addAll(getInvolvedChanges());
 		}
-		Set<RuntimeDC> set = new HashSet<RuntimeDC>();
 		
-		while (!queue.isEmpty()) {
-			Pair<RuntimeDC, Integer> pair = queue.remove();
-			RuntimeDC dc = pair.getFirst();
-			
-			if (set.contains(dc)) {
-				continue;
+		while (depth == -1 || mExpansionLevels.size() <= depth) {
+			List<RuntimeDC> lastLevel = mExpansionLevels.get(mExpansionLevels.size() - 1);
+			if (lastLevel.isEmpty()) {
+				break;
 			}
-
-			set.add(dc);
-			result.addAll(dc.getAllSegments());
 			
-			if (depth != -1 && pair.getSecond().compareTo(depth) >= 0) {
-				continue;
-			}
-
-			for (RuntimeDC conflict : dc.getConflicts()) {
-				if (!set.contains(conflict)) {
-					queue.add(new Pair<RuntimeDC, Integer>(conflict,
-							pair.getSecond() + 1));
+			List<RuntimeDC> nextLevel = new ArrayList<RuntimeDC>();
+			for (RuntimeDC dc : lastLevel) {
+				for (RuntimeDC conflict : dc.getConflicts()) {
+					if (mExpansionVisited.add(conflict)) {
+						nextLevel.add(conflict);
+					}
 				}
 			}
+			
+			mExpansionLevels.add(nextLevel);
 		}
 		
-		Collections.sort(result, Segment.getLocationComparator());
-		return result;
+		if (depth == -1 || mExpansionLevels.size() <= depth) {
+			return mExpansionLevels;
+		} else {
+			return mExpansionLevels.subList(0, depth + 1);
+		}
+	}
+	
+	private void validateCache() {
+		int historyVersion = RuntimeDC.getHistoryVersion();
+		if (mCacheModCount == modCount && mCacheHistoryVersion == historyVersion) {
+			return;
+		}
+		
+		mCacheModCount = modCount;
+		mCacheHistoryVersion = historyVersion;
+		
+		mInvolvedChanges = null;
+		mExpansionLevels = new ArrayList<List<RuntimeDC>>();
+		mExpansionVisited = new HashSet<RuntimeDC>();
+		mExpandedChunksByDepth = new HashMap<Integer, Chunk>();
+		mExpandedChunkInRange = null;
 	}
 	
 	private boolean isInRange(RuntimeDC runtimeDC, int startOffset, int endOffset) {
@@ -173,21 +220,33 @@ public class Chunk extends ArrayList<Segment> {
 		return startOffset <= first.getOffset() && last.getEffectiveEndOffset() <= endOffset;
 	}
 	
-	public List<RuntimeDC> getInvolvedChanges() {
-		TreeSet<RuntimeDC> set = new TreeSet<RuntimeDC>(
-				RuntimeDC.getCommandIDComparator());
-
-		for (Segment segment : this) {
-			set.add(segment.getOwner());
+	public synchronized List<RuntimeDC> getInvolvedChanges() {
+		validateCache();
+		if (mInvolvedChanges == null) {
+			TreeSet<RuntimeDC> set = new TreeSet<RuntimeDC>(
+					RuntimeDC.getCommandIDComparator());
+			
+			for (Segment segment : this) {
+				set.add(segment.getOwner());
+			}
+			
+			mInvolvedChanges = Collections.unmodifiableList(new ArrayList<RuntimeDC>(set));
 		}
-
-		return Collections.unmodifiableList(new ArrayList<RuntimeDC>(set));
+		
+		return mInvolvedChanges;
 	}
 	
 	public Chunk copyChunk() {
 		Chunk copyChunk = new Chunk();
-		for (Segment originalSegment : this) {
+		Map<Segment, Integer> indices = new IdentityHashMap<Segment, Integer>();
+		for (int i = 0; i < this.size(); ++i) {
+			Segment originalSegment = this.get(i);
 			copyChunk.add(originalSegment.copySegment());
+			
+			// Keep the first index, as indexOf does.
+			if (!indices.containsKey(originalSegment)) {
+				indices.put(originalSegment, i);
+			}
 		}
 
 		// Reconstruct the "segmentsClosedByMe" list
@@ -196,15 +255,15 @@ public class Chunk extends ArrayList<Segment> {
 			Segment copySegment = copyChunk.get(i);
 			
 			for (Segment closedSegment : originalSegment.getSegmentsClosedByMe()) {
-				int closedSegmentIndex = this.indexOf(closedSegment);
-				if (closedSegmentIndex != -1) {
+				Integer closedSegmentIndex = indices.get(closedSegment);
+				if (closedSegmentIndex != null) {
 					copySegment.addSegmentClosedByMe(copyChunk.get(closedSegmentIndex));
 				}
 			}
 			
 			for (Segment right : originalSegment.getRight()) {
-				int rightIndex = this.indexOf(right);
-				if (rightIndex != -1) {
+				Integer rightIndex = indices.get(right);
+				if (rightIndex != null) {
 					copySegment.addRight(copyChunk.get(rightIndex));
 				}
 			}
@@ -0,0 +1,446 @@
+package edu.cmu.scs.azurite.model.undo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.cmu.scs.azurite.commands.runtime.RuntimeDC;
+import edu.cmu.scs.azurite.commands.runtime.Segment;
+
+/**
+ * Undoes the segments of a copy chunk one change at a time, keeping the text
+ * of the chunk region and the copy segments which are not undone yet.
+ *
+ * Undoing a segment shifts all the remaining segments no less than it by the
+ * location comparator. To avoid visiting all of them for each undone segment,
+ * the remaining segments are kept sorted by the location comparator, so that
+ * the shifted ones form a suffix, and the shifts are recorded lazily on the
+ * suffixes. The offset of a segment is brought up-to-date only when needed.
+ *
+ * A few segments can get out of the order, e.g., when a closed segment is
+ * reopened. These are set aside and shifted one by one, until there are too
+ * many of them and all the remaining segments are sorted again.
+ */
+class ChunkUndoState {
+
+	private static final int MIN_FLOATING_LIMIT = 16;
+
+	private int mInitialOffset;
+	private TextBuffer mBuffer;
+
+	// The copy segments which are not undone yet, grouped by the owners.
+	private Map<RuntimeDC, List<Segment>> mSegmentsByOwner;
+
+	// The segments sorted by the location comparator, when they were sorted.
+	private Segment[] mOrder;
+	private Map<Segment, Integer> mRanks;
+
+	// Skip lists over the ranks of the segments which are still in the order,
+	// like union-find. The previous ones are stored with the ranks plus one.
+	private int[] mNextInOrder;
+	private int[] mPrevInOrder;
+
+	// Lazy shifts, as a Fenwick tree of the differences between ranks.
+	private int[] mShifts;
+	// The amount of shift already written to each segment.
+	private int[] mApplied;
+
+	// The remaining segments which are out of the order.
+	private Set<Segment> mFloating;
+	private int mFloatingLimit;
+
+	private Set<Segment> mUndone;
+
+	public ChunkUndoState(Chunk copyChunk, int initialOffset, String initialContent) {
+		mInitialOffset = initialOffset;
+		mBuffer = new TextBuffer(initialContent);
+
+		mSegmentsByOwner = new HashMap<RuntimeDC, List<Segment>>();
+		for (Segment segment : copyChunk) {
+			List<Segment> segments = mSegmentsByOwner.get(segment.getOwner());
+			if (segments == null) {
+				segments = new ArrayList<Segment>();
+				mSegmentsByOwner.put(segment.getOwner(), segments);
+			}
+
+			segments.add(segment);
+		}
+
+		mUndone = Collections.newSetFromMap(new IdentityHashMap<Segment, Boolean>());
+		sort(copyChunk.toArray(new Segment[copyChunk.size()]));
+	}
+
+	public String getText() {
+		return mBuffer.toString();
+	}
+
+	/**
+	 * Undoes all the remaining segments of the given change.
+	 * The undone segments keep the offsets at which they were undone.
+	 * @return the undone segments in the order they were undone.
+	 */
+	public List<Segment> undoChange(RuntimeDC change) {
+		List<Segment> segments = mSegmentsByOwner.remove(change);
+		if (segments == null) {
+			return new ArrayList<Segment>();
+		}
+
+		return undoSegmentsOfChange(segments);
+	}
+
+	/**
+	 * Undoes the given remaining segments, which belong to the same change.
+	 * The other remaining segments of the change are left as they are.
+	 * @return the undone segments in the order they were undone.
+	 */
+	public List<Segment> undoSegments(List<Segment> segments) {
+		if (segments.isEmpty()) {
+			return new ArrayList<Segment>();
+		}
+
+		List<Segment> segmentsOfOwner = mSegmentsByOwner.get(segments.get(0).getOwner());
+		segmentsOfOwner.removeAll(segments);
+		if (segmentsOfOwner.isEmpty()) {
+			mSegmentsByOwner.remove(segments.get(0).getOwner());
+		}
+
+		return undoSegmentsOfChange(new ArrayList<Segment>(segments));
+	}
+
+	/**
+	 * Makes an independent copy of this state, with the copies of the
+	 * remaining segments.
+	 * @param copies filled with the copy of each remaining segment.
+	 */
+	public ChunkUndoState copy(Map<Segment, Segment> copies) {
+		Segment[] remaining = getRemainingSegments();
+
+		Chunk copyChunk = new Chunk();
+		for (Segment segment : remaining) {
+			Segment copySegment = segment.copySegment();
+			copies.put(segment, copySegment);
+			copyChunk.add(copySegment);
+		}
+
+		// Reconstruct the relations among the remaining segments.
+		for (Segment segment : remaining) {
+			Segment copySegment = copies.get(segment);
+
+			for (Segment closedSegment : segment.getSegmentsClosedByMe()) {
+				if (copies.containsKey(closedSegment)) {
+					copySegment.addSegmentClosedByMe(copies.get(closedSegment));
+				}
+			}
+
+			for (Segment right : segment.getRight()) {
+				if (copies.containsKey(right)) {
+					copySegment.addRight(copies.get(right));
+				}
+			}
+		}
+
+		return new ChunkUndoState(copyChunk, mInitialOffset, getText());
+	}
+
+	private List<Segment> undoSegmentsOfChange(List<Segment> segments) {
+		for (Segment segment : segments) {
+			update(segment);
+		}
+
+		// Sort and then reverse.
+		// It's different from sorting with the reverseOrder comparator.
+		Collections.sort(segments, Segment.getLocationComparator());
+		Collections.reverse(segments);
+
+		for (Segment segmentUnderUndo : segments) {
+			if (segmentUnderUndo.isDeletion()) {
+				undoDeleteSegment(segmentUnderUndo);
+			} else {
+				undoInsertSegment(segmentUnderUndo);
+			}
+		}
+
+		return segments;
+	}
+
+	private void undoInsertSegment(Segment segmentUnderUndo) {
+		takeOut(segmentUnderUndo);
+
+		// Delete this segment.
+		mBuffer.replace(
+				segmentUnderUndo.getOffset() - mInitialOffset,
+				segmentUnderUndo.getEndOffset() - mInitialOffset,
+				"");
+
+		// Re-adjust all the following segments' offsets.
+		shiftFollowing(segmentUnderUndo, -segmentUnderUndo.getLength());
+	}
+
+	private void undoDeleteSegment(Segment segmentUnderUndo) {
+		takeOut(segmentUnderUndo);
+
+		// Insert the text back at the offset.
+		mBuffer.replace(
+				segmentUnderUndo.getOffset() - mInitialOffset,
+				segmentUnderUndo.getOffset() - mInitialOffset,
+				segmentUnderUndo.getText());
+
+		// Re-adjust all the following segments' offsets.
+		shiftFollowing(segmentUnderUndo, segmentUnderUndo.getLength());
+
+		// Re-open all the closed segments.
+		for (Segment closedSegment : segmentUnderUndo.getSegmentsClosedByMe()) {
+			if (isRemaining(closedSegment)) {
+				update(closedSegment);
+				closedSegment.reopen(segmentUnderUndo.getOffset());
+				checkOrder(closedSegment);
+			}
+		}
+
+		for (Segment right : segmentUnderUndo.getRight()) {
+			if (isRemaining(right)) {
+				update(right);
+				right.setOffset(segmentUnderUndo.getOffset() + segmentUnderUndo.getLength());
+				checkOrder(right);
+			}
+		}
+	}
+
+	private boolean isRemaining(Segment segment) {
+		return mRanks.containsKey(segment) && !mUndone.contains(segment);
+	}
+
+	/**
+	 * Removes the segment from the remaining ones, after bringing its offset
+	 * up-to-date. It is done before the shift, which skips the undone segment.
+	 */
+	private void takeOut(Segment segment) {
+		update(segment);
+		mUndone.add(segment);
+
+		if (!mFloating.remove(segment)) {
+			removeFromOrder(mRanks.get(segment));
+		}
+	}
+
+	/**
+	 * Shifts all the remaining segments no less than the undone segment.
+	 */
+	private void shiftFollowing(Segment segmentUnderUndo, int amount) {
+		Comparator<Segment> comparator = Segment.getLocationComparator();
+
+		for (Segment segment : mFloating) {
+			if (comparator.compare(segment, segmentUnderUndo) >= 0) {
+				segment.setOffset(segment.getOffset() + amount);
+			}
+		}
+
+		int first = findFirstInOrder(segmentUnderUndo);
+		if (first == mOrder.length) {
+			return;
+		}
+
+		for (int i = first; i < mShifts.length; i |= i + 1) {
+			mShifts[i] += amount;
+		}
+
+		// A shift keeps the order within the shifted part, but some of the
+		// shifted ones may not stay after the rest. Set those aside.
+		int last = findPrevInOrder(first - 1);
+		if (last == -1) {
+			return;
+		}
+
+		update(mOrder[last]);
+		for (int i = first; i < mOrder.length; i = findNextInOrder(i + 1)) {
+			update(mOrder[i]);
+			if (comparator.compare(mOrder[last], mOrder[i]) <= 0) {
+				break;
+			}
+
+			if (setAside(i)) {
+				// All the remaining segments are sorted again.
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the segment, whose offset was just changed, is still in
+	 * order with its neighbors. If not, sets it aside.
+	 */
+	private void checkOrder(Segment segment) {
+		if (mFloating.contains(segment)) {
+			return;
+		}
+
+		Comparator<Segment> comparator = Segment.getLocationComparator();
+		int rank = mRanks.get(segment);
+
+		int prev = findPrevInOrder(rank - 1);
+		if (prev != -1) {
+			update(mOrder[prev]);
+			if (comparator.compare(mOrder[prev], segment) > 0) {
+				setAside(rank);
+				return;
+			}
+		}
+
+		int next = findNextInOrder(rank + 1);
+		if (next != mOrder.length) {
+			update(mOrder[next]);
+			if (comparator.compare(segment, mOrder[next]) > 0) {
+				setAside(rank);
+			}
+		}
+	}
+
+	/**
+	 * @return true if all the remaining segments were sorted again.
+	 */
+	private boolean setAside(int rank) {
+		removeFromOrder(rank);
+		mFloating.add(mOrder[rank]);
+
+		if (mFloating.size() > mFloatingLimit) {
+			sort(getRemainingSegments());
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Finds the first rank in the order, whose segment is no less than the
+	 * given one, or the number of ranks if there is none.
+	 */
+	private int findFirstInOrder(Segment segment) {
+		Comparator<Segment> comparator = Segment.getLocationComparator();
+
+		int low = 0;
+		int high = mOrder.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			int rank = findNextInOrder(mid);
+			if (rank == mOrder.length) {
+				high = mid;
+				continue;
+			}
+
+			update(mOrder[rank]);
+			if (comparator.compare(mOrder[rank], segment) >= 0) {
+				high = mid;
+			} else {
+				low = rank + 1;
+			}
+		}
+
+		return findNextInOrder(low);
+	}
+
+	private int findNextInOrder(int rank) {
+		int root = rank;
+		while (mNextInOrder[root] != root) {
+			root = mNextInOrder[root];
+		}
+
+		// Path compression.
+		while (mNextInOrder[rank] != root) {
+			int next = mNextInOrder[rank];
+			mNextInOrder[rank] = root;
+			rank = next;
+		}
+
+		return root;
+	}
+
+	private int findPrevInOrder(int rank) {
+		int root = rank + 1;
+		while (mPrevInOrder[root] != root) {
+			root = mPrevInOrder[root];
+		}
+
+		// Path compression.
+		int index = rank + 1;
+		while (mPrevInOrder[index] != root) {
+			int prev = mPrevInOrder[index];
+			mPrevInOrder[index] = root;
+			index = prev;
+		}
+
+		return root - 1;
+	}
+
+	private void removeFromOrder(int rank) {
+		mNextInOrder[rank] = rank + 1;
+		mPrevInOrder[rank + 1] = rank;
+	}
+
+	/**
+	 * Writes the pending shift to the given segment, if it is in the order.
+	 */
+	private void update(Segment segment) {
+		if (mFloating.contains(segment) || mUndone.contains(segment)) {
+			return;
+		}
+
+		int rank = mRanks.get(segment);
+		int shift = 0;
+		for (int i = rank; i >= 0; i = (i & (i + 1)) - 1) {
+			shift += mShifts[i];
+		}
+
+		int pending = shift - mApplied[rank];
+		if (pending != 0) {
+			segment.setOffset(segment.getOffset() + pending);
+			mApplied[rank] = shift;
+		}
+	}
+
+	private Segment[] getRemainingSegments() {
+		List<Segment> remaining = new ArrayList<Segment>();
+		for (Segment segment : mOrder) {
+			if (!mUndone.contains(segment)) {
+				update(segment);
+				remaining.add(segment);
+			}
+		}
+
+		return remaining.toArray(new Segment[remaining.size()]);
+	}
+
+	/**
+	 * Sorts the given segments, and starts over without any pending shifts.
+	 * The sort is stable, so the segments equal to each other keep their order.
+	 */
+	private void sort(Segment[] segments) {
+		Arrays.sort(segments, Segment.getLocationComparator());
+
+		int size = segments.length;
+		mOrder = segments;
+		mRanks = new IdentityHashMap<Segment, Integer>();
+		mNextInOrder = new int[size + 1];
+		mPrevInOrder = new int[size + 1];
+		for (int i = 0; i < size; ++i) {
+			mRanks.put(segments[i], i);
+			mNextInOrder[i] = i;
+			mPrevInOrder[i + 1] = i + 1;
+		}
+		mNextInOrder[size] = size;
+		mPrevInOrder[0] = 0;
+
+		mShifts = new int[size];
+		mApplied = new int[size];
+
+		mFloating = Collections.newSetFromMap(new IdentityHashMap<Segment, Boolean>());
+		mFloatingLimit = Math.max(MIN_FLOATING_LIMIT, (int) Math.sqrt(size));
+		mUndone.clear();
+	}
+
+}
@@ -0,0 +1,398 @@
+package edu.cmu.scs.azurite.model.undo;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.core.filebuffers.FileBuffers;
+import org.eclipse.core.filebuffers.ITextFileBuffer;
+import org.eclipse.core.filebuffers.ITextFileBufferManager;
+import org.eclipse.core.filebuffers.LocationKind;
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.jface.operation.IRunnableWithProgress;
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.Document;
+import org.eclipse.jface.text.DocumentEvent;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentListener;
+import org.eclipse.swt.widgets.Display;
+
+import edu.cmu.scs.azurite.commands.runtime.RuntimeDC;
+import edu.cmu.scs.azurite.model.FileKey;
+import edu.cmu.scs.azurite.model.RuntimeHistoryManager;
+import edu.cmu.scs.azurite.util.Utilities;
+import edu.cmu.scs.fluorite.model.EventRecorder;
+
+/**
+ * Selectively undoes the changes in multiple files.
+ *
+ * The edits of all the files are first calculated in parallel, each against
+ * a snapshot of the file. Then they are applied to the file buffers on the UI
+ * thread, without opening any editor. The edits are recorded in the history,
+ * and the files which are not open in any editor are saved. A file which has
+ * a conflict to be resolved by the user is undone on the UI thread as a
+ * whole, so that the user can be asked.
+ *
+ * Nothing is applied if the operation is cancelled, if any of the
+ * calculations fails, or if any of the files or the history has changed since
+ * the calculation. If applying the edits to a file fails, the files already
+ * changed are put back.
+ */
+class MultiFileSelectiveUndo implements IRunnableWithProgress {
+
+	private static final String TASK_NAME = "Selective Undo";
+
+	private static class Replacement {
+		private int mOffset;
+		private int mLength;
+		private String mText;
+
+		private Replacement(int offset, int length, String text) {
+			mOffset = offset;
+			mLength = length;
+			mText = text;
+		}
+	}
+
+	private static class FileUndo {
+		private FileKey mFileKey;
+
+		// Either the runtime dcs, or the chunks are given.
+		private List<RuntimeDC> mRuntimeDCs;
+		private List<Chunk> mChunks;
+		private Map<Chunk, UndoAlternative> mAlternativeChoices;
+
+		private IPath mPath;
+		private ITextFileBuffer mBuffer;
+
+		// The content which the edits are calculated on.
+		private String mSnapshot;
+
+		// The result of the calculation.
+		private List<Replacement> mReplacements;
+		private boolean mNeedsUserChoice;
+
+		private FileUndo(FileKey fileKey) {
+			mFileKey = fileKey;
+		}
+	}
+
+	private List<FileUndo> mFileUndos;
+
+	// The history version which the given runtime DCs and chunks belong to.
+	private int mHistoryVersion;
+
+	public MultiFileSelectiveUndo() {
+		mFileUndos = new ArrayList<FileUndo>();
+		mHistoryVersion = RuntimeDC.getHistoryVersion();
+	}
+
+	public void addFile(FileKey fileKey, List<RuntimeDC> runtimeDCs) {
+		FileUndo fileUndo = new FileUndo(fileKey);
+		fileUndo.mRuntimeDCs = new ArrayList<RuntimeDC>(runtimeDCs);
+		mFileUndos.add(fileUndo);
+	}
+
+	public void addFile(FileKey fileKey, List<Chunk> chunks, Map<Chunk, UndoAlternative> alternativeChoices) {
+		FileUndo fileUndo = new FileUndo(fileKey);
+		fileUndo.mChunks = new ArrayList<Chunk>(chunks);
+		fileUndo.mAlternativeChoices = alternativeChoices;
+		mFileUndos.add(fileUndo);
+	}
+
+	@Override
+	public void run(IProgressMonitor monitor) throws InvocationTargetException,
+			InterruptedException {
+		monitor.beginTask(TASK_NAME, mFileUndos.size() * 2);
+
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Runtime.getRuntime().availableProcessors());
+		try {
+			calculate(executor, monitor);
+			apply(monitor);
+		} finally {
+			executor.shutdownNow();
+			disconnect();
+			monitor.done();
+		}
+	}
+
+	private void calculate(ExecutorService executor, IProgressMonitor monitor)
+			throws InvocationTargetException, InterruptedException {
+		monitor.subTask("Calculating the changes...");
+
+		CompletionService<FileUndo> completionService =
+				new ExecutorCompletionService<FileUndo>(executor);
+		for (final FileUndo fileUndo : mFileUndos) {
+			completionService.submit(new Callable<FileUndo>() {
+				@Override
+				public FileUndo call() throws Exception {
+					calculate(fileUndo);
+					return fileUndo;
+				}
+			});
+		}
+
+		int remaining = mFileUndos.size();
+		while (remaining > 0) {
+			if (monitor.isCanceled()) {
+				throw new InterruptedException();
+			}
+
+			Future<FileUndo> future = completionService.poll(100, TimeUnit.MILLISECONDS);
+			if (future == null) {
+				continue;
+			}
+
+			try {
+				future.get();
+			} catch (Exception e) {
+				throw new InvocationTargetException(e);
+			}
+
+			--remaining;
+			monitor.worked(1);
+		}
+	}
+
+	private void calculate(FileUndo fileUndo) throws BadLocationException {
+		IDocument document = connect(fileUndo);
+		if (document == null) {
+			return;
+		}
+
+		// Undo on a snapshot, and remember the replacements.
+		fileUndo.mSnapshot = document.get();
+		Document snapshot = new Document(fileUndo.mSnapshot);
+		final List<Replacement> replacements = new ArrayList<Replacement>();
+		snapshot.addDocumentListener(new IDocumentListener() {
+			@Override
+			public void documentAboutToBeChanged(DocumentEvent event) {
+				// Do nothing.
+			}
+
+			@Override
+			public void documentChanged(DocumentEvent event) {
+				replacements.add(new Replacement(event.getOffset(),
+						event.getLength(), event.getText()));
+			}
+		});
+
+		// The segments may be changed on the UI thread meanwhile.
+		synchronized (RuntimeHistoryManager.getInstance().getSegmentLock()) {
+			checkHistoryVersion();
+
+			if (fileUndo.mChunks == null) {
+				fileUndo.mChunks = SelectiveUndoEngine.getInstance()
+						.determineChunksWithRuntimeDCs(fileUndo.mRuntimeDCs);
+			}
+
+			fileUndo.mNeedsUserChoice = !SelectiveUndoEngine.getInstance()
+					.doSelectiveUndoWithChunks(new ArrayList<Chunk>(fileUndo.mChunks),
+							snapshot, fileUndo.mAlternativeChoices, false);
+		}
+		fileUndo.mReplacements = replacements;
+	}
+
+	/**
+	 * Applies the edits of all the files in a single step on the UI thread,
+	 * so that none of the files can be changed in between. The operation can
+	 * no longer be cancelled from here on.
+	 */
+	private void apply(final IProgressMonitor monitor) throws InvocationTargetException {
+		monitor.subTask("Applying the changes...");
+
+		final Exception[] error = new Exception[1];
+		Display.getDefault().syncExec(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					applyAll(monitor);
+				} catch (Exception e) {
+					error[0] = e;
+				}
+			}
+		});
+
+		if (error[0] != null) {
+			throw new InvocationTargetException(error[0]);
+		}
+	}
+
+	private void applyAll(IProgressMonitor monitor) throws BadLocationException {
+		checkHistoryVersion();
+		for (FileUndo fileUndo : mFileUndos) {
+			if (fileUndo.mBuffer != null) {
+				checkSnapshot(fileUndo);
+			}
+		}
+
+		List<FileUndo> appliedFileUndos = new ArrayList<FileUndo>();
+		boolean succeeded = false;
+		try {
+			for (FileUndo fileUndo : mFileUndos) {
+				if (fileUndo.mBuffer != null) {
+					monitor.subTask(fileUndo.mFileKey.getFileNameOnly());
+					appliedFileUndos.add(fileUndo);
+					apply(fileUndo);
+				}
+
+				monitor.worked(1);
+			}
+
+			succeeded = true;
+		} finally {
+			if (!succeeded) {
+				// All or nothing. Put back the files already changed.
+				for (FileUndo fileUndo : appliedFileUndos) {
+					restoreSnapshot(fileUndo);
+				}
+			}
+		}
+
+		for (FileUndo fileUndo : appliedFileUndos) {
+			record(fileUndo);
+			save(fileUndo);
+		}
+	}
+
+	private void apply(FileUndo fileUndo) throws BadLocationException {
+		IDocument document = fileUndo.mBuffer.getDocument();
+		if (fileUndo.mNeedsUserChoice) {
+			SelectiveUndoEngine.getInstance().doSelectiveUndoWithChunks(
+					new ArrayList<Chunk>(fileUndo.mChunks), document,
+					fileUndo.mAlternativeChoices, true);
+		} else {
+			for (Replacement replacement : fileUndo.mReplacements) {
+				document.replace(replacement.mOffset, replacement.mLength,
+						replacement.mText);
+			}
+		}
+	}
+
+	/**
+	 * Records the edits in the history. Fluorite only records the edits made
+	 * in the active editor, so the other files are recorded here.
+	 */
+	private void record(FileUndo fileUndo) {
+		IDocument document = fileUndo.mBuffer.getDocument();
+		IDocument activeDocument = edu.cmu.scs.fluorite.util.Utilities
+				.getDocument(EventRecorder.getInstance().getEditor());
+		if (document == activeDocument) {
+			return;
+		}
+
+		RuntimeHistoryManager.getInstance().fileChangedOutsideEditor(
+				fileUndo.mFileKey, fileUndo.mSnapshot, document.get());
+	}
+
+	/**
+	 * Saves the file if it is not open in any editor, because the edits
+	 * would be lost after disconnecting the buffer.
+	 */
+	private void save(FileUndo fileUndo) {
+		if (Utilities.findDocumentFromOpenEditors(fileUndo.mFileKey) != null) {
+			return;
+		}
+
+		try {
+			fileUndo.mBuffer.commit(new NullProgressMonitor(), false);
+		} catch (CoreException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Puts back the snapshot into the document, replacing only the part
+	 * between the common prefix and suffix.
+	 */
+	private void restoreSnapshot(FileUndo fileUndo) {
+		IDocument document = fileUndo.mBuffer.getDocument();
+		String current = document.get();
+		String snapshot = fileUndo.mSnapshot;
+
+		int prefix = 0;
+		int maxLength = Math.min(current.length(), snapshot.length());
+		while (prefix < maxLength && current.charAt(prefix) == snapshot.charAt(prefix)) {
+			++prefix;
+		}
+
+		int suffix = 0;
+		while (suffix < maxLength - prefix
+				&& current.charAt(current.length() - suffix - 1) == snapshot.charAt(snapshot.length() - suffix - 1)) {
+			++suffix;
+		}
+
+		try {
+			document.replace(prefix, current.length() - prefix - suffix,
+					snapshot.substring(prefix, snapshot.length() - suffix));
+		} catch (BadLocationException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void checkHistoryVersion() {
+		if (RuntimeDC.getHistoryVersion() != mHistoryVersion) {
+			throw new IllegalStateException(
+					"The history has been changed during the selective undo.");
+		}
+	}
+
+	private void checkSnapshot(FileUndo fileUndo) {
+		if (!fileUndo.mSnapshot.equals(fileUndo.mBuffer.getDocument().get())) {
+			throw new IllegalStateException(fileUndo.mFileKey.getFileNameOnly()
+					+ " has been changed during the selective undo.");
+		}
+	}
+
+	private IDocument connect(FileUndo fileUndo) {
+		IFile file = ResourcesPlugin.getWorkspace().getRoot()
+				.getFileForLocation(new Path(fileUndo.mFileKey.getFilePath()));
+		if (file == null || !file.exists()) {
+			return null;
+		}
+
+		try {
+			IPath path = file.getFullPath();
+			ITextFileBufferManager manager = FileBuffers.getTextFileBufferManager();
+			manager.connect(path, LocationKind.IFILE, null);
+
+			fileUndo.mPath = path;
+			fileUndo.mBuffer = manager.getTextFileBuffer(path, LocationKind.IFILE);
+			return fileUndo.mBuffer.getDocument();
+		} catch (CoreException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private void disconnect() {
+		ITextFileBufferManager manager = FileBuffers.getTextFileBufferManager();
+		for (FileUndo fileUndo : mFileUndos) {
+			if (fileUndo.mPath == null) {
+				continue;
+			}
+
+			try {
+				manager.disconnect(fileUndo.mPath, LocationKind.IFILE, null);
+			} catch (CoreException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+}
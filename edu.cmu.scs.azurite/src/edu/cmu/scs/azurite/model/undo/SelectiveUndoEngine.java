@@ -1,22 +1,20 @@
 package edu.cmu.scs.azurite.model.undo;
 
-import java.io.File;
+import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
+import java.util.Set;
 
-import org.eclipse.core.filesystem.EFS;
-import org.eclipse.core.filesystem.IFileStore;
+import org.eclipse.jface.dialogs.ProgressMonitorDialog;
+import org.eclipse.jface.text.BadLocationException;
 import org.eclipse.jface.text.IDocument;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Shell;
-import org.eclipse.ui.IWorkbenchPage;
-import org.eclipse.ui.PartInitException;
-import org.eclipse.ui.PlatformUI;
-import org.eclipse.ui.ide.IDE;
 
 import edu.cmu.scs.azurite.commands.runtime.RuntimeDC;
 import edu.cmu.scs.azurite.commands.runtime.Segment;
@@ -111,51 +109,69 @@ public class SelectiveUndoEngine {
 	}
 	
 	public void doSelectiveUndoWithChunks(List<Chunk> chunks, IDocument document, Map<Chunk, UndoAlternative> alternativeChoices) {
+		try {
+			doSelectiveUndoWithChunks(chunks, document, alternativeChoices, true);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * @param interactive
+	 *            whether to ask the user to resolve a conflict, when it is not
+	 *            obvious and no alternative is chosen. If false, the method
+	 *            stops at such a chunk, leaving the following chunks as they are.
+	 * @return false if stopped at a conflict to be resolved by the user.
+	 * @throws BadLocationException if a chunk could not be undone. The chunks
+	 *             before it are already undone in the document.
+	 */
+	/* package */ boolean doSelectiveUndoWithChunks(List<Chunk> chunks, IDocument document,
+			Map<Chunk, UndoAlternative> alternativeChoices, boolean interactive)
+			throws BadLocationException {
 		// Reverse the chunks, so the last chunk comes at first.
 		Collections.reverse(chunks);
 		
 		// For each chunk..
 		for (Chunk chunk : chunks) {
-			try {
-				Chunk expandedChunk = chunk.getExpandedChunkWithDepth(MAX_EXPANSION_DEPTH);
-				int initialOffset = expandedChunk.getStartOffset();
-				String initialContent = document.get(initialOffset,
-						expandedChunk.getChunkLength());
+			Chunk expandedChunk = chunk.getExpandedChunkWithDepth(MAX_EXPANSION_DEPTH);
+			int initialOffset = expandedChunk.getStartOffset();
+			String initialContent = document.get(initialOffset,
+					expandedChunk.getChunkLength());
+			
+			// Is there a conflict?
+			if (chunk.hasConflictOutsideThisChunk()) {
+				List<UndoAlternative> alternatives = doSelectiveUndoChunkWithConflicts(
+						chunk, initialContent);
 				
-				// Is there a conflict?
-				if (chunk.hasConflictOutsideThisChunk()) {
-					List<UndoAlternative> alternatives = doSelectiveUndoChunkWithConflicts(
-							chunk, initialContent);
-					
-					// If the result is obvious, don't bother to ask the user.
-					if (alternatives.size() <= 2) {
-						document.replace(initialOffset, initialContent.length(),
-								alternatives.get(0).getResultingCode());
-					} else if (alternativeChoices != null && alternativeChoices.get(chunk) != null) {
-						UndoAlternative chosenAlternative = alternativeChoices.get(chunk);
-						document.replace(initialOffset, initialContent.length(), chosenAlternative.getResultingCode());
-					} else {
-						final Shell parentShell = Display.getDefault().getActiveShell();
-						
-						ConflictResolutionDialog conflictDialog = new ConflictResolutionDialog(
-								parentShell, document, initialOffset,
-								initialContent.length(), alternatives, chunk);
-						conflictDialog.create();
-						conflictDialog.open();
-					}
-				} else {
-				// No conflicts. just undo them backwards.
-					String resultingContent = doSelectiveUndoChunkWithoutConflicts(
-							chunk, initialContent);
-
+				// If the result is obvious, don't bother to ask the user.
+				if (alternatives.size() <= 2) {
 					document.replace(initialOffset, initialContent.length(),
-							resultingContent);
+							alternatives.get(0).getResultingCode());
+				} else if (alternativeChoices != null && alternativeChoices.get(chunk) != null) {
+					UndoAlternative chosenAlternative = alternativeChoices.get(chunk);
+					document.replace(initialOffset, initialContent.length(), chosenAlternative.getResultingCode());
+				} else if (!interactive) {
+					return false;
+				} else {
+					final Shell parentShell = Display.getDefault().getActiveShell();
+					
+					ConflictResolutionDialog conflictDialog = new ConflictResolutionDialog(
+							parentShell, document, initialOffset,
+							initialContent.length(), alternatives, chunk);
+					conflictDialog.create();
+					conflictDialog.open();
 				}
-			} catch (Exception e) {
-				e.printStackTrace();
-				return;
+			} else {
+			// No conflicts. just undo them backwards.
+				String resultingContent = doSelectiveUndoChunkWithoutConflicts(
+						chunk, initialContent);
+
+				document.replace(initialOffset, initialContent.length(),
+						resultingContent);
 			}
 		}
+		
+		return true;
 	}
 
 	// Sort the runtimeDocChanges by their original command IDs.
@@ -165,49 +181,42 @@ public class SelectiveUndoEngine {
 	
 	public List<UndoAlternative> doSelectiveUndoChunkWithConflicts(
 			Chunk chunk, String initialContent) {
-		List<UndoAlternative> result = new ArrayList<UndoAlternative>();
+		// The initial content is the one of the chunk expanded to the maximum depth,
+		// and all the alternatives are computed on it together.
+		int initialOffset = chunk.getExpandedChunkWithDepth(MAX_EXPANSION_DEPTH).getStartOffset();
+		
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		List<String> descriptions = new ArrayList<String>();
 		
 		// Revert this chunk to the way it was before all the selected operations were performed.
-		result.add(new UndoAlternative(
-				"Revert this code to the way it was right before all the selected operations were performed.",
-				doSelectiveUndoChunkWithoutConflicts(
-						chunk.getExpandedChunkInRange(), initialContent)));
+		chunks.add(chunk.getExpandedChunkInRange());
+		descriptions.add("Revert this code to the way it was right before all the selected operations were performed.");
 		
 		// Revert this chunk to the way it was before, including the unselected conflicting operations.
 		for (int i = 1; i <= MAX_EXPANSION_DEPTH; ++i) {
-			if (i == 0) {
-				continue;
-			}
-			
-			result.add(new UndoAlternative(
-					"Revert this code including the non-selected conflicting operations with depth "
-							+ i + ".",
-					doSelectiveUndoChunkWithoutConflicts(chunk
-							.getExpandedChunkWithDepth(MAX_EXPANSION_DEPTH),
-							initialContent)));
+			chunks.add(chunk.getExpandedChunkWithDepth(i));
+			descriptions.add("Revert this code including the non-selected conflicting operations with depth "
+					+ i + ".");
 		}
 		
 		// Strictly selectively undo only the selected operations.
-		result.add(new UndoAlternative(
-				"Strictly selectively undo only the selected operations.",
-				doSelectiveUndoChunkWithoutConflicts(chunk, initialContent)));
+		chunks.add(chunk);
+		descriptions.add("Strictly selectively undo only the selected operations.");
+		
+		List<String> resultingCodes = new ArrayList<String>(
+				new SharedChunkUndo(chunks, initialOffset, initialContent).undo());
 		
 		// Add the trivial option at the end.
-		result.add(new UndoAlternative(
-				"Keep the code as it is. Do not perform selective undo for this chunk.", initialContent));
+		resultingCodes.add(initialContent);
+		descriptions.add("Keep the code as it is. Do not perform selective undo for this chunk.");
 		
-		// Merge the same results.
-		for (int i = 1; i < result.size(); ++i) {
-			UndoAlternative cur = result.get(i);
-
-			for (int j = 0; j < i; ++j) {
-				UndoAlternative prev = result.get(j);
-				// TODO maybe ignore the whitespaces / indentations in the future.
-				if (prev.getResultingCode().equals(cur.getResultingCode())) {
-					result.remove(i);
-					--i;
-					break;
-				}
+		// Merge the same results, keeping the first one.
+		// TODO maybe ignore the whitespaces / indentations in the future.
+		List<UndoAlternative> result = new ArrayList<UndoAlternative>();
+		Set<String> seen = new HashSet<String>();
+		for (int i = 0; i < resultingCodes.size(); ++i) {
+			if (seen.add(resultingCodes.get(i))) {
+				result.add(new UndoAlternative(descriptions.get(i), resultingCodes.get(i)));
 			}
 		}
 		
@@ -218,11 +227,9 @@ public class SelectiveUndoEngine {
 	public String doSelectiveUndoChunkWithoutConflicts(
 			Chunk chunk, String initialContent) {
 		
-		int initialOffset = chunk.getStartOffset();
-		StringBuffer buffer = new StringBuffer(initialContent);
-		
 		// Copy the chunk.
-		Chunk copyChunk = chunk.copyChunk();
+		ChunkUndoState state = new ChunkUndoState(chunk.copyChunk(),
+				chunk.getStartOffset(), initialContent);
 		
 		// Get all the involved changes and reverse them.
 		List<RuntimeDC> involvedDCs = new ArrayList<RuntimeDC>(chunk.getInvolvedChanges());
@@ -230,97 +237,10 @@ public class SelectiveUndoEngine {
 		
 		// Undo from the end.
 		for (RuntimeDC change : involvedDCs) {
-			
-			// Collect all copy segments associated with this change.
-			List<Segment> segments = new ArrayList<Segment>();
-			for (Segment copySegment : copyChunk) {
-				if (copySegment.getOwner().equals(change)) {
-					segments.add(copySegment);
-				}
-			}
-			
-			// Sort and then reverse.
-			// It's different from sorting with the reverseOrder comparator.
-			Collections.sort(segments, Segment.getLocationComparator());
-			Collections.reverse(segments);
-			
-			// Undo each segment.
-			ListIterator<Segment> it = segments.listIterator();
-			while (it.hasNext()) {
-				Segment segmentUnderUndo = it.next();
-				
-				undoSegment(segmentUnderUndo, copyChunk, initialOffset, buffer);
-				
-				it.remove();
-				copyChunk.remove(segmentUnderUndo);
-			}
-		}
-
-		return buffer.toString();
-	}
-
-	private void undoSegment(Segment segmentUnderUndo, Chunk copyChunk,
-			int initialOffset, StringBuffer buffer) {
-		if (segmentUnderUndo.isDeletion()) {
-			undoDeleteSegment(segmentUnderUndo, copyChunk, initialOffset, buffer);
-		} else {
-			undoInsertSegment(segmentUnderUndo, copyChunk, initialOffset, buffer);
+			state.undoChange(change);
 		}
-	}
 
-	private void undoInsertSegment(Segment segmentUnderUndo, Chunk copyChunk,
-			int initialOffset, StringBuffer buffer) {
-		// Delete this segment.
-		buffer.replace(
-				segmentUnderUndo.getOffset() - initialOffset,
-				segmentUnderUndo.getEndOffset() - initialOffset,
-				"");
-		
-		// Re-adjust all the following segments' offsets.
-		for (Segment chunkSegment : copyChunk) {
-			if (chunkSegment.equals(segmentUnderUndo)) {
-				continue;
-			}
-			if (Segment.getLocationComparator().compare(chunkSegment, segmentUnderUndo) < 0) {
-				continue;
-			}
-			
-			chunkSegment.decrementOffset(segmentUnderUndo.getLength());
-		}
-	}
-
-	private void undoDeleteSegment(Segment segmentUnderUndo, Chunk copyChunk,
-			int initialOffset, StringBuffer buffer) {
-		// Insert the text back at the offset.
-		buffer.replace(
-				segmentUnderUndo.getOffset() - initialOffset,
-				segmentUnderUndo.getOffset() - initialOffset,
-				segmentUnderUndo.getText());
-		
-		// Re-adjust all the following segments' offsets.
-		for (Segment chunkSegment : copyChunk) {
-			if (chunkSegment.equals(segmentUnderUndo)) {
-				continue;
-			}
-			if (Segment.getLocationComparator().compare(chunkSegment, segmentUnderUndo) < 0) {
-				continue;
-			}
-
-			chunkSegment.incrementOffset(segmentUnderUndo.getLength());
-		}
-		
-		// Re-open all the closed segments.
-		for (Segment closedSegment : segmentUnderUndo.getSegmentsClosedByMe()) {
-			if (copyChunk.contains(closedSegment)) {
-				closedSegment.reopen(segmentUnderUndo.getOffset());
-			}
-		}
-		
-		for (Segment right : segmentUnderUndo.getRight()) {
-			if (copyChunk.contains(right)) {
-				right.setOffset(segmentUnderUndo.getOffset() + segmentUnderUndo.getLength());
-			}
-		}
+		return state.getText();
 	}
 	
 	public void doSelectiveUndoWithParams(SelectiveUndoParams params) {
@@ -369,6 +289,12 @@ public class SelectiveUndoEngine {
 		
 		Chunk prevChunk = null;
 		
+		// Find the last occurrence of each runtime doc change in one pass.
+		Map<RuntimeDC, Integer> lastIndices = new IdentityHashMap<RuntimeDC, Integer>();
+		for (int i = 0; i < segments.size(); ++i) {
+			lastIndices.put(segments.get(i).getOwner(), i);
+		}
+		
 		// Look from the beginning.
 		for (int i = 0; i < segments.size(); ++i) {
 			Chunk chunk = null;
@@ -385,12 +311,7 @@ public class SelectiveUndoEngine {
 			
 			// See if there's any following segment coming from the same runtime doc change.
 			// Find the last occurrence.
-			int j = segments.size() - 1;
-			for (; j > i; --j) {
-				if (segments.get(i).getOwner() == segments.get(j).getOwner()) {
-					break;
-				}
-			}
+			int j = lastIndices.get(segments.get(i).getOwner());
 			
 			// Now add [i, j] elements to the current chunk!
 			for (int k = i; k <= j; ++k) {
@@ -412,52 +333,36 @@ public class SelectiveUndoEngine {
 	
 	public void doSelectiveUndoOnMultipleFiles(
 			Map<FileKey, List<RuntimeDC>> params) {
-		// Process per file.
+		MultiFileSelectiveUndo operation = new MultiFileSelectiveUndo();
 		for (FileKey key : params.keySet()) {
-			List<RuntimeDC> runtimeDCs = params.get(key);
-			
-			// 1. Open the file in the editor.
-			File fileToOpen = new File(key.getFilePath());
-			
-			if (fileToOpen.exists() && fileToOpen.isFile()) {
-			    IFileStore fileStore = EFS.getLocalFileSystem().getStore(fileToOpen.toURI());
-			    IWorkbenchPage page = PlatformUI.getWorkbench().getActiveWorkbenchWindow().getActivePage();
-			 
-			    try {
-			        IDE.openEditorOnFileStore( page, fileStore );
-			    	
-					// 2. Perform selective undo.
-			        doSelectiveUndo(runtimeDCs);
-			    } catch ( PartInitException e ) {
-			    	e.printStackTrace();
-				}
-			} else {
-			    //Do something if the file does not exist
+			if (!params.get(key).isEmpty()) {
+				operation.addFile(key, params.get(key));
 			}
 		}
+		
+		runWithProgress(operation);
 	}
 	
 	public void doSelectiveUndoOnMultipleFilesWithChoices(
 			Map<FileKey, SelectiveUndoParams> params) {
+		MultiFileSelectiveUndo operation = new MultiFileSelectiveUndo();
 		for (FileKey key : params.keySet()) {
-			// 1. Open the file in the editor.
-			File fileToOpen = new File(key.getFilePath());
-			
-			if (fileToOpen.exists() && fileToOpen.isFile()) {
-			    IFileStore fileStore = EFS.getLocalFileSystem().getStore(fileToOpen.toURI());
-			    IWorkbenchPage page = PlatformUI.getWorkbench().getActiveWorkbenchWindow().getActivePage();
-			 
-			    try {
-			        IDE.openEditorOnFileStore( page, fileStore );
-			    	
-					// 2. Perform selective undo.
-			        doSelectiveUndoWithParams(params.get(key));
-			    } catch ( PartInitException e ) {
-			    	e.printStackTrace();
-				}
-			} else {
-			    //Do something if the file does not exist
-			}
+			SelectiveUndoParams fileParams = params.get(key);
+			operation.addFile(key, fileParams.getChunks(), fileParams.getAlternativeChoices());
+		}
+		
+		runWithProgress(operation);
+	}
+	
+	private void runWithProgress(MultiFileSelectiveUndo operation) {
+		final Shell parentShell = Display.getDefault().getActiveShell();
+		
+		try {
+			new ProgressMonitorDialog(parentShell).run(true, true, operation);
+		} catch (InvocationTargetException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			// Cancelled by the user while calculating. Nothing has been changed.
 		}
 	}
 	
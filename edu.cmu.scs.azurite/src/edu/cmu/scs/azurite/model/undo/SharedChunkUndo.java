@@ -0,0 +1,172 @@
+package edu.cmu.scs.azurite.model.undo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import edu.cmu.scs.azurite.commands.runtime.RuntimeDC;
+import edu.cmu.scs.azurite.commands.runtime.Segment;
+
+/**
+ * Selectively undoes several chunks of the same region, such as the expanded
+ * chunks of a conflicting chunk, sharing the common work among them.
+ *
+ * All the chunks are undone together from the latest change, on the segments
+ * of all the chunks. A segment which is not undone never affects the text or
+ * the other segments, so the chunks can share one state until they differ in
+ * the segments to be undone for a change. Only then the state is copied.
+ */
+class SharedChunkUndo {
+
+	private static class Branch {
+		private ChunkUndoState mState;
+		// The copy of each segment in the union, in this state.
+		private Segment[] mCopies;
+		// The indices of the chunks following this branch.
+		private List<Integer> mChunkIndices;
+
+		private Branch(ChunkUndoState state, Segment[] copies, List<Integer> chunkIndices) {
+			mState = state;
+			mCopies = copies;
+			mChunkIndices = chunkIndices;
+		}
+	}
+
+	private List<Chunk> mChunks;
+	private int mInitialOffset;
+	private String mInitialContent;
+
+	public SharedChunkUndo(List<Chunk> chunks, int initialOffset, String initialContent) {
+		mChunks = chunks;
+		mInitialOffset = initialOffset;
+		mInitialContent = initialContent;
+	}
+
+	/**
+	 * @return the resulting text of each chunk, in the order of the chunks.
+	 */
+	public List<String> undo() {
+		// Collect all the segments, and remember which chunk has which segment.
+		Chunk union = new Chunk();
+		Map<Segment, Integer> indices = new IdentityHashMap<Segment, Integer>();
+		List<boolean[]> members = new ArrayList<boolean[]>();
+		for (Chunk chunk : mChunks) {
+			for (Segment segment : chunk) {
+				if (!indices.containsKey(segment)) {
+					indices.put(segment, union.size());
+					union.add(segment);
+				}
+			}
+		}
+
+		for (Chunk chunk : mChunks) {
+			boolean[] member = new boolean[union.size()];
+			for (Segment segment : chunk) {
+				member[indices.get(segment)] = true;
+			}
+			members.add(member);
+		}
+
+		// Group the segments by the changes, from the latest change.
+		Map<RuntimeDC, List<Integer>> segmentsByChange = new LinkedHashMap<RuntimeDC, List<Integer>>();
+		TreeSet<RuntimeDC> changes = new TreeSet<RuntimeDC>(RuntimeDC.getCommandIDComparator());
+		for (Segment segment : union) {
+			changes.add(segment.getOwner());
+		}
+		for (RuntimeDC change : changes.descendingSet()) {
+			segmentsByChange.put(change, new ArrayList<Integer>());
+		}
+		for (int i = 0; i < union.size(); ++i) {
+			segmentsByChange.get(union.get(i).getOwner()).add(i);
+		}
+
+		List<Integer> allChunkIndices = new ArrayList<Integer>();
+		for (int i = 0; i < mChunks.size(); ++i) {
+			allChunkIndices.add(i);
+		}
+
+		Chunk copyChunk = union.copyChunk();
+		List<Branch> branches = new ArrayList<Branch>();
+		branches.add(new Branch(
+				new ChunkUndoState(copyChunk, mInitialOffset, mInitialContent),
+				copyChunk.toArray(new Segment[copyChunk.size()]),
+				allChunkIndices));
+
+		for (List<Integer> segmentIndices : segmentsByChange.values()) {
+			List<Branch> newBranches = new ArrayList<Branch>();
+
+			for (Branch branch : branches) {
+				// Group the chunks by the segments to be undone for this change.
+				Map<List<Integer>, List<Integer>> groups = new LinkedHashMap<List<Integer>, List<Integer>>();
+				for (int chunkIndex : branch.mChunkIndices) {
+					List<Integer> toBeUndone = new ArrayList<Integer>();
+					for (int segmentIndex : segmentIndices) {
+						if (members.get(chunkIndex)[segmentIndex]) {
+							toBeUndone.add(segmentIndex);
+						}
+					}
+
+					List<Integer> group = groups.get(toBeUndone);
+					if (group == null) {
+						group = new ArrayList<Integer>();
+						groups.put(toBeUndone, group);
+					}
+					group.add(chunkIndex);
+				}
+
+				// Copy the state for the other groups, before undoing anything.
+				List<Branch> groupBranches = new ArrayList<Branch>();
+				for (List<Integer> group : groups.values()) {
+					if (groupBranches.isEmpty()) {
+						branch.mChunkIndices = group;
+						groupBranches.add(branch);
+					} else {
+						groupBranches.add(copyBranch(branch, group));
+					}
+				}
+
+				int groupIndex = 0;
+				for (List<Integer> toBeUndone : groups.keySet()) {
+					Branch groupBranch = groupBranches.get(groupIndex++);
+
+					List<Segment> segments = new ArrayList<Segment>();
+					for (int segmentIndex : toBeUndone) {
+						segments.add(groupBranch.mCopies[segmentIndex]);
+					}
+					groupBranch.mState.undoSegments(segments);
+				}
+
+				newBranches.addAll(groupBranches);
+			}
+
+			branches = newBranches;
+		}
+
+		String[] results = new String[mChunks.size()];
+		for (Branch branch : branches) {
+			String text = branch.mState.getText();
+			for (int chunkIndex : branch.mChunkIndices) {
+				results[chunkIndex] = text;
+			}
+		}
+
+		return Arrays.asList(results);
+	}
+
+	private Branch copyBranch(Branch branch, List<Integer> chunkIndices) {
+		Map<Segment, Segment> copies = new IdentityHashMap<Segment, Segment>();
+		ChunkUndoState state = branch.mState.copy(copies);
+
+		Segment[] copySegments = new Segment[branch.mCopies.length];
+		for (int i = 0; i < copySegments.length; ++i) {
+			copySegments[i] = copies.get(branch.mCopies[i]);
+		}
+
+		return new Branch(state, copySegments, chunkIndices);
+	}
+
+}
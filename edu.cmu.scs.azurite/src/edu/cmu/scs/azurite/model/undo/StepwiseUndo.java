@@ -0,0 +1,394 @@
+package edu.cmu.scs.azurite.model.undo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.Document;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.swt.widgets.Display;
+
+import edu.cmu.scs.azurite.commands.runtime.RuntimeDC;
+import edu.cmu.scs.azurite.jface.dialogs.ConflictResolutionDialog;
+import edu.cmu.scs.azurite.model.RuntimeHistoryManager;
+
+/**
+ * Selectively undoes the given operations one more at a time, from the last
+ * one. Step k is the result of undoing the last k operations together.
+ *
+ * The steps are calculated lazily and in order. Each step is kept as a delta
+ * from the previous step, instead of a snapshot of the whole document.
+ * The result of each chunk is reused in the following steps, as long as the
+ * chunk stays the same, so only the chunks affected by the newly added
+ * operation are undone again.
+ *
+ * This assumes that the dynamic segments of the operations do not change
+ * while this object is in use. The steps prefetched in the background are
+ * calculated while holding the segment lock, and the prefetching stops once
+ * the history has changed.
+ */
+public class StepwiseUndo {
+
+	private static final String PREFETCH_JOB_NAME = "Calculating the stepwise undo";
+
+	// The number of steps calculated in advance.
+	private static final int LOOKAHEAD = 3;
+
+	/**
+	 * The change from the previous step to a step.
+	 */
+	public static class Step {
+		private int mOffset;
+		private String mRemovedText;
+		private String mInsertedText;
+
+		public Step(int offset, String removedText, String insertedText) {
+			mOffset = offset;
+			mRemovedText = removedText;
+			mInsertedText = insertedText;
+		}
+
+		public int getOffset() {
+			return mOffset;
+		}
+
+		public String getRemovedText() {
+			return mRemovedText;
+		}
+
+		public String getInsertedText() {
+			return mInsertedText;
+		}
+
+		/**
+		 * @param text the text of the previous step.
+		 * @return the text of this step.
+		 */
+		public String applyTo(String text) {
+			return text.substring(0, mOffset) + mInsertedText
+					+ text.substring(mOffset + mRemovedText.length());
+		}
+
+		/**
+		 * @param text the text of this step.
+		 * @return the text of the previous step.
+		 */
+		public String revert(String text) {
+			return text.substring(0, mOffset) + mRemovedText
+					+ text.substring(mOffset + mInsertedText.length());
+		}
+	}
+
+	// A region of the original text replaced by the undo result of a chunk.
+	private static class Replacement {
+		private int mOffset;
+		private int mLength;
+		private String mText;
+
+		public Replacement(int offset, int length, String text) {
+			mOffset = offset;
+			mLength = length;
+			mText = text;
+		}
+
+		public int getEndOffset() {
+			return mOffset + mLength;
+		}
+	}
+
+	private List<RuntimeDC> mRuntimeDCs;
+	private String mOriginalText;
+
+	private List<Step> mSteps;
+
+	// The replacements and the chunks of the last calculated step, in the order of the chunks.
+	private List<Replacement> mReplacements;
+	private Map<Chunk, Replacement> mReplacementsByChunk;
+
+	private int mPrefetchTarget;
+	private boolean mWaitingForUser;
+	private Job mPrefetchJob;
+
+	// The history version with which the steps are calculated.
+	private int mHistoryVersion;
+
+	/**
+	 * @param runtimeDCs the operations to be undone, from the oldest one.
+	 * @param originalText the current text of the document.
+	 */
+	public StepwiseUndo(List<RuntimeDC> runtimeDCs, String originalText) {
+		mRuntimeDCs = new ArrayList<RuntimeDC>(runtimeDCs);
+		mOriginalText = originalText;
+
+		mSteps = new ArrayList<Step>();
+
+		mReplacements = new ArrayList<Replacement>();
+		mReplacementsByChunk = new HashMap<Chunk, Replacement>();
+
+		mPrefetchJob = new PrefetchJob();
+		mHistoryVersion = RuntimeDC.getHistoryVersion();
+	}
+
+	public String getOriginalText() {
+		return mOriginalText;
+	}
+
+	public int getStepCount() {
+		return mRuntimeDCs.size();
+	}
+
+	/**
+	 * Gets the given step, calculating it and the steps before it as needed.
+	 * @param stepNumber the step number, from 1.
+	 * @param interactive whether to ask the user to resolve a conflict.
+	 * @return the step, or null if it could not be calculated.
+	 */
+	public synchronized Step getStep(int stepNumber, boolean interactive) {
+		if (stepNumber < 1 || stepNumber > getStepCount()) {
+			throw new IllegalArgumentException();
+		}
+
+		try {
+			while (mSteps.size() < stepNumber) {
+				if (!calculateNextStep(interactive)) {
+					return null;
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+
+		return mSteps.get(stepNumber - 1);
+	}
+
+	/* package */ synchronized int getCalculatedStepCount() {
+		return mSteps.size();
+	}
+
+	/**
+	 * Calculates a few steps after the given step in the background.
+	 * @param stepNumber the step which is being shown.
+	 */
+	public synchronized void prefetch(int stepNumber) {
+		mPrefetchTarget = Math.min(stepNumber + LOOKAHEAD, getStepCount());
+		if (mSteps.size() < mPrefetchTarget && !mWaitingForUser) {
+			mPrefetchJob.schedule();
+		}
+	}
+
+	public void dispose() {
+		mPrefetchJob.cancel();
+	}
+
+	private boolean calculateNextStep(boolean interactive) throws BadLocationException {
+		int stepNumber = mSteps.size() + 1;
+		List<RuntimeDC> runtimeDCs = new ArrayList<RuntimeDC>(
+				mRuntimeDCs.subList(mRuntimeDCs.size() - stepNumber, mRuntimeDCs.size()));
+
+		List<Chunk> chunks = SelectiveUndoEngine.getInstance().determineChunksWithRuntimeDCs(runtimeDCs);
+
+		// Find the regions of the chunks, reusing the ones of the previous step.
+		List<Replacement> replacements = new ArrayList<Replacement>();
+		Map<Chunk, Replacement> replacementsByChunk = new HashMap<Chunk, Replacement>();
+		List<Chunk> expandedChunks = new ArrayList<Chunk>();
+		boolean overlapping = false;
+		for (Chunk chunk : chunks) {
+			Replacement replacement = mReplacementsByChunk.get(chunk);
+			Chunk expandedChunk = null;
+			if (replacement == null) {
+				expandedChunk = chunk.getExpandedChunkWithDepth(SelectiveUndoEngine.MAX_EXPANSION_DEPTH);
+				replacement = new Replacement(expandedChunk.getStartOffset(),
+						expandedChunk.getChunkLength(), null);
+			}
+
+			if (!replacements.isEmpty()
+					&& replacement.mOffset < replacements.get(replacements.size() - 1).getEndOffset()) {
+				overlapping = true;
+			}
+
+			replacements.add(replacement);
+			replacementsByChunk.put(chunk, replacement);
+			expandedChunks.add(expandedChunk);
+		}
+
+		if (overlapping) {
+			// The chunks affect each other. Undo them all on the whole text, as the engine does.
+			IDocument document = new Document(mOriginalText);
+			if (!SelectiveUndoEngine.getInstance().doSelectiveUndoWithChunks(
+					chunks, document, null, interactive)) {
+				mWaitingForUser = true;
+				return false;
+			}
+
+			replacements = Collections.singletonList(
+					new Replacement(0, mOriginalText.length(), document.get()));
+			replacementsByChunk.clear();
+		} else {
+			for (int i = 0; i < chunks.size(); ++i) {
+				Replacement replacement = replacements.get(i);
+				if (replacement.mText != null) {
+					continue;
+				}
+
+				replacement.mText = undoChunk(chunks.get(i), expandedChunks.get(i),
+						replacement, interactive);
+				if (replacement.mText == null) {
+					mWaitingForUser = true;
+					return false;
+				}
+			}
+		}
+
+		mSteps.add(createStep(mReplacements, replacements));
+		mReplacements = replacements;
+		mReplacementsByChunk = replacementsByChunk;
+		mWaitingForUser = false;
+		return true;
+	}
+
+	private String undoChunk(Chunk chunk, Chunk expandedChunk, Replacement region, boolean interactive) {
+		SelectiveUndoEngine engine = SelectiveUndoEngine.getInstance();
+		String initialContent = mOriginalText.substring(region.mOffset, region.getEndOffset());
+
+		if (!chunk.hasConflictOutsideThisChunk()) {
+			return engine.doSelectiveUndoChunkWithoutConflicts(chunk, initialContent);
+		}
+
+		List<UndoAlternative> alternatives = engine.doSelectiveUndoChunkWithConflicts(chunk, initialContent);
+
+		// If the result is obvious, don't bother to ask the user.
+		if (alternatives.size() <= 2) {
+			return alternatives.get(0).getResultingCode();
+		} else if (!interactive) {
+			return null;
+		}
+
+		IDocument document = new Document(mOriginalText);
+		ConflictResolutionDialog conflictDialog = new ConflictResolutionDialog(
+				Display.getDefault().getActiveShell(), document, region.mOffset,
+				region.mLength, alternatives, chunk);
+		conflictDialog.create();
+		conflictDialog.open();
+
+		int resultLength = document.getLength() - mOriginalText.length() + region.mLength;
+		return document.get().substring(region.mOffset, region.mOffset + resultLength);
+	}
+
+	private Step createStep(List<Replacement> oldReplacements, List<Replacement> newReplacements) {
+		int minSize = Math.min(oldReplacements.size(), newReplacements.size());
+
+		// Skip the replacements which are the same in both steps.
+		int prefix = 0;
+		while (prefix < minSize && oldReplacements.get(prefix) == newReplacements.get(prefix)) {
+			++prefix;
+		}
+
+		int suffix = 0;
+		while (prefix + suffix < minSize
+				&& oldReplacements.get(oldReplacements.size() - 1 - suffix)
+						== newReplacements.get(newReplacements.size() - 1 - suffix)) {
+			++suffix;
+		}
+
+		int startOffset = prefix > 0 ? oldReplacements.get(prefix - 1).getEndOffset() : 0;
+		int endOffset = suffix > 0
+				? oldReplacements.get(oldReplacements.size() - suffix).mOffset
+				: mOriginalText.length();
+
+		// The offset in the text of the previous step.
+		int shift = 0;
+		for (int i = 0; i < prefix; ++i) {
+			shift += oldReplacements.get(i).mText.length() - oldReplacements.get(i).mLength;
+		}
+
+		String removedText = render(oldReplacements.subList(prefix, oldReplacements.size() - suffix),
+				startOffset, endOffset);
+		String insertedText = render(newReplacements.subList(prefix, newReplacements.size() - suffix),
+				startOffset, endOffset);
+
+		// Keep only the different part.
+		int commonPrefix = 0;
+		int maxCommon = Math.min(removedText.length(), insertedText.length());
+		while (commonPrefix < maxCommon
+				&& removedText.charAt(commonPrefix) == insertedText.charAt(commonPrefix)) {
+			++commonPrefix;
+		}
+
+		int commonSuffix = 0;
+		while (commonPrefix + commonSuffix < maxCommon
+				&& removedText.charAt(removedText.length() - 1 - commonSuffix)
+						== insertedText.charAt(insertedText.length() - 1 - commonSuffix)) {
+			++commonSuffix;
+		}
+
+		return new Step(startOffset + shift + commonPrefix,
+				removedText.substring(commonPrefix, removedText.length() - commonSuffix),
+				insertedText.substring(commonPrefix, insertedText.length() - commonSuffix));
+	}
+
+	// The text between the given offsets of the original text, with the given replacements applied.
+	private String render(List<Replacement> replacements, int startOffset, int endOffset) {
+		StringBuilder builder = new StringBuilder();
+		int offset = startOffset;
+		for (Replacement replacement : replacements) {
+			builder.append(mOriginalText, offset, replacement.mOffset);
+			builder.append(replacement.mText);
+			offset = replacement.getEndOffset();
+		}
+		builder.append(mOriginalText, offset, endOffset);
+
+		return builder.toString();
+	}
+
+	private class PrefetchJob extends Job {
+
+		public PrefetchJob() {
+			super(PREFETCH_JOB_NAME);
+
+			setSystem(true);
+			setPriority(Job.LONG);
+		}
+
+		@Override
+		protected IStatus run(IProgressMonitor monitor) {
+			Object segmentLock = RuntimeHistoryManager.getInstance().getSegmentLock();
+			while (!monitor.isCanceled()) {
+				// Calculate one step at a time, so that the UI thread does not wait too long.
+				synchronized (StepwiseUndo.this) {
+					if (mSteps.size() >= mPrefetchTarget || mWaitingForUser) {
+						return Status.OK_STATUS;
+					}
+
+					// The segments cannot change while the step is calculated.
+					synchronized (segmentLock) {
+						// The segments are not the ones of the previous steps any more.
+						if (RuntimeDC.getHistoryVersion() != mHistoryVersion) {
+							return Status.OK_STATUS;
+						}
+
+						try {
+							if (!calculateNextStep(false)) {
+								return Status.OK_STATUS;
+							}
+						} catch (Exception e) {
+							e.printStackTrace();
+							return Status.OK_STATUS;
+						}
+					}
+				}
+			}
+
+			return Status.CANCEL_STATUS;
+		}
+
+	}
+
+}
@@ -0,0 +1,217 @@
+package edu.cmu.scs.azurite.model.undo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A text buffer which is split into small blocks, so that replacing a part
+ * of the text only moves the characters of a single block, instead of all
+ * the characters after the replaced part.
+ */
+class TextBuffer {
+
+	private static final int BLOCK_SIZE = 512;
+
+	// The blocks in the text order. The emptied blocks stay in place until
+	// the blocks are rebuilt, so that no block has to be moved.
+	private StringBuilder[] mBlocks;
+	private int mEmptyBlocks;
+
+	// Block lengths, as a Fenwick tree indexed from one.
+	private int[] mLengths;
+
+	private int mLength;
+
+	public TextBuffer(String text) {
+		List<StringBuilder> blocks = new ArrayList<StringBuilder>();
+		for (int i = 0; i < text.length(); i += BLOCK_SIZE) {
+			blocks.add(new StringBuilder(text.substring(i, Math.min(i + BLOCK_SIZE, text.length()))));
+		}
+		setBlocks(blocks);
+		mLength = text.length();
+	}
+
+	public int length() {
+		return mLength;
+	}
+
+	/**
+	 * Replaces the characters in [start, end) with the given text.
+	 */
+	public void replace(int start, int end, String text) {
+		if (start < 0 || end < start || end > mLength) {
+			throw new StringIndexOutOfBoundsException();
+		}
+
+		// Delete the characters block by block.
+		int remaining = end - start;
+		while (remaining > 0) {
+			int blockIndex = findBlock(start);
+			StringBuilder block = mBlocks[blockIndex];
+
+			int from = start - getBlockStart(blockIndex);
+			int to = Math.min(from + remaining, block.length());
+			block.delete(from, to);
+			addLength(blockIndex, from - to);
+			remaining -= to - from;
+			mLength -= to - from;
+
+			if (block.length() == 0) {
+				++mEmptyBlocks;
+			}
+		}
+
+		if (mLength == 0) {
+			// Start over with a single block.
+			List<StringBuilder> blocks = new ArrayList<StringBuilder>();
+			if (!text.isEmpty()) {
+				blocks.add(new StringBuilder(text));
+			}
+			setBlocks(blocks);
+			mLength = text.length();
+			splitBlock(0);
+			return;
+		}
+
+		if (!text.isEmpty()) {
+			// Insert the text into the block containing the previous character,
+			// or into the first block when inserting at the beginning.
+			int blockIndex = findBlock(start == 0 ? 0 : start - 1);
+			StringBuilder block = mBlocks[blockIndex];
+			block.insert(start - getBlockStart(blockIndex), text);
+			addLength(blockIndex, text.length());
+			mLength += text.length();
+
+			if (splitBlock(blockIndex)) {
+				return;
+			}
+		}
+
+		// Merge the blocks at both sides of the replaced part, if they are small.
+		mergeWithNext(findBlock(start == 0 ? 0 : start - 1));
+
+		if (mEmptyBlocks > mBlocks.length / 2) {
+			rebuildBlocks(-1);
+		}
+	}
+
+	/**
+	 * Splits the given block if it became too large.
+	 * @return true if the blocks were rebuilt.
+	 */
+	private boolean splitBlock(int blockIndex) {
+		if (blockIndex >= mBlocks.length || mBlocks[blockIndex].length() <= BLOCK_SIZE * 2) {
+			return false;
+		}
+
+		rebuildBlocks(blockIndex);
+		return true;
+	}
+
+	/**
+	 * Moves the next non-empty block into the given block, if both fit in a
+	 * single block.
+	 */
+	private void mergeWithNext(int blockIndex) {
+		StringBuilder block = mBlocks[blockIndex];
+		int blockEnd = getBlockStart(blockIndex) + block.length();
+		if (blockEnd == mLength) {
+			return;
+		}
+
+		int nextIndex = findBlock(blockEnd);
+		StringBuilder next = mBlocks[nextIndex];
+		if (block.length() + next.length() > BLOCK_SIZE) {
+			return;
+		}
+
+		block.append(next);
+		addLength(blockIndex, next.length());
+		addLength(nextIndex, -next.length());
+		next.setLength(0);
+		++mEmptyBlocks;
+	}
+
+	/**
+	 * Drops the empty blocks, and splits the given block into blocks of
+	 * BLOCK_SIZE characters.
+	 * @param splitIndex the block to split, or -1.
+	 */
+	private void rebuildBlocks(int splitIndex) {
+		List<StringBuilder> blocks = new ArrayList<StringBuilder>();
+		for (int i = 0; i < mBlocks.length; ++i) {
+			StringBuilder block = mBlocks[i];
+			if (i == splitIndex) {
+				for (int j = 0; j < block.length(); j += BLOCK_SIZE) {
+					blocks.add(new StringBuilder(block.substring(j, Math.min(j + BLOCK_SIZE, block.length()))));
+				}
+			} else if (block.length() > 0) {
+				blocks.add(block);
+			}
+		}
+
+		setBlocks(blocks);
+	}
+
+	private void setBlocks(List<StringBuilder> blocks) {
+		mBlocks = blocks.toArray(new StringBuilder[blocks.size()]);
+		mEmptyBlocks = 0;
+
+		// Build the tree in linear time.
+		mLengths = new int[mBlocks.length + 1];
+		for (int i = 1; i <= mBlocks.length; ++i) {
+			mLengths[i] += mBlocks[i - 1].length();
+			int parent = i + (i & -i);
+			if (parent <= mBlocks.length) {
+				mLengths[parent] += mLengths[i];
+			}
+		}
+	}
+
+	private void addLength(int blockIndex, int amount) {
+		for (int i = blockIndex + 1; i < mLengths.length; i += i & -i) {
+			mLengths[i] += amount;
+		}
+	}
+
+	/**
+	 * Returns the offset of the first character of the given block.
+	 */
+	private int getBlockStart(int blockIndex) {
+		int start = 0;
+		for (int i = blockIndex; i > 0; i -= i & -i) {
+			start += mLengths[i];
+		}
+
+		return start;
+	}
+
+	/**
+	 * Returns the index of the block containing the character at the given
+	 * offset, which must be less than the length. Empty blocks are skipped.
+	 */
+	private int findBlock(int offset) {
+		// Find the largest number of leading blocks not longer than the offset.
+		int blockIndex = 0;
+		for (int step = Integer.highestOneBit(mBlocks.length); step > 0; step >>= 1) {
+			int next = blockIndex + step;
+			if (next <= mBlocks.length && mLengths[next] <= offset) {
+				blockIndex = next;
+				offset -= mLengths[next];
+			}
+		}
+
+		return blockIndex;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder(mLength);
+		for (StringBuilder block : mBlocks) {
+			builder.append(block);
+		}
+
+		return builder.toString();
+	}
+
+}
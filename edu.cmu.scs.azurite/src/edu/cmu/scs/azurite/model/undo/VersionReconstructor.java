@@ -0,0 +1,283 @@
+package edu.cmu.scs.azurite.model.undo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.cmu.scs.azurite.commands.runtime.RuntimeDC;
+import edu.cmu.scs.azurite.commands.runtime.Segment;
+
+/**
+ * Reconstructs the past versions of a selected code region. Version k is the
+ * selected code as it was right after the first k document changes were
+ * performed, so the last version is the current code.
+ *
+ * All the versions are computed with a single pass of selective undo going
+ * backwards from the current code, instead of a separate selective undo for
+ * each version. Only the reverse delta of each step and periodic checkpoint
+ * snapshots are kept, and a version is derived from the nearest checkpoint
+ * after it. The checkpoints are kept in an LRU cache bounded by the total
+ * number of characters, and an evicted one is derived again when needed.
+ */
+public class VersionReconstructor {
+
+	public static final int DEFAULT_CHECKPOINT_INTERVAL = 64;
+	public static final int DEFAULT_CACHE_BUDGET = 4 * 1024 * 1024;	// characters
+
+	/**
+	 * Edits which turn version k + 1 of the region into version k.
+	 */
+	private static class Delta {
+		private int[] mOffsets;
+		private int[] mLengths;
+		private String[] mTexts;
+
+		public Delta(List<Segment> undoneSegments, int initialOffset) {
+			int size = undoneSegments.size();
+			mOffsets = new int[size];
+			mLengths = new int[size];
+			mTexts = new String[size];
+
+			// Same as what ChunkUndoState did to the buffer for each segment.
+			for (int i = 0; i < size; ++i) {
+				Segment segment = undoneSegments.get(i);
+				mOffsets[i] = segment.getOffset() - initialOffset;
+				if (segment.isDeletion()) {
+					mLengths[i] = 0;
+					mTexts[i] = segment.getText();
+				} else {
+					mLengths[i] = segment.getLength();
+					mTexts[i] = "";
+				}
+			}
+		}
+
+		public void applyTo(StringBuilder builder) {
+			for (int i = 0; i < mOffsets.length; ++i) {
+				builder.replace(mOffsets[i], mOffsets[i] + mLengths[i], mTexts[i]);
+			}
+		}
+	}
+
+	private List<RuntimeDC> mDCs;
+
+	private String mSelectionText;
+	private int mSelectionStart;
+	private int mSelectionLength;
+
+	// The region of the file covered by the chunk of all the versions.
+	// The checkpoints and the deltas are about this region.
+	private int mRegionStart;
+	private int mRegionEnd;
+	private String mCurrentRegionText;
+
+	// The chunk range which should be undone to get each version,
+	// in the current file offsets. -1 if there is nothing to undo.
+	private int[] mChunkStarts;
+	private int[] mChunkEnds;
+
+	private Delta[] mDeltas;
+
+	private int mCheckpointInterval;
+	private int mCacheBudget;
+	private int mCacheSize;
+	private Map<Integer, String> mCheckpoints;
+
+	/**
+	 * @param dcs the document changes of the region, sorted by the command IDs.
+	 * @param fileContent the current content of the file.
+	 * @param selectionStart start offset of the selected region.
+	 * @param selectionEnd end offset of the selected region.
+	 */
+	public VersionReconstructor(List<RuntimeDC> dcs, String fileContent,
+			int selectionStart, int selectionEnd) {
+		this(dcs, fileContent, selectionStart, selectionEnd,
+				DEFAULT_CHECKPOINT_INTERVAL, DEFAULT_CACHE_BUDGET);
+	}
+
+	public VersionReconstructor(List<RuntimeDC> dcs, String fileContent,
+			int selectionStart, int selectionEnd, int checkpointInterval,
+			int cacheBudget) {
+		if (dcs == null || fileContent == null || checkpointInterval <= 0) {
+			throw new IllegalArgumentException();
+		}
+
+		mDCs = new ArrayList<RuntimeDC>(dcs);
+
+		mSelectionText = fileContent.substring(selectionStart, selectionEnd);
+		mSelectionStart = selectionStart;
+		mSelectionLength = selectionEnd - selectionStart;
+
+		mCheckpointInterval = checkpointInterval;
+		mCacheBudget = cacheBudget;
+		mCacheSize = 0;
+		mCheckpoints = new LinkedHashMap<Integer, String>(16, 0.75f, true);
+
+		computeDeltas(fileContent);
+	}
+
+	/**
+	 * @return the number of document changes, which is also the last version.
+	 */
+	public int getVersionCount() {
+		return mDCs.size();
+	}
+
+	/**
+	 * Returns the selected code of the given version.
+	 * @param version the version, from 0 to {@link #getVersionCount()}.
+	 * @return the selected code right after the first version changes.
+	 */
+	public String getVersion(int version) {
+		if (version < 0 || version > mDCs.size()) {
+			throw new IllegalArgumentException("Version out of range!");
+		}
+
+		if (version == mDCs.size() || mChunkStarts[version] == -1) {
+			return mSelectionText;
+		}
+
+		String regionText = getRegionText(version);
+
+		// Take the undone chunk range out of the region, and put it into the
+		// selected code, in the same way as undoing the chunk directly.
+		int chunkStart = mChunkStarts[version];
+		int chunkEnd = mChunkEnds[version];
+		String undoResult = regionText.substring(chunkStart - mRegionStart,
+				regionText.length() - (mRegionEnd - chunkEnd));
+
+		StringBuilder historyContent = new StringBuilder(mSelectionText);
+		historyContent.replace(
+				Math.max(chunkStart - mSelectionStart, 0),
+				Math.min(chunkEnd - mSelectionStart, mSelectionLength),
+				undoResult);
+
+		return historyContent.toString();
+	}
+
+	private void computeDeltas(String fileContent) {
+		int size = mDCs.size();
+		mChunkStarts = new int[size];
+		mChunkEnds = new int[size];
+		mDeltas = new Delta[size];
+
+		// Collect the segments of each change within the selection.
+		int selectionEnd = mSelectionStart + mSelectionLength;
+		Chunk chunk = new Chunk();
+		List<Chunk> segmentsOfDCs = new ArrayList<Chunk>();
+		for (RuntimeDC dc : mDCs) {
+			Chunk segments = new Chunk();
+			for (Segment segment : dc.getAllSegments()) {
+				if (segment.inSelectionRange(mSelectionStart, selectionEnd)) {
+					segments.add(segment);
+				}
+			}
+
+			segmentsOfDCs.add(segments);
+			chunk.addAll(segments);
+		}
+
+		// The chunk range of each version, as if the chunk were determined
+		// only with the changes after that version.
+		Comparator<Segment> comparator = Segment.getLocationComparator();
+		Segment first = null;
+		Segment last = null;
+		mRegionStart = fileContent.length();
+		mRegionEnd = 0;
+		for (int version = size - 1; version >= 0; --version) {
+			for (Segment segment : segmentsOfDCs.get(version)) {
+				if (first == null || comparator.compare(segment, first) < 0) {
+					first = segment;
+				}
+				if (last == null || comparator.compare(segment, last) > 0) {
+					last = segment;
+				}
+
+				mRegionStart = Math.min(mRegionStart, segment.getOffset());
+				mRegionEnd = Math.max(mRegionEnd, segment.getEffectiveEndOffset());
+			}
+
+			mChunkStarts[version] = first == null ? -1 : first.getOffset();
+			mChunkEnds[version] = last == null ? -1 : last.getEffectiveEndOffset();
+		}
+
+		if (chunk.isEmpty()) {
+			return;
+		}
+
+		// Undo all the changes from the end, and remember what is done for each.
+		Collections.sort(chunk, comparator);
+		mCurrentRegionText = fileContent.substring(mRegionStart, mRegionEnd);
+		ChunkUndoState state = new ChunkUndoState(chunk.copyChunk(),
+				mRegionStart, mCurrentRegionText);
+
+		for (int version = size - 1; version >= 0; --version) {
+			List<Segment> undoneSegments = state.undoChange(mDCs.get(version));
+			mDeltas[version] = new Delta(undoneSegments, mRegionStart);
+
+			if (version % mCheckpointInterval == 0) {
+				putCheckpoint(version, state.getText());
+			}
+		}
+	}
+
+	private String getRegionText(int version) {
+		// Find the nearest available checkpoint after this version.
+		int checkpoint = (version + mCheckpointInterval - 1) / mCheckpointInterval * mCheckpointInterval;
+		String checkpointText = null;
+		while (checkpoint < mDCs.size()) {
+			checkpointText = mCheckpoints.get(checkpoint);
+			if (checkpointText != null) {
+				break;
+			}
+
+			checkpoint += mCheckpointInterval;
+		}
+
+		if (checkpointText == null) {
+			checkpoint = mDCs.size();
+			checkpointText = mCurrentRegionText;
+		}
+
+		// Apply the reverse deltas, restoring the evicted checkpoints on the way.
+		StringBuilder builder = new StringBuilder(checkpointText);
+		for (int i = checkpoint - 1; i >= version; --i) {
+			mDeltas[i].applyTo(builder);
+
+			if (i % mCheckpointInterval == 0) {
+				putCheckpoint(i, builder.toString());
+			}
+		}
+
+		return builder.toString();
+	}
+
+	private void putCheckpoint(int version, String text) {
+		if (text.length() > mCacheBudget) {
+			return;
+		}
+
+		String old = mCheckpoints.put(version, text);
+		if (old != null) {
+			mCacheSize -= old.length();
+		}
+		mCacheSize += text.length();
+
+		// Evict the least recently used ones.
+		Iterator<Map.Entry<Integer, String>> it = mCheckpoints.entrySet().iterator();
+		while (mCacheSize > mCacheBudget && it.hasNext()) {
+			Map.Entry<Integer, String> entry = it.next();
+			if (entry.getKey() == version) {
+				continue;
+			}
+
+			mCacheSize -= entry.getValue().length();
+			it.remove();
+		}
+	}
+
+}
@@ -10,6 +10,9 @@ public class Initializer extends AbstractPreferenceInitializer {
 	public static final String Pref_HistorySearchCurrentSession = "Azurite_HistorySearchCurrentSession";
 	public static final String Pref_HistorySearchCaseSensitive = "Azurite_HistorySearchCaseSensitive";
 
+	// Highlight the selected operations with resource markers, instead of editor annotations.
+	public static final String Pref_HighlightSelectionWithMarkers = "Azurite_HighlightSelectionWithMarkers";
+
 	public Initializer() {
 	}
 
@@ -21,6 +24,8 @@ public class Initializer extends AbstractPreferenceInitializer {
 				.setDefault(Pref_HistorySearchCurrentSession, false);
 		Activator.getDefault().getPreferenceStore()
 				.setDefault(Pref_HistorySearchCaseSensitive, false);
+		Activator.getDefault().getPreferenceStore()
+				.setDefault(Pref_HighlightSelectionWithMarkers, false);
 	}
 
 }
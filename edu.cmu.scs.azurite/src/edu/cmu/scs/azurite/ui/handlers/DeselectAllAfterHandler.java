@@ -24,7 +24,7 @@ public class DeselectAllAfterHandler extends AbstractHandler {
 		List<RuntimeDC> dcs = new ArrayList<RuntimeDC>();
 		RuntimeHistoryManager manager = RuntimeHistoryManager.getInstance();
 		for (FileKey key : manager.getFileKeys()) {
-			dcs.addAll(manager.filterDocumentChangesLaterThanOrEqualToTimestamp(key, absTimestamp));
+			dcs.addAll(manager.filterDocumentChangesLaterThanOrEqualToTimestamp(key, absTimestamp, false));
 		}
 		
 		// Extract the ids.
@@ -31,7 +31,7 @@ public class DeselectAllInsideHandler extends AbstractHandler {
 		List<RuntimeDC> dcs = new ArrayList<RuntimeDC>();
 		RuntimeHistoryManager manager = RuntimeHistoryManager.getInstance();
 		for (FileKey key : manager.getFileKeys()) {
-			dcs.addAll(manager.filterDocumentChangesLaterThanOrEqualToAndEarlierThanTimestamps(key, absTimestampStart, absTimestampEnd));
+			dcs.addAll(manager.filterDocumentChangesLaterThanOrEqualToAndEarlierThanTimestamps(key, absTimestampStart, absTimestampEnd, false));
 		}
 		
 		// Extract the ids.
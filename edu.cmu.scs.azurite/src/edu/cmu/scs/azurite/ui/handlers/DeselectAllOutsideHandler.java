@@ -31,8 +31,8 @@ public class DeselectAllOutsideHandler extends AbstractHandler {
 		List<RuntimeDC> dcs = new ArrayList<RuntimeDC>();
 		RuntimeHistoryManager manager = RuntimeHistoryManager.getInstance();
 		for (FileKey key : manager.getFileKeys()) {
-			dcs.addAll(manager.filterDocumentChangesLaterThanOrEqualToTimestamp(key, absTimestampEnd));
-			dcs.addAll(manager.filterDocumentChangesEarlierThanTimestamp(key, absTimestampStart));
+			dcs.addAll(manager.filterDocumentChangesLaterThanOrEqualToTimestamp(key, absTimestampEnd, false));
+			dcs.addAll(manager.filterDocumentChangesEarlierThanTimestamp(key, absTimestampStart, false));
 		}
 		
 		// Extract the ids.
@@ -3,6 +3,7 @@ package edu.cmu.scs.azurite.ui.handlers;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 import org.eclipse.core.commands.AbstractHandler;
 import org.eclipse.core.commands.ExecutionEvent;
@@ -15,13 +16,11 @@ import org.eclipse.swt.widgets.Shell;
 import org.eclipse.ui.IEditorPart;
 
 import edu.cmu.scs.azurite.commands.runtime.RuntimeDC;
-import edu.cmu.scs.azurite.commands.runtime.Segment;
 import edu.cmu.scs.azurite.jface.dialogs.HistorySearchDialog;
 import edu.cmu.scs.azurite.model.IRuntimeDCFilter;
 import edu.cmu.scs.azurite.model.OperationId;
 import edu.cmu.scs.azurite.model.RuntimeHistoryManager;
-import edu.cmu.scs.azurite.model.undo.Chunk;
-import edu.cmu.scs.azurite.model.undo.SelectiveUndoEngine;
+import edu.cmu.scs.azurite.model.undo.VersionReconstructor;
 import edu.cmu.scs.azurite.views.TimelineViewPart;
 import edu.cmu.scs.fluorite.commands.HistorySearchCommand;
 import edu.cmu.scs.fluorite.model.EventRecorder;
@@ -96,8 +95,6 @@ public class HistorySearchHandler extends AbstractHandler {
 
 		
 		
-		// FIXME This selective undo is ridiculously inefficient, but maybe OK for now.
-		// TODO This is almost a cloned code from CodeHistoryDiffViewer.java Modularize.
 		List<RuntimeDC> resultDCs = new ArrayList<RuntimeDC>();
 		
 		// determine the code scope.
@@ -110,52 +107,45 @@ public class HistorySearchHandler extends AbstractHandler {
 			selectionEnd = selection.getOffset() + selection.getLength();
 		}
 		
-		int selectionLength = selectionEnd - selectionStart;
-		String codeContent = doc.get();
-		String selectedCode = codeContent.substring(selectionStart,  selectionEnd);
+		Collections.sort(dcs, RuntimeDC.getCommandIDComparator());
 		
-		for (int version = 1; version <= dcs.size(); ++version) {
-			String resultingCode = null;
-			
-			if (version == dcs.size()) {
-				resultingCode = codeContent;
-			} else {
-				// Get the previous versions by performing undo.
-				List<RuntimeDC> subList = dcs.subList(version, dcs.size());
-				Chunk chunk = getChunkFromSublist(subList, selectionStart, selectionEnd);
-				Collections.sort(chunk, Segment.getLocationComparator());
-				
-				int startOffset = chunk.getStartOffset();
-				int endOffset = chunk.getEndOffset();
-				String initialContent = codeContent.substring(startOffset, endOffset);
-				
-				String undoResult = SelectiveUndoEngine.getInstance()
-						.doSelectiveUndoChunkWithoutConflicts(chunk, initialContent);
-				
-				StringBuilder historyContent = new StringBuilder(selectedCode);
-				historyContent.replace(
-						Math.max(startOffset - selectionStart, 0),
-						Math.min(endOffset - selectionStart, selectionLength),
-						undoResult);
-				
-				resultingCode = historyContent.toString();
-			}
-			
-			// resultingCode should not be null.
-			if (resultingCode == null) { 
-				throw new IllegalStateException();
+		// Try the search index first, which does not need to reconstruct the
+		// versions. It only knows about the whole file.
+		RuntimeHistoryManager manager = RuntimeHistoryManager.getInstance();
+		Set<OperationId> indexResult = scopeSelectedCode ? null
+				: manager.getHistorySearchIndex().search(
+						manager.getCurrentFileKey(), searchText, caseSensitive, dcs);
+		if (indexResult != null) {
+			for (RuntimeDC dc : dcs) {
+				if (indexResult.contains(dc.getOperationId())) {
+					resultDCs.add(dc);
+				}
 			}
+		} else {
+			// Get the previous versions from the reconstructor, which performs
+			// the selective undo only once for all the versions.
+			VersionReconstructor reconstructor = new VersionReconstructor(
+					dcs, doc.get(), selectionStart, selectionEnd);
 			
-			// Check if the resulting code contains the provided search text.
-			// There may be locale problem?
-			// http://javapapers.com/core-java/javas-tolowercase-has-got-a-surprise-for-you/
-			if (caseSensitive) {
-				if (resultingCode.contains(searchText)) {
-					resultDCs.add(dcs.get(version - 1));
+			for (int version = 1; version <= dcs.size(); ++version) {
+				String resultingCode = reconstructor.getVersion(version);
+				
+				// resultingCode should not be null.
+				if (resultingCode == null) { 
+					throw new IllegalStateException();
 				}
-			} else {
-				if (resultingCode.toLowerCase().contains(searchTextLowerCase)) {
-					resultDCs.add(dcs.get(version - 1));
+				
+				// Check if the resulting code contains the provided search text.
+				// There may be locale problem?
+				// http://javapapers.com/core-java/javas-tolowercase-has-got-a-surprise-for-you/
+				if (caseSensitive) {
+					if (resultingCode.contains(searchText)) {
+						resultDCs.add(dcs.get(version - 1));
+					}
+				} else {
+					if (resultingCode.toLowerCase().contains(searchTextLowerCase)) {
+						resultDCs.add(dcs.get(version - 1));
+					}
 				}
 			}
 		}
@@ -185,17 +175,4 @@ public class HistorySearchHandler extends AbstractHandler {
 		return null;
 	}
 
-	private Chunk getChunkFromSublist(List<RuntimeDC> subList,
-			int selectionStart, int selectionEnd) {
-		Chunk chunk = new Chunk();
-		for (RuntimeDC dc : subList) {
-			for (Segment segment : dc.getAllSegments()) {
-				if (segment.inSelectionRange(selectionStart, selectionEnd)) {
-					chunk.add(segment);
-				}
-			}
-		}
-		return chunk;
-	}
-
 }
@@ -24,7 +24,7 @@ public class SelectAllBeforeHandler extends AbstractHandler {
 		List<RuntimeDC> dcs = new ArrayList<RuntimeDC>();
 		RuntimeHistoryManager manager = RuntimeHistoryManager.getInstance();
 		for (FileKey key : manager.getFileKeys()) {
-			dcs.addAll(manager.filterDocumentChangesEarlierThanTimestamp(key, absTimestamp));
+			dcs.addAll(manager.filterDocumentChangesEarlierThanTimestamp(key, absTimestamp, false));
 		}
 		
 		// Extract the ids.
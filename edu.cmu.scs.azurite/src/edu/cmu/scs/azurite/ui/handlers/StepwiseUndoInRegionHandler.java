@@ -1,6 +1,5 @@
 package edu.cmu.scs.azurite.ui.handlers;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import name.fraser.neil.plaintext.diff_match_patch;
@@ -31,7 +30,7 @@ import org.eclipse.ui.texteditor.IDocumentProvider;
 import org.eclipse.ui.texteditor.ITextEditor;
 
 import edu.cmu.scs.azurite.commands.runtime.RuntimeDC;
-import edu.cmu.scs.azurite.model.undo.SelectiveUndoEngine;
+import edu.cmu.scs.azurite.model.undo.StepwiseUndo;
 import edu.cmu.scs.fluorite.commands.Delete;
 import edu.cmu.scs.fluorite.commands.Insert;
 import edu.cmu.scs.fluorite.commands.Replace;
@@ -50,7 +49,7 @@ public class StepwiseUndoInRegionHandler extends AbstractHandler {
 	private String lastKnownSnapshot;
 	private long lastModificationStamp;
 	
-	private List<String> snapshotsAfterEachStep;
+	private StepwiseUndo stepwiseUndo;
 	private ITextSelection originalSelection;
 	
 	@Override
@@ -105,17 +104,11 @@ public class StepwiseUndoInRegionHandler extends AbstractHandler {
 			
 			StepwiseUndoState.clear();
 			
-			// Calculate the snapshots
-			this.snapshotsAfterEachStep = new ArrayList<String>();
-			this.snapshotsAfterEachStep.add(doc.get());
-			
-			for (int i = 1; i <= dcs.size(); ++i) {
-				List<RuntimeDC> subDCs = dcs.subList(dcs.size() - i, dcs.size());
-				IDocument copy = new Document(doc.get());
-				SelectiveUndoEngine.getInstance().doSelectiveUndo(subDCs, copy);
-				
-				this.snapshotsAfterEachStep.add(copy.get());
+			// The steps are calculated as needed.
+			if (this.stepwiseUndo != null) {
+				this.stepwiseUndo.dispose();
 			}
+			this.stepwiseUndo = new StepwiseUndo(dcs, doc.get());
 			
 			// Begin compound change.
 			ISourceViewer sourceViewer = Utilities.getSourceViewer(editorPart);
@@ -127,7 +120,7 @@ public class StepwiseUndoInRegionHandler extends AbstractHandler {
 		}
 		
 		// See if there are remaining operations to be undone.
-		if (this.snapshotsAfterEachStep.size() <= StepwiseUndoState.getStepCount() + 1) {
+		if (this.stepwiseUndo.getStepCount() <= StepwiseUndoState.getStepCount()) {
 			Shell shell = PlatformUI.getWorkbench().getActiveWorkbenchWindow().getShell();
 			MessageDialog.openInformation(shell,
 					"Azurite - Stepwise Undo in Region",
@@ -136,10 +129,16 @@ public class StepwiseUndoInRegionHandler extends AbstractHandler {
 			return null;
 		}
 		
+		StepwiseUndo.Step step = this.stepwiseUndo.getStep(StepwiseUndoState.getStepCount() + 1, true);
+		if (step == null) {
+			return null;
+		}
+		
 		// Perform the selective undo by replacing the document.
 		StepwiseUndoState.incrementStepCount();
-		final String originalSnapshot = this.snapshotsAfterEachStep.get(0);
-		final String newSnapshot = this.snapshotsAfterEachStep.get(StepwiseUndoState.getStepCount());
+		this.stepwiseUndo.prefetch(StepwiseUndoState.getStepCount());
+		final String originalSnapshot = this.stepwiseUndo.getOriginalText();
+		final String newSnapshot = step.applyTo(doc.get());
 		
 		diff_match_patch dmp = new diff_match_patch();
 		
@@ -164,23 +163,12 @@ public class StepwiseUndoInRegionHandler extends AbstractHandler {
 			}
 			
 			// Replace the document using the stamp.
-			int curPrefix = dmp.diff_commonPrefix(doc.get(), newSnapshot);
-			int curSuffix = dmp.diff_commonSuffix(doc.get(), newSnapshot);
-			
-			if (curPrefix + curSuffix > doc.getLength()) {
-				curSuffix = doc.getLength() - curPrefix;
-			}
-			
-			if (curPrefix + curSuffix > newSnapshot.length()) {
-				curSuffix = newSnapshot.length() - curPrefix;
-			}
-			
 			this.lastCompoundCancelListener.disable();
 			
 			ext4.replace(
-					curPrefix,
-					doc.getLength() - curPrefix - curSuffix,
-					newSnapshot.substring(curPrefix, newSnapshot.length() - curSuffix),
+					step.getOffset(),
+					step.getRemovedText().length(),
+					step.getInsertedText(),
 					nextStamp);
 		} catch (BadLocationException e) {
 			e.printStackTrace();
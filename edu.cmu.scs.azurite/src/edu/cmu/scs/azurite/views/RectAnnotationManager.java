@@ -0,0 +1,278 @@
+package edu.cmu.scs.azurite.views;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.jface.text.Position;
+import org.eclipse.jface.text.source.Annotation;
+import org.eclipse.jface.text.source.AnnotationModel;
+import org.eclipse.jface.text.source.IAnnotationModel;
+import org.eclipse.jface.text.source.IAnnotationModelExtension;
+import org.eclipse.ui.IEditorInput;
+import org.eclipse.ui.IEditorReference;
+import org.eclipse.ui.IFileEditorInput;
+import org.eclipse.ui.IPartListener2;
+import org.eclipse.ui.IWorkbenchPage;
+import org.eclipse.ui.IWorkbenchPart;
+import org.eclipse.ui.IWorkbenchPartReference;
+import org.eclipse.ui.texteditor.IDocumentProvider;
+import org.eclipse.ui.texteditor.ITextEditor;
+
+import edu.cmu.scs.azurite.commands.runtime.RuntimeDC;
+import edu.cmu.scs.azurite.commands.runtime.Segment;
+import edu.cmu.scs.azurite.model.FileKey;
+import edu.cmu.scs.azurite.model.OperationId;
+import edu.cmu.scs.azurite.model.RuntimeHistoryManager;
+
+/**
+ * Highlights the selected operations with annotations in the open editors,
+ * instead of creating resource markers.
+ *
+ * The annotations are kept in an in-memory annotation model, which is attached
+ * to the annotation model of each editor. Only the visible editors are updated
+ * when the selection changes, and the other editors are updated when they
+ * become visible. The files which are not open are never looked at.
+ */
+public class RectAnnotationManager implements RectSelectionListener, IPartListener2 {
+
+	private static final String ANNOTATION_TYPE_PREFIX = "edu.cmu.scs.azurite.";
+	private static final String ANNOTATION_TYPE_SUFFIX = "Type";
+
+	// The key of the attached annotation models.
+	private static final Object ANNOTATION_MODEL_KEY = new Object();
+
+	private IWorkbenchPage page;
+
+	private Set<OperationId> selectedIds;
+
+	// Incremented whenever the selection changes.
+	private int selectionVersion;
+
+	private Map<ITextEditor, EditorAnnotations> editorAnnotations;
+
+	public RectAnnotationManager(IWorkbenchPage page) {
+		this.page = page;
+		this.selectedIds = new HashSet<OperationId>();
+		this.selectionVersion = 0;
+		this.editorAnnotations = new HashMap<ITextEditor, EditorAnnotations>();
+
+		this.page.addPartListener(this);
+	}
+
+	@Override
+	public void rectSelectionChanged() {
+		try {
+			this.selectedIds = new HashSet<OperationId>(TimelineViewPart.getInstance().getRectSelection());
+			++this.selectionVersion;
+
+			for (IEditorReference editorRef : this.page.getEditorReferences()) {
+				IWorkbenchPart part = editorRef.getPart(false);
+				if (part != null && this.page.isPartVisible(part)) {
+					updateAnnotations(part);
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void dispose() {
+		this.page.removePartListener(this);
+
+		for (EditorAnnotations annotations : this.editorAnnotations.values()) {
+			annotations.detach();
+		}
+		this.editorAnnotations.clear();
+	}
+
+	private void updateAnnotations(IWorkbenchPart part) {
+		if (!(part instanceof ITextEditor)) {
+			return;
+		}
+
+		ITextEditor editor = (ITextEditor) part;
+		EditorAnnotations annotations = this.editorAnnotations.get(editor);
+		if (annotations == null) {
+			// Nothing to show yet.
+			if (this.selectedIds.isEmpty()) {
+				return;
+			}
+
+			annotations = attach(editor);
+			if (annotations == null) {
+				return;
+			}
+
+			this.editorAnnotations.put(editor, annotations);
+		}
+
+		if (annotations.version != this.selectionVersion) {
+			annotations.update();
+		}
+	}
+
+	private EditorAnnotations attach(ITextEditor editor) {
+		IEditorInput input = editor.getEditorInput();
+		if (!(input instanceof IFileEditorInput)) {
+			return null;
+		}
+
+		IFile file = ((IFileEditorInput) input).getFile();
+		if (file.getLocation() == null) {
+			return null;
+		}
+
+		FileKey fileKey = new FileKey(file.getProject().getName(), file.getLocation().toOSString());
+
+		IDocumentProvider dp = editor.getDocumentProvider();
+		if (dp == null) {
+			return null;
+		}
+
+		IAnnotationModel editorModel = dp.getAnnotationModel(input);
+		if (!(editorModel instanceof IAnnotationModelExtension)) {
+			return null;
+		}
+
+		return new EditorAnnotations(fileKey, (IAnnotationModelExtension) editorModel);
+	}
+
+	private void detach(IWorkbenchPartReference partRef) {
+		IWorkbenchPart part = partRef.getPart(false);
+		EditorAnnotations annotations = this.editorAnnotations.remove(part);
+		if (annotations != null) {
+			annotations.detach();
+		}
+	}
+
+	@Override
+	public void partVisible(IWorkbenchPartReference partRef) {
+		updateAnnotations(partRef.getPart(false));
+	}
+
+	@Override
+	public void partClosed(IWorkbenchPartReference partRef) {
+		detach(partRef);
+	}
+
+	@Override
+	public void partInputChanged(IWorkbenchPartReference partRef) {
+		// The annotations belong to the previous file.
+		detach(partRef);
+
+		IWorkbenchPart part = partRef.getPart(false);
+		if (part != null && this.page.isPartVisible(part)) {
+			updateAnnotations(part);
+		}
+	}
+
+	@Override
+	public void partActivated(IWorkbenchPartReference partRef) {
+	}
+
+	@Override
+	public void partBroughtToTop(IWorkbenchPartReference partRef) {
+	}
+
+	@Override
+	public void partDeactivated(IWorkbenchPartReference partRef) {
+	}
+
+	@Override
+	public void partOpened(IWorkbenchPartReference partRef) {
+	}
+
+	@Override
+	public void partHidden(IWorkbenchPartReference partRef) {
+	}
+
+	/**
+	 * The annotations of the selected operations in a single editor.
+	 */
+	private class EditorAnnotations {
+
+		private FileKey fileKey;
+		private IAnnotationModelExtension editorModel;
+		private AnnotationModel model;
+
+		// The annotations of each selected operation of this file.
+		private Map<OperationId, List<Annotation>> annotations;
+
+		// The selection version which the annotations reflect.
+		private int version;
+
+		public EditorAnnotations(FileKey fileKey, IAnnotationModelExtension editorModel) {
+			this.fileKey = fileKey;
+			this.editorModel = editorModel;
+			this.model = new AnnotationModel();
+			this.annotations = new HashMap<OperationId, List<Annotation>>();
+			this.version = -1;
+
+			// The attached model is connected to the document of the editor,
+			// so the positions are updated as the document changes.
+			this.editorModel.addAnnotationModel(ANNOTATION_MODEL_KEY, this.model);
+		}
+
+		public void update() {
+			this.version = selectionVersion;
+
+			// Remove the annotations of the operations which are no longer selected.
+			List<Annotation> staleAnnotations = new ArrayList<Annotation>();
+			Iterator<Map.Entry<OperationId, List<Annotation>>> it = this.annotations.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<OperationId, List<Annotation>> entry = it.next();
+				if (!selectedIds.contains(entry.getKey())) {
+					staleAnnotations.addAll(entry.getValue());
+					it.remove();
+				}
+			}
+
+			// Add the annotations of the newly selected operations.
+			Map<Annotation, Position> newAnnotations = new HashMap<Annotation, Position>();
+			RuntimeHistoryManager manager = RuntimeHistoryManager.getInstance();
+			if (!selectedIds.isEmpty() && manager.getFileKeys().contains(this.fileKey)) {
+				// Look up the selected operations in the index, instead of going
+				// through all the operations of this file.
+				List<OperationId> newIds = new ArrayList<OperationId>();
+				for (OperationId id : selectedIds) {
+					if (!this.annotations.containsKey(id)) {
+						newIds.add(id);
+					}
+				}
+
+				List<RuntimeDC> dcs = manager.filterDocumentChangesByIds(this.fileKey, newIds);
+
+				for (RuntimeDC dc : dcs) {
+					String type = ANNOTATION_TYPE_PREFIX + dc.getTypeString() + ANNOTATION_TYPE_SUFFIX;
+					List<Annotation> dcAnnotations = new ArrayList<Annotation>();
+					this.annotations.put(dc.getOperationId(), dcAnnotations);
+
+					for (Segment segment : dc.getAllSegments()) {
+						Annotation annotation = new Annotation(type, false, dc.getMarkerMessage());
+						dcAnnotations.add(annotation);
+						newAnnotations.put(annotation, new Position(segment.getOffset(),
+								segment.getEffectiveEndOffset() - segment.getOffset()));
+					}
+				}
+			}
+
+			if (!staleAnnotations.isEmpty() || !newAnnotations.isEmpty()) {
+				this.model.replaceAnnotations(
+						staleAnnotations.toArray(new Annotation[staleAnnotations.size()]),
+						newAnnotations);
+			}
+		}
+
+		public void detach() {
+			this.editorModel.removeAnnotationModel(ANNOTATION_MODEL_KEY);
+		}
+
+	}
+
+}
@@ -2,16 +2,26 @@ package edu.cmu.scs.azurite.views;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IMarker;
 import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IWorkspace;
 import org.eclipse.core.resources.IWorkspaceRoot;
+import org.eclipse.core.resources.IWorkspaceRunnable;
 import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.ISchedulingRule;
+import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.jface.text.IDocument;
 
 import edu.cmu.scs.azurite.commands.runtime.RuntimeDC;
@@ -24,10 +34,28 @@ public class RectMarkerManager implements RectSelectionListener {
 	
 	private static final String BASE_MARKER_ID = "edu.cmu.scs.azurite.baseMarker";
 	
+	private static final String MARKER_JOB_NAME = "Updating the Azurite markers";
+	
+	// The markers of each selected operation.
+	// The lists are filled later by the marker jobs.
 	private Map<OperationId, List<IMarker>> currentMarkers;
 	
+	// Makes the marker jobs run one at a time, in the order they are scheduled.
+	private ISchedulingRule markerJobRule;
+	
 	public RectMarkerManager() {
 		this.currentMarkers = new HashMap<OperationId, List<IMarker>>();
+		this.markerJobRule = new ISchedulingRule() {
+			@Override
+			public boolean isConflicting(ISchedulingRule rule) {
+				return rule == this;
+			}
+			
+			@Override
+			public boolean contains(ISchedulingRule rule) {
+				return rule == this;
+			}
+		};
 	}
 
 	@Override
@@ -38,15 +66,15 @@ public class RectMarkerManager implements RectSelectionListener {
 			
 			// Get the current selection
 			List<OperationId> ids = TimelineViewPart.getInstance().getRectSelection();
+			Set<OperationId> idSet = new HashSet<OperationId>(ids);
 			
 			// Remove all the stale markers
-			Iterator<OperationId> it = this.currentMarkers.keySet().iterator();
+			List<List<IMarker>> staleMarkers = new ArrayList<List<IMarker>>();
+			Iterator<Map.Entry<OperationId, List<IMarker>>> it = this.currentMarkers.entrySet().iterator();
 			while (it.hasNext()) {
-				OperationId oid = it.next();
-				if (!ids.contains(oid)) {
-					for (IMarker marker : this.currentMarkers.get(oid)) {
-						marker.delete();
-					}
+				Map.Entry<OperationId, List<IMarker>> entry = it.next();
+				if (!idSet.contains(entry.getKey())) {
+					staleMarkers.add(entry.getValue());
 					it.remove();
 				}
 			}
@@ -62,6 +90,9 @@ public class RectMarkerManager implements RectSelectionListener {
 			Map<FileKey, List<RuntimeDC>> fileDCMap = RuntimeHistoryManager
 					.getInstance().extractFileDCMapFromOperationIds(newIds);
 			
+			// The attributes are determined here, because the segments and
+			// the documents are only accessed from the UI thread.
+			List<NewMarker> newMarkers = new ArrayList<NewMarker>();
 			for (FileKey fileKey : fileDCMap.keySet()) {
 				IFile fileResource = root.getFileForLocation(new Path(fileKey.getFilePath()));
 				if (fileResource == null) {
@@ -78,30 +109,103 @@ public class RectMarkerManager implements RectSelectionListener {
 					this.currentMarkers.put(dc.getOperationId(), markers);
 					
 					for (Segment segment : dc.getAllSegments()) {
-						IMarker marker = fileResource.createMarker("edu.cmu.scs.azurite." + dc.getTypeString() + "Marker");
-						marker.setAttribute(IMarker.SEVERITY, IMarker.SEVERITY_INFO);
-						marker.setAttribute(IMarker.MESSAGE, dc.getMarkerMessage());
-						marker.setAttribute(IMarker.LINE_NUMBER, doc.getLineOfOffset(segment.getOffset()));
-						marker.setAttribute(IMarker.CHAR_START, segment.getOffset());
-						marker.setAttribute(IMarker.CHAR_END, segment.getEffectiveEndOffset());
+						Map<String, Object> attributes = new HashMap<String, Object>();
+						attributes.put(IMarker.SEVERITY, IMarker.SEVERITY_INFO);
+						attributes.put(IMarker.MESSAGE, dc.getMarkerMessage());
+						attributes.put(IMarker.LINE_NUMBER, doc.getLineOfOffset(segment.getOffset()));
+						attributes.put(IMarker.CHAR_START, segment.getOffset());
+						attributes.put(IMarker.CHAR_END, segment.getEffectiveEndOffset());
 						
-						markers.add(marker);
+						newMarkers.add(new NewMarker(fileResource,
+								"edu.cmu.scs.azurite." + dc.getTypeString() + "Marker",
+								attributes, markers));
 					}
 				}
 			}
+			
+			if (!staleMarkers.isEmpty() || !newMarkers.isEmpty()) {
+				new MarkerJob(staleMarkers, newMarkers, false).schedule();
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 	
 	public void removeAllMarkers() {
-		try {
-			// Remove all the markers
-			IWorkspaceRoot root = ResourcesPlugin.getWorkspace().getRoot();
-			root.deleteMarkers(BASE_MARKER_ID, true, IResource.DEPTH_INFINITE);
-		} catch (Exception e) {
-			e.printStackTrace();
+		this.currentMarkers.clear();
+		
+		// Remove all the markers, after the pending updates.
+		new MarkerJob(new ArrayList<List<IMarker>>(), new ArrayList<NewMarker>(), true).schedule();
+	}
+	
+	private static class NewMarker {
+		private IFile file;
+		private String type;
+		private Map<String, Object> attributes;
+		private List<IMarker> markers;
+		
+		public NewMarker(IFile file, String type, Map<String, Object> attributes, List<IMarker> markers) {
+			this.file = file;
+			this.type = type;
+			this.attributes = attributes;
+			this.markers = markers;
 		}
 	}
+	
+	/**
+	 * Deletes and creates the markers in a single workspace operation,
+	 * so that the listeners get notified only once.
+	 */
+	private class MarkerJob extends Job {
+		
+		private List<List<IMarker>> staleMarkers;
+		private List<NewMarker> newMarkers;
+		private boolean removeAll;
+		
+		public MarkerJob(List<List<IMarker>> staleMarkers, List<NewMarker> newMarkers, boolean removeAll) {
+			super(MARKER_JOB_NAME);
+			
+			this.staleMarkers = staleMarkers;
+			this.newMarkers = newMarkers;
+			this.removeAll = removeAll;
+			
+			setSystem(true);
+			setRule(markerJobRule);
+		}
+		
+		@Override
+		protected IStatus run(IProgressMonitor monitor) {
+			final IWorkspace workspace = ResourcesPlugin.getWorkspace();
+			
+			try {
+				workspace.run(new IWorkspaceRunnable() {
+					@Override
+					public void run(IProgressMonitor monitor) throws CoreException {
+						if (removeAll) {
+							workspace.getRoot().deleteMarkers(BASE_MARKER_ID, true, IResource.DEPTH_INFINITE);
+							return;
+						}
+						
+						List<IMarker> markersToDelete = new ArrayList<IMarker>();
+						for (List<IMarker> markers : staleMarkers) {
+							markersToDelete.addAll(markers);
+						}
+						workspace.deleteMarkers(markersToDelete.toArray(new IMarker[markersToDelete.size()]));
+						
+						for (NewMarker newMarker : newMarkers) {
+							IMarker marker = newMarker.file.createMarker(newMarker.type);
+							marker.setAttributes(newMarker.attributes);
+							newMarker.markers.add(marker);
+						}
+					}
+				}, null, IWorkspace.AVOID_UPDATE, monitor);
+			} catch (CoreException e) {
+				e.printStackTrace();
+			}
+			
+			return Status.OK_STATUS;
+		}
+	
+	}
 
 }
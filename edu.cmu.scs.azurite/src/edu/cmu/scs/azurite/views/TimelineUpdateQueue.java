@@ -0,0 +1,316 @@
+package edu.cmu.scs.azurite.views;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Keeps the updates to be shown in the timeline, until they are pulled by
+ * timeline.js in chunks. This way, adding many operations does not require
+ * formatting and evaluating a separate script for each operation.
+ *
+ * A chunk is encoded as a single flat JSON array. Each record starts with its
+ * kind, followed by the fixed number of fields for that kind. The same
+ * constants are defined in timeline.js.
+ *
+ * This class is not thread-safe. Use it only from the SWT UI thread.
+ */
+public class TimelineUpdateQueue {
+
+	// project, path
+	public static final int KIND_ADD_FILE = 0;
+	// sid, id, t1, t2, y1, y2, type, flags
+	public static final int KIND_ADD_OPERATION = 1;
+	// sid, id, t2, y1, y2, type, flags
+	public static final int KIND_UPDATE_OPERATION = 2;
+	// sid, id, t, dt, type, desc
+	public static final int KIND_ADD_EVENT = 3;
+	// (no fields)
+	public static final int KIND_PUSH_CURRENT_FILE = 4;
+	public static final int KIND_POP_CURRENT_FILE = 5;
+	public static final int KIND_LAYOUT = 6;
+	public static final int KIND_SCROLL_TO_END = 7;
+
+	public static final int FLAG_SCROLL = 1;
+	public static final int FLAG_LAYOUT = 2;
+	public static final int FLAG_CURRENT = 4;
+
+	private static class Update {
+		private int mKind;
+
+		private long mSessionId;
+		private long mId;
+		private long mTimestamp;
+		private long mTimestamp2;
+		private double mY1;
+		private double mY2;
+		private int mType;
+		private int mFlags;
+
+		private String mString1;
+		private String mString2;
+
+		public Update(int kind) {
+			mKind = kind;
+		}
+	}
+
+	private Deque<Update> mUpdates;
+
+	private boolean mPullRequested;
+
+	public TimelineUpdateQueue() {
+		mUpdates = new ArrayDeque<Update>();
+		mPullRequested = false;
+	}
+
+	public int size() {
+		return mUpdates.size();
+	}
+
+	public boolean isEmpty() {
+		return mUpdates.isEmpty();
+	}
+
+	public void clear() {
+		mUpdates.clear();
+		mPullRequested = false;
+	}
+
+	/**
+	 * Marks that the timeline was asked to pull the updates.
+	 * @return true if the timeline should be asked now, false if it was
+	 *         already asked and has not pulled all the updates yet.
+	 */
+	public boolean requestPull() {
+		if (mPullRequested || mUpdates.isEmpty()) {
+			return false;
+		}
+
+		mPullRequested = true;
+		return true;
+	}
+
+	/**
+	 * Marks that the timeline could not be asked to pull the updates. The
+	 * updates are kept, and the timeline is asked again at the next request.
+	 */
+	public void cancelPullRequest() {
+		mPullRequested = false;
+	}
+
+	public void addFile(String projectName, String filePath) {
+		Update update = new Update(KIND_ADD_FILE);
+		update.mString1 = projectName;
+		update.mString2 = filePath;
+		mUpdates.addLast(update);
+	}
+
+	public void addOperation(long sessionId, long id, long timestamp,
+			long timestamp2, double y1, double y2, int type, int flags) {
+		Update update = new Update(KIND_ADD_OPERATION);
+		update.mSessionId = sessionId;
+		update.mId = id;
+		update.mTimestamp = timestamp;
+		update.mTimestamp2 = timestamp2;
+		update.mY1 = y1;
+		update.mY2 = y2;
+		update.mType = type;
+		update.mFlags = flags;
+		mUpdates.addLast(update);
+	}
+
+	/**
+	 * Updates the last operation. When the operation is still in the queue,
+	 * the queued record is updated in place, so that typing a word does not
+	 * produce an update for each keystroke.
+	 */
+	public void updateOperation(long sessionId, long id, long timestamp2,
+			double y1, double y2, int type, int flags) {
+		Update last = mUpdates.peekLast();
+		if (last != null
+				&& (last.mKind == KIND_ADD_OPERATION || last.mKind == KIND_UPDATE_OPERATION)
+				&& last.mSessionId == sessionId && last.mId == id) {
+			last.mTimestamp2 = timestamp2;
+			last.mY1 = y1;
+			last.mY2 = y2;
+			last.mType = type;
+			last.mFlags |= flags;
+			return;
+		}
+
+		Update update = new Update(KIND_UPDATE_OPERATION);
+		update.mSessionId = sessionId;
+		update.mId = id;
+		update.mTimestamp2 = timestamp2;
+		update.mY1 = y1;
+		update.mY2 = y2;
+		update.mType = type;
+		update.mFlags = flags;
+		mUpdates.addLast(update);
+	}
+
+	public void addEvent(long sessionId, long id, long timestamp,
+			long displayTimestamp, String type, String description) {
+		Update update = new Update(KIND_ADD_EVENT);
+		update.mSessionId = sessionId;
+		update.mId = id;
+		update.mTimestamp = timestamp;
+		update.mTimestamp2 = displayTimestamp;
+		update.mString1 = type;
+		update.mString2 = description;
+		mUpdates.addLast(update);
+	}
+
+	public void pushCurrentFile() {
+		mUpdates.addLast(new Update(KIND_PUSH_CURRENT_FILE));
+	}
+
+	public void popCurrentFile() {
+		mUpdates.addLast(new Update(KIND_POP_CURRENT_FILE));
+	}
+
+	public void layout() {
+		Update last = mUpdates.peekLast();
+		if (last != null && last.mKind == KIND_LAYOUT) {
+			return;
+		}
+
+		mUpdates.addLast(new Update(KIND_LAYOUT));
+	}
+
+	public void scrollToEnd() {
+		mUpdates.addLast(new Update(KIND_SCROLL_TO_END));
+	}
+
+	/**
+	 * Removes the given number of updates from the queue at most,
+	 * and encodes them as a JSON array.
+	 * @param maxCount maximum number of updates to be returned.
+	 * @return the encoded updates.
+	 */
+	public String poll(int maxCount) {
+		StringBuilder builder = new StringBuilder();
+		builder.append('[');
+
+		for (int i = 0; i < maxCount && !mUpdates.isEmpty(); ++i) {
+			if (i > 0) {
+				builder.append(',');
+			}
+
+			appendUpdate(builder, mUpdates.pollFirst());
+		}
+
+		builder.append(']');
+
+		if (mUpdates.isEmpty()) {
+			mPullRequested = false;
+		}
+
+		return builder.toString();
+	}
+
+	private static void appendUpdate(StringBuilder builder, Update update) {
+		builder.append(update.mKind);
+
+		switch (update.mKind) {
+			case KIND_ADD_FILE:
+				builder.append(',');
+				appendString(builder, update.mString1);
+				builder.append(',');
+				appendString(builder, update.mString2);
+				break;
+
+			case KIND_ADD_OPERATION:
+				builder.append(',').append(update.mSessionId);
+				builder.append(',').append(update.mId);
+				builder.append(',').append(update.mTimestamp);
+				builder.append(',').append(update.mTimestamp2);
+				builder.append(',');
+				appendPercentage(builder, update.mY1);
+				builder.append(',');
+				appendPercentage(builder, update.mY2);
+				builder.append(',').append(update.mType);
+				builder.append(',').append(update.mFlags);
+				break;
+
+			case KIND_UPDATE_OPERATION:
+				builder.append(',').append(update.mSessionId);
+				builder.append(',').append(update.mId);
+				builder.append(',').append(update.mTimestamp2);
+				builder.append(',');
+				appendPercentage(builder, update.mY1);
+				builder.append(',');
+				appendPercentage(builder, update.mY2);
+				builder.append(',').append(update.mType);
+				builder.append(',').append(update.mFlags);
+				break;
+
+			case KIND_ADD_EVENT:
+				builder.append(',').append(update.mSessionId);
+				builder.append(',').append(update.mId);
+				builder.append(',').append(update.mTimestamp);
+				builder.append(',').append(update.mTimestamp2);
+				builder.append(',');
+				appendString(builder, update.mString1);
+				builder.append(',');
+				appendString(builder, update.mString2);
+				break;
+
+			default:
+				break;
+		}
+	}
+
+	// The vertical positions are percentages of the document. NaN and the
+	// infinities, which come from an empty document, are not valid in JSON.
+	private static void appendPercentage(StringBuilder builder, double value) {
+		if (Double.isNaN(value)) {
+			value = 0;
+		}
+
+		builder.append(Math.max(0.0, Math.min(100.0, value)));
+	}
+
+	private static void appendString(StringBuilder builder, String str) {
+		if (str == null) {
+			builder.append("null");
+			return;
+		}
+
+		builder.append('"');
+		for (int i = 0; i < str.length(); ++i) {
+			char ch = str.charAt(i);
+			switch (ch) {
+				case '"':
+					builder.append("\\\"");
+					break;
+
+				case '\\':
+					builder.append("\\\\");
+					break;
+
+				case '\n':
+					builder.append("\\n");
+					break;
+
+				case '\r':
+					builder.append("\\r");
+					break;
+
+				case '\t':
+					builder.append("\\t");
+					break;
+
+				default:
+					if (ch < 0x20 || ch == '\u2028' || ch == '\u2029') {
+						builder.append(String.format("\\u%04x", (int) ch));
+					} else {
+						builder.append(ch);
+					}
+					break;
+			}
+		}
+		builder.append('"');
+	}
+
+}
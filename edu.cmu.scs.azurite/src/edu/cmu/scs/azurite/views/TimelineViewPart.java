@@ -49,12 +49,15 @@ import org.eclipse.ui.texteditor.AbstractTextEditor;
 
 import edu.cmu.scs.azurite.commands.runtime.RuntimeDC;
 import edu.cmu.scs.azurite.jface.action.CommandAction;
+import edu.cmu.scs.azurite.model.BatchedRuntimeDCListener;
 import edu.cmu.scs.azurite.model.FileKey;
 import edu.cmu.scs.azurite.model.OperationId;
+import edu.cmu.scs.azurite.model.RuntimeDCEvent;
 import edu.cmu.scs.azurite.model.RuntimeDCListener;
 import edu.cmu.scs.azurite.model.RuntimeHistoryManager;
 import edu.cmu.scs.azurite.model.undo.SelectiveUndoEngine;
 import edu.cmu.scs.azurite.plugin.Activator;
+import edu.cmu.scs.azurite.preferences.Initializer;
 import edu.cmu.scs.fluorite.commands.BaseDocumentChangeEvent;
 import edu.cmu.scs.fluorite.commands.Delete;
 import edu.cmu.scs.fluorite.commands.EclipseCommand;
@@ -69,7 +72,7 @@ import edu.cmu.scs.fluorite.model.EventRecorder;
 import edu.cmu.scs.fluorite.model.Events;
 import edu.cmu.scs.fluorite.util.Utilities;
 
-public class TimelineViewPart extends ViewPart implements RuntimeDCListener, CommandExecutionListener {
+public class TimelineViewPart extends ViewPart implements RuntimeDCListener, BatchedRuntimeDCListener, CommandExecutionListener {
 	
 	private static final String RETURN_CODE_OK = "ok";
 	private static final String RETURN_CODE_FAIL = "fail";
@@ -80,6 +83,8 @@ public class TimelineViewPart extends ViewPart implements RuntimeDCListener, Com
 	private static String BROWSER_FUNC_PREFIX = "__AZURITE__";
 	
 	private static final String TIMELINE_VIEW_ID = "edu.cmu.scs.azurite.views.TimelineViewPart";
+	
+	private static final int UPDATES_CHUNK_SIZE = 5000;
 
 	private static TimelineViewPart me = null;
 	
@@ -111,13 +116,16 @@ public class TimelineViewPart extends ViewPart implements RuntimeDCListener, Com
 	private ListenerList rectSelectionListenerList;
 	
 	private RectMarkerManager rectMarkerManager;
+	private RectAnnotationManager rectAnnotationManager;
+	
+	// Updates waiting to be pulled by the timeline.
+	private TimelineUpdateQueue updateQueue;
 	
 	public TimelineViewPart() {
 		super();
 		
+		this.updateQueue = new TimelineUpdateQueue();
 		this.rectSelectionListenerList = new ListenerList();
-		this.rectMarkerManager = new RectMarkerManager();
-		addRectSelectionListener(this.rectMarkerManager);
 	}
 	
 	public void addRectSelectionListener(RectSelectionListener listener) {
@@ -147,8 +155,17 @@ public class TimelineViewPart extends ViewPart implements RuntimeDCListener, Com
 
 		
 		// Register to the EventRecorder.
-		RuntimeHistoryManager.getInstance().addRuntimeDocumentChangeListener(this);
+		RuntimeHistoryManager.getInstance().addBatchedRuntimeDocumentChangeListener(this);
 		EventRecorder.getInstance().addCommandExecutionListener(this);
+		
+		// Highlight the selected rectangles in the editors.
+		if (Activator.getDefault().getPreferenceStore().getBoolean(Initializer.Pref_HighlightSelectionWithMarkers)) {
+			this.rectMarkerManager = new RectMarkerManager();
+			addRectSelectionListener(this.rectMarkerManager);
+		} else {
+			this.rectAnnotationManager = new RectAnnotationManager(getSite().getPage());
+			addRectSelectionListener(this.rectAnnotationManager);
+		}
 	}
 
 	private void setupContextMenu() {
@@ -382,6 +399,9 @@ public class TimelineViewPart extends ViewPart implements RuntimeDCListener, Com
 	}
 
 	private void moveToIndexPage() {
+		// The new page will be initialized with the whole history again.
+		this.updateQueue.clear();
+		
 		// Retrieve the full URL of /html/index.html in our project.
 		try {
 			URL indexUrl = FileLocator.toFileURL(Platform.getBundle(
@@ -397,6 +417,7 @@ public class TimelineViewPart extends ViewPart implements RuntimeDCListener, Com
 		new InitializeFunction(browser, BROWSER_FUNC_PREFIX + "initialize");
 		new JumpFunction(browser, BROWSER_FUNC_PREFIX + "jump");
 		new LogFunction(browser, BROWSER_FUNC_PREFIX + "log");
+		new PullUpdatesFunction(browser, BROWSER_FUNC_PREFIX + "pullUpdates");
 		new GetInfoFunction(browser, BROWSER_FUNC_PREFIX + "getInfo");
 		new MarkerMoveFunction(browser, BROWSER_FUNC_PREFIX + "markerMove");
 		new OpenAllFilesEditedInRangeFunction(browser, BROWSER_FUNC_PREFIX + "openAllFilesEditedInRange");
@@ -408,10 +429,16 @@ public class TimelineViewPart extends ViewPart implements RuntimeDCListener, Com
 
 	@Override
 	public void dispose() {
-		RuntimeHistoryManager.getInstance().removeRuntimeDocumentChangeListener(this);
+		RuntimeHistoryManager.getInstance().removeBatchedRuntimeDocumentChangeListener(this);
 		EventRecorder.getInstance().removeCommandExecutionListener(this);
-		this.rectMarkerManager.removeAllMarkers();
-		removeRectSelectionListener(this.rectMarkerManager);
+		if (this.rectMarkerManager != null) {
+			this.rectMarkerManager.removeAllMarkers();
+			removeRectSelectionListener(this.rectMarkerManager);
+		}
+		if (this.rectAnnotationManager != null) {
+			this.rectAnnotationManager.dispose();
+			removeRectSelectionListener(this.rectAnnotationManager);
+		}
 		
 		me = null;
 		
@@ -472,6 +499,9 @@ public class TimelineViewPart extends ViewPart implements RuntimeDCListener, Com
             	public void run() {
             		Display.getDefault().asyncExec(new Runnable() {
             			public void run() {
+            				// The whole history is added below.
+            				updateQueue.clear();
+            				
                     		for (FileKey key : manager.getFileKeys()) {
                     			if (key.getProjectName() == null || key.getFilePath() == null) {
                     				continue;
@@ -516,6 +546,23 @@ public class TimelineViewPart extends ViewPart implements RuntimeDCListener, Com
 		}
 	}
 	
+	class PullUpdatesFunction extends BrowserFunction {
+		
+		public PullUpdatesFunction(Browser browser, String name) {
+			super(browser, name);
+		}
+		
+		@Override
+		public Object function(Object[] arguments) {
+			int maxCount = UPDATES_CHUNK_SIZE;
+			if (arguments != null && arguments.length == 1 && arguments[0] instanceof Number) {
+				maxCount = ((Number) arguments[0]).intValue();
+			}
+			
+			return updateQueue.poll(maxCount);
+		}
+	}
+	
 	class JumpFunction extends BrowserFunction {
 
 		public JumpFunction(Browser browser, String name) {
@@ -795,6 +842,17 @@ public class TimelineViewPart extends ViewPart implements RuntimeDCListener, Com
 		}
 	}
 	
+	@Override
+	public void runtimeDCEventsFired(List<RuntimeDCEvent> events) {
+		if (browser == null || browser.isDisposed()) {
+			return;
+		}
+		
+		for (RuntimeDCEvent event : events) {
+			event.dispatchTo(this);
+		}
+	}
+	
 	@Override
 	public void activeFileChanged(String projectName, String filePath) {
 		if (projectName == null || filePath == null) {
@@ -816,27 +874,25 @@ public class TimelineViewPart extends ViewPart implements RuntimeDCListener, Com
 	}
 
 	private void addFile(String projectName, String filePath) {
-		String executeStr = getAddFileString(projectName, filePath);
-		browser.execute(executeStr);
+		queueAddFile(projectName, filePath);
+		requestUpdates();
 	}
 
-	private String getAddFileString(String projectName, String filePath) {
-		String executeStr = String.format("addFile('%1$s', '%2$s');",
-				projectName,
+	private void queueAddFile(String projectName, String filePath) {
+		this.updateQueue.addFile(projectName,
 				filePath == null ? "null" : filePath.replace('\\', '/'));	// avoid escaping..
-		return executeStr;
 	}
 	
-	private void addEventToTimeline(ICommand event) {
-		final String executeStr = getAddEventString(event);
+	private void addEventToTimeline(final ICommand event) {
 		Display.getDefault().syncExec(new Runnable() {
 			public void run() {
-				browser.execute(executeStr);
+				queueAddEvent(event);
+				requestUpdates();
 			}
 		});
 	}
 	
-	private String getAddEventString(ICommand event) {
+	private void queueAddEvent(ICommand event) {
 		long sessionId = event.getSessionId();
 		long timestamp = event.getTimestamp();
 		long displayTimestamp = event instanceof ITimestampOverridable
@@ -853,31 +909,25 @@ public class TimelineViewPart extends ViewPart implements RuntimeDCListener, Com
 			}
 		}
 		
-		String executeStr = String.format("addEvent(%1$d, %2$d, %3$d, %4$d, '%5$s', '%6$s');",
+		this.updateQueue.addEvent(
 				sessionId,
 				event.getCommandIndex(),
 				timestamp,
 				displayTimestamp,
 				type,
 				event.getDescription());
-		
-		return executeStr;
 	}
 
 	private void addOperation(BaseDocumentChangeEvent docChange, boolean scroll, boolean current) {
-		String executeStr = getAddOperationString(docChange, scroll, true, current);
-		browser.execute(executeStr);
+		queueAddOperation(docChange, scroll, true, current);
+		requestUpdates();
 	}
 
 	private void addOperations(Events events) {
 		// Store the current file.
-		browser.execute("pushCurrentFile();");
+		this.updateQueue.pushCurrentFile();
 		
 		// Add the operations
-		StringBuilder builder = new StringBuilder();
-		
-		long start = System.currentTimeMillis();
-		
 		for (ICommand command : events.getCommands()) {
 			if (!(command instanceof BaseDocumentChangeEvent)) {
 				continue;
@@ -887,28 +937,33 @@ public class TimelineViewPart extends ViewPart implements RuntimeDCListener, Com
 			if (docChange instanceof FileOpenCommand) {
 				FileOpenCommand foc = (FileOpenCommand)docChange;
 				if (foc.getFilePath() != null) {
-					builder.append(getAddFileString(foc.getProjectName(), foc.getFilePath()));
+					queueAddFile(foc.getProjectName(), foc.getFilePath());
 				}
 			} else {
-				builder.append(getAddOperationString(docChange, false, false, false));
+				queueAddOperation(docChange, false, false, false);
 			}
 		}
 		
-		long end = System.currentTimeMillis();
-		System.out.println("Building String: " + (end - start) + "ms");
-		
-		start = System.currentTimeMillis();
-		browser.execute(builder.toString());
-		end = System.currentTimeMillis();
-		System.out.println("Executing String: " + (end - start) + "ms");
-		
 		// Restore the last file
-		browser.execute("popCurrentFile();");
+		this.updateQueue.popCurrentFile();
+		
+		requestUpdates();
 	}
 
-	private String getAddOperationString(BaseDocumentChangeEvent docChange,
+	private void queueAddOperation(BaseDocumentChangeEvent docChange,
 			boolean scroll, boolean layout, boolean current) {
-		String executeStr = String.format("addOperation(%1$d, %2$d, %3$d, %4$d, %5$f, %6$f, %7$d, %8$s, %9$s, %10$s);",
+		int flags = 0;
+		if (scroll) {
+			flags |= TimelineUpdateQueue.FLAG_SCROLL;
+		}
+		if (layout) {
+			flags |= TimelineUpdateQueue.FLAG_LAYOUT;
+		}
+		if (current) {
+			flags |= TimelineUpdateQueue.FLAG_CURRENT;
+		}
+		
+		this.updateQueue.addOperation(
 				docChange.getSessionId(),
 				docChange.getCommandIndex(),
 				docChange.getTimestamp(),
@@ -916,22 +971,40 @@ public class TimelineViewPart extends ViewPart implements RuntimeDCListener, Com
 				docChange.getY1(),
 				docChange.getY2(),
 				getTypeIndex(docChange),
-				Boolean.toString(scroll),
-				Boolean.toString(layout),
-				Boolean.toString(current));
-		return executeStr;
+				flags);
 	}
 	
 	private void addEvents(Events events) {
-		StringBuilder builder = new StringBuilder();
-		
 		for (ICommand command : events.getCommands()) {
 			if (RuntimeHistoryManager.shouldCommandBeDisplayed(command)) {
-				builder.append(getAddEventString(command));
+				queueAddEvent(command);
 			}
 		}
 		
-		browser.execute(builder.toString());
+		requestUpdates();
+	}
+	
+	/**
+	 * Lets the timeline pull the queued updates at its next animation frame.
+	 */
+	private void requestUpdates() {
+		if (this.updateQueue.requestPull() && !browser.execute("requestUpdates();")) {
+			// Keep the updates, and try again at the next request. If the page
+			// is being loaded, the queue is cleared when it is initialized.
+			this.updateQueue.cancelPullRequest();
+		}
+	}
+	
+	/**
+	 * Makes the timeline process all the queued updates right now. This must be
+	 * called before running any other script which depends on those updates.
+	 */
+	private void flushUpdates() {
+		RuntimeHistoryManager.getInstance().flushBatchedEvents(this);
+		
+		if (!this.updateQueue.isEmpty()) {
+			browser.execute("pullAllUpdates();");
+		}
 	}
 	
 	private int getTypeIndex(BaseDocumentChangeEvent docChange) {
@@ -948,28 +1021,28 @@ public class TimelineViewPart extends ViewPart implements RuntimeDCListener, Com
 
 	@Override
 	public void documentChangeUpdated(BaseDocumentChangeEvent docChange) {
-		String executeStr = String.format(
-				"updateOperation(%1$d, %2$d, %3$d, %4$f, %5$f, %6$d, true);",
+		this.updateQueue.updateOperation(
 				docChange.getSessionId(),
 				docChange.getCommandIndex(),
 				docChange.getTimestamp2(),
 				docChange.getY1(),
 				docChange.getY2(),
-				getTypeIndex(docChange));
-		browser.execute(executeStr);
+				getTypeIndex(docChange),
+				TimelineUpdateQueue.FLAG_SCROLL);
+		requestUpdates();
 	}
 	
 	@Override
 	public void documentChangeAmended(BaseDocumentChangeEvent oldDocChange, BaseDocumentChangeEvent newDocChange) {
-		String executeStr = String.format(
-				"updateOperation(%1$d, %2$d, %3$d, %4$f, %5$f, %6$d, true);",
+		this.updateQueue.updateOperation(
 				oldDocChange.getSessionId(),
 				oldDocChange.getCommandIndex(),
 				newDocChange.getTimestamp2(),
 				newDocChange.getY1(),
 				newDocChange.getY2(),
-				getTypeIndex(newDocChange));
-		browser.execute(executeStr);
+				getTypeIndex(newDocChange),
+				TimelineUpdateQueue.FLAG_SCROLL);
+		requestUpdates();
 	}
 
 	/**
@@ -985,6 +1058,7 @@ public class TimelineViewPart extends ViewPart implements RuntimeDCListener, Com
 		
 		buffer.append(", " + Boolean.toString(clearSelection) + ");");
 		
+		flushUpdates();
 		browser.execute(buffer.toString());
 	}
 	
@@ -996,6 +1070,7 @@ public class TimelineViewPart extends ViewPart implements RuntimeDCListener, Com
 		
 		buffer.append(");");
 		
+		flushUpdates();
 		browser.execute(buffer.toString());
 	}
 
@@ -1026,6 +1101,7 @@ public class TimelineViewPart extends ViewPart implements RuntimeDCListener, Com
 	}
 	
 	public void activateFirebugLite() {
+		flushUpdates();
 		browser.execute("activateFirebugLite();");
 	}
 
@@ -1052,14 +1128,17 @@ public class TimelineViewPart extends ViewPart implements RuntimeDCListener, Com
 	}
 	
 	private void scrollToEnd() {
-		browser.execute("scrollToEnd()");
+		this.updateQueue.scrollToEnd();
+		requestUpdates();
 	}
 	
 	public void executeJSCode(String codeToExecute) {
+		flushUpdates();
 		browser.execute(codeToExecute);
 	}
 	
 	public Object evaluateJSCode(String codeToExecute) {
+		flushUpdates();
 		return browser.evaluate(codeToExecute);
 	}
 	
@@ -1068,10 +1147,12 @@ public class TimelineViewPart extends ViewPart implements RuntimeDCListener, Com
 	}
 	
 	public void showMarkerAtTimestamp(long absTimestamp) {
+		flushUpdates();
 		browser.execute("showMarkerAtTimestamp(" + absTimestamp + ");");
 	}
 	
 	public void hideMarker() {
+		flushUpdates();
 		browser.execute("hideMarker();");
 	}
 	
@@ -1137,7 +1218,8 @@ public class TimelineViewPart extends ViewPart implements RuntimeDCListener, Com
 	}
 	
 	private void performLayout() {
-		browser.execute("layout();");
+		this.updateQueue.layout();
+		requestUpdates();
 	}
 	
 }